@@ -30,4 +30,14 @@ public interface BetterTrashManagementModel
     QName ASPECT_USER_READ_ACCESS_GRANTED = QName.createQName(NAMESPACE_URK, "userReadAccessGranted");
 
     QName PROP_READ_ACCESS_GRANTED_TO = QName.createQName(NAMESPACE_URK, "readAccessGrantedTo");
+
+    QName ASPECT_ARCHIVED_ITEM = QName.createQName(NAMESPACE_URK, "archivedItem");
+
+    QName PROP_NAME_NGRAMS = QName.createQName(NAMESPACE_URK, "nameNGrams");
+
+    QName PROP_ARCHIVED_DATE = QName.createQName(NAMESPACE_URK, "archivedDate");
+
+    QName PROP_ORIGINAL_DISPLAY_PATH = QName.createQName(NAMESPACE_URK, "originalDisplayPath");
+
+    QName ASPECT_PURGE_IN_PROGRESS = QName.createQName(NAMESPACE_URK, "purgeInProgress");
 }
@@ -0,0 +1,1347 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.archive;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+import de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel;
+
+/**
+ * Instances of this class maintain an optional, in-process index of the top-level archived items of all archive stores, allowing
+ * top-level listings to be answered without a SOLR query. The index only holds the data required for filtering and ordering (node ID,
+ * lower-cased name, archiver, archive date, content size and mimetype) in columnar, primitive arrays, partitioned by archiver and ordered
+ * by archive date within each partition, so that queries for the items of a single archiver only ever touch that archiver's partition. It
+ * is maintained via explicit hooks from the {@link de.axelfaust.alfresco.trash.management.repo.behaviour.UserTrashContainer archive /
+ * restore behaviour} and the {@link ArchivedNodesPurger purger}, applied incrementally after commit of the respective transaction, and
+ * (re)built from the database on startup or on demand, paging through the node ID range in separate transactions. Entries for nodes that
+ * have been removed via other paths, e.g. the default trashcan cleaner, are dropped lazily when encountered during a query.
+ *
+ * <p>
+ * <b>Memory footprint:</b> Each entry uses 24 bytes for the three {@code long} columns (node ID, archive date, content size), 8 bytes for
+ * the two {@code int} columns (indices into the shared store and mimetype tables) and a reference to the lower-cased name (4-8 bytes) with
+ * the name String itself requiring about 40 bytes plus one to two bytes per character. An additional hash table of node IDs (with archive
+ * date and partition of each node to locate entries for removal) uses 40 - 96 bytes per entry. For typical names of 20 to 30 characters,
+ * this amounts to roughly 170 - 250 bytes per entry, or about 120 MiB for the default limit of 500,000 entries. As the columns grow by 50%
+ * when full, up to a third of the allocated capacity of each partition may be unused. The number of entries is bounded by
+ * {@link #setMaxEntries(int) maxEntries} - if that limit is exceeded, the index disables itself (all queries fall back to SOLR) until it
+ * is rebuilt.
+ * </p>
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsIndex extends AbstractLifecycleBean implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsIndex.class);
+
+    private static final String TXN_CHANGES_KEY = ArchivedItemsIndex.class.getName() + "-txnChanges";
+
+    protected NodeService nodeService;
+
+    protected NodeDAO nodeDAO;
+
+    protected TransactionService transactionService;
+
+    protected ExecutorService rebuildExecutor;
+
+    protected boolean enabled = false;
+
+    protected int maxEntries = 500000;
+
+    protected int rebuildBatchSize = 1000;
+
+    protected int rebuildNodeIdWindowSize = 100000;
+
+    protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // guarded by lock - null if index is not (yet) ready
+    protected IndexData data;
+
+    // guarded by lock - non-null while a rebuild is in progress
+    protected List<Map<Long, IndexEntry>> changesDuringRebuild;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "nodeDAO", this.nodeDAO);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+        PropertyCheck.mandatory(this, "rebuildExecutor", this.rebuildExecutor);
+
+        if (this.maxEntries <= 0)
+        {
+            throw new IllegalStateException("maxEntries must be a positive integer");
+        }
+
+        if (this.rebuildBatchSize <= 0)
+        {
+            throw new IllegalStateException("rebuildBatchSize must be a positive integer");
+        }
+
+        if (this.rebuildNodeIdWindowSize <= 0)
+        {
+            throw new IllegalStateException("rebuildNodeIdWindowSize must be a positive integer");
+        }
+    }
+
+    /**
+     * @param nodeService
+     *            the nodeService to set
+     */
+    public void setNodeService(final NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param rebuildExecutor
+     *            the rebuildExecutor to set
+     */
+    public void setRebuildExecutor(final ExecutorService rebuildExecutor)
+    {
+        this.rebuildExecutor = rebuildExecutor;
+    }
+
+    /**
+     * @param enabled
+     *            the enabled to set
+     */
+    public void setEnabled(final boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param maxEntries
+     *            the maximum number of entries the index may hold before it disables itself
+     */
+    public void setMaxEntries(final int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param rebuildBatchSize
+     *            the number of archived items to load per (separate) transaction when rebuilding the index
+     */
+    public void setRebuildBatchSize(final int rebuildBatchSize)
+    {
+        this.rebuildBatchSize = rebuildBatchSize;
+    }
+
+    /**
+     * @param rebuildNodeIdWindowSize
+     *            the size of the range of node IDs to scan for archived items per (separate) transaction when rebuilding the index
+     */
+    public void setRebuildNodeIdWindowSize(final int rebuildNodeIdWindowSize)
+    {
+        this.rebuildNodeIdWindowSize = rebuildNodeIdWindowSize;
+    }
+
+    /**
+     * Checks whether the index is enabled and has been fully built so that it may be used to answer queries.
+     *
+     * @return {@code true} if the index is ready, {@code false} otherwise
+     */
+    public boolean isReady()
+    {
+        boolean ready = false;
+        if (this.enabled)
+        {
+            this.lock.readLock().lock();
+            try
+            {
+                ready = this.data != null;
+            }
+            finally
+            {
+                this.lock.readLock().unlock();
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Registers an archived top-level node to be added to the index after the current transaction has been committed.
+     *
+     * @param archivedNode
+     *            the archived node
+     */
+    public void onArchived(final NodeRef archivedNode)
+    {
+        if (this.enabled)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(archivedNode);
+            if (nodePair != null)
+            {
+                final IndexEntry entry = this.buildEntry(nodePair.getFirst(), archivedNode, this.nodeService.getProperties(archivedNode));
+                if (entry != null)
+                {
+                    this.getTxnChanges().put(nodePair.getFirst(), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a restored node to be removed from the index after the current transaction has been committed.
+     *
+     * @param restoredNode
+     *            the restored node
+     */
+    public void onRestored(final NodeRef restoredNode)
+    {
+        this.onRemoved(restoredNode);
+    }
+
+    /**
+     * Registers a purged node to be removed from the index after the current transaction has been committed. This operation must be
+     * called before the node is actually purged.
+     *
+     * @param archivedNode
+     *            the archived node being purged
+     */
+    public void onPurged(final NodeRef archivedNode)
+    {
+        this.onRemoved(archivedNode);
+    }
+
+    /**
+     * Schedules an asynchronous rebuild of the index. The current state of the index (if any) remains in use until the rebuild has
+     * completed.
+     *
+     * @return {@code true} if the rebuild has been scheduled, {@code false} if the index is not enabled
+     */
+    public boolean rebuild()
+    {
+        boolean scheduled = false;
+        if (this.enabled)
+        {
+            this.rebuildExecutor.submit(() -> {
+                AuthenticationUtil.runAsSystem(() -> {
+                    try
+                    {
+                        this.doRebuild();
+                    }
+                    catch (final RuntimeException rex)
+                    {
+                        LOGGER.error("Failed to rebuild archived items index", rex);
+                    }
+                    return null;
+                });
+            });
+            scheduled = true;
+        }
+        return scheduled;
+    }
+
+    /**
+     * Queries the index for top-level archived items, ordered by archive date (most recent first). Permission checks (via the provided
+     * acceptor) are only applied to the items up to the end of the requested page and - to determine if there are any further items - up
+     * to the next accepted item after the page. If not all matching items could be checked, the number of found items in the result is
+     * only a lower bound of the accepted items, i.e. items not accepted by the acceptor are never counted.
+     *
+     * @param query
+     *            the query to execute
+     * @param acceptor
+     *            the acceptor to decide if a matching item should be included in the results, e.g. by checking permissions, or
+     *            {@code null} if all matching items should be included
+     * @param skipCount
+     *            the number of accepted items to skip
+     * @param maxItems
+     *            the maximum number of items to return
+     * @return the result of the query or {@code null} if the index is not ready
+     */
+    public QueryResult query(final Query query, final Predicate<NodeRef> acceptor, final int skipCount, final int maxItems)
+    {
+        long[] matches = null;
+        int matchCount = 0;
+
+        if (this.enabled)
+        {
+            this.lock.readLock().lock();
+            try
+            {
+                if (this.data != null)
+                {
+                    matches = new long[Math.min(Math.max(this.data.size(), 1), 1024)];
+
+                    final int[] storeIndices = query.getStores().stream().mapToInt(store -> this.data.stores.lookup(store.toString()))
+                            .filter(idx -> idx != -1).toArray();
+
+                    final List<Columns> partitions;
+                    if (query.getArchiver() != null)
+                    {
+                        final Columns archiverPartition = this.data.columnsByArchiver.get(query.getArchiver());
+                        partitions = archiverPartition != null ? Collections.singletonList(archiverPartition) : Collections.emptyList();
+                    }
+                    else
+                    {
+                        partitions = new ArrayList<>(this.data.columnsByArchiver.values());
+                    }
+
+                    final String nameFragment = query.getNameFragment() != null ? query.getNameFragment().toLowerCase(Locale.ENGLISH)
+                            : null;
+                    final long from = query.getArchivedFrom() != null ? query.getArchivedFrom().getTime() : Long.MIN_VALUE;
+                    final long to = query.getArchivedTo() != null ? query.getArchivedTo().getTime() : Long.MAX_VALUE;
+
+                    // partitions are ordered by archive date, so merge them from the bound of the date range in the requested order
+                    final boolean ascending = query.isAscending();
+                    final Comparator<Cursor> cursorComparator = Comparator.comparingLong(Cursor::getArchivedDate);
+                    final PriorityQueue<Cursor> cursors = new PriorityQueue<>(Math.max(partitions.size(), 1),
+                            ascending ? cursorComparator : cursorComparator.reversed());
+                    if (storeIndices.length > 0)
+                    {
+                        for (final Columns partition : partitions)
+                        {
+                            final int startIdx = ascending ? partition.lowerBound(from) : partition.upperBound(to) - 1;
+                            if (startIdx >= 0 && startIdx < partition.size)
+                            {
+                                cursors.add(new Cursor(partition, startIdx));
+                            }
+                        }
+                    }
+
+                    while (!cursors.isEmpty())
+                    {
+                        final Cursor cursor = cursors.poll();
+                        final Columns partition = cursor.columns;
+                        final int idx = cursor.idx;
+                        // any other cursor is positioned even further beyond the date range
+                        if (ascending ? partition.archivedDates[idx] > to : partition.archivedDates[idx] < from)
+                        {
+                            break;
+                        }
+
+                        if (contains(storeIndices, partition.storeIndices[idx])
+                                && (nameFragment == null || partition.names[idx].contains(nameFragment)))
+                        {
+                            if (matchCount == matches.length)
+                            {
+                                matches = Arrays.copyOf(matches, matches.length + (matches.length >> 1) + 1);
+                            }
+                            matches[matchCount++] = partition.nodeIds[idx];
+                        }
+
+                        cursor.idx = ascending ? idx + 1 : idx - 1;
+                        if (cursor.idx >= 0 && cursor.idx < partition.size)
+                        {
+                            cursors.add(cursor);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        QueryResult result = null;
+        if (matches != null)
+        {
+            final List<NodeRef> page = new ArrayList<>(Math.min(maxItems, matchCount));
+            final List<Long> staleNodeIds = new ArrayList<>();
+            int acceptedCount = 0;
+
+            // with an acceptor, continue beyond the page until the next accepted item so callers can tell if there are more items
+            final int maxAcceptedCount = acceptor != null ? skipCount + maxItems + 1 : skipCount + maxItems;
+            int idx = 0;
+            for (; idx < matchCount && acceptedCount < maxAcceptedCount; idx++)
+            {
+                final Long nodeId = Long.valueOf(matches[idx]);
+                final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(nodeId);
+                if (nodePair == null || !StoreRef.PROTOCOL_ARCHIVE.equals(nodePair.getSecond().getStoreRef().getProtocol()))
+                {
+                    staleNodeIds.add(nodeId);
+                }
+                else if (acceptor == null || acceptor.test(nodePair.getSecond()))
+                {
+                    if (acceptedCount >= skipCount && page.size() < maxItems)
+                    {
+                        page.add(nodePair.getSecond());
+                    }
+                    acceptedCount++;
+                }
+            }
+
+            if (!staleNodeIds.isEmpty())
+            {
+                LOGGER.debug("Dropping {} stale entries from archived items index", staleNodeIds.size());
+                final Map<Long, IndexEntry> removals = new HashMap<>();
+                staleNodeIds.forEach(nodeId -> removals.put(nodeId, null));
+                this.applyChanges(removals);
+            }
+
+            if (acceptor == null)
+            {
+                result = new QueryResult(page, matchCount - staleNodeIds.size(), true);
+            }
+            else
+            {
+                // only counts accepted items - anything else would disclose the number of items the caller may not see
+                result = new QueryResult(page, acceptedCount, idx == matchCount);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onBootstrap(final ApplicationEvent event)
+    {
+        if (this.enabled)
+        {
+            this.rebuild();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onShutdown(final ApplicationEvent event)
+    {
+        // NO-OP
+    }
+
+    protected void onRemoved(final NodeRef node)
+    {
+        if (this.enabled)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(node);
+            // only track nodes that may actually be indexed to avoid tracking each node of cascading operations
+            if (nodePair != null && this.mayBeIndexed(nodePair.getFirst()))
+            {
+                this.getTxnChanges().put(nodePair.getFirst(), null);
+            }
+        }
+    }
+
+    protected boolean mayBeIndexed(final Long nodeId)
+    {
+        final Map<Long, IndexEntry> txnChanges = AlfrescoTransactionSupport.getResource(TXN_CHANGES_KEY);
+        boolean mayBeIndexed = txnChanges != null && txnChanges.containsKey(nodeId);
+
+        if (!mayBeIndexed)
+        {
+            this.lock.readLock().lock();
+            try
+            {
+                mayBeIndexed = this.changesDuringRebuild != null
+                        || (this.data != null && this.data.nodeIdTable.find(nodeId.longValue()) != -1);
+            }
+            finally
+            {
+                this.lock.readLock().unlock();
+            }
+        }
+        return mayBeIndexed;
+    }
+
+    protected Map<Long, IndexEntry> getTxnChanges()
+    {
+        Map<Long, IndexEntry> txnChanges = AlfrescoTransactionSupport.getResource(TXN_CHANGES_KEY);
+        if (txnChanges == null)
+        {
+            // ordered to ensure the last change of a node in a transaction wins
+            final Map<Long, IndexEntry> newTxnChanges = new LinkedHashMap<>();
+            AlfrescoTransactionSupport.bindResource(TXN_CHANGES_KEY, newTxnChanges);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void afterCommit()
+                {
+                    ArchivedItemsIndex.this.applyChanges(newTxnChanges);
+                }
+            });
+            txnChanges = newTxnChanges;
+        }
+        return txnChanges;
+    }
+
+    protected void applyChanges(final Map<Long, IndexEntry> changes)
+    {
+        this.lock.writeLock().lock();
+        try
+        {
+            if (this.changesDuringRebuild != null)
+            {
+                this.changesDuringRebuild.add(changes);
+            }
+
+            if (this.data != null && !this.data.apply(changes, this.maxEntries))
+            {
+                LOGGER.warn("Archived items index exceeded the limit of {} entries and has been disabled until the next rebuild",
+                        this.maxEntries);
+                this.data = null;
+            }
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    protected void doRebuild()
+    {
+        this.lock.writeLock().lock();
+        try
+        {
+            if (this.changesDuringRebuild != null)
+            {
+                LOGGER.info("Not rebuilding archived items index as a rebuild is already in progress");
+                return;
+            }
+            this.changesDuringRebuild = new ArrayList<>();
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+
+        try
+        {
+            LOGGER.info("Rebuilding archived items index");
+            final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+            final Pair<Long, Long> nodeIdRange = txnHelper
+                    .doInTransaction(() -> new Pair<>(this.nodeDAO.getMinNodeId(), this.nodeDAO.getMaxNodeId()), true, true);
+
+            final List<IndexEntry> entries = new ArrayList<>();
+            boolean withinLimit = true;
+            if (nodeIdRange.getFirst() != null && nodeIdRange.getSecond() != null)
+            {
+                final long minNodeId = nodeIdRange.getFirst().longValue();
+                final long maxNodeId = nodeIdRange.getSecond().longValue();
+                for (long windowStart = minNodeId; withinLimit && windowStart <= maxNodeId; windowStart += this.rebuildNodeIdWindowSize)
+                {
+                    final Long fromNodeId = Long.valueOf(windowStart);
+                    final Long toNodeId = Long.valueOf(windowStart + this.rebuildNodeIdWindowSize);
+                    final List<NodeRef> archivedItems = txnHelper.doInTransaction(() -> this.collectArchivedItems(fromNodeId, toNodeId),
+                            true, true);
+
+                    for (int batchStart = 0; batchStart < archivedItems.size(); batchStart += this.rebuildBatchSize)
+                    {
+                        final List<NodeRef> batch = archivedItems.subList(batchStart,
+                                Math.min(batchStart + this.rebuildBatchSize, archivedItems.size()));
+                        entries.addAll(txnHelper.doInTransaction(() -> this.loadEntries(batch), true, true));
+                    }
+
+                    withinLimit = entries.size() <= this.maxEntries;
+                    LOGGER.trace("Loaded {} archived items for index up to node ID {}", entries.size(), toNodeId);
+                }
+            }
+
+            IndexData newData = null;
+            if (!withinLimit)
+            {
+                LOGGER.warn("Not building archived items index as the archived items exceed the limit of {} entries", this.maxEntries);
+            }
+            else
+            {
+                // adding entries in order of archive date only ever appends to the partitions
+                entries.sort((a, b) -> Long.compare(a.archivedDate, b.archivedDate));
+                newData = new IndexData(entries.size());
+                for (final IndexEntry entry : entries)
+                {
+                    newData.add(entry);
+                }
+            }
+
+            this.lock.writeLock().lock();
+            try
+            {
+                boolean changesWithinLimit = newData != null;
+                for (final Map<Long, IndexEntry> changes : this.changesDuringRebuild)
+                {
+                    changesWithinLimit = changesWithinLimit && newData.apply(changes, this.maxEntries);
+                }
+                this.data = changesWithinLimit ? newData : null;
+                LOGGER.info("Rebuilt archived items index with {} entries", changesWithinLimit ? newData.size() : 0);
+            }
+            finally
+            {
+                this.lock.writeLock().unlock();
+            }
+        }
+        finally
+        {
+            this.lock.writeLock().lock();
+            try
+            {
+                this.changesDuringRebuild = null;
+            }
+            finally
+            {
+                this.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Collects the top-level archived items within a range of node IDs.
+     *
+     * @param fromNodeId
+     *            the (inclusive) lower bound of the node ID range
+     * @param toNodeId
+     *            the (exclusive) upper bound of the node ID range
+     * @return the archived items in the range
+     */
+    protected List<NodeRef> collectArchivedItems(final Long fromNodeId, final Long toNodeId)
+    {
+        final List<NodeRef> archivedItems = new ArrayList<>();
+        this.nodeDAO.getNodesWithAspects(Collections.singleton(ContentModel.ASPECT_ARCHIVED), fromNodeId, toNodeId, nodePair -> {
+            if (StoreRef.PROTOCOL_ARCHIVE.equals(nodePair.getSecond().getStoreRef().getProtocol()))
+            {
+                archivedItems.add(nodePair.getSecond());
+            }
+            return true;
+        });
+        return archivedItems;
+    }
+
+    protected List<IndexEntry> loadEntries(final List<NodeRef> archivedItems)
+    {
+        this.nodeDAO.cacheNodes(archivedItems);
+
+        final List<IndexEntry> entries = new ArrayList<>(archivedItems.size());
+        for (final NodeRef archivedItem : archivedItems)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(archivedItem);
+            if (nodePair != null && !this.nodeService.hasAspect(archivedItem, BetterTrashManagementModel.ASPECT_PURGE_IN_PROGRESS))
+            {
+                final IndexEntry entry = this.buildEntry(nodePair.getFirst(), archivedItem, this.nodeService.getProperties(archivedItem));
+                if (entry != null)
+                {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    protected IndexEntry buildEntry(final Long nodeId, final NodeRef archivedNode, final Map<QName, Serializable> properties)
+    {
+        final String archiver = DefaultTypeConverter.INSTANCE.convert(String.class, properties.get(ContentModel.PROP_ARCHIVED_BY));
+        final Date archivedDate = DefaultTypeConverter.INSTANCE.convert(Date.class, properties.get(ContentModel.PROP_ARCHIVED_DATE));
+
+        IndexEntry entry = null;
+        if (archiver != null && archivedDate != null)
+        {
+            final String name = DefaultTypeConverter.INSTANCE.convert(String.class, properties.get(ContentModel.PROP_NAME));
+            final ContentData content = DefaultTypeConverter.INSTANCE.convert(ContentData.class, properties.get(ContentModel.PROP_CONTENT));
+
+            entry = new IndexEntry(archivedNode.getStoreRef().toString(), nodeId.longValue(),
+                    name != null ? name.toLowerCase(Locale.ENGLISH) : "", archiver, archivedDate.getTime(),
+                    content != null ? content.getSize() : -1, content != null ? content.getMimetype() : null);
+        }
+        return entry;
+    }
+
+    protected static boolean contains(final int[] values, final int value)
+    {
+        boolean contained = false;
+        for (int idx = 0; idx < values.length && !contained; idx++)
+        {
+            contained = values[idx] == value;
+        }
+        return contained;
+    }
+
+    /**
+     * Instances of this class hold the data of a single index entry for transfer into the columnar structure.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class IndexEntry
+    {
+
+        protected final String store;
+
+        protected final long nodeId;
+
+        protected final String name;
+
+        protected final String archiver;
+
+        protected final long archivedDate;
+
+        protected final long size;
+
+        protected final String mimetype;
+
+        protected IndexEntry(final String store, final long nodeId, final String name, final String archiver, final long archivedDate,
+                final long size, final String mimetype)
+        {
+            this.store = store;
+            this.nodeId = nodeId;
+            this.name = name;
+            this.archiver = archiver;
+            this.archivedDate = archivedDate;
+            this.size = size;
+            this.mimetype = mimetype;
+        }
+    }
+
+    /**
+     * Instances of this class hold the shared, append-only table of distinct values for a column of low cardinality.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class ValueTable
+    {
+
+        protected final List<String> values = new ArrayList<>();
+
+        protected final Map<String, Integer> indices = new HashMap<>();
+
+        protected int indexOf(final String value)
+        {
+            int idx = -1;
+            if (value != null)
+            {
+                final Integer existingIdx = this.indices.get(value);
+                if (existingIdx == null)
+                {
+                    idx = this.values.size();
+                    this.values.add(value);
+                    this.indices.put(value, Integer.valueOf(idx));
+                }
+                else
+                {
+                    idx = existingIdx.intValue();
+                }
+            }
+            return idx;
+        }
+
+        protected int lookup(final String value)
+        {
+            final Integer idx = value != null ? this.indices.get(value) : null;
+            return idx != null ? idx.intValue() : -1;
+        }
+    }
+
+    /**
+     * Instances of this class hold the data of the index, i.e. the columnar partitions per archiver and the hash table of node IDs to
+     * locate the entry of a node in its partition.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class IndexData
+    {
+
+        protected final ValueTable stores = new ValueTable();
+
+        protected final ValueTable mimetypes = new ValueTable();
+
+        protected final Map<String, Columns> columnsByArchiver = new HashMap<>();
+
+        protected final NodeIdTable nodeIdTable;
+
+        protected IndexData(final int expectedSize)
+        {
+            this.nodeIdTable = new NodeIdTable(expectedSize);
+        }
+
+        protected int size()
+        {
+            return this.nodeIdTable.size;
+        }
+
+        /**
+         * Applies the changes of a transaction to the index.
+         *
+         * @param changes
+         *            the changes to apply, mapping node IDs to new entries or {@code null} for removals
+         * @param maxEntries
+         *            the maximum number of entries
+         * @return {@code true} if the changes have been applied, {@code false} if they would exceed the maximum number of entries
+         */
+        protected boolean apply(final Map<Long, IndexEntry> changes, final int maxEntries)
+        {
+            int additions = 0;
+            for (final Map.Entry<Long, IndexEntry> change : changes.entrySet())
+            {
+                this.remove(change.getKey().longValue());
+                if (change.getValue() != null)
+                {
+                    additions++;
+                }
+            }
+
+            final boolean applied = this.size() + additions <= maxEntries;
+            if (applied)
+            {
+                changes.values().stream().filter(entry -> entry != null).forEach(this::add);
+            }
+            return applied;
+        }
+
+        protected void add(final IndexEntry entry)
+        {
+            final Columns columns = this.columnsByArchiver.computeIfAbsent(entry.archiver, Columns::new);
+            columns.insert(entry, this.stores.indexOf(entry.store), this.mimetypes.indexOf(entry.mimetype));
+            this.nodeIdTable.put(entry.nodeId, entry.archivedDate, columns);
+        }
+
+        protected void remove(final long nodeId)
+        {
+            final int slot = this.nodeIdTable.find(nodeId);
+            if (slot != -1)
+            {
+                final Columns columns = this.nodeIdTable.owners[slot];
+                columns.remove(nodeId, this.nodeIdTable.archivedDates[slot]);
+                this.nodeIdTable.removeSlot(slot);
+
+                if (columns.size == 0)
+                {
+                    this.columnsByArchiver.remove(columns.archiver);
+                }
+            }
+        }
+    }
+
+    /**
+     * Instances of this class hold the columnar data of the index partition of a single archiver, ordered by archive date (ascending).
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class Columns
+    {
+
+        protected final String archiver;
+
+        protected int size;
+
+        protected long[] nodeIds;
+
+        protected long[] archivedDates;
+
+        protected long[] sizes;
+
+        protected int[] storeIndices;
+
+        protected int[] mimetypeIndices;
+
+        protected String[] names;
+
+        protected Columns(final String archiver)
+        {
+            final int capacity = 16;
+            this.archiver = archiver;
+            this.nodeIds = new long[capacity];
+            this.archivedDates = new long[capacity];
+            this.sizes = new long[capacity];
+            this.storeIndices = new int[capacity];
+            this.mimetypeIndices = new int[capacity];
+            this.names = new String[capacity];
+        }
+
+        protected void insert(final IndexEntry entry, final int storeIdx, final int mimetypeIdx)
+        {
+            // entries are typically (more) recent than any existing ones, so this rarely needs to shift
+            final int insertIdx = this.upperBound(entry.archivedDate);
+            this.ensureCapacity(this.size + 1);
+            if (insertIdx < this.size)
+            {
+                this.shift(insertIdx, insertIdx + 1, this.size - insertIdx);
+            }
+
+            this.nodeIds[insertIdx] = entry.nodeId;
+            this.archivedDates[insertIdx] = entry.archivedDate;
+            this.sizes[insertIdx] = entry.size;
+            this.storeIndices[insertIdx] = storeIdx;
+            this.mimetypeIndices[insertIdx] = mimetypeIdx;
+            this.names[insertIdx] = entry.name;
+            this.size++;
+        }
+
+        protected boolean remove(final long nodeId, final long archivedDate)
+        {
+            boolean removed = false;
+            for (int idx = this.lowerBound(archivedDate); !removed && idx < this.size && this.archivedDates[idx] == archivedDate; idx++)
+            {
+                if (this.nodeIds[idx] == nodeId)
+                {
+                    this.shift(idx + 1, idx, this.size - idx - 1);
+                    this.size--;
+                    this.names[this.size] = null;
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+
+        /**
+         * Determines the index of the first entry archived at or after a specific date.
+         *
+         * @param archivedDate
+         *            the archive date
+         * @return the index of the first entry archived at or after the date, or the size of the partition if there is no such entry
+         */
+        protected int lowerBound(final long archivedDate)
+        {
+            int low = 0;
+            int high = this.size;
+            while (low < high)
+            {
+                final int mid = (low + high) >>> 1;
+                if (this.archivedDates[mid] < archivedDate)
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Determines the index of the first entry archived after a specific date.
+         *
+         * @param archivedDate
+         *            the archive date
+         * @return the index of the first entry archived after the date, or the size of the partition if there is no such entry
+         */
+        protected int upperBound(final long archivedDate)
+        {
+            int low = 0;
+            int high = this.size;
+            // fast path for the most common case of appending
+            if (high == 0 || this.archivedDates[high - 1] <= archivedDate)
+            {
+                low = high;
+            }
+            while (low < high)
+            {
+                final int mid = (low + high) >>> 1;
+                if (this.archivedDates[mid] <= archivedDate)
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        protected void shift(final int sourceIdx, final int targetIdx, final int length)
+        {
+            System.arraycopy(this.nodeIds, sourceIdx, this.nodeIds, targetIdx, length);
+            System.arraycopy(this.archivedDates, sourceIdx, this.archivedDates, targetIdx, length);
+            System.arraycopy(this.sizes, sourceIdx, this.sizes, targetIdx, length);
+            System.arraycopy(this.storeIndices, sourceIdx, this.storeIndices, targetIdx, length);
+            System.arraycopy(this.mimetypeIndices, sourceIdx, this.mimetypeIndices, targetIdx, length);
+            System.arraycopy(this.names, sourceIdx, this.names, targetIdx, length);
+        }
+
+        protected void ensureCapacity(final int requiredCapacity)
+        {
+            if (requiredCapacity > this.nodeIds.length)
+            {
+                final int newCapacity = Math.max(requiredCapacity, this.nodeIds.length + (this.nodeIds.length >> 1));
+                this.nodeIds = Arrays.copyOf(this.nodeIds, newCapacity);
+                this.archivedDates = Arrays.copyOf(this.archivedDates, newCapacity);
+                this.sizes = Arrays.copyOf(this.sizes, newCapacity);
+                this.storeIndices = Arrays.copyOf(this.storeIndices, newCapacity);
+                this.mimetypeIndices = Arrays.copyOf(this.mimetypeIndices, newCapacity);
+                this.names = Arrays.copyOf(this.names, newCapacity);
+            }
+        }
+    }
+
+    /**
+     * Instances of this class hold the hash table of the node IDs in the index, mapping each node ID to the archive date and partition of
+     * its entry. The table uses open addressing with linear probing and a load factor of at most 0.5 (database IDs are never 0), and is
+     * updated incrementally, using backward shift deletion so that removals do not require tombstones.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class NodeIdTable
+    {
+
+        protected int size;
+
+        protected long[] nodeIds;
+
+        protected long[] archivedDates;
+
+        protected Columns[] owners;
+
+        protected NodeIdTable(final int expectedSize)
+        {
+            this.allocate(Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1);
+        }
+
+        protected int find(final long nodeId)
+        {
+            final int mask = this.nodeIds.length - 1;
+            int slot = slotOf(nodeId, mask);
+            int foundSlot = -1;
+            while (foundSlot == -1 && this.nodeIds[slot] != 0)
+            {
+                if (this.nodeIds[slot] == nodeId)
+                {
+                    foundSlot = slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return foundSlot;
+        }
+
+        protected void put(final long nodeId, final long archivedDate, final Columns owner)
+        {
+            if ((this.size + 1) * 2 > this.nodeIds.length)
+            {
+                this.resize(this.nodeIds.length << 1);
+            }
+
+            final int mask = this.nodeIds.length - 1;
+            int slot = slotOf(nodeId, mask);
+            while (this.nodeIds[slot] != 0 && this.nodeIds[slot] != nodeId)
+            {
+                slot = (slot + 1) & mask;
+            }
+
+            if (this.nodeIds[slot] == 0)
+            {
+                this.size++;
+            }
+            this.nodeIds[slot] = nodeId;
+            this.archivedDates[slot] = archivedDate;
+            this.owners[slot] = owner;
+        }
+
+        protected void removeSlot(final int slot)
+        {
+            final int mask = this.nodeIds.length - 1;
+            int gap = slot;
+            int next = (gap + 1) & mask;
+            while (this.nodeIds[next] != 0)
+            {
+                // an entry may fill the gap if its home slot does not lie (cyclically) between the gap and its current slot
+                final int home = slotOf(this.nodeIds[next], mask);
+                if (((next - home) & mask) >= ((next - gap) & mask))
+                {
+                    this.nodeIds[gap] = this.nodeIds[next];
+                    this.archivedDates[gap] = this.archivedDates[next];
+                    this.owners[gap] = this.owners[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+
+            this.nodeIds[gap] = 0;
+            this.owners[gap] = null;
+            this.size--;
+        }
+
+        protected void resize(final int tableSize)
+        {
+            final long[] oldNodeIds = this.nodeIds;
+            final long[] oldArchivedDates = this.archivedDates;
+            final Columns[] oldOwners = this.owners;
+
+            this.allocate(tableSize);
+            for (int slot = 0; slot < oldNodeIds.length; slot++)
+            {
+                if (oldNodeIds[slot] != 0)
+                {
+                    this.put(oldNodeIds[slot], oldArchivedDates[slot], oldOwners[slot]);
+                }
+            }
+        }
+
+        protected void allocate(final int tableSize)
+        {
+            this.size = 0;
+            this.nodeIds = new long[tableSize];
+            this.archivedDates = new long[tableSize];
+            this.owners = new Columns[tableSize];
+        }
+
+        protected static int slotOf(final long nodeId, final int mask)
+        {
+            return Long.hashCode(nodeId * 0x9E3779B97F4A7C15L) & mask;
+        }
+    }
+
+    /**
+     * Instances of this class represent the position of a query within a partition while merging partitions.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class Cursor
+    {
+
+        protected final Columns columns;
+
+        protected int idx;
+
+        protected Cursor(final Columns columns, final int idx)
+        {
+            this.columns = columns;
+            this.idx = idx;
+        }
+
+        protected long getArchivedDate()
+        {
+            return this.columns.archivedDates[this.idx];
+        }
+    }
+
+    /**
+     * Instances of this class describe a query against the index.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    public static class Query
+    {
+
+        protected final List<StoreRef> stores = new ArrayList<>();
+
+        protected String archiver;
+
+        protected String nameFragment;
+
+        protected Date archivedFrom;
+
+        protected Date archivedTo;
+
+        protected boolean ascending;
+
+        /**
+         * @return the archive stores to query
+         */
+        public List<StoreRef> getStores()
+        {
+            return this.stores;
+        }
+
+        /**
+         * @param store
+         *            the archive store to add to the query
+         */
+        public void addStore(final StoreRef store)
+        {
+            this.stores.add(store);
+        }
+
+        /**
+         * @return the archiver
+         */
+        public String getArchiver()
+        {
+            return this.archiver;
+        }
+
+        /**
+         * @param archiver
+         *            the archiver to set
+         */
+        public void setArchiver(final String archiver)
+        {
+            this.archiver = archiver;
+        }
+
+        /**
+         * @return the nameFragment
+         */
+        public String getNameFragment()
+        {
+            return this.nameFragment;
+        }
+
+        /**
+         * @param nameFragment
+         *            the (case-insensitive) fragment the name of an archived item needs to contain
+         */
+        public void setNameFragment(final String nameFragment)
+        {
+            this.nameFragment = nameFragment;
+        }
+
+        /**
+         * @return the archivedFrom
+         */
+        public Date getArchivedFrom()
+        {
+            return this.archivedFrom;
+        }
+
+        /**
+         * @param archivedFrom
+         *            the (inclusive) lower bound of the archive date
+         */
+        public void setArchivedFrom(final Date archivedFrom)
+        {
+            this.archivedFrom = archivedFrom;
+        }
+
+        /**
+         * @return the archivedTo
+         */
+        public Date getArchivedTo()
+        {
+            return this.archivedTo;
+        }
+
+        /**
+         * @param archivedTo
+         *            the (inclusive) upper bound of the archive date
+         */
+        public void setArchivedTo(final Date archivedTo)
+        {
+            this.archivedTo = archivedTo;
+        }
+
+        /**
+         * @return the ascending
+         */
+        public boolean isAscending()
+        {
+            return this.ascending;
+        }
+
+        /**
+         * @param ascending
+         *            {@code true} if the results should be ordered by archive date in ascending order, {@code false} (default) for the most
+         *            recently archived items first
+         */
+        public void setAscending(final boolean ascending)
+        {
+            this.ascending = ascending;
+        }
+    }
+
+    /**
+     * Instances of this class hold the result of a query against the index.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    public static class QueryResult
+    {
+
+        protected final List<NodeRef> page;
+
+        protected final long numberFound;
+
+        protected final boolean numberFoundExact;
+
+        protected QueryResult(final List<NodeRef> page, final long numberFound, final boolean numberFoundExact)
+        {
+            this.page = page;
+            this.numberFound = numberFound;
+            this.numberFoundExact = numberFoundExact;
+        }
+
+        /**
+         * @return the requested page of archived items
+         */
+        public List<NodeRef> getPage()
+        {
+            return this.page;
+        }
+
+        /**
+         * @return the total number of matching archived items accepted by the acceptor of the query - if
+         *         {@link #isNumberFoundExact() not exact}, only a lower bound which exceeds the end of the requested page if there are
+         *         any further accepted items
+         */
+        public long getNumberFound()
+        {
+            return this.numberFound;
+        }
+
+        /**
+         * @return {@code true} if the number of found items is exact, {@code false} if it is only a lower bound as not all matching
+         *         archived items have been checked by the acceptor of the query
+         */
+        public boolean isNumberFoundExact()
+        {
+            return this.numberFoundExact;
+        }
+    }
+}
@@ -0,0 +1,609 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.archive;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+import de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel;
+
+/**
+ * Instances of this class maintain the {@link BetterTrashManagementModel#PROP_NAME_NGRAMS searchable name n-grams} of archived roots and
+ * the {@link BetterTrashManagementModel#PROP_ARCHIVED_DATE sortable archive date} of archived items outside of the archiving transaction.
+ * On startup, all archived items which existed before these properties were introduced are backfilled in batches (each in a separate
+ * transaction). Upon completion, separate persistent flags are set for both properties, the one for the name n-grams allowing top-level
+ * queries to switch to n-gram term lookups. The descendants of newly archived items are processed the same way after the archiving
+ * transaction has been committed, and the properties are removed from the descendants of restored items after the restoring transaction
+ * has been committed.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsNameNGramsBackfill extends AbstractLifecycleBean implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsNameNGramsBackfill.class);
+
+    private static final String ATTR_KEY_MODULE = "better-trashmanagement";
+
+    private static final String ATTR_KEY_NAME_NGRAMS_BACKFILL_COMPLETE = "nameNGramsBackfillComplete";
+
+    private static final String ATTR_KEY_ARCHIVED_DATE_BACKFILL_COMPLETE = "archivedDateBackfillComplete";
+
+    private static final String TXN_PENDING_ROOTS_KEY = ArchivedItemsNameNGramsBackfill.class.getName() + "-pendingRoots";
+
+    private static final String TXN_RESTORED_ROOTS_KEY = ArchivedItemsNameNGramsBackfill.class.getName() + "-restoredRoots";
+
+    private static final QName BACKFILL_LOCK_QNAME = QName.createQName(BetterTrashManagementModel.NAMESPACE_URK,
+            ArchivedItemsNameNGramsBackfill.class.getSimpleName());
+
+    private static final long BACKFILL_LOCK_TTL = 60000;
+
+    // interval in which servers not running the backfill themselves check whether another server has completed it
+    private static final long COMPLETE_CHECK_INTERVAL = 60000;
+
+    protected NodeService nodeService;
+
+    protected NodeDAO nodeDAO;
+
+    protected TransactionService transactionService;
+
+    protected AttributeService attributeService;
+
+    protected BehaviourFilter behaviourFilter;
+
+    protected JobLockService jobLockService;
+
+    protected ExecutorService backfillExecutor;
+
+    protected int batchSize = 500;
+
+    protected int nodeIdWindowSize = 100000;
+
+    protected volatile boolean complete = false;
+
+    protected volatile boolean archivedDateComplete = false;
+
+    protected volatile long lastCompleteCheck = 0;
+
+    protected volatile boolean shutdown = false;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "nodeDAO", this.nodeDAO);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+        PropertyCheck.mandatory(this, "behaviourFilter", this.behaviourFilter);
+        PropertyCheck.mandatory(this, "jobLockService", this.jobLockService);
+        PropertyCheck.mandatory(this, "backfillExecutor", this.backfillExecutor);
+
+        if (this.batchSize <= 0)
+        {
+            throw new IllegalStateException("batchSize must be a positive integer");
+        }
+
+        if (this.nodeIdWindowSize <= 0)
+        {
+            throw new IllegalStateException("nodeIdWindowSize must be a positive integer");
+        }
+    }
+
+    /**
+     * @param nodeService
+     *            the nodeService to set
+     */
+    public void setNodeService(final NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param behaviourFilter
+     *            the behaviourFilter to set
+     */
+    public void setBehaviourFilter(final BehaviourFilter behaviourFilter)
+    {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+    /**
+     * @param jobLockService
+     *            the jobLockService to set
+     */
+    public void setJobLockService(final JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param backfillExecutor
+     *            the backfillExecutor to set
+     */
+    public void setBackfillExecutor(final ExecutorService backfillExecutor)
+    {
+        this.backfillExecutor = backfillExecutor;
+    }
+
+    /**
+     * @param batchSize
+     *            the number of nodes to process per (separate) transaction
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param nodeIdWindowSize
+     *            the size of the node ID ranges in which archived roots are collected and processed during the backfill
+     */
+    public void setNodeIdWindowSize(final int nodeIdWindowSize)
+    {
+        this.nodeIdWindowSize = nodeIdWindowSize;
+    }
+
+    /**
+     * Checks whether the backfill of all archived roots has completed so that queries can rely on the name n-grams.
+     *
+     * @return {@code true} if the backfill has been completed, {@code false} otherwise
+     */
+    public boolean isComplete()
+    {
+        final long now = System.currentTimeMillis();
+        if (!this.complete && now - this.lastCompleteCheck > COMPLETE_CHECK_INTERVAL)
+        {
+            // backfill may be run by another server of the cluster
+            this.lastCompleteCheck = now;
+            this.complete = this.readCompleteFlag(ATTR_KEY_NAME_NGRAMS_BACKFILL_COMPLETE);
+        }
+        return this.complete;
+    }
+
+    /**
+     * Sets the sortable archive date on a single archived node, and the searchable name n-grams if it is an archived root. The archive date
+     * is taken from the node itself if it is an archived root, or otherwise inherited from its primary parent, which needs to have been
+     * processed before.
+     *
+     * @param archivedNode
+     *            the archived node
+     */
+    public void addArchivedItemProperties(final NodeRef archivedNode)
+    {
+        final Map<QName, Serializable> nodeProperties = this.nodeService.getProperties(archivedNode);
+        final Map<QName, Serializable> properties = new HashMap<>();
+
+        Serializable archivedDate = nodeProperties.get(ContentModel.PROP_ARCHIVED_DATE);
+        if (archivedDate != null)
+        {
+            // n-grams require about three property rows per character of the name, so they are limited to the archived roots which are
+            // the only items listed in the (default) top-level queries
+            final String name = DefaultTypeConverter.INSTANCE.convert(String.class, nodeProperties.get(ContentModel.PROP_NAME));
+            properties.put(BetterTrashManagementModel.PROP_NAME_NGRAMS, (Serializable) NameNGrams.buildIndexNGrams(name));
+        }
+        else
+        {
+            final ChildAssociationRef primaryParent = this.nodeService.getPrimaryParent(archivedNode);
+            if (primaryParent != null && primaryParent.getParentRef() != null)
+            {
+                archivedDate = this.nodeService.getProperty(primaryParent.getParentRef(), BetterTrashManagementModel.PROP_ARCHIVED_DATE);
+            }
+        }
+
+        properties.put(BetterTrashManagementModel.PROP_ARCHIVED_DATE, archivedDate);
+        this.nodeService.addAspect(archivedNode, BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM, properties);
+    }
+
+    /**
+     * Registers the descendants of an archived node to be processed asynchronously after the current transaction has been committed.
+     *
+     * @param archivedNode
+     *            the archived node
+     */
+    public void scheduleDescendants(final NodeRef archivedNode)
+    {
+        List<NodeRef> pendingRoots = AlfrescoTransactionSupport.getResource(TXN_PENDING_ROOTS_KEY);
+        if (pendingRoots == null)
+        {
+            final List<NodeRef> newPendingRoots = new ArrayList<>();
+            AlfrescoTransactionSupport.bindResource(TXN_PENDING_ROOTS_KEY, newPendingRoots);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void afterCommit()
+                {
+                    ArchivedItemsNameNGramsBackfill.this.submit(() -> {
+                        final RetryingTransactionHelper txnHelper = ArchivedItemsNameNGramsBackfill.this.transactionService
+                                .getRetryingTransactionHelper();
+                        final Deque<NodeRef> pendingNodes = txnHelper
+                                .doInTransaction(() -> ArchivedItemsNameNGramsBackfill.this.collectChildren(newPendingRoots), true, true);
+                        ArchivedItemsNameNGramsBackfill.this.process(pendingNodes, () -> {
+                            // NO-OP
+                        });
+                    });
+                }
+            });
+            pendingRoots = newPendingRoots;
+        }
+        pendingRoots.add(archivedNode);
+    }
+
+    /**
+     * Registers the descendants of a restored node to have their archived item properties removed asynchronously after the current
+     * transaction has been committed.
+     *
+     * @param restoredNode
+     *            the restored node
+     */
+    public void scheduleRestoredDescendants(final NodeRef restoredNode)
+    {
+        List<NodeRef> restoredRoots = AlfrescoTransactionSupport.getResource(TXN_RESTORED_ROOTS_KEY);
+        if (restoredRoots == null)
+        {
+            final List<NodeRef> newRestoredRoots = new ArrayList<>();
+            AlfrescoTransactionSupport.bindResource(TXN_RESTORED_ROOTS_KEY, newRestoredRoots);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void afterCommit()
+                {
+                    ArchivedItemsNameNGramsBackfill.this.submit(() -> {
+                        final RetryingTransactionHelper txnHelper = ArchivedItemsNameNGramsBackfill.this.transactionService
+                                .getRetryingTransactionHelper();
+                        final Deque<NodeRef> pendingNodes = txnHelper
+                                .doInTransaction(() -> ArchivedItemsNameNGramsBackfill.this.collectChildren(newRestoredRoots), true, true);
+                        ArchivedItemsNameNGramsBackfill.this.processRestored(pendingNodes);
+                    });
+                }
+            });
+            restoredRoots = newRestoredRoots;
+        }
+        restoredRoots.add(restoredNode);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onBootstrap(final ApplicationEvent event)
+    {
+        this.shutdown = false;
+
+        this.lastCompleteCheck = System.currentTimeMillis();
+        this.complete = this.readCompleteFlag(ATTR_KEY_NAME_NGRAMS_BACKFILL_COMPLETE);
+        // archive date has its own flag as it was introduced later and requires a traversal of all archived descendants
+        this.archivedDateComplete = this.readCompleteFlag(ATTR_KEY_ARCHIVED_DATE_BACKFILL_COMPLETE);
+
+        if (!this.complete || !this.archivedDateComplete)
+        {
+            this.submit(this::backfill);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onShutdown(final ApplicationEvent event)
+    {
+        // backfill will stop after its current batch and be restarted on next bootstrap
+        this.shutdown = true;
+    }
+
+    protected boolean readCompleteFlag(final String flagKey)
+    {
+        final Serializable completeFlag = AuthenticationUtil.runAsSystem(() -> this.transactionService.getRetryingTransactionHelper()
+                .doInTransaction(() -> this.attributeService.getAttribute(ATTR_KEY_MODULE, flagKey), true, false));
+        return Boolean.TRUE.equals(completeFlag);
+    }
+
+    protected void submit(final Runnable work)
+    {
+        this.backfillExecutor.submit(() -> {
+            AuthenticationUtil.runAsSystem(() -> {
+                try
+                {
+                    work.run();
+                }
+                catch (final RuntimeException rex)
+                {
+                    LOGGER.error("Failed to process properties of archived items", rex);
+                }
+                return null;
+            });
+        });
+    }
+
+    /**
+     * Backfills all archived items, provided the backfill lock can be acquired, i.e. no other server of the cluster is already running the
+     * backfill.
+     */
+    protected void backfill()
+    {
+        String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(BACKFILL_LOCK_QNAME, BACKFILL_LOCK_TTL);
+        }
+        catch (final LockAcquisitionException laex)
+        {
+            LOGGER.debug("Backfill of name n-grams for archived items is already being run by another server");
+            lockToken = null;
+        }
+
+        if (lockToken != null)
+        {
+            final String effectiveLockToken = lockToken;
+            try
+            {
+                final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+                // another server may have completed the backfill between our bootstrap and acquiring the lock
+                boolean completed = this.readCompleteFlag(ATTR_KEY_NAME_NGRAMS_BACKFILL_COMPLETE);
+                boolean archivedDateCompleted = this.readCompleteFlag(ATTR_KEY_ARCHIVED_DATE_BACKFILL_COMPLETE);
+                if (!completed || !archivedDateCompleted)
+                {
+                    LOGGER.info("Starting backfill of name n-grams / archive date for archived items");
+                    // fails if the lock has been lost, e.g. due to a long GC pause, aborting the backfill
+                    final Runnable refreshLock = () -> this.jobLockService.refreshLock(effectiveLockToken, BACKFILL_LOCK_QNAME,
+                            BACKFILL_LOCK_TTL);
+                    final Pair<Long, Long> nodeIdRange = txnHelper
+                            .doInTransaction(() -> new Pair<>(this.nodeDAO.getMinNodeId(), this.nodeDAO.getMaxNodeId()), true, true);
+
+                    long processedNodes = 0;
+                    if (nodeIdRange.getFirst() != null && nodeIdRange.getSecond() != null)
+                    {
+                        final long minNodeId = nodeIdRange.getFirst().longValue();
+                        final long maxNodeId = nodeIdRange.getSecond().longValue();
+                        // archived roots are collected and processed window by window to bound the number of pending nodes
+                        for (long windowStart = minNodeId; !this.shutdown && windowStart <= maxNodeId; windowStart += this.nodeIdWindowSize)
+                        {
+                            refreshLock.run();
+                            final Long fromNodeId = Long.valueOf(windowStart);
+                            final Long toNodeId = Long.valueOf(windowStart + this.nodeIdWindowSize);
+                            final Deque<NodeRef> pendingNodes = txnHelper
+                                    .doInTransaction(() -> this.collectArchivedRoots(fromNodeId, toNodeId), true, true);
+                            processedNodes += this.process(pendingNodes, refreshLock);
+                            LOGGER.trace("Processed archived items for archived roots up to node ID {}", toNodeId);
+                        }
+                    }
+
+                    if (!this.shutdown)
+                    {
+                        txnHelper.doInTransaction(() -> {
+                            this.attributeService.setAttribute(Boolean.TRUE, ATTR_KEY_MODULE, ATTR_KEY_NAME_NGRAMS_BACKFILL_COMPLETE);
+                            this.attributeService.setAttribute(Boolean.TRUE, ATTR_KEY_MODULE, ATTR_KEY_ARCHIVED_DATE_BACKFILL_COMPLETE);
+                            return null;
+                        }, false, true);
+                        completed = true;
+                        archivedDateCompleted = true;
+                        LOGGER.info("Completed backfill of name n-grams / archive date for {} archived items", processedNodes);
+                    }
+                }
+                this.complete = completed;
+                this.archivedDateComplete = archivedDateCompleted;
+            }
+            finally
+            {
+                this.jobLockService.releaseLockVerify(effectiveLockToken, BACKFILL_LOCK_QNAME);
+            }
+        }
+    }
+
+    /**
+     * Collects the archived roots within a range of node IDs.
+     *
+     * @param fromNodeId
+     *            the (inclusive) lower bound of the node ID range
+     * @param toNodeId
+     *            the (exclusive) upper bound of the node ID range
+     * @return the archived roots in the range
+     */
+    protected Deque<NodeRef> collectArchivedRoots(final Long fromNodeId, final Long toNodeId)
+    {
+        final Deque<NodeRef> archivedRoots = new ArrayDeque<>();
+        this.nodeDAO.getNodesWithAspects(Collections.singleton(ContentModel.ASPECT_ARCHIVED), fromNodeId, toNodeId, nodePair -> {
+            if (StoreRef.PROTOCOL_ARCHIVE.equals(nodePair.getSecond().getStoreRef().getProtocol()))
+            {
+                archivedRoots.add(nodePair.getSecond());
+            }
+            return true;
+        });
+        return archivedRoots;
+    }
+
+    protected Deque<NodeRef> collectChildren(final Collection<NodeRef> nodes)
+    {
+        final Deque<NodeRef> children = new ArrayDeque<>();
+        for (final NodeRef node : nodes)
+        {
+            if (this.nodeService.exists(node))
+            {
+                for (final ChildAssociationRef childAssoc : this.nodeService.getChildAssocs(node))
+                {
+                    if (childAssoc.isPrimary())
+                    {
+                        children.add(childAssoc.getChildRef());
+                    }
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Processes a set of archived nodes and all their descendants in batches, each within a separate transaction.
+     *
+     * @param pendingNodes
+     *            the nodes to process - will be modified to track the progress of the traversal
+     * @param beforeBatch
+     *            the callback to run before each batch, e.g. to refresh a lock
+     * @return the number of processed nodes
+     */
+    protected long process(final Deque<NodeRef> pendingNodes, final Runnable beforeBatch)
+    {
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+        long processedNodes = 0;
+        while (!pendingNodes.isEmpty() && !this.shutdown)
+        {
+            beforeBatch.run();
+
+            final List<NodeRef> batch = new ArrayList<>(this.batchSize);
+            while (!pendingNodes.isEmpty() && batch.size() < this.batchSize)
+            {
+                batch.add(pendingNodes.poll());
+            }
+
+            final Deque<NodeRef> children = txnHelper.doInTransaction(() -> {
+                // properties are a technical addition and must not alter the last modification of archived items
+                this.behaviourFilter.disableBehaviour(ContentModel.ASPECT_AUDITABLE);
+
+                for (final NodeRef node : batch)
+                {
+                    if (this.nodeService.exists(node)
+                            && (!this.nodeService.hasAspect(node, BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM)
+                                    || this.nodeService.getProperty(node, BetterTrashManagementModel.PROP_ARCHIVED_DATE) == null))
+                    {
+                        this.addArchivedItemProperties(node);
+                    }
+                }
+                return this.collectChildren(batch);
+            }, false, true);
+
+            processedNodes += batch.size();
+            // depth-first to keep the number of pending nodes low for deep trees
+            children.descendingIterator().forEachRemaining(pendingNodes::push);
+            LOGGER.trace("Processed name n-grams for {} archived nodes so far", processedNodes);
+        }
+        return processedNodes;
+    }
+
+    /**
+     * Removes the archived item properties from a set of restored nodes and all their descendants in batches, each within a separate
+     * transaction. Properties are only ever added to children after their parent, so sub-trees of nodes without the properties are
+     * skipped.
+     *
+     * @param pendingNodes
+     *            the nodes to process - will be modified to track the progress of the traversal
+     * @return the number of processed nodes
+     */
+    protected long processRestored(final Deque<NodeRef> pendingNodes)
+    {
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+        long processedNodes = 0;
+        while (!pendingNodes.isEmpty() && !this.shutdown)
+        {
+            final List<NodeRef> batch = new ArrayList<>(this.batchSize);
+            while (!pendingNodes.isEmpty() && batch.size() < this.batchSize)
+            {
+                batch.add(pendingNodes.poll());
+            }
+
+            final Deque<NodeRef> children = txnHelper.doInTransaction(() -> {
+                // properties are a technical addition and their removal must not alter the last modification of restored items
+                this.behaviourFilter.disableBehaviour(ContentModel.ASPECT_AUDITABLE);
+
+                final List<NodeRef> processedBatch = new ArrayList<>(batch.size());
+                for (final NodeRef node : batch)
+                {
+                    if (this.nodeService.exists(node) && this.nodeService.hasAspect(node, BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM))
+                    {
+                        this.nodeService.removeAspect(node, BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM);
+                        processedBatch.add(node);
+                    }
+                }
+                return this.collectChildren(processedBatch);
+            }, false, true);
+
+            processedNodes += batch.size();
+            // depth-first to keep the number of pending nodes low for deep trees
+            children.descendingIterator().forEachRemaining(pendingNodes::push);
+            LOGGER.trace("Removed archived item properties from {} restored nodes so far", processedNodes);
+        }
+        return processedNodes;
+    }
+}
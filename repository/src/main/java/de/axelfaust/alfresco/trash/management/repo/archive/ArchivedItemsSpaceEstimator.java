@@ -0,0 +1,459 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.archive;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+/**
+ * Instances of this class estimate the storage that would be reclaimed by purging archived items. The estimation operates directly on the
+ * database via set-based queries instead of walking archived trees node by node via the
+ * {@link org.alfresco.service.cmr.repository.NodeService NodeService}. Archived roots are processed in batches, expanding the trees of a
+ * batch level by level via the primary child associations, with node counts and content sizes aggregated per parent node by the database
+ * ({@code COUNT} / {@code SUM} with {@code GROUP BY}). Only the container nodes of the current level of the current batch are held in
+ * memory, irrespective of the number or size of archived trees.
+ *
+ * Content URLs still referenced by nodes outside of archive stores (live or version nodes) are not counted as reclaimable, as purging
+ * the archived items would not make them eligible for content store cleanup. Content URLs shared by multiple nodes are only counted once
+ * per parent node, so content shared across folders of the same tree or across multiple archived trees is counted multiple times - it is
+ * only freed once all of these nodes have been purged anyway. Only content of the {@code cm:content} property is considered.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsSpaceEstimator implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsSpaceEstimator.class);
+
+    private static final String SQL_SELECT_STORE_ID = "SELECT s.id FROM alf_store s "
+            + "WHERE s.protocol = :protocol AND s.identifier = :identifier";
+
+    private static final String SQL_SELECT_ARCHIVED_ROOTS = "SELECT n.id FROM alf_node n JOIN alf_node_properties np ON np.node_id = n.id "
+            + "WHERE n.store_id = :storeId AND np.qname_id = :archivedByQNameId AND n.id > :lastNodeId ORDER BY n.id";
+
+    private static final String SQL_NOT_REFERENCED_OUTSIDE_ARCHIVE = "NOT EXISTS ("
+            + "SELECT 1 FROM alf_content_data cd2 JOIN alf_node_properties np2 ON np2.long_value = cd2.id "
+            + "JOIN alf_node n2 ON n2.id = np2.node_id JOIN alf_store s2 ON s2.id = n2.store_id "
+            + "WHERE cd2.content_url_id = cu.id AND np2.qname_id = :contentQNameId AND s2.protocol <> :archiveProtocol)";
+
+    private static final String SQL_SUM_RECLAIMABLE_CONTENT = "SELECT np.node_id, SUM(cu.content_size) "
+            + "FROM alf_node_properties np JOIN alf_content_data cd ON cd.id = np.long_value "
+            + "JOIN alf_content_url cu ON cu.id = cd.content_url_id "
+            + "WHERE np.node_id IN (:nodeIds) AND np.qname_id = :contentQNameId AND " + SQL_NOT_REFERENCED_OUTSIDE_ARCHIVE
+            + " GROUP BY np.node_id";
+
+    private static final String SQL_COUNT_PRIMARY_CHILDREN = "SELECT ca.parent_node_id, COUNT(*) FROM alf_child_assoc ca "
+            + "WHERE ca.parent_node_id IN (:parentNodeIds) AND ca.is_primary = :primary GROUP BY ca.parent_node_id";
+
+    private static final String SQL_SUM_CHILDREN_RECLAIMABLE_CONTENT = "SELECT c.parent_node_id, SUM(c.content_size) FROM ("
+            + "SELECT DISTINCT ca.parent_node_id, cu.id, cu.content_size FROM alf_child_assoc ca "
+            + "JOIN alf_node_properties np ON np.node_id = ca.child_node_id JOIN alf_content_data cd ON cd.id = np.long_value "
+            + "JOIN alf_content_url cu ON cu.id = cd.content_url_id "
+            + "WHERE ca.parent_node_id IN (:parentNodeIds) AND ca.is_primary = :primary AND np.qname_id = :contentQNameId AND "
+            + SQL_NOT_REFERENCED_OUTSIDE_ARCHIVE + ") c GROUP BY c.parent_node_id";
+
+    private static final String SQL_SELECT_PRIMARY_CHILD_CONTAINERS = "SELECT ca.parent_node_id, ca.child_node_id FROM alf_child_assoc ca "
+            + "WHERE ca.parent_node_id IN (:parentNodeIds) AND ca.is_primary = :primary AND EXISTS ("
+            + "SELECT 1 FROM alf_child_assoc ca2 WHERE ca2.parent_node_id = ca.child_node_id AND ca2.is_primary = :primary)";
+
+    protected DataSource dataSource;
+
+    protected NodeDAO nodeDAO;
+
+    protected QNameDAO qnameDAO;
+
+    protected int batchSize = 500;
+
+    protected NamedParameterJdbcTemplate jdbcTemplate;
+
+    protected NamedParameterJdbcTemplate rootPagingJdbcTemplate;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "dataSource", this.dataSource);
+        PropertyCheck.mandatory(this, "nodeDAO", this.nodeDAO);
+        PropertyCheck.mandatory(this, "qnameDAO", this.qnameDAO);
+
+        this.jdbcTemplate = new NamedParameterJdbcTemplate(this.dataSource);
+
+        final JdbcTemplate rootPagingTemplate = new JdbcTemplate(this.dataSource);
+        rootPagingTemplate.setMaxRows(this.batchSize);
+        this.rootPagingJdbcTemplate = new NamedParameterJdbcTemplate(rootPagingTemplate);
+    }
+
+    /**
+     * @param dataSource
+     *            the dataSource to set
+     */
+    public void setDataSource(final DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param qnameDAO
+     *            the qnameDAO to set
+     */
+    public void setQnameDAO(final QNameDAO qnameDAO)
+    {
+        this.qnameDAO = qnameDAO;
+    }
+
+    /**
+     * @param batchSize
+     *            the number of node IDs to use in a single database query
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * Ranks the archived roots of an archive store by the storage that would be reclaimed by purging them. This operation needs to be
+     * called within a transaction.
+     *
+     * @param archiveStore
+     *            the archive store
+     * @param maxItems
+     *            the maximum number of archived roots to return
+     * @return the estimates for the archived roots with the most reclaimable storage, ordered descending by reclaimable bytes
+     */
+    public List<SpaceEstimate> rankArchivedRoots(final StoreRef archiveStore, final int maxItems)
+    {
+        final List<Long> storeIds = this.jdbcTemplate.queryForList(SQL_SELECT_STORE_ID,
+                new MapSqlParameterSource().addValue("protocol", archiveStore.getProtocol()).addValue("identifier",
+                        archiveStore.getIdentifier()),
+                Long.class);
+        final Long archivedByQNameId = this.getQNameId(ContentModel.PROP_ARCHIVED_BY);
+
+        final List<SpaceEstimate> estimates = new ArrayList<>();
+        if (!storeIds.isEmpty() && archivedByQNameId != null && maxItems > 0)
+        {
+            final Comparator<SpaceEstimate> byReclaimableBytes = Comparator.comparingLong(SpaceEstimate::getReclaimableBytes);
+            // bounded min-heap - only the current top estimates are retained while the roots are processed page by page
+            final PriorityQueue<SpaceEstimate> topEstimates = new PriorityQueue<>(maxItems + 1, byReclaimableBytes);
+
+            long lastRootId = Long.MIN_VALUE;
+            int rootCount = 0;
+            List<Long> rootIds;
+            do
+            {
+                rootIds = this.rootPagingJdbcTemplate.queryForList(SQL_SELECT_ARCHIVED_ROOTS,
+                        new MapSqlParameterSource().addValue("storeId", storeIds.get(0))
+                                .addValue("archivedByQNameId", archivedByQNameId).addValue("lastNodeId", Long.valueOf(lastRootId)),
+                        Long.class);
+                if (!rootIds.isEmpty())
+                {
+                    rootCount += rootIds.size();
+                    lastRootId = rootIds.get(rootIds.size() - 1).longValue();
+
+                    for (final SpaceEstimate estimate : this.estimateBatch(rootIds))
+                    {
+                        topEstimates.offer(estimate);
+                        if (topEstimates.size() > maxItems)
+                        {
+                            topEstimates.poll();
+                        }
+                    }
+                }
+            }
+            while (rootIds.size() >= this.batchSize);
+            LOGGER.debug("Estimated reclaimable storage for {} archived roots in {}", rootCount, archiveStore);
+
+            estimates.addAll(topEstimates);
+            estimates.sort(byReclaimableBytes.reversed());
+            this.resolveNodeRefs(estimates);
+        }
+        return estimates;
+    }
+
+    /**
+     * Estimates the storage that would be reclaimed by purging specific archived nodes. This operation needs to be called within a
+     * transaction.
+     *
+     * @param archivedNodes
+     *            the archived nodes
+     * @return the estimates for the individual archived nodes (skipping any nodes that no longer exist)
+     */
+    public List<SpaceEstimate> estimate(final Collection<NodeRef> archivedNodes)
+    {
+        final List<Long> rootIds = new ArrayList<>();
+        this.nodeDAO.cacheNodes(new ArrayList<>(archivedNodes));
+        for (final NodeRef archivedNode : archivedNodes)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(archivedNode);
+            if (nodePair != null && !rootIds.contains(nodePair.getFirst()))
+            {
+                rootIds.add(nodePair.getFirst());
+            }
+        }
+
+        final List<SpaceEstimate> estimates = new ArrayList<>();
+        for (int offset = 0; offset < rootIds.size(); offset += this.batchSize)
+        {
+            estimates.addAll(this.estimateBatch(rootIds.subList(offset, Math.min(offset + this.batchSize, rootIds.size()))));
+        }
+        this.resolveNodeRefs(estimates);
+        return estimates;
+    }
+
+    /**
+     * Determines which of a set of archived nodes are the roots of large trees by counting their descendants level by level via the
+     * primary child associations. Counting stops for any tree as soon as the threshold has been reached, so the cost of this operation is
+     * bounded by the threshold and not by the actual size of the trees. This operation needs to be called within a transaction.
+     *
+     * @param archivedNodes
+     *            the archived nodes to check
+     * @param threshold
+     *            the number of descendants from which on a tree is considered large
+     * @return the archived nodes which are the roots of large trees
+     */
+    public Set<NodeRef> findLargeTrees(final Collection<NodeRef> archivedNodes, final long threshold)
+    {
+        final Map<Long, NodeRef> nodeRefByRootId = new HashMap<>();
+        final Map<Long, SpaceEstimate> countByParentId = new HashMap<>();
+        this.nodeDAO.cacheNodes(new ArrayList<>(archivedNodes));
+        for (final NodeRef archivedNode : archivedNodes)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(archivedNode);
+            if (nodePair != null)
+            {
+                nodeRefByRootId.put(nodePair.getFirst(), archivedNode);
+                countByParentId.put(nodePair.getFirst(), new SpaceEstimate(nodePair.getFirst()));
+            }
+        }
+
+        final Set<NodeRef> largeTreeRoots = new HashSet<>();
+        // nodeCount only counts descendants here - trees are no longer expanded once they have reached the threshold
+        Map<Long, SpaceEstimate> currentLevel = countByParentId;
+        while (!currentLevel.isEmpty())
+        {
+            final Map<Long, SpaceEstimate> level = currentLevel;
+            final Map<Long, SpaceEstimate> nextLevel = new HashMap<>();
+            final List<Long> currentLevelIds = new ArrayList<>(level.keySet());
+            for (int offset = 0; offset < currentLevelIds.size(); offset += this.batchSize)
+            {
+                final List<Long> parentIds = currentLevelIds.subList(offset, Math.min(offset + this.batchSize, currentLevelIds.size()));
+
+                this.jdbcTemplate.query(SQL_COUNT_PRIMARY_CHILDREN,
+                        new MapSqlParameterSource().addValue("parentNodeIds", parentIds).addValue("primary", Boolean.TRUE), rs -> {
+                            final SpaceEstimate count = level.get(Long.valueOf(rs.getLong(1)));
+                            count.nodeCount += rs.getLong(2);
+                            if (count.nodeCount >= threshold)
+                            {
+                                largeTreeRoots.add(nodeRefByRootId.get(count.getNodeId()));
+                            }
+                        });
+
+                this.jdbcTemplate.query(SQL_SELECT_PRIMARY_CHILD_CONTAINERS,
+                        new MapSqlParameterSource().addValue("parentNodeIds", parentIds).addValue("primary", Boolean.TRUE), rs -> {
+                            final SpaceEstimate count = level.get(Long.valueOf(rs.getLong(1)));
+                            if (count.nodeCount < threshold)
+                            {
+                                nextLevel.put(Long.valueOf(rs.getLong(2)), count);
+                            }
+                        });
+            }
+            nextLevel.values().removeIf(count -> count.nodeCount >= threshold);
+            currentLevel = nextLevel;
+        }
+
+        LOGGER.trace("Found {} large trees among {} archived nodes", largeTreeRoots.size(), archivedNodes.size());
+        return largeTreeRoots;
+    }
+
+    /**
+     * Estimates the storage that would be reclaimed by purging the trees of a batch of archived roots. The node references of the
+     * estimates are not yet resolved.
+     *
+     * @param rootIds
+     *            the IDs of the archived roots - the size of the batch should not exceed the configured batch size
+     * @return the estimates for the archived roots in the order of their IDs
+     */
+    protected List<SpaceEstimate> estimateBatch(final List<Long> rootIds)
+    {
+        final Map<Long, SpaceEstimate> estimateByRootId = new LinkedHashMap<>();
+        rootIds.forEach(rootId -> {
+            final SpaceEstimate estimate = new SpaceEstimate(rootId);
+            estimate.nodeCount = 1;
+            estimateByRootId.put(rootId, estimate);
+        });
+
+        final Long contentQNameId = this.getQNameId(ContentModel.PROP_CONTENT);
+        if (contentQNameId != null)
+        {
+            this.jdbcTemplate.query(SQL_SUM_RECLAIMABLE_CONTENT,
+                    new MapSqlParameterSource().addValue("nodeIds", rootIds).addValue("contentQNameId", contentQNameId)
+                            .addValue("archiveProtocol", StoreRef.PROTOCOL_ARCHIVE),
+                    rs -> {
+                        estimateByRootId.get(Long.valueOf(rs.getLong(1))).reclaimableBytes += rs.getLong(2);
+                    });
+        }
+
+        // expand the trees level by level, only tracking the containers (nodes with children) of the current level
+        Map<Long, SpaceEstimate> estimateByParentId = new HashMap<>(estimateByRootId);
+        while (!estimateByParentId.isEmpty())
+        {
+            final Map<Long, SpaceEstimate> currentLevel = estimateByParentId;
+            final Map<Long, SpaceEstimate> nextLevel = new HashMap<>();
+            final List<Long> currentLevelIds = new ArrayList<>(currentLevel.keySet());
+            for (int offset = 0; offset < currentLevelIds.size(); offset += this.batchSize)
+            {
+                final List<Long> parentIds = currentLevelIds.subList(offset, Math.min(offset + this.batchSize, currentLevelIds.size()));
+
+                this.jdbcTemplate.query(SQL_COUNT_PRIMARY_CHILDREN,
+                        new MapSqlParameterSource().addValue("parentNodeIds", parentIds).addValue("primary", Boolean.TRUE), rs -> {
+                            currentLevel.get(Long.valueOf(rs.getLong(1))).nodeCount += rs.getLong(2);
+                        });
+
+                if (contentQNameId != null)
+                {
+                    this.jdbcTemplate.query(SQL_SUM_CHILDREN_RECLAIMABLE_CONTENT,
+                            new MapSqlParameterSource().addValue("parentNodeIds", parentIds).addValue("primary", Boolean.TRUE)
+                                    .addValue("contentQNameId", contentQNameId).addValue("archiveProtocol", StoreRef.PROTOCOL_ARCHIVE),
+                            rs -> {
+                                currentLevel.get(Long.valueOf(rs.getLong(1))).reclaimableBytes += rs.getLong(2);
+                            });
+                }
+
+                this.jdbcTemplate.query(SQL_SELECT_PRIMARY_CHILD_CONTAINERS,
+                        new MapSqlParameterSource().addValue("parentNodeIds", parentIds).addValue("primary", Boolean.TRUE), rs -> {
+                            nextLevel.put(Long.valueOf(rs.getLong(2)), currentLevel.get(Long.valueOf(rs.getLong(1))));
+                        });
+            }
+            estimateByParentId = nextLevel;
+        }
+
+        return new ArrayList<>(estimateByRootId.values());
+    }
+
+    /**
+     * Resolves the node references of estimates, removing any estimates for nodes that no longer exist.
+     *
+     * @param estimates
+     *            the estimates to process
+     */
+    protected void resolveNodeRefs(final List<SpaceEstimate> estimates)
+    {
+        estimates.removeIf(estimate -> {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(estimate.getNodeId());
+            if (nodePair != null)
+            {
+                estimate.nodeRef = nodePair.getSecond();
+            }
+            return nodePair == null;
+        });
+    }
+
+    protected Long getQNameId(final QName qname)
+    {
+        final Pair<Long, QName> qnamePair = this.qnameDAO.getQName(qname);
+        return qnamePair != null ? qnamePair.getFirst() : null;
+    }
+
+    /**
+     * Instances of this class hold the estimate of the storage that would be reclaimed by purging a single archived node.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    public static class SpaceEstimate
+    {
+
+        private final Long nodeId;
+
+        private NodeRef nodeRef;
+
+        private long nodeCount;
+
+        private long reclaimableBytes;
+
+        protected SpaceEstimate(final Long nodeId)
+        {
+            this.nodeId = nodeId;
+        }
+
+        /**
+         * @return the nodeId
+         */
+        public Long getNodeId()
+        {
+            return this.nodeId;
+        }
+
+        /**
+         * @return the nodeRef
+         */
+        public NodeRef getNodeRef()
+        {
+            return this.nodeRef;
+        }
+
+        /**
+         * @return the number of nodes in the archived tree (including its root)
+         */
+        public long getNodeCount()
+        {
+            return this.nodeCount;
+        }
+
+        /**
+         * @return the number of content bytes that would be reclaimed by purging the archived tree
+         */
+        public long getReclaimableBytes()
+        {
+            return this.reclaimableBytes;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.archive;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+/**
+ * Instances of this class determine the nodes of an archive store that have been changed in transactions not yet tracked by the search
+ * index, i.e. nodes that have been archived, purged, restored or otherwise modified since the last index tracking cycle. This allows
+ * eventually consistent query results to be corrected with the (typically small) set of changes the index does not yet reflect, instead of
+ * running all queries with transactional consistency.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsTransactionDelta implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsTransactionDelta.class);
+
+    private static final String SQL_SELECT_CHANGED_NODES = "SELECT n.uuid, n.type_qname_id FROM alf_node n "
+            + "JOIN alf_store s ON s.id = n.store_id "
+            + "WHERE s.protocol = :protocol AND s.identifier = :identifier AND n.transaction_id > :lastIndexedTxId";
+
+    private static final String SQL_SELECT_COMMIT_TIME = "SELECT t.commit_time_ms FROM alf_transaction t WHERE t.id = :txId";
+
+    private static final String SQL_SELECT_MAX_TX_ID = "SELECT MAX(t.id) FROM alf_transaction t";
+
+    private static final String SQL_SELECT_MIN_TX_ID_COMMITTED_SINCE = "SELECT MIN(t.id) FROM alf_transaction t "
+            + "WHERE t.commit_time_ms >= :minCommitTime";
+
+    protected DataSource dataSource;
+
+    protected QNameDAO qnameDAO;
+
+    protected int maxDeltaSize = 1000;
+
+    protected long holeRetention = 60000;
+
+    protected NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "dataSource", this.dataSource);
+        PropertyCheck.mandatory(this, "qnameDAO", this.qnameDAO);
+
+        final JdbcTemplate template = new JdbcTemplate(this.dataSource);
+        // one more than the limit to detect deltas exceeding it
+        template.setMaxRows(this.maxDeltaSize + 1);
+        this.jdbcTemplate = new NamedParameterJdbcTemplate(template);
+    }
+
+    /**
+     * @param dataSource
+     *            the dataSource to set
+     */
+    public void setDataSource(final DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @param qnameDAO
+     *            the qnameDAO to set
+     */
+    public void setQnameDAO(final QNameDAO qnameDAO)
+    {
+        this.qnameDAO = qnameDAO;
+    }
+
+    /**
+     * @param maxDeltaSize
+     *            the maximum number of changed nodes to consider - if the index lags further behind, no delta is determined
+     */
+    public void setMaxDeltaSize(final int maxDeltaSize)
+    {
+        this.maxDeltaSize = Math.max(maxDeltaSize, 1);
+    }
+
+    /**
+     * @param holeRetention
+     *            the time span (in milliseconds) before the commit of a watermark transaction in which transactions are considered again
+     *            when {@link #getChangesSince(StoreRef, long) determining changes since that watermark} - transactions with a lower ID
+     *            than the watermark may only have committed after it was determined
+     */
+    public void setHoleRetention(final long holeRetention)
+    {
+        this.holeRetention = Math.max(holeRetention, 0);
+    }
+
+    /**
+     * Determines the current transaction watermark, i.e. the ID of the most recent transaction. This operation needs to be called within a
+     * transaction.
+     *
+     * @return the current transaction watermark
+     */
+    public long getWatermark()
+    {
+        final List<Long> txIds = this.jdbcTemplate.queryForList(SQL_SELECT_MAX_TX_ID, new MapSqlParameterSource(), Long.class);
+        final long watermark = txIds.isEmpty() || txIds.get(0) == null ? 0 : txIds.get(0).longValue();
+        return watermark;
+    }
+
+    /**
+     * Determines the nodes of an archive store changed since a {@link #getWatermark() transaction watermark}. Since transactions are not
+     * necessarily committed in the order of their IDs, transactions committed within the {@link #setHoleRetention(long) hole retention}
+     * before the watermark transaction are considered again, so changes may be reported more than once. This operation needs to be called
+     * within a transaction.
+     *
+     * @param archiveStore
+     *            the archive store
+     * @param watermark
+     *            the transaction watermark
+     * @return the delta or {@code null} if the number of changed nodes exceeds the {@link #setMaxDeltaSize(int) configured limit}
+     */
+    public Delta getChangesSince(final StoreRef archiveStore, final long watermark)
+    {
+        long effectiveTxId = watermark;
+        if (this.holeRetention > 0)
+        {
+            final long watermarkCommitTime = this.getCommitTime(watermark);
+            if (watermarkCommitTime > 0)
+            {
+                final List<Long> txIds = this.jdbcTemplate.queryForList(SQL_SELECT_MIN_TX_ID_COMMITTED_SINCE,
+                        new MapSqlParameterSource().addValue("minCommitTime", Long.valueOf(watermarkCommitTime - this.holeRetention)),
+                        Long.class);
+                if (!txIds.isEmpty() && txIds.get(0) != null)
+                {
+                    effectiveTxId = Math.min(watermark, txIds.get(0).longValue() - 1);
+                }
+            }
+        }
+
+        LOGGER.debug("Determining changes in {} since watermark {} (including transactions after {})", archiveStore, watermark,
+                effectiveTxId);
+        return this.getDelta(archiveStore, effectiveTxId);
+    }
+
+    /**
+     * Determines the nodes of an archive store changed in transactions after the last transaction tracked by the search index. This
+     * operation needs to be called within a transaction.
+     *
+     * @param archiveStore
+     *            the archive store
+     * @param lastIndexedTxId
+     *            the ID of the last transaction tracked by the search index
+     * @return the delta or {@code null} if the number of changed nodes exceeds the {@link #setMaxDeltaSize(int) configured limit}
+     */
+    public Delta getDelta(final StoreRef archiveStore, final long lastIndexedTxId)
+    {
+        final Pair<Long, QName> deletedTypeQName = this.qnameDAO.getQName(ContentModel.TYPE_DELETED);
+        final Long deletedTypeQNameId = deletedTypeQName != null ? deletedTypeQName.getFirst() : null;
+
+        final Set<NodeRef> changedNodes = new LinkedHashSet<>();
+        final Set<NodeRef> deletedNodes = new LinkedHashSet<>();
+        this.jdbcTemplate.query(SQL_SELECT_CHANGED_NODES,
+                new MapSqlParameterSource().addValue("protocol", archiveStore.getProtocol())
+                        .addValue("identifier", archiveStore.getIdentifier()).addValue("lastIndexedTxId", Long.valueOf(lastIndexedTxId)),
+                rs -> {
+                    final NodeRef nodeRef = new NodeRef(archiveStore, rs.getString(1));
+                    if (deletedTypeQNameId != null && deletedTypeQNameId.longValue() == rs.getLong(2))
+                    {
+                        deletedNodes.add(nodeRef);
+                    }
+                    else
+                    {
+                        changedNodes.add(nodeRef);
+                    }
+                });
+
+        Delta delta = null;
+        if (changedNodes.size() + deletedNodes.size() <= this.maxDeltaSize)
+        {
+            final long lastIndexedCommitTime = this.getCommitTime(lastIndexedTxId);
+
+            LOGGER.debug("Determined {} changed and {} deleted nodes in {} since transaction {}", changedNodes.size(), deletedNodes.size(),
+                    archiveStore, lastIndexedTxId);
+            delta = new Delta(changedNodes, deletedNodes, lastIndexedCommitTime);
+        }
+        else
+        {
+            LOGGER.debug("Index lags more than {} node changes behind in {} since transaction {}", this.maxDeltaSize, archiveStore,
+                    lastIndexedTxId);
+        }
+        return delta;
+    }
+
+    protected long getCommitTime(final long txId)
+    {
+        final List<Long> commitTimes = this.jdbcTemplate.queryForList(SQL_SELECT_COMMIT_TIME,
+                new MapSqlParameterSource().addValue("txId", Long.valueOf(txId)), Long.class);
+        final long commitTime = commitTimes.isEmpty() || commitTimes.get(0) == null ? 0 : commitTimes.get(0).longValue();
+        return commitTime;
+    }
+
+    /**
+     * Instances of this class hold the nodes of an archive store changed since the last transaction tracked by the search index.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    public static class Delta
+    {
+
+        private final Set<NodeRef> changedNodes;
+
+        private final Set<NodeRef> deletedNodes;
+
+        private final long lastIndexedCommitTime;
+
+        protected Delta(final Set<NodeRef> changedNodes, final Set<NodeRef> deletedNodes, final long lastIndexedCommitTime)
+        {
+            this.changedNodes = Collections.unmodifiableSet(changedNodes);
+            this.deletedNodes = Collections.unmodifiableSet(deletedNodes);
+            this.lastIndexedCommitTime = lastIndexedCommitTime;
+        }
+
+        /**
+         * @return the nodes that still exist in the archive store but have been changed (e.g. archived) since the last indexed transaction
+         */
+        public Set<NodeRef> getChangedNodes()
+        {
+            return this.changedNodes;
+        }
+
+        /**
+         * @return the nodes that have been deleted from the archive store (e.g. purged) since the last indexed transaction
+         */
+        public Set<NodeRef> getDeletedNodes()
+        {
+            return this.deletedNodes;
+        }
+
+        /**
+         * @return the commit time (in milliseconds since the epoch) of the last indexed transaction
+         */
+        public long getLastIndexedCommitTime()
+        {
+            return this.lastIndexedCommitTime;
+        }
+    }
+}
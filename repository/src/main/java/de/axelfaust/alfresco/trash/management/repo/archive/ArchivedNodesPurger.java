@@ -0,0 +1,574 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.archive;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.node.archive.NodeArchiveService;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+import de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel;
+
+/**
+ * Instances of this class handle the purging of archived nodes, taking special care of very large archived trees. Archived nodes with
+ * a large number of descendants (as counted in the database) are not purged within the calling transaction but marked as being
+ * {@link BetterTrashManagementModel#ASPECT_PURGE_IN_PROGRESS in the process of being purged} (which hides them from any trash management
+ * queries) and subsequently purged asynchronously in bounded, leaf-first chunks, each within its own transaction, with the archived root
+ * being removed last. Purges that were interrupted, e.g. by a shutdown, are resumed on the next startup by the one server of a cluster
+ * that acquires the resume lock.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedNodesPurger extends AbstractLifecycleBean implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedNodesPurger.class);
+
+    private static final QName RESUME_LOCK_QNAME = QName.createQName(BetterTrashManagementModel.NAMESPACE_URK,
+            ArchivedNodesPurger.class.getSimpleName());
+
+    private static final long RESUME_LOCK_TTL = 60000;
+
+    protected NodeService nodeService;
+
+    protected NodeArchiveService nodeArchiveService;
+
+    protected SearchService searchService;
+
+    protected DictionaryService dictionaryService;
+
+    protected TransactionService transactionService;
+
+    protected JobLockService jobLockService;
+
+    protected ExecutorService purgeExecutor;
+
+    protected ArchivedItemsIndex archivedItemsIndex;
+
+    protected ArchivedItemsSpaceEstimator spaceEstimator;
+
+    protected int largeTreeThreshold = 10000;
+
+    protected int chunkSize = 1000;
+
+    protected volatile boolean shutdown = false;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "nodeArchiveService", this.nodeArchiveService);
+        PropertyCheck.mandatory(this, "searchService", this.searchService);
+        PropertyCheck.mandatory(this, "dictionaryService", this.dictionaryService);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+        PropertyCheck.mandatory(this, "jobLockService", this.jobLockService);
+        PropertyCheck.mandatory(this, "purgeExecutor", this.purgeExecutor);
+        PropertyCheck.mandatory(this, "spaceEstimator", this.spaceEstimator);
+
+        if (this.chunkSize <= 0)
+        {
+            throw new IllegalStateException("chunkSize must be a positive integer");
+        }
+    }
+
+    /**
+     * @param nodeService
+     *            the nodeService to set
+     */
+    public void setNodeService(final NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param nodeArchiveService
+     *            the nodeArchiveService to set
+     */
+    public void setNodeArchiveService(final NodeArchiveService nodeArchiveService)
+    {
+        this.nodeArchiveService = nodeArchiveService;
+    }
+
+    /**
+     * @param searchService
+     *            the searchService to set
+     */
+    public void setSearchService(final SearchService searchService)
+    {
+        this.searchService = searchService;
+    }
+
+    /**
+     * @param dictionaryService
+     *            the dictionaryService to set
+     */
+    public void setDictionaryService(final DictionaryService dictionaryService)
+    {
+        this.dictionaryService = dictionaryService;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param jobLockService
+     *            the jobLockService to set
+     */
+    public void setJobLockService(final JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param purgeExecutor
+     *            the purgeExecutor to set
+     */
+    public void setPurgeExecutor(final ExecutorService purgeExecutor)
+    {
+        this.purgeExecutor = purgeExecutor;
+    }
+
+    /**
+     * @param archivedItemsIndex
+     *            the archivedItemsIndex to set
+     */
+    public void setArchivedItemsIndex(final ArchivedItemsIndex archivedItemsIndex)
+    {
+        this.archivedItemsIndex = archivedItemsIndex;
+    }
+
+    /**
+     * @param spaceEstimator
+     *            the spaceEstimator to set
+     */
+    public void setSpaceEstimator(final ArchivedItemsSpaceEstimator spaceEstimator)
+    {
+        this.spaceEstimator = spaceEstimator;
+    }
+
+    /**
+     * @param largeTreeThreshold
+     *            the number of descendants from which on an archived node is purged in chunks - a non-positive value disables
+     *            chunked purging
+     */
+    public void setLargeTreeThreshold(final int largeTreeThreshold)
+    {
+        this.largeTreeThreshold = largeTreeThreshold;
+    }
+
+    /**
+     * @param chunkSize
+     *            the maximum number of nodes to purge per transaction in chunked purging
+     */
+    public void setChunkSize(final int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Purges a set of archived nodes. Archived nodes with small or regular sized trees of descendants are purged directly within the
+     * current transaction, while nodes with large trees are only marked for purging with the actual purge being performed asynchronously
+     * after the current transaction has been committed.
+     *
+     * @param archivedNodes
+     *            the archived nodes to purge
+     */
+    public void purgeArchivedNodes(final List<NodeRef> archivedNodes)
+    {
+        final List<NodeRef> regularNodes = new ArrayList<>();
+        final List<NodeRef> largeTreeRoots = new ArrayList<>();
+
+        final Set<NodeRef> largeTrees = this.findLargeTrees(archivedNodes);
+        for (final NodeRef archivedNode : archivedNodes)
+        {
+            if (this.archivedItemsIndex != null)
+            {
+                // large trees are hidden from now on as well, so index entries can be dropped immediately
+                this.archivedItemsIndex.onPurged(archivedNode);
+            }
+
+            if (largeTrees.contains(archivedNode))
+            {
+                largeTreeRoots.add(archivedNode);
+            }
+            else
+            {
+                regularNodes.add(archivedNode);
+            }
+        }
+
+        if (!regularNodes.isEmpty())
+        {
+            LOGGER.debug("Purging {} archived nodes directly", regularNodes.size());
+            this.nodeArchiveService.purgeArchivedNodes(regularNodes);
+        }
+
+        if (!largeTreeRoots.isEmpty())
+        {
+            LOGGER.debug("Scheduling chunked purge of {} large archived trees", largeTreeRoots.size());
+            for (final NodeRef largeTreeRoot : largeTreeRoots)
+            {
+                if (!this.nodeService.hasAspect(largeTreeRoot, BetterTrashManagementModel.ASPECT_PURGE_IN_PROGRESS))
+                {
+                    this.nodeService.addAspect(largeTreeRoot, BetterTrashManagementModel.ASPECT_PURGE_IN_PROGRESS,
+                            Collections.emptyMap());
+                }
+            }
+
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void afterCommit()
+                {
+                    ArchivedNodesPurger.this.schedulePurge(largeTreeRoots);
+                }
+            });
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onBootstrap(final ApplicationEvent event)
+    {
+        this.shutdown = false;
+
+        this.purgeExecutor.submit(() -> {
+            AuthenticationUtil.runAsSystem(() -> {
+                this.resumeInterruptedPurges();
+                return null;
+            });
+        });
+    }
+
+    /**
+     * Resumes all chunked purges interrupted e.g. by a shutdown, provided the resume lock can be acquired, i.e. no other server of the
+     * cluster is already resuming them.
+     */
+    protected void resumeInterruptedPurges()
+    {
+        String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(RESUME_LOCK_QNAME, RESUME_LOCK_TTL);
+        }
+        catch (final LockAcquisitionException laex)
+        {
+            LOGGER.debug("Interrupted chunked purges are already being resumed by another server");
+            lockToken = null;
+        }
+
+        if (lockToken != null)
+        {
+            final String effectiveLockToken = lockToken;
+            try
+            {
+                final List<NodeRef> interruptedPurges = this.transactionService.getRetryingTransactionHelper()
+                        .doInTransaction(this::findInterruptedPurges, true, false);
+                if (!interruptedPurges.isEmpty())
+                {
+                    LOGGER.info("Resuming {} interrupted chunked purges of large archived trees", interruptedPurges.size());
+                    for (final NodeRef interruptedPurge : interruptedPurges)
+                    {
+                        // fails if the lock has been lost, e.g. due to a long GC pause, aborting the resume
+                        this.purgeLargeTree(interruptedPurge,
+                                () -> this.jobLockService.refreshLock(effectiveLockToken, RESUME_LOCK_QNAME, RESUME_LOCK_TTL));
+                    }
+                }
+            }
+            catch (final RuntimeException rex)
+            {
+                // nodes remain marked and purges will be resumed on next bootstrap
+                LOGGER.error("Failed to resume interrupted chunked purges", rex);
+            }
+            finally
+            {
+                this.jobLockService.releaseLockVerify(effectiveLockToken, RESUME_LOCK_QNAME);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onShutdown(final ApplicationEvent event)
+    {
+        // any chunked purge will stop after its current chunk and be resumed on next bootstrap
+        this.shutdown = true;
+    }
+
+    /**
+     * Determines which of a set of archived nodes are the roots of large trees by counting their descendants in the database, stopping
+     * early once the threshold has been reached.
+     *
+     * @param archivedNodes
+     *            the archived nodes to check
+     * @return the archived nodes which are the roots of large trees
+     */
+    protected Set<NodeRef> findLargeTrees(final List<NodeRef> archivedNodes)
+    {
+        Set<NodeRef> largeTrees = Collections.emptySet();
+        if (this.largeTreeThreshold > 0)
+        {
+            // only folders can be the roots of (large) trees - checking this first avoids database queries for plain content
+            final List<NodeRef> candidates = new ArrayList<>();
+            for (final NodeRef archivedNode : archivedNodes)
+            {
+                if (this.nodeService.exists(archivedNode)
+                        && this.dictionaryService.isSubClass(this.nodeService.getType(archivedNode), ContentModel.TYPE_FOLDER))
+                {
+                    candidates.add(archivedNode);
+                }
+            }
+
+            if (!candidates.isEmpty())
+            {
+                largeTrees = this.spaceEstimator.findLargeTrees(candidates, this.largeTreeThreshold);
+                LOGGER.trace("Determined {} of {} archived nodes to be roots of large trees", largeTrees.size(), archivedNodes.size());
+            }
+        }
+        return largeTrees;
+    }
+
+    protected void schedulePurge(final List<NodeRef> largeTreeRoots)
+    {
+        this.purgeExecutor.submit(() -> {
+            AuthenticationUtil.runAsSystem(() -> {
+                for (final NodeRef largeTreeRoot : largeTreeRoots)
+                {
+                    try
+                    {
+                        this.purgeLargeTree(largeTreeRoot, () -> {
+                            // NO-OP
+                        });
+                    }
+                    catch (final RuntimeException rex)
+                    {
+                        // node remains marked and purge will be resumed on next bootstrap
+                        LOGGER.error("Failed chunked purge of archived node {}", largeTreeRoot, rex);
+                    }
+                }
+                return null;
+            });
+        });
+    }
+
+    protected List<NodeRef> findInterruptedPurges()
+    {
+        final List<NodeRef> interruptedPurges = new ArrayList<>();
+        for (final StoreRef store : this.nodeService.getStores())
+        {
+            if (StoreRef.PROTOCOL_ARCHIVE.equals(store.getProtocol()))
+            {
+                final SearchParameters sp = new SearchParameters();
+                sp.addStore(store);
+                sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+                sp.setQueryConsistency(QueryConsistency.TRANSACTIONAL_IF_POSSIBLE);
+                sp.setQuery("ASPECT:\"" + BetterTrashManagementModel.ASPECT_PURGE_IN_PROGRESS + "\"");
+
+                final ResultSet resultSet = this.searchService.query(sp);
+                try
+                {
+                    interruptedPurges.addAll(resultSet.getNodeRefs());
+                }
+                finally
+                {
+                    resultSet.close();
+                }
+            }
+        }
+        return interruptedPurges;
+    }
+
+    /**
+     * Purges an archived node with a large tree of descendants in bounded, leaf-first chunks, each within its own transaction.
+     *
+     * @param largeTreeRoot
+     *            the root of the large tree
+     * @param beforeChunk
+     *            the callback to run before each chunk, e.g. to refresh a job lock
+     */
+    protected void purgeLargeTree(final NodeRef largeTreeRoot, final Runnable beforeChunk)
+    {
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+
+        LOGGER.debug("Starting chunked purge of archived node {}", largeTreeRoot);
+        long purgedNodes = 0;
+        int purgedInChunk;
+        do
+        {
+            beforeChunk.run();
+            purgedInChunk = txnHelper.doInTransaction(() -> this.purgeChunk(largeTreeRoot), false, true).intValue();
+            purgedNodes += purgedInChunk;
+            LOGGER.trace("Purged {} descendants of archived node {} so far", purgedNodes, largeTreeRoot);
+        }
+        while (purgedInChunk > 0 && !this.shutdown);
+
+        if (this.shutdown)
+        {
+            LOGGER.info("Interrupted chunked purge of archived node {} after {} descendants due to shutdown", largeTreeRoot, purgedNodes);
+        }
+        else
+        {
+            txnHelper.doInTransaction(() -> {
+                if (this.nodeService.exists(largeTreeRoot))
+                {
+                    this.nodeArchiveService.purgeArchivedNode(largeTreeRoot);
+                }
+                return null;
+            }, false, true);
+            LOGGER.debug("Completed chunked purge of archived node {} with {} descendants", largeTreeRoot, purgedNodes);
+        }
+    }
+
+    /**
+     * Purges a single chunk of descendants of a large tree in leaf-first order. As each chunk restarts the traversal from the root, the
+     * children of any node are only ever loaded up to the size of a chunk, so that even flat folders with a huge number of children only
+     * cost a bounded lookup per chunk. Nodes whose children could not all be loaded are not purged in the chunk, as their remaining
+     * children will only be reached in subsequent chunks.
+     *
+     * @param largeTreeRoot
+     *            the root of the large tree
+     * @return the number of purged nodes
+     */
+    protected Integer purgeChunk(final NodeRef largeTreeRoot)
+    {
+        final List<NodeRef> chunk = new ArrayList<>(this.chunkSize);
+        if (this.nodeService.exists(largeTreeRoot))
+        {
+            // depth-first traversal collecting nodes in post-order, i.e. any node is only collected after all its descendants
+            final Deque<TraversalFrame> stack = new ArrayDeque<>();
+            stack.push(this.createTraversalFrame(largeTreeRoot));
+            while (!stack.isEmpty() && chunk.size() < this.chunkSize)
+            {
+                final TraversalFrame current = stack.peek();
+                if (current.children.hasNext())
+                {
+                    final NodeRef child = current.children.next();
+                    stack.push(this.createTraversalFrame(child));
+                }
+                else
+                {
+                    stack.pop();
+                    if (!current.allChildrenLoaded)
+                    {
+                        // parent still has descendants after this chunk
+                        if (!stack.isEmpty())
+                        {
+                            stack.peek().allChildrenLoaded = false;
+                        }
+                    }
+                    else if (!largeTreeRoot.equals(current.node))
+                    {
+                        chunk.add(current.node);
+                    }
+                }
+            }
+
+            for (final NodeRef node : chunk)
+            {
+                // all descendants have already been deleted, so this only ever deletes a leaf
+                this.nodeService.deleteNode(node);
+            }
+        }
+        return Integer.valueOf(chunk.size());
+    }
+
+    protected TraversalFrame createTraversalFrame(final NodeRef node)
+    {
+        final List<ChildAssociationRef> childAssocs = this.nodeService.getChildAssocs(node, RegexQNamePattern.MATCH_ALL,
+                RegexQNamePattern.MATCH_ALL, this.chunkSize, false);
+
+        final List<NodeRef> primaryChildren = new ArrayList<>();
+        for (final ChildAssociationRef childAssoc : childAssocs)
+        {
+            if (childAssoc.isPrimary())
+            {
+                primaryChildren.add(childAssoc.getChildRef());
+            }
+        }
+        return new TraversalFrame(node, primaryChildren.iterator(), childAssocs.size() < this.chunkSize);
+    }
+
+    /**
+     * Instances of this class represent a node on the stack of the depth-first traversal of a chunk.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class TraversalFrame
+    {
+
+        private final NodeRef node;
+
+        private final Iterator<NodeRef> children;
+
+        private boolean allChildrenLoaded;
+
+        protected TraversalFrame(final NodeRef node, final Iterator<NodeRef> children, final boolean allChildrenLoaded)
+        {
+            this.node = node;
+            this.children = children;
+            this.allChildrenLoaded = allChildrenLoaded;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.archive;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * This class provides the n-gram handling for the
+ * {@link de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel#PROP_NAME_NGRAMS searchable name} of archived items. Names
+ * are indexed with all their (lower-cased) 1-, 2- and 3-grams so that any substring search can be performed as plain term lookups -
+ * directly for terms up to the maximum n-gram length, and as a conjunction of all overlapping n-grams of maximum length for longer terms.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public final class NameNGrams
+{
+
+    public static final int MAX_NGRAM_LENGTH = 3;
+
+    private NameNGrams()
+    {
+        // NO-OP
+    }
+
+    /**
+     * Builds the n-grams to index for a name.
+     *
+     * @param name
+     *            the name of an archived item
+     * @return the distinct n-grams of the name
+     */
+    public static List<String> buildIndexNGrams(final String name)
+    {
+        final Set<String> nGrams = new LinkedHashSet<>();
+        if (name != null)
+        {
+            final String normalisedName = name.toLowerCase(Locale.ENGLISH);
+            for (int length = 1; length <= MAX_NGRAM_LENGTH; length++)
+            {
+                for (int start = 0; start + length <= normalisedName.length(); start++)
+                {
+                    nGrams.add(normalisedName.substring(start, start + length));
+                }
+            }
+        }
+        return new ArrayList<>(nGrams);
+    }
+
+    /**
+     * Builds the n-grams which all need to be matched to find a substring in a name. For terms longer than the maximum n-gram length the
+     * resulting conjunction may yield (rare) false positives where all n-grams are contained in a name but not contiguously, which need to
+     * be removed by checking the actual name.
+     *
+     * @param term
+     *            the substring to search
+     * @return the distinct n-grams to match
+     */
+    public static List<String> buildQueryNGrams(final String term)
+    {
+        final Set<String> nGrams = new LinkedHashSet<>();
+        if (term != null && !term.isEmpty())
+        {
+            final String normalisedTerm = term.toLowerCase(Locale.ENGLISH);
+            if (normalisedTerm.length() <= MAX_NGRAM_LENGTH)
+            {
+                nGrams.add(normalisedTerm);
+            }
+            else
+            {
+                for (int start = 0; start + MAX_NGRAM_LENGTH <= normalisedTerm.length(); start++)
+                {
+                    nGrams.add(normalisedTerm.substring(start, start + MAX_NGRAM_LENGTH));
+                }
+            }
+        }
+        return new ArrayList<>(nGrams);
+    }
+}
@@ -16,18 +16,25 @@
 package de.axelfaust.alfresco.trash.management.repo.behaviour;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.node.NodeServicePolicies.OnDeleteNodePolicy;
 import org.alfresco.repo.node.NodeServicePolicies.OnRestoreNodePolicy;
 import org.alfresco.repo.node.archive.NodeArchiveService;
 import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.policy.JavaBehaviour;
 import org.alfresco.repo.policy.PolicyComponent;
-import org.alfresco.repo.transaction.TransactionalResourceHelper;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
@@ -36,12 +43,15 @@ import org.alfresco.service.cmr.security.AccessPermission;
 import org.alfresco.service.cmr.security.AccessStatus;
 import org.alfresco.service.cmr.security.PermissionService;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
 import org.alfresco.util.PropertyCheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 
 import de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsIndex;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsNameNGramsBackfill;
 
 /**
  * This behaviour ensures that default {@link PermissionService#READ read privileges} are set for the archiving user so that the elements
@@ -54,14 +64,26 @@ public class UserTrashContainer implements InitializingBean, OnRestoreNodePolicy
 
     private static final Logger LOGGER = LoggerFactory.getLogger(UserTrashContainer.class);
 
+    private static final String TXN_RESTORED_ROOT_IDS_KEY = UserTrashContainer.class.getName() + "-restoredRootIds";
+
+    private static final String TXN_RESTORED_ARCHIVED_ITEM_IDS_KEY = UserTrashContainer.class.getName() + "-restoredArchivedItemIds";
+
     protected PolicyComponent policyComponent;
 
     protected NodeService nodeService;
 
+    protected NodeDAO nodeDAO;
+
     protected NodeArchiveService nodeArchiveService;
 
     protected PermissionService permissionService;
 
+    protected BehaviourFilter behaviourFilter;
+
+    protected ArchivedItemsIndex archivedItemsIndex;
+
+    protected ArchivedItemsNameNGramsBackfill nameNGramsBackfill;
+
     /**
      *
      * {@inheritDoc}
@@ -71,8 +93,10 @@ public class UserTrashContainer implements InitializingBean, OnRestoreNodePolicy
     {
         PropertyCheck.mandatory(this, "policyComponent", this.policyComponent);
         PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "nodeDAO", this.nodeDAO);
         PropertyCheck.mandatory(this, "nodeArchiveService", this.nodeArchiveService);
         PropertyCheck.mandatory(this, "permissionService", this.permissionService);
+        PropertyCheck.mandatory(this, "behaviourFilter", this.behaviourFilter);
 
         this.policyComponent.bindClassBehaviour(OnDeleteNodePolicy.QNAME, this,
                 new JavaBehaviour(this, "onDeleteNode", NotificationFrequency.EVERY_EVENT));
@@ -98,6 +122,15 @@ public class UserTrashContainer implements InitializingBean, OnRestoreNodePolicy
         this.nodeService = nodeService;
     }
 
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
     /**
      * @param nodeArchiveService
      *            the nodeArchiveService to set
@@ -116,6 +149,33 @@ public class UserTrashContainer implements InitializingBean, OnRestoreNodePolicy
         this.permissionService = permissionService;
     }
 
+    /**
+     * @param behaviourFilter
+     *            the behaviourFilter to set
+     */
+    public void setBehaviourFilter(final BehaviourFilter behaviourFilter)
+    {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+    /**
+     * @param archivedItemsIndex
+     *            the archivedItemsIndex to set
+     */
+    public void setArchivedItemsIndex(final ArchivedItemsIndex archivedItemsIndex)
+    {
+        this.archivedItemsIndex = archivedItemsIndex;
+    }
+
+    /**
+     * @param nameNGramsBackfill
+     *            the nameNGramsBackfill to set
+     */
+    public void setNameNGramsBackfill(final ArchivedItemsNameNGramsBackfill nameNGramsBackfill)
+    {
+        this.nameNGramsBackfill = nameNGramsBackfill;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -159,6 +219,20 @@ public class UserTrashContainer implements InitializingBean, OnRestoreNodePolicy
                             this.nodeService.addAspect(archivedNode, BetterTrashManagementModel.ASPECT_USER_READ_ACCESS_GRANTED,
                                     Collections.singletonMap(BetterTrashManagementModel.PROP_READ_ACCESS_GRANTED_TO, archivedBy));
                         }
+
+                        this.recordOriginalDisplayPath(archivedNode, properties);
+
+                        if (this.archivedItemsIndex != null)
+                        {
+                            this.archivedItemsIndex.onArchived(archivedNode);
+                        }
+
+                        if (this.nameNGramsBackfill != null)
+                        {
+                            // descendants are handled asynchronously to keep large delete operations fast
+                            this.nameNGramsBackfill.addArchivedItemProperties(archivedNode);
+                            this.nameNGramsBackfill.scheduleDescendants(archivedNode);
+                        }
                     }
                     else
                     {
@@ -188,38 +262,227 @@ public class UserTrashContainer implements InitializingBean, OnRestoreNodePolicy
     public void onRestoreNode(final ChildAssociationRef childAssocRef)
     {
         final NodeRef restoredNode = childAssocRef.getChildRef();
-        final NodeRef archiveRootNode = this.nodeArchiveService.getStoreArchiveNode(restoredNode.getStoreRef());
-        if (archiveRootNode != null)
+
+        if (this.archivedItemsIndex != null)
+        {
+            // index only tracks nodes it actually holds, so this is cheap for any cascade-restored descendants
+            this.archivedItemsIndex.onRestored(restoredNode);
+        }
+
+        // cascade-restored descendants carry the aspect as well, so only restore roots are tracked and their descendants are handled
+        // asynchronously after commit
+        if (this.isRestoredArchivedItemRoot(childAssocRef))
         {
-            final NodeRef parentRef = childAssocRef.getParentRef();
-            final NodeRef potentiallyRestoredParentNode = this.nodeArchiveService.getArchivedNode(parentRef);
-            final Set<Object> nodesRestoredInTxn = TransactionalResourceHelper
-                    .getSet(UserTrashContainer.class.getName() + "-restoredNodes");
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(restoredNode);
+            if (nodePair != null)
+            {
+                LOGGER.debug("Scheduling removal of archived item properties from restored node {} and its descendants", restoredNode);
+                this.getRestoredNodeIds(TXN_RESTORED_ARCHIVED_ITEM_IDS_KEY, this::removeArchivedItemProperties)
+                        .add(nodePair.getFirst().longValue());
 
-            if (!nodesRestoredInTxn.contains(potentiallyRestoredParentNode))
+                if (this.nameNGramsBackfill != null)
+                {
+                    this.nameNGramsBackfill.scheduleRestoredDescendants(restoredNode);
+                }
+            }
+        }
+
+        // explicit read access is only ever granted on archived roots, so this (cached) check identifies the relevant restore roots and
+        // skips any cascade-restored descendants without having to track them
+        if (this.nodeService.hasAspect(restoredNode, BetterTrashManagementModel.ASPECT_USER_READ_ACCESS_GRANTED))
+        {
+            final NodeRef archiveRootNode = this.nodeArchiveService.getStoreArchiveNode(restoredNode.getStoreRef());
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(restoredNode);
+            if (archiveRootNode != null && nodePair != null)
+            {
+                LOGGER.debug("Scheduling removal of explicit read permission from restored node {}", restoredNode);
+                this.getRestoredNodeIds(TXN_RESTORED_ROOT_IDS_KEY, this::removeGrantedReadAccess).add(nodePair.getFirst().longValue());
+            }
+            else
             {
+                LOGGER.debug("Not handling restoration of {} as it is not an regular restore-from-archive operation", restoredNode);
+            }
+        }
+        else
+        {
+            LOGGER.trace("Not handling restoration of node {} as no explicit read permission was granted as part of trash management",
+                    restoredNode);
+        }
+    }
+
+    /**
+     * Checks whether a restored node is the root of a restored tree carrying {@link BetterTrashManagementModel#ASPECT_ARCHIVED_ITEM
+     * archived item properties}. Since the properties are removed from restore roots before commit, the primary parent of a restore root
+     * does not carry them, unless it was restored itself very recently and its own descendants are still being processed - in that case,
+     * the properties only ever set on archived roots identify the restore root.
+     *
+     * @param childAssocRef
+     *            the primary parent association of the restored node
+     * @return {@code true} if the restored node is the root of a restored tree carrying archived item properties, {@code false} otherwise
+     */
+    protected boolean isRestoredArchivedItemRoot(final ChildAssociationRef childAssocRef)
+    {
+        final NodeRef restoredNode = childAssocRef.getChildRef();
+        final NodeRef parent = childAssocRef.getParentRef();
+
+        boolean restoreRoot = false;
+        // (cached) aspect checks only for the potentially many cascade-restored descendants
+        if (this.nodeService.hasAspect(restoredNode, BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM))
+        {
+            restoreRoot = parent == null || !this.nodeService.hasAspect(parent, BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM)
+                    || this.nodeService.getProperty(restoredNode, BetterTrashManagementModel.PROP_NAME_NGRAMS) != null
+                    || this.nodeService.getProperty(restoredNode, BetterTrashManagementModel.PROP_ORIGINAL_DISPLAY_PATH) != null;
+        }
+        return restoreRoot;
+    }
+
+    /**
+     * Records the display path of the original parent of an archived root while the original hierarchy is still known to be intact, so
+     * that listings neither need to resolve it from a live hierarchy that may have been moved, renamed or deleted in the meantime, nor
+     * present an incomplete path in that case.
+     *
+     * @param archivedNode
+     *            the archived root
+     * @param properties
+     *            the properties of the archived root
+     */
+    protected void recordOriginalDisplayPath(final NodeRef archivedNode, final Map<QName, Serializable> properties)
+    {
+        final ChildAssociationRef originalParentAssoc = DefaultTypeConverter.INSTANCE.convert(ChildAssociationRef.class,
+                properties.get(ContentModel.PROP_ARCHIVED_ORIGINAL_PARENT_ASSOC));
+        final NodeRef originalParent = originalParentAssoc != null ? originalParentAssoc.getParentRef() : null;
+        if (originalParent != null && this.nodeService.exists(originalParent))
+        {
+            // same format as previously resolved when listing, i.e. path of the parent including its name, as seen by the archiving user
+            final String parentName = DefaultTypeConverter.INSTANCE.convert(String.class,
+                    this.nodeService.getProperty(originalParent, ContentModel.PROP_NAME));
+            final String originalDisplayPath = this.nodeService.getPath(originalParent).toDisplayPath(this.nodeService,
+                    this.permissionService) + "/" + parentName;
+
+            LOGGER.debug("Recording original display path {} for archived node {}", originalDisplayPath, archivedNode);
+            this.nodeService.addAspect(archivedNode, BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM,
+                    Collections.singletonMap(BetterTrashManagementModel.PROP_ORIGINAL_DISPLAY_PATH, originalDisplayPath));
+        }
+    }
+
+    protected RestoredNodeIds getRestoredNodeIds(final String resourceKey, final Consumer<RestoredNodeIds> beforeCommitHandler)
+    {
+        RestoredNodeIds restoredNodeIds = AlfrescoTransactionSupport.getResource(resourceKey);
+        if (restoredNodeIds == null)
+        {
+            final RestoredNodeIds newRestoredNodeIds = new RestoredNodeIds();
+            AlfrescoTransactionSupport.bindResource(resourceKey, newRestoredNodeIds);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void beforeCommit(final boolean readOnly)
+                {
+                    beforeCommitHandler.accept(newRestoredNodeIds);
+                }
+            });
+            restoredNodeIds = newRestoredNodeIds;
+        }
+        return restoredNodeIds;
+    }
+
+    /**
+     * Removes the explicit read permissions granted as part of trash management from a set of restored nodes in one batch.
+     *
+     * @param restoredRootIds
+     *            the IDs of the restored nodes
+     */
+    protected void removeGrantedReadAccess(final RestoredNodeIds restoredRootIds)
+    {
+        final List<Long> nodeIds = restoredRootIds.toDistinctList();
+        this.nodeDAO.cacheNodesById(nodeIds);
+
+        for (final Long nodeId : nodeIds)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(nodeId);
+            if (nodePair != null)
+            {
+                final NodeRef restoredNode = nodePair.getSecond();
                 if (this.nodeService.hasAspect(restoredNode, BetterTrashManagementModel.ASPECT_USER_READ_ACCESS_GRANTED))
                 {
-                    final Map<QName, Serializable> properties = this.nodeService.getProperties(restoredNode);
                     final String readAccessGrantedTo = DefaultTypeConverter.INSTANCE.convert(String.class,
-                            properties.get(BetterTrashManagementModel.PROP_READ_ACCESS_GRANTED_TO));
+                            this.nodeService.getProperty(restoredNode, BetterTrashManagementModel.PROP_READ_ACCESS_GRANTED_TO));
                     LOGGER.debug(
                             "Removing explicit read permission from restored node {} for {} which was granted as part of trash management",
                             restoredNode, readAccessGrantedTo);
                     this.permissionService.deletePermission(restoredNode, readAccessGrantedTo, PermissionService.READ);
                     this.nodeService.removeAspect(restoredNode, BetterTrashManagementModel.ASPECT_USER_READ_ACCESS_GRANTED);
                 }
-                nodesRestoredInTxn.add(restoredNode);
             }
-            else
+        }
+    }
+
+    /**
+     * Removes the {@link BetterTrashManagementModel#ASPECT_ARCHIVED_ITEM archived item properties} from a set of restored roots so that
+     * restored content does not carry any stale archive date, name n-grams or original location. The properties of any descendants are
+     * removed asynchronously after commit by the {@link ArchivedItemsNameNGramsBackfill backfill}.
+     *
+     * @param restoredRootIds
+     *            the IDs of the restored roots
+     */
+    protected void removeArchivedItemProperties(final RestoredNodeIds restoredRootIds)
+    {
+        final List<Long> nodeIds = restoredRootIds.toDistinctList();
+        this.nodeDAO.cacheNodesById(nodeIds);
+
+        for (final Long nodeId : nodeIds)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(nodeId);
+            if (nodePair != null && this.nodeService.hasAspect(nodePair.getSecond(), BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM))
             {
-                LOGGER.debug("Not handling restoration of node {} as it is a cascade-restoration operation", restoredNode);
+                final NodeRef node = nodePair.getSecond();
+                // properties are a technical addition and their removal must not alter the last modification of restored items
+                this.behaviourFilter.disableBehaviour(node, ContentModel.ASPECT_AUDITABLE);
+                try
+                {
+                    this.nodeService.removeAspect(node, BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM);
+                }
+                finally
+                {
+                    this.behaviourFilter.enableBehaviour(node, ContentModel.ASPECT_AUDITABLE);
+                }
             }
         }
-        else
+    }
+
+    /**
+     * Instances of this class compactly track the database IDs of restored nodes within a transaction.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class RestoredNodeIds
+    {
+
+        protected long[] nodeIds = new long[16];
+
+        protected int size;
+
+        protected void add(final long nodeId)
         {
-            LOGGER.debug("Not handling restoration of {} as it is not an regular restore-from-archive operation", restoredNode);
+            if (this.size == this.nodeIds.length)
+            {
+                this.nodeIds = Arrays.copyOf(this.nodeIds, this.size << 1);
+            }
+            this.nodeIds[this.size++] = nodeId;
         }
-    }
 
+        protected List<Long> toDistinctList()
+        {
+            final long[] distinctNodeIds = Arrays.stream(this.nodeIds, 0, this.size).distinct().toArray();
+            final List<Long> list = new ArrayList<>(distinctNodeIds.length);
+            for (final long nodeId : distinctNodeIds)
+            {
+                list.add(Long.valueOf(nodeId));
+            }
+            return list;
+        }
+    }
 }
@@ -17,11 +17,19 @@ package de.axelfaust.alfresco.trash.management.repo.rendition;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
 
 import org.alfresco.model.ContentModel;
 import org.alfresco.model.RenditionModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.qname.QNameDAO;
 import org.alfresco.repo.node.archive.NodeArchiveService;
 import org.alfresco.repo.rendition.RenditionServiceImpl;
 import org.alfresco.service.ServiceRegistry;
@@ -34,12 +42,17 @@ import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.namespace.RegexQNamePattern;
 import org.alfresco.util.EqualsHelper;
+import org.alfresco.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
 /**
  * This variant of a rendition service will work with archived items in that it will not auto-magically filter renditions that have been
- * archived if the original node itself is actually being stored in the same store.
+ * archived if the original node itself is actually being stored in the same store. In addition, it supports looking up the renditions of
+ * a set of nodes in bulk, e.g. for all the items on a page of a listing, via a single database query per batch of nodes instead of
+ * individual {@link NodeService} calls per node.
  *
  * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
  */
@@ -49,12 +62,24 @@ public class ArchiveSupportingRenditionServiceImpl extends RenditionServiceImpl
     // base class (as large parts of Alfresco do) uses Commons Logging - oh the humanity!!
     private static final Logger LOGGER = LoggerFactory.getLogger(RenditionServiceImpl.class);
 
+    private static final String SQL_SELECT_RENDITION_ASSOCS = "SELECT ca.parent_node_id, ca.child_node_id, ca.qname_ns_id, "
+            + "ca.qname_localname, ca.is_primary, ca.assoc_index FROM alf_child_assoc ca "
+            + "WHERE ca.parent_node_id IN (:parentNodeIds) AND ca.type_qname_id = :renditionAssocQNameId";
+
     protected NodeService nodeService;
 
     protected ContentService contentService;
 
     protected NodeArchiveService nodeArchiveService;
 
+    protected NodeDAO nodeDAO;
+
+    protected QNameDAO qnameDAO;
+
+    protected NamedParameterJdbcTemplate jdbcTemplate;
+
+    protected int batchSize = 500;
+
     /**
      *
      * {@inheritDoc}
@@ -77,6 +102,123 @@ public class ArchiveSupportingRenditionServiceImpl extends RenditionServiceImpl
         this.nodeArchiveService = nodeArchiveService;
     }
 
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param qnameDAO
+     *            the qnameDAO to set
+     */
+    public void setQnameDAO(final QNameDAO qnameDAO)
+    {
+        this.qnameDAO = qnameDAO;
+    }
+
+    /**
+     * @param dataSource
+     *            the dataSource to set
+     */
+    public void setDataSource(final DataSource dataSource)
+    {
+        this.jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+    }
+
+    /**
+     * @param batchSize
+     *            the number of nodes for which to look up renditions in a single database query
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * Retrieves the renditions of a set of nodes in bulk. The rendition associations of all nodes are loaded via a single database query
+     * per batch of nodes, and renditions that have been archived while their source node has not are filtered the same way as by
+     * {@link #getRenditions(NodeRef) the lookup for an individual node}. This operation does not check any permissions.
+     *
+     * @param nodes
+     *            the nodes for which to retrieve renditions
+     * @return the renditions of the nodes mapped by node - nodes without any renditions are mapped to an empty list
+     */
+    public Map<NodeRef, List<ChildAssociationRef>> getRenditions(final Collection<NodeRef> nodes)
+    {
+        final Map<NodeRef, List<ChildAssociationRef>> renditionsByNode = new LinkedHashMap<>();
+        nodes.forEach(node -> renditionsByNode.put(node, new ArrayList<>()));
+
+        if (this.jdbcTemplate == null || this.nodeDAO == null || this.qnameDAO == null)
+        {
+            LOGGER.debug("Bulk rendition lookup has not been configured - falling back to individual lookups");
+            nodes.forEach(node -> renditionsByNode.put(node, this.getRenditions(node)));
+            return renditionsByNode;
+        }
+
+        final Pair<Long, QName> renditionAssocQName = this.qnameDAO.getQName(RenditionModel.ASSOC_RENDITION);
+        if (renditionAssocQName != null && !nodes.isEmpty())
+        {
+            this.nodeDAO.cacheNodes(new ArrayList<>(nodes));
+
+            final Map<Long, NodeRef> nodeById = new HashMap<>();
+            for (final NodeRef node : nodes)
+            {
+                final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(node);
+                if (nodePair != null)
+                {
+                    nodeById.put(nodePair.getFirst(), node);
+                }
+            }
+
+            final List<Object[]> assocRows = new ArrayList<>();
+            final List<Long> nodeIds = new ArrayList<>(nodeById.keySet());
+            for (int offset = 0; offset < nodeIds.size(); offset += this.batchSize)
+            {
+                final List<Long> batchNodeIds = nodeIds.subList(offset, Math.min(offset + this.batchSize, nodeIds.size()));
+                this.jdbcTemplate.query(SQL_SELECT_RENDITION_ASSOCS, new MapSqlParameterSource().addValue("parentNodeIds", batchNodeIds)
+                        .addValue("renditionAssocQNameId", renditionAssocQName.getFirst()), rs -> {
+                            assocRows.add(new Object[] { Long.valueOf(rs.getLong(1)), Long.valueOf(rs.getLong(2)),
+                                    Long.valueOf(rs.getLong(3)), rs.getString(4), Boolean.valueOf(rs.getBoolean(5)),
+                                    Integer.valueOf(rs.getInt(6)) });
+                        });
+            }
+
+            final List<Long> renditionNodeIds = new ArrayList<>();
+            assocRows.forEach(row -> renditionNodeIds.add((Long) row[1]));
+            this.nodeDAO.cacheNodesById(renditionNodeIds);
+
+            // archive store is determined only once per store of the source nodes
+            final Map<StoreRef, StoreRef> archiveStoreByStore = new HashMap<>();
+            for (final Object[] row : assocRows)
+            {
+                final NodeRef node = nodeById.get(row[0]);
+                final Pair<Long, NodeRef> renditionNodePair = this.nodeDAO.getNodePair((Long) row[1]);
+                final Pair<Long, String> namespace = this.qnameDAO.getNamespace((Long) row[2]);
+                if (renditionNodePair != null && namespace != null)
+                {
+                    final StoreRef archiveStore = archiveStoreByStore.computeIfAbsent(node.getStoreRef(), storeRef -> {
+                        final NodeRef archiveNode = this.nodeArchiveService.getStoreArchiveNode(storeRef);
+                        return archiveNode != null ? archiveNode.getStoreRef() : null;
+                    });
+
+                    final NodeRef renditionNode = renditionNodePair.getSecond();
+                    if (!EqualsHelper.nullSafeEquals(archiveStore, renditionNode.getStoreRef()))
+                    {
+                        final QName renditionName = QName.createQName(namespace.getSecond(), (String) row[3]);
+                        renditionsByNode.get(node).add(new ChildAssociationRef(RenditionModel.ASSOC_RENDITION, node, renditionName,
+                                renditionNode, ((Boolean) row[4]).booleanValue(), ((Integer) row[5]).intValue()));
+                    }
+                }
+            }
+        }
+
+        return renditionsByNode;
+    }
+
     /**
      *
      * {@inheritDoc}
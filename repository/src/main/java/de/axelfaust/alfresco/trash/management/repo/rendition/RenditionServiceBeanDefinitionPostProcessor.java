@@ -50,6 +50,9 @@ public class RenditionServiceBeanDefinitionPostProcessor implements BeanDefiniti
         {
             renditionServiceDefinition.setBeanClassName(ArchiveSupportingRenditionServiceImpl.class.getName());
             renditionServiceDefinition.getPropertyValues().add("nodeArchiveService", new RuntimeBeanReference("nodeArchiveService"));
+            renditionServiceDefinition.getPropertyValues().add("nodeDAO", new RuntimeBeanReference("nodeDAO"));
+            renditionServiceDefinition.getPropertyValues().add("qnameDAO", new RuntimeBeanReference("qnameDAO"));
+            renditionServiceDefinition.getPropertyValues().add("dataSource", new RuntimeBeanReference("dataSource"));
         }
     }
 
@@ -17,54 +17,114 @@ package de.axelfaust.alfresco.trash.management.repo.web.scripts;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.search.impl.solr.SolrJSONResultSet;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.rendition.RenditionService;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.Path;
+import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
 import org.alfresco.service.cmr.search.ResultSet;
 import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.service.cmr.security.PermissionService;
 import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.alfresco.util.Pair;
 import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.extensions.webscripts.Cache;
 import org.springframework.extensions.webscripts.DeclarativeWebScript;
 import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 
+import de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsNameNGramsBackfill;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsTransactionDelta;
+import de.axelfaust.alfresco.trash.management.repo.rendition.ArchiveSupportingRenditionServiceImpl;
+
 /**
  * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
  */
 public abstract class AbstractArchivedItemsRetrievalWebScript extends DeclarativeWebScript implements InitializingBean
 {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractArchivedItemsRetrievalWebScript.class);
+
     // include potential tenant name suffix
     private static final String PATTERN_SYSTEM_USER_NAME = "^" + AuthenticationUtil.getSystemUserName() + "(@.+)?$";
 
+    private static final ThreadLocal<RequestCancellationRegistry.Registration> CURRENT_REQUEST_REGISTRATION = new ThreadLocal<>();
+
     private static final String PARAM_PAGE_SIZE = "pageSize";
 
     private static final String PARAM_PAGE = "page";
 
     private static final String PARAM_START_INDEX = "startIndex";
 
+    protected static final String PARAM_SORT_BY = "sortBy";
+
+    protected static final String PARAM_SORT_ASC = "sortAsc";
+
+    private static final String PARAM_REQUEST_ID = "requestId";
+
+    protected static final String PARAM_COMPACT = "compact";
+
+    private static final String PARAM_CONSISTENCY = "consistency";
+
+    private static final String PARAM_SNAPSHOT = "snapshot";
+
+    private static final String PARAM_SNAPSHOT_TOKEN = "snapshotToken";
+
+    private static final String CONSISTENCY_HYBRID = "hybrid";
+
+    private static final String CONSISTENCY_EVENTUAL = "eventual";
+
     private static final String RESPONSE_PAGINATION = "pagination";
 
-    private static final String RESPONSE_RESULTS = "results";
+    protected static final String RESPONSE_RESULTS = "results";
 
-    private static final String RESPONSE_TOTAL_RECORDS = "totalRecords";
+    protected static final String RESPONSE_TOTAL_RECORDS = "totalRecords";
 
-    private static final String RESPONSE_NUMBER_FOUND = "numberFound";
+    protected static final String RESPONSE_NUMBER_FOUND = "numberFound";
+
+    protected static final String RESPONSE_NUMBER_FOUND_APPROXIMATE = "numberFoundApproximate";
+
+    private static final String RESPONSE_SNAPSHOT_TOKEN = "snapshotToken";
+
+    private static final String RESPONSE_SNAPSHOT_TRUNCATED = "snapshotTruncated";
 
     private static final String RESPONSE_USER_NAME = "userName";
 
@@ -74,14 +134,60 @@ public abstract class AbstractArchivedItemsRetrievalWebScript extends Declarativ
 
     private static final String RESPONSE_USER_LAST_NAME = "lastName";
 
+    protected static final String RESPONSE_COMPACT_TABLES = "compactTables";
+
+    private static final String ITEM_MODIFIER = "modifier";
+
+    private static final String ITEM_ARCHIVER = "archiver";
+
+    protected static final String ITEM_NODE = "node";
+
+    private static final String ITEM_PROPERTY_QNAMES = "propertyQNames";
+
+    private static final String ITEM_ORIGINAL_PARENT_PATH = "originalParentPath";
+
+    private static final String ITEM_RENDITIONS = "renditions";
+
+    protected static final String ITEM_CHILDREN = "children";
+
+    protected static final String ITEM_CHILDREN_TRUNCATED = "childrenTruncated";
+
     protected NodeService nodeService;
 
+    protected NamespaceService namespaceService;
+
     protected PersonService personService;
 
     protected PermissionService permissionService;
 
+    protected AuthorityService authorityService;
+
     protected SearchService searchService;
 
+    protected TransactionService transactionService;
+
+    protected ExecutorService fanOutExecutor;
+
+    protected ArchivedItemsNameNGramsBackfill nameNGramsBackfill;
+
+    protected RenditionService renditionService;
+
+    protected NodeDAO nodeDAO;
+
+    protected ArchivedItemsTransactionDelta transactionDelta;
+
+    protected boolean hybridConsistencyByDefault;
+
+    protected RequestCancellationRegistry requestCancellationRegistry;
+
+    protected AdmissionControl admissionControl;
+
+    protected String admissionOperationClass;
+
+    protected SimpleCache<String, ResultSnapshot> snapshotCache;
+
+    protected int snapshotMaxItems = 10000;
+
     /**
      *
      * {@inheritDoc}
@@ -90,9 +196,11 @@ public abstract class AbstractArchivedItemsRetrievalWebScript extends Declarativ
     public void afterPropertiesSet()
     {
         PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "namespaceService", this.namespaceService);
         PropertyCheck.mandatory(this, "personService", this.personService);
         PropertyCheck.mandatory(this, "permissionService", this.permissionService);
         PropertyCheck.mandatory(this, "searchService", this.searchService);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
     }
 
     /**
@@ -104,6 +212,15 @@ public abstract class AbstractArchivedItemsRetrievalWebScript extends Declarativ
         this.nodeService = nodeService;
     }
 
+    /**
+     * @param namespaceService
+     *            the namespaceService to set
+     */
+    public void setNamespaceService(final NamespaceService namespaceService)
+    {
+        this.namespaceService = namespaceService;
+    }
+
     /**
      * @param personService
      *            the personService to set
@@ -122,6 +239,15 @@ public abstract class AbstractArchivedItemsRetrievalWebScript extends Declarativ
         this.permissionService = permissionService;
     }
 
+    /**
+     * @param authorityService
+     *            the authorityService to set - if set, permission checks during enrichment of results are skipped for administrators
+     */
+    public void setAuthorityService(final AuthorityService authorityService)
+    {
+        this.authorityService = authorityService;
+    }
+
     /**
      * @param searchService
      *            the searchService to set
@@ -131,11 +257,253 @@ public abstract class AbstractArchivedItemsRetrievalWebScript extends Declarativ
         this.searchService = searchService;
     }
 
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param fanOutExecutor
+     *            the executor to use for concurrently querying multiple archive contexts - if not set, queries will be executed
+     *            sequentially
+     */
+    public void setFanOutExecutor(final ExecutorService fanOutExecutor)
+    {
+        this.fanOutExecutor = fanOutExecutor;
+    }
+
+    /**
+     * @param nameNGramsBackfill
+     *            the nameNGramsBackfill to set
+     */
+    public void setNameNGramsBackfill(final ArchivedItemsNameNGramsBackfill nameNGramsBackfill)
+    {
+        this.nameNGramsBackfill = nameNGramsBackfill;
+    }
+
+    /**
+     * @param renditionService
+     *            the (non-public) renditionService to set - if not set, the availability of renditions is not included in the results
+     */
+    public void setRenditionService(final RenditionService renditionService)
+    {
+        this.renditionService = renditionService;
+    }
+
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param transactionDelta
+     *            the transactionDelta to set
+     */
+    public void setTransactionDelta(final ArchivedItemsTransactionDelta transactionDelta)
+    {
+        this.transactionDelta = transactionDelta;
+    }
+
+    /**
+     * @param hybridConsistencyByDefault
+     *            {@code true} if eventually consistent query results should be merged with the changes not yet tracked by the index
+     *            unless a request explicitly asks for {@code eventual} consistency
+     */
+    public void setHybridConsistencyByDefault(final boolean hybridConsistencyByDefault)
+    {
+        this.hybridConsistencyByDefault = hybridConsistencyByDefault;
+    }
+
+    /**
+     * @param requestCancellationRegistry
+     *            the requestCancellationRegistry to set
+     */
+    public void setRequestCancellationRegistry(final RequestCancellationRegistry requestCancellationRegistry)
+    {
+        this.requestCancellationRegistry = requestCancellationRegistry;
+    }
+
+    /**
+     * @param admissionControl
+     *            the admissionControl to set
+     */
+    public void setAdmissionControl(final AdmissionControl admissionControl)
+    {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * @param admissionOperationClass
+     *            the class of operation by which requests of this web script are subject to {@link AdmissionControl admission control}
+     */
+    public void setAdmissionOperationClass(final String admissionOperationClass)
+    {
+        this.admissionOperationClass = admissionOperationClass;
+    }
+
+    /**
+     * @param snapshotCache
+     *            the cache of result snapshots for stable paging - if not set, requests for snapshots are processed as regular queries
+     */
+    public void setSnapshotCache(final SimpleCache<String, ResultSnapshot> snapshotCache)
+    {
+        this.snapshotCache = snapshotCache;
+    }
+
+    /**
+     * @param snapshotMaxItems
+     *            the maximum number of items in a result snapshot
+     */
+    public void setSnapshotMaxItems(final int snapshotMaxItems)
+    {
+        this.snapshotMaxItems = snapshotMaxItems;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        // web script descriptors declare no transaction so that requests wait for admission without holding a transaction / DB connection
+        final Map<String, Object> model;
+        if (this.admissionControl != null)
+        {
+            final String operationClass = this.admissionOperationClass != null ? this.admissionOperationClass
+                    : this.getDescription().getId();
+            model = this.admissionControl.execute(operationClass, () -> this.executeInTransaction(req, status, cache));
+        }
+        else
+        {
+            model = this.executeInTransaction(req, status, cache);
+        }
+        return model;
+    }
+
+    /**
+     * Executes an admitted request within a read-only transaction. The response template is only rendered after the transaction has
+     * been completed and accesses any node details via the (transactional) public services.
+     *
+     * @param req
+     *            the request being processed
+     * @param status
+     *            the status of the response
+     * @param cache
+     *            the cache control of the response
+     * @return the model for the response template
+     */
+    protected Map<String, Object> executeInTransaction(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        final Map<String, Object> model = this.transactionService.getRetryingTransactionHelper()
+                .doInTransaction(() -> this.executeRetrievalRequest(req, status, cache), true, false);
+        return model;
+    }
+
+    /**
+     * Executes a request after it has been admitted, resolving the archive context nodes to retrieve archived items from.
+     *
+     * @param req
+     *            the request being processed
+     * @param status
+     *            the status of the response
+     * @param cache
+     *            the cache control of the response
+     * @return the model for the response template
+     */
+    abstract protected Map<String, Object> executeRetrievalRequest(final WebScriptRequest req, final Status status, final Cache cache);
+
     /**
      * {@inheritDoc}
      */
     protected Map<String, Object> executeImpl(final WebScriptRequest req, final NodeRef storeArchiveNode, final Status status,
             final Cache cache)
+    {
+        final List<NodeRef> archiveContextNodes = storeArchiveNode != null ? Collections.singletonList(storeArchiveNode)
+                : Collections.<NodeRef> emptyList();
+        final Map<String, Object> model = this.executeImpl(req, archiveContextNodes, status, cache);
+        return model;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected Map<String, Object> executeImpl(final WebScriptRequest req, final List<NodeRef> archiveContextNodes, final Status status,
+            final Cache cache)
+    {
+        final Map<String, Object> model = this.executeCancellableRetrieval(req, archiveContextNodes);
+        return model;
+    }
+
+    /**
+     * Retrieves the archived items for a request, allowing the client to cancel the processing if the request has been tagged with a
+     * request ID.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNodes
+     *            the archive context nodes to query
+     * @return the model for the response template
+     */
+    protected Map<String, Object> executeCancellableRetrieval(final WebScriptRequest req, final List<NodeRef> archiveContextNodes)
+    {
+        final String requestId = this.getParameter(req, PARAM_REQUEST_ID);
+
+        final Map<String, Object> model;
+        if (this.requestCancellationRegistry != null && requestId != null && !requestId.isEmpty())
+        {
+            try (RequestCancellationRegistry.Registration registration = this.requestCancellationRegistry
+                    .register(AuthenticationUtil.getFullyAuthenticatedUser(), requestId))
+            {
+                CURRENT_REQUEST_REGISTRATION.set(registration);
+                this.checkNotCancelled();
+                model = this.executeRetrieval(req, archiveContextNodes);
+            }
+            finally
+            {
+                CURRENT_REQUEST_REGISTRATION.remove();
+            }
+        }
+        else
+        {
+            model = this.executeRetrieval(req, archiveContextNodes);
+        }
+        return model;
+    }
+
+    /**
+     * Checks whether the client has cancelled the request currently being processed, aborting the processing if that is the case.
+     *
+     * @throws WebScriptException
+     *             if the request has been cancelled
+     */
+    protected void checkNotCancelled()
+    {
+        final RequestCancellationRegistry.Registration registration = CURRENT_REQUEST_REGISTRATION.get();
+        if (registration != null && registration.isCancelled())
+        {
+            LOGGER.debug("Aborting retrieval of archived items as the request has been cancelled by the client");
+            throw new WebScriptException(Status.STATUS_CONFLICT, "Request has been cancelled by the client");
+        }
+    }
+
+    /**
+     * Retrieves the archived items for a request, handling pagination and sorting.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNodes
+     *            the archive context nodes to query
+     * @return the model for the response template
+     */
+    protected Map<String, Object> executeRetrieval(final WebScriptRequest req, final List<NodeRef> archiveContextNodes)
     {
         final Map<String, Object> model = new HashMap<>();
 
@@ -163,17 +531,52 @@ public abstract class AbstractArchivedItemsRetrievalWebScript extends Declarativ
         paginationModel.put(RESPONSE_TOTAL_RECORDS, Integer.valueOf(0));
         paginationModel.put(RESPONSE_NUMBER_FOUND, Integer.valueOf(0));
 
-        if (storeArchiveNode != null)
+        final String snapshotTokenParam = this.getParameter(req, PARAM_SNAPSHOT_TOKEN);
+        final boolean snapshot = this.snapshotCache != null && (snapshotTokenParam != null && !snapshotTokenParam.isEmpty()
+                || Boolean.parseBoolean(this.getParameter(req, PARAM_SNAPSHOT)));
+
+        if (snapshot && !archiveContextNodes.isEmpty())
+        {
+            this.executeSnapshotQuery(req, archiveContextNodes, snapshotTokenParam, pageSize, startIndex, model, paginationModel);
+        }
+        else if (!archiveContextNodes.isEmpty()
+                && this.executeIndexedQuery(req, archiveContextNodes, pageSize, startIndex, model, paginationModel))
         {
-            final SearchParameters sp = this.prepareSearchParameters(req, storeArchiveNode, pageSize, startIndex);
+            LOGGER.debug("Query for archived items answered from in-memory index");
+        }
+        else if (archiveContextNodes.size() > 1)
+        {
+            this.executeFanOutQueries(req, archiveContextNodes, pageSize, startIndex, model, paginationModel);
+        }
+        else if (!archiveContextNodes.isEmpty())
+        {
+            final SearchParameters sp = this.prepareSearchParameters(req, archiveContextNodes.get(0), pageSize, startIndex);
+            final SortField sortField = this.getSortField(req);
+            final boolean sortAscending = this.isSortAscending(req, sortField);
+            sp.addSort(this.getSortFieldName(sortField, this.isTopLevelQuery(req)), sortAscending);
+            final Predicate<NodeRef> deltaFilter = this.getTransactionDeltaFilter(req, archiveContextNodes.get(0));
 
             final ResultSet resultSet = this.searchService.query(sp);
             try
             {
-                final List<Map<String, Object>> results = this.processResults(resultSet);
+                final List<Map<String, Object>> results;
+                if (deltaFilter != null)
+                {
+                    final ArchiveContextResults contextResults = this.applyTransactionDelta(resultSet,
+                            this.toArchiveContextResults(resultSet, sortField), archiveContextNodes.get(0).getStoreRef(), deltaFilter,
+                            sortField, sortAscending, startIndex == 0, pageSize);
+
+                    final List<NodeRef> pageNodes = new ArrayList<>();
+                    contextResults.getCandidates().forEach(candidate -> pageNodes.add(candidate.getFirst()));
+                    results = this.processResults(pageNodes, this.createEnrichmentContext(req));
+                    this.putPaginationCounts(paginationModel, pageNodes.size(), results, contextResults.getNumberFound());
+                }
+                else
+                {
+                    results = this.processResults(resultSet.getNodeRefs(), this.createEnrichmentContext(req));
+                    this.putPaginationCounts(paginationModel, resultSet.length(), results, resultSet.getNumberFound());
+                }
                 model.put(RESPONSE_RESULTS, results);
-                paginationModel.put(RESPONSE_TOTAL_RECORDS, Integer.valueOf(resultSet.length()));
-                paginationModel.put(RESPONSE_NUMBER_FOUND, Long.valueOf(resultSet.getNumberFound()));
             }
             finally
             {
@@ -185,127 +588,1034 @@ public abstract class AbstractArchivedItemsRetrievalWebScript extends Declarativ
             model.put("results", new ArrayList<Map<String, Object>>());
         }
 
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> retrievedResults = (List<Map<String, Object>>) model.get(RESPONSE_RESULTS);
+        this.completeResults(req, archiveContextNodes, retrievedResults, model);
+
+        final String compactParam = this.getParameter(req, PARAM_COMPACT);
+        if (Boolean.parseBoolean(compactParam))
+        {
+            model.put(RESPONSE_COMPACT_TABLES, this.buildCompactTables(retrievedResults));
+        }
+
         return model;
     }
 
-    abstract protected SearchParameters prepareSearchParameters(final WebScriptRequest req, final NodeRef archiveContextNode,
-            final int pageSize, final int startIndex);
-
-    protected List<Map<String, Object>> processResults(final ResultSet resultSet)
+    /**
+     * Completes the retrieved results of a request before they are rendered, e.g. by adding nested data. This default implementation
+     * does nothing.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNodes
+     *            the archive context nodes queried
+     * @param results
+     *            the result entries
+     * @param model
+     *            the model for the response template
+     */
+    protected void completeResults(final WebScriptRequest req, final List<NodeRef> archiveContextNodes,
+            final List<Map<String, Object>> results, final Map<String, Object> model)
     {
-        final List<Map<String, Object>> results = new ArrayList<>();
-        final Map<String, Map<String, Object>> userObjByUserName = new HashMap<>();
-
-        resultSet.getNodeRefs().forEach((result) -> {
-            final Map<String, Object> itemObj = this.buildResultEntry(result, userObjByUserName);
-            results.add(itemObj);
-        });
-        return results;
+        // NO-OP
     }
 
-    protected Map<String, Object> buildResultEntry(final NodeRef result, final Map<String, Map<String, Object>> userObjByUserName)
+    /**
+     * Builds the side tables for the compact response format, in which item rows only reference users, original parent paths and
+     * qualified names by their index in these tables instead of repeating them for each item. The indices are added to the individual
+     * result entries, including any nested child entries.
+     *
+     * @param results
+     *            the result entries
+     * @return the side tables
+     */
+    protected Map<String, Object> buildCompactTables(final List<Map<String, Object>> results)
     {
-        final Map<QName, Serializable> resultProperties = this.nodeService.getProperties(result);
-
-        final String modifier = DefaultTypeConverter.INSTANCE.convert(String.class, resultProperties.get(ContentModel.PROP_MODIFIER));
-        String archiver = DefaultTypeConverter.INSTANCE.convert(String.class, resultProperties.get(ContentModel.PROP_ARCHIVED_BY));
-        Date archivedOn = DefaultTypeConverter.INSTANCE.convert(Date.class, resultProperties.get(ContentModel.PROP_ARCHIVED_DATE));
-        ChildAssociationRef originalParentAssoc = DefaultTypeConverter.INSTANCE.convert(ChildAssociationRef.class,
-                resultProperties.get(ContentModel.PROP_ARCHIVED_ORIGINAL_PARENT_ASSOC));
+        final List<Map<String, Object>> users = new ArrayList<>();
+        final Map<String, Integer> userIndices = new HashMap<>();
+        final List<String> paths = new ArrayList<>();
+        final Map<String, Integer> pathIndices = new HashMap<>();
+        final List<String> qnames = new ArrayList<>();
+        final Map<String, Integer> qnameIndices = new HashMap<>();
+        final Map<String, String> namespaces = new HashMap<>();
 
-        final StringBuilder displayPathBuilder = new StringBuilder(1024);
+        final List<Map<String, Object>> allItems = new ArrayList<>();
+        this.collectNestedItems(results, allItems);
 
-        NodeRef previousNode = result;
-        while (archiver == null && previousNode != null)
+        for (final Map<String, Object> itemObj : allItems)
         {
-            final ChildAssociationRef primaryParent = this.nodeService.getPrimaryParent(previousNode);
-            final NodeRef parentRef;
-            if (primaryParent != null)
+            for (final String userKey : Arrays.asList(ITEM_MODIFIER, ITEM_ARCHIVER))
             {
-                parentRef = primaryParent.getParentRef();
-                final AccessStatus parentReadAccess = this.permissionService.hasPermission(parentRef, PermissionService.READ);
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> userObj = (Map<String, Object>) itemObj.get(userKey);
+                final String userName = String.valueOf(userObj.get(RESPONSE_USER_NAME));
+                itemObj.put(userKey + "Index", lookupIndex(users, userIndices, userName, userObj));
+            }
 
-                final Map<QName, Serializable> archivedItemProperties;
-                final String parentName;
+            final String originalParentPath = (String) itemObj.get(ITEM_ORIGINAL_PARENT_PATH);
+            itemObj.put("pathIndex", lookupIndex(paths, pathIndices, originalParentPath, originalParentPath));
 
-                if (parentReadAccess == AccessStatus.ALLOWED)
-                {
-                    archivedItemProperties = this.nodeService.getProperties(parentRef);
-                    parentName = DefaultTypeConverter.INSTANCE.convert(String.class, archivedItemProperties.get(ContentModel.PROP_NAME));
-                }
-                else
-                {
-                    archivedItemProperties = AuthenticationUtil.runAsSystem(() -> {
-                        final Map<QName, Serializable> properties;
-                        if (this.nodeService.hasAspect(parentRef, ContentModel.ASPECT_ARCHIVED))
-                        {
-                            properties = this.nodeService.getProperties(parentRef);
-                        }
-                        else
-                        {
-                            properties = Collections.emptyMap();
-                        }
-                        return properties;
-                    });
+            final QName nodeType = this.nodeService.getType((NodeRef) itemObj.get(ITEM_NODE));
+            itemObj.put("nodeTypeIndex", this.lookupQNameIndex(nodeType, qnames, qnameIndices, namespaces));
 
-                    parentName = primaryParent.getQName().getLocalName();
-                }
+            @SuppressWarnings("unchecked")
+            final Collection<QName> propertyQNames = (Collection<QName>) itemObj.get(ITEM_PROPERTY_QNAMES);
+            propertyQNames.forEach(propertyQName -> this.lookupQNameIndex(propertyQName, qnames, qnameIndices, namespaces));
+        }
 
-                archiver = DefaultTypeConverter.INSTANCE.convert(String.class, archivedItemProperties.get(ContentModel.PROP_ARCHIVED_BY));
-                archivedOn = DefaultTypeConverter.INSTANCE.convert(Date.class, archivedItemProperties.get(ContentModel.PROP_ARCHIVED_DATE));
-                originalParentAssoc = DefaultTypeConverter.INSTANCE.convert(ChildAssociationRef.class,
-                        archivedItemProperties.get(ContentModel.PROP_ARCHIVED_ORIGINAL_PARENT_ASSOC));
+        final Map<String, Object> tables = new HashMap<>();
+        tables.put("users", users);
+        tables.put("paths", paths);
+        tables.put("qnames", qnames);
+        // keyed by full QName string as used by TemplateNode properties
+        tables.put("qnameIndices", qnameIndices);
+        tables.put("namespaces", namespaces);
+        return tables;
+    }
 
-                displayPathBuilder.insert(0, parentName);
-                displayPathBuilder.insert(0, '/');
-            }
-            else
+    protected void collectNestedItems(final List<Map<String, Object>> items, final List<Map<String, Object>> allItems)
+    {
+        for (final Map<String, Object> itemObj : items)
+        {
+            allItems.add(itemObj);
+
+            @SuppressWarnings("unchecked")
+            final List<Map<String, Object>> children = (List<Map<String, Object>>) itemObj.get(ITEM_CHILDREN);
+            if (children != null)
             {
-                parentRef = null;
+                this.collectNestedItems(children, allItems);
             }
-            previousNode = parentRef;
         }
+    }
 
-        Map<String, Object> modifierObj = userObjByUserName.get(modifier);
-        if (modifierObj == null)
+    protected Integer lookupQNameIndex(final QName qname, final List<String> qnames, final Map<String, Integer> qnameIndices,
+            final Map<String, String> namespaces)
+    {
+        Integer index = qnameIndices.get(qname.toString());
+        if (index == null)
         {
-            modifierObj = this.buildUserObject(modifier);
-            userObjByUserName.put(modifier, modifierObj);
+            final String prefixString = qname.toPrefixString(this.namespaceService);
+            final int colonIdx = prefixString.indexOf(':');
+            if (colonIdx != -1)
+            {
+                namespaces.put(prefixString.substring(0, colonIdx), qname.getNamespaceURI());
+            }
+            index = lookupIndex(qnames, qnameIndices, qname.toString(), prefixString);
         }
+        return index;
+    }
 
-        Map<String, Object> archiverObj = userObjByUserName.get(archiver);
-        if (archiverObj == null)
+    protected static <T> Integer lookupIndex(final List<T> table, final Map<String, Integer> indices, final String key, final T value)
+    {
+        Integer index = indices.get(key);
+        if (index == null)
         {
-            archiverObj = this.buildUserObject(modifier);
-            userObjByUserName.put(archiver, archiverObj);
+            index = Integer.valueOf(table.size());
+            table.add(value);
+            indices.put(key, index);
         }
+        return index;
+    }
 
-        final NodeRef originalParent = originalParentAssoc != null ? originalParentAssoc.getParentRef() : null;
-        if (originalParent != null && this.nodeService.exists(originalParent))
-        {
-            final Map<QName, Serializable> parentProperties = this.nodeService.getProperties(originalParent);
-            final String parentName = DefaultTypeConverter.INSTANCE.convert(String.class, parentProperties.get(ContentModel.PROP_NAME));
-            displayPathBuilder.insert(0, parentName);
-            displayPathBuilder.insert(0, '/');
+    /**
+     * Attempts to answer a query for archived items from an in-memory index instead of a SOLR query. This default implementation does
+     * not support any index.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNodes
+     *            the archive context nodes to query
+     * @param pageSize
+     *            the size of the page to retrieve
+     * @param startIndex
+     *            the index of the first item of the page to retrieve
+     * @param model
+     *            the model to fill
+     * @param paginationModel
+     *            the pagination model to fill
+     * @return {@code true} if the query has been answered from an index, {@code false} if it needs to be executed via SOLR
+     */
+    protected boolean executeIndexedQuery(final WebScriptRequest req, final List<NodeRef> archiveContextNodes, final int pageSize,
+            final int startIndex, final Map<String, Object> model, final Map<String, Object> paginationModel)
+    {
+        return false;
+    }
+
+    /**
+     * Retrieves a page of archived items from a result snapshot, i.e. the ordered list of the database IDs of all matching items at the
+     * time of the first request of a paging session. Subsequent pages are sliced from the snapshot without running the query again, so
+     * items do not shift between pages when items are archived, purged or restored in between. If the snapshot referenced by the request
+     * has expired (or belongs to another user), a new snapshot is taken and its token is returned instead. The number of found items
+     * reflects the total number of matching items when the snapshot was taken, which may exceed the number of items in the snapshot if it
+     * had to be truncated to the configured maximum size.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNodes
+     *            the archive context nodes to query
+     * @param snapshotToken
+     *            the token of the snapshot to page through, or {@code null} if a new snapshot should be taken
+     * @param pageSize
+     *            the size of the page to retrieve
+     * @param startIndex
+     *            the index of the first item of the page to retrieve
+     * @param model
+     *            the model to fill
+     * @param paginationModel
+     *            the pagination model to fill
+     */
+    protected void executeSnapshotQuery(final WebScriptRequest req, final List<NodeRef> archiveContextNodes, final String snapshotToken,
+            final int pageSize, final int startIndex, final Map<String, Object> model, final Map<String, Object> paginationModel)
+    {
+        final String user = AuthenticationUtil.getFullyAuthenticatedUser();
+
+        String effectiveSnapshotToken = snapshotToken;
+        ResultSnapshot snapshot = snapshotToken != null && !snapshotToken.isEmpty() ? this.snapshotCache.get(snapshotToken) : null;
+        if (snapshot != null && !snapshot.getUser().equals(user))
+        {
+            LOGGER.debug("Snapshot {} does not belong to user {}", snapshotToken, user);
+            snapshot = null;
+        }
+
+        if (snapshot == null)
+        {
+            LOGGER.debug("Snapshot {} has expired or has not been taken yet - taking new snapshot", snapshotToken);
+
+            final Pair<List<NodeRef>, Long> collectedNodes = this.collectSnapshotNodes(req, archiveContextNodes, this.snapshotMaxItems);
+            final List<NodeRef> snapshotNodes = collectedNodes.getFirst();
+            this.nodeDAO.cacheNodes(snapshotNodes);
+
+            final long[] nodeIds = new long[snapshotNodes.size()];
+            int nodeCount = 0;
+            for (final NodeRef snapshotNode : snapshotNodes)
+            {
+                final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(snapshotNode);
+                if (nodePair != null)
+                {
+                    nodeIds[nodeCount++] = nodePair.getFirst().longValue();
+                }
+            }
+
+            final long numberFound = Math.max(collectedNodes.getSecond().longValue(), snapshotNodes.size());
+            snapshot = new ResultSnapshot(user, nodeCount < nodeIds.length ? Arrays.copyOf(nodeIds, nodeCount) : nodeIds,
+                    numberFound - snapshotNodes.size() + nodeCount, numberFound > snapshotNodes.size());
+            effectiveSnapshotToken = GUID.generate();
+            this.snapshotCache.put(effectiveSnapshotToken, snapshot);
+
+            LOGGER.debug("Took snapshot {} of {} items ({} found)", effectiveSnapshotToken, nodeCount, numberFound);
+        }
+
+        final long[] nodeIds = snapshot.getNodeIds();
+        final int fromIndex = Math.min(startIndex, nodeIds.length);
+        final int toIndex = (int) Math.min((long) fromIndex + pageSize, nodeIds.length);
+
+        final List<Long> pageNodeIds = new ArrayList<>(toIndex - fromIndex);
+        for (int idx = fromIndex; idx < toIndex; idx++)
+        {
+            pageNodeIds.add(Long.valueOf(nodeIds[idx]));
+        }
+        this.nodeDAO.cacheNodesById(pageNodeIds);
+
+        final List<NodeRef> pageNodes = new ArrayList<>();
+        for (final Long pageNodeId : pageNodeIds)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(pageNodeId);
+            // items purged / restored since the snapshot was taken are omitted instead of shifting the subsequent pages
+            if (nodePair != null && StoreRef.PROTOCOL_ARCHIVE.equals(nodePair.getSecond().getStoreRef().getProtocol()))
+            {
+                pageNodes.add(nodePair.getSecond());
+            }
+        }
+
+        final List<Map<String, Object>> results = this.processResults(pageNodes, this.createEnrichmentContext(req));
+        model.put(RESPONSE_RESULTS, results);
+        this.putPaginationCounts(paginationModel, pageNodes.size(), results, snapshot.getNumberFound());
+        paginationModel.put(RESPONSE_SNAPSHOT_TOKEN, effectiveSnapshotToken);
+        paginationModel.put(RESPONSE_SNAPSHOT_TRUNCATED, Boolean.valueOf(snapshot.isTruncated()));
+    }
+
+    /**
+     * Collects the ordered list of all archived items matching a request for a new result snapshot. As a snapshot is only taken once per
+     * paging session, multiple archive contexts are simply queried in sequence.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNodes
+     *            the archive context nodes to query
+     * @param maxItems
+     *            the maximum number of items to collect
+     * @return the ordered list of matching archived items (limited to the maximum number of items) and the total number of matching
+     *         archived items
+     */
+    protected Pair<List<NodeRef>, Long> collectSnapshotNodes(final WebScriptRequest req, final List<NodeRef> archiveContextNodes,
+            final int maxItems)
+    {
+        final SortField sortField = this.getSortField(req);
+        final boolean sortAscending = this.isSortAscending(req, sortField);
+
+        long numberFound = 0;
+        final List<Pair<NodeRef, Comparable<Object>>> candidates = new ArrayList<>();
+        for (final NodeRef archiveContextNode : archiveContextNodes)
+        {
+            this.checkNotCancelled();
+
+            final SearchParameters sp = this.prepareSearchParameters(req, archiveContextNode, maxItems, 0);
+            sp.addSort(this.getSortFieldName(sortField, this.isTopLevelQuery(req)), sortAscending);
+            final Predicate<NodeRef> deltaFilter = this.getTransactionDeltaFilter(req, archiveContextNode);
+            final ArchiveContextResults contextResults = this.queryArchiveContext(sp, sortField, sortAscending, deltaFilter);
+            // total number of matches as reported by the index, not just the number of candidates up to the maximum
+            numberFound += contextResults.getNumberFound();
+            candidates.addAll(contextResults.getCandidates());
+        }
+
+        if (archiveContextNodes.size() > 1)
+        {
+            final Comparator<Comparable<Object>> valueComparator = Comparator.nullsLast(
+                    sortAscending ? Comparator.<Comparable<Object>> naturalOrder() : Comparator.<Comparable<Object>> reverseOrder());
+            candidates.sort((candidateA, candidateB) -> valueComparator.compare(candidateA.getSecond(), candidateB.getSecond()));
+        }
+
+        final List<NodeRef> nodes = new ArrayList<>();
+        for (int idx = 0, max = Math.min(candidates.size(), maxItems); idx < max; idx++)
+        {
+            nodes.add(candidates.get(idx).getFirst());
+        }
+        return new Pair<>(nodes, Long.valueOf(Math.max(numberFound, candidates.size())));
+    }
+
+    /**
+     * Queries multiple archive contexts (e.g. the archive stores of multiple base stores) concurrently and merges the individual results
+     * into a single page ordered by the requested sort field. Each archive context is queried for the full range up to the end of the
+     * requested page so that the merged page is exact.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNodes
+     *            the archive context nodes to query
+     * @param pageSize
+     *            the size of the page to retrieve
+     * @param startIndex
+     *            the index of the first item of the page to retrieve
+     * @param model
+     *            the model to fill
+     * @param paginationModel
+     *            the pagination model to fill
+     */
+    protected void executeFanOutQueries(final WebScriptRequest req, final List<NodeRef> archiveContextNodes, final int pageSize,
+            final int startIndex, final Map<String, Object> model, final Map<String, Object> paginationModel)
+    {
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+        final SortField sortField = this.getSortField(req);
+        final boolean sortAscending = this.isSortAscending(req, sortField);
+
+        final List<Future<ArchiveContextResults>> pendingResults = new ArrayList<>();
+        final List<ArchiveContextResults> contextResults = new ArrayList<>();
+
+        for (final NodeRef archiveContextNode : archiveContextNodes)
+        {
+            // request parameter handling (and potential lookups) should remain in the request thread
+            final SearchParameters sp = this.prepareSearchParameters(req, archiveContextNode, startIndex + pageSize, 0);
+            sp.addSort(this.getSortFieldName(sortField, this.isTopLevelQuery(req)), sortAscending);
+            final Predicate<NodeRef> deltaFilter = this.getTransactionDeltaFilter(req, archiveContextNode);
+
+            boolean submitted = false;
+            if (this.fanOutExecutor != null)
+            {
+                final Callable<ArchiveContextResults> queryWork = () -> AuthenticationUtil.runAs(() -> {
+                    return this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+                        return this.queryArchiveContext(sp, sortField, sortAscending, deltaFilter);
+                    }, true, true);
+                }, runAsUser);
+
+                try
+                {
+                    pendingResults.add(this.fanOutExecutor.submit(queryWork));
+                    submitted = true;
+                }
+                catch (final RejectedExecutionException rejEx)
+                {
+                    LOGGER.debug("Fan-out query for {} rejected by executor - executing in request thread", archiveContextNode);
+                }
+            }
+
+            if (!submitted)
+            {
+                contextResults.add(this.queryArchiveContext(sp, sortField, sortAscending, deltaFilter));
+            }
+        }
+
+        for (final Future<ArchiveContextResults> pendingResult : pendingResults)
+        {
+            try
+            {
+                contextResults.add(pendingResult.get());
+            }
+            catch (final InterruptedException iex)
+            {
+                Thread.currentThread().interrupt();
+                throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Interrupted while waiting for archive query results",
+                        iex);
+            }
+            catch (final ExecutionException exEx)
+            {
+                final Throwable cause = exEx.getCause();
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException) cause;
+                }
+                throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Failed to query archive context", cause);
+            }
+        }
+
+        long numberFound = 0;
+        final List<Pair<NodeRef, Comparable<Object>>> mergedCandidates = new ArrayList<>();
+        for (final ArchiveContextResults contextResult : contextResults)
+        {
+            numberFound += contextResult.getNumberFound();
+            mergedCandidates.addAll(contextResult.getCandidates());
+        }
+        // each context result is already ordered, so the (Tim)sort effectively only merges the pre-sorted runs
+        final Comparator<Comparable<Object>> valueComparator = Comparator
+                .nullsLast(sortAscending ? Comparator.<Comparable<Object>> naturalOrder() : Comparator.<Comparable<Object>> reverseOrder());
+        mergedCandidates.sort((candidateA, candidateB) -> valueComparator.compare(candidateA.getSecond(), candidateB.getSecond()));
+
+        final List<NodeRef> pageNodes = new ArrayList<>();
+        for (int idx = startIndex, max = Math.min(mergedCandidates.size(), startIndex + pageSize); idx < max; idx++)
+        {
+            pageNodes.add(mergedCandidates.get(idx).getFirst());
+        }
+
+        final List<Map<String, Object>> results = this.processResults(pageNodes, this.createEnrichmentContext(req));
+        model.put(RESPONSE_RESULTS, results);
+        this.putPaginationCounts(paginationModel, pageNodes.size(), results, numberFound);
+    }
+
+    /**
+     * Executes the query for a single archive context as part of a fan-out query.
+     *
+     * @param sp
+     *            the search parameters for the archive context
+     * @param sortField
+     *            the field by which the results are sorted
+     * @param sortAscending
+     *            {@code true} if the results are sorted in ascending order
+     * @param deltaFilter
+     *            the filter to evaluate changes not yet tracked by the index against, or {@code null} if the results should not be
+     *            merged with these changes
+     * @return the ordered candidates and total number of matches in the archive context
+     */
+    protected ArchiveContextResults queryArchiveContext(final SearchParameters sp, final SortField sortField, final boolean sortAscending,
+            final Predicate<NodeRef> deltaFilter)
+    {
+        final ResultSet resultSet = this.searchService.query(sp);
+        try
+        {
+            ArchiveContextResults results = this.toArchiveContextResults(resultSet, sortField);
+            if (deltaFilter != null)
+            {
+                results = this.applyTransactionDelta(resultSet, results, sp.getStores().get(0), deltaFilter, sortField, sortAscending, true,
+                        sp.getMaxItems());
+            }
+            return results;
+        }
+        finally
+        {
+            resultSet.close();
+        }
+    }
+
+    protected ArchiveContextResults toArchiveContextResults(final ResultSet resultSet, final SortField sortField)
+    {
+        final List<NodeRef> resultNodes = resultSet.getNodeRefs();
+        if (this.nodeDAO != null)
+        {
+            // sort values of all results are read one by one, so bulk-load the nodes and their properties first
+            this.nodeDAO.cacheNodes(resultNodes);
+        }
+
+        final List<Pair<NodeRef, Comparable<Object>>> candidates = new ArrayList<>();
+        resultNodes.forEach((result) -> {
+            candidates.add(new Pair<>(result, this.getSortValue(result, sortField)));
+        });
+        return new ArchiveContextResults(candidates, resultSet.getNumberFound());
+    }
+
+    /**
+     * Determines the filter against which to evaluate the changes in an archive context not yet tracked by the index if the request
+     * should be processed with hybrid consistency.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNode
+     *            the archive context node to query
+     * @return the filter or {@code null} if the request should not be processed with hybrid consistency
+     */
+    protected Predicate<NodeRef> getTransactionDeltaFilter(final WebScriptRequest req, final NodeRef archiveContextNode)
+    {
+        final String consistencyParam = this.getParameter(req, PARAM_CONSISTENCY);
+
+        final boolean hybrid;
+        if (consistencyParam != null && !consistencyParam.isEmpty())
+        {
+            if (!CONSISTENCY_HYBRID.equalsIgnoreCase(consistencyParam) && !CONSISTENCY_EVENTUAL.equalsIgnoreCase(consistencyParam))
+            {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unsupported consistency " + consistencyParam);
+            }
+            hybrid = CONSISTENCY_HYBRID.equalsIgnoreCase(consistencyParam);
+        }
+        else
+        {
+            hybrid = this.hybridConsistencyByDefault;
+        }
+
+        Predicate<NodeRef> deltaFilter = null;
+        if (hybrid && this.transactionDelta != null && this.nodeDAO != null)
+        {
+            deltaFilter = this.buildTransactionDeltaFilter(req, archiveContextNode);
+        }
+        return deltaFilter;
+    }
+
+    /**
+     * Builds the filter against which to evaluate the changes in an archive context not yet tracked by the index. The filter must
+     * replicate the conditions of the {@link #prepareSearchParameters(WebScriptRequest, NodeRef, int, int) query} using data from the
+     * database only. The base implementation does not support hybrid consistency.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNode
+     *            the archive context node to query
+     * @return the filter or {@code null} if the conditions of the request cannot be evaluated against the database
+     */
+    protected Predicate<NodeRef> buildTransactionDeltaFilter(final WebScriptRequest req, final NodeRef archiveContextNode)
+    {
+        return null;
+    }
+
+    /**
+     * Merges the changes in an archive store not yet tracked by the index into a window of eventually consistent results. Items that have
+     * been purged, restored or no longer match the filter are removed from the window, and items that have been archived (or changed to
+     * match the filter) are inserted according to the sort order if their sort value falls within the window. The number of found items is
+     * adjusted for removed items within the window and for inserted items archived after the last indexed transaction. Since the index is
+     * not aware of these changes, the windows of adjacent pages may overlap or skip an item until the index has caught up.
+     *
+     * @param resultSet
+     *            the result set of the eventually consistent query
+     * @param results
+     *            the results of the eventually consistent query
+     * @param archiveStore
+     *            the archive store
+     * @param deltaFilter
+     *            the filter to evaluate changed nodes against
+     * @param sortField
+     *            the field by which the results are sorted
+     * @param sortAscending
+     *            {@code true} if the results are sorted in ascending order
+     * @param firstWindow
+     *            {@code true} if the window of results starts with the first result of the query
+     * @param windowSize
+     *            the maximum number of results in the window
+     * @return the merged results
+     */
+    protected ArchiveContextResults applyTransactionDelta(final ResultSet resultSet, final ArchiveContextResults results,
+            final StoreRef archiveStore, final Predicate<NodeRef> deltaFilter, final SortField sortField, final boolean sortAscending,
+            final boolean firstWindow, final int windowSize)
+    {
+        // only SOLR result sets tell us up to which transaction the index is consistent
+        final ArchivedItemsTransactionDelta.Delta delta = resultSet instanceof SolrJSONResultSet
+                ? this.transactionDelta.getDelta(archiveStore, ((SolrJSONResultSet) resultSet).getLastIndexedTxId())
+                : null;
+
+        ArchiveContextResults mergedResults = results;
+        if (delta != null)
+        {
+            final Comparator<Comparable<Object>> valueComparator = Comparator.nullsLast(
+                    sortAscending ? Comparator.<Comparable<Object>> naturalOrder() : Comparator.<Comparable<Object>> reverseOrder());
+
+            final List<NodeRef> windowNodes = new ArrayList<>();
+            results.getCandidates().forEach(candidate -> windowNodes.add(candidate.getFirst()));
+            this.nodeDAO.cacheNodes(windowNodes);
+
+            long numberFound = results.getNumberFound();
+            final Set<NodeRef> nodesInWindow = new HashSet<>();
+            final List<Pair<NodeRef, Comparable<Object>>> candidates = new ArrayList<>();
+            for (final Pair<NodeRef, Comparable<Object>> candidate : results.getCandidates())
+            {
+                final NodeRef node = candidate.getFirst();
+                final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(node);
+                // purged / restored nodes no longer exist in the archive store
+                final boolean removed = nodePair == null || delta.getDeletedNodes().contains(node)
+                        || (delta.getChangedNodes().contains(node) && !this.matchesTransactionDeltaFilter(node, deltaFilter));
+                if (removed)
+                {
+                    numberFound--;
+                }
+                else
+                {
+                    nodesInWindow.add(node);
+                    candidates.add(candidate);
+                }
+            }
+
+            final Comparable<Object> lowerBound = !firstWindow && !results.getCandidates().isEmpty()
+                    ? results.getCandidates().get(0).getSecond()
+                    : null;
+            // a window that is not full is the last window of the query, so any later sort value belongs to it
+            final boolean upperBounded = results.getCandidates().size() >= windowSize;
+            final Comparable<Object> upperBound = upperBounded ? results.getCandidates().get(results.getCandidates().size() - 1).getSecond()
+                    : null;
+
+            final List<NodeRef> changedNodes = new ArrayList<>(delta.getChangedNodes());
+            changedNodes.removeAll(nodesInWindow);
+            this.nodeDAO.cacheNodes(changedNodes);
+            for (final NodeRef node : changedNodes)
+            {
+                if (this.matchesTransactionDeltaFilter(node, deltaFilter))
+                {
+                    final Comparable<Object> sortValue = this.getSortValue(node, sortField);
+                    final boolean inWindow = (firstWindow || valueComparator.compare(sortValue, lowerBound) >= 0)
+                            && (!upperBounded || valueComparator.compare(sortValue, upperBound) <= 0);
+                    if (inWindow)
+                    {
+                        candidates.add(new Pair<>(node, sortValue));
+                    }
+
+                    Date archivedDate = DefaultTypeConverter.INSTANCE.convert(Date.class,
+                            this.nodeService.getProperty(node, ContentModel.PROP_ARCHIVED_DATE));
+                    if (archivedDate == null)
+                    {
+                        // descendants of archived roots
+                        archivedDate = DefaultTypeConverter.INSTANCE.convert(Date.class,
+                                this.nodeService.getProperty(node, BetterTrashManagementModel.PROP_ARCHIVED_DATE));
+                    }
+                    if (archivedDate != null && archivedDate.getTime() > delta.getLastIndexedCommitTime())
+                    {
+                        numberFound++;
+                    }
+                }
+            }
+
+            candidates.sort((candidateA, candidateB) -> valueComparator.compare(candidateA.getSecond(), candidateB.getSecond()));
+            if (candidates.size() > windowSize)
+            {
+                candidates.subList(windowSize, candidates.size()).clear();
+            }
+
+            mergedResults = new ArchiveContextResults(candidates, Math.max(numberFound, candidates.size()));
+        }
+        return mergedResults;
+    }
+
+    protected boolean matchesTransactionDeltaFilter(final NodeRef node, final Predicate<NodeRef> deltaFilter)
+    {
+        final boolean matches = this.nodeService.exists(node) && deltaFilter.test(node)
+                && this.permissionService.hasPermission(node, PermissionService.READ) == AccessStatus.ALLOWED;
+        return matches;
+    }
+
+    abstract protected SearchParameters prepareSearchParameters(final WebScriptRequest req, final NodeRef archiveContextNode,
+            final int pageSize, final int startIndex);
+
+    /**
+     * Checks whether a request only queries top-level archived items, i.e. the roots of archived trees.
+     *
+     * @param req
+     *            the request being processed
+     * @return {@code true} if the request only queries top-level archived items, {@code false} otherwise
+     */
+    abstract protected boolean isTopLevelQuery(final WebScriptRequest req);
+
+    protected List<Map<String, Object>> processResults(final ResultSet resultSet)
+    {
+        return this.processResults(resultSet.getNodeRefs());
+    }
+
+    protected List<Map<String, Object>> processResults(final List<NodeRef> resultNodes)
+    {
+        return this.processResults(resultNodes, this.createEnrichmentContext());
+    }
+
+    protected List<Map<String, Object>> processResults(final List<NodeRef> resultNodes, final EnrichmentContext context)
+    {
+        final List<Map<String, Object>> results = new ArrayList<>();
+        final Map<NodeRef, List<ChildAssociationRef>> renditionsByNode = this.lookupRenditions(resultNodes);
+
+        for (final NodeRef result : resultNodes)
+        {
+            // enriching results is the most expensive part, so stop as soon as the client is no longer interested
+            this.checkNotCancelled();
+
+            final Map<String, Object> itemObj = this.buildResultEntry(result, context);
+            if (itemObj != null)
+            {
+                if (this.renditionService != null)
+                {
+                    final List<String> renditionNames = new ArrayList<>();
+                    renditionsByNode.getOrDefault(result, Collections.emptyList())
+                            .forEach(rendition -> renditionNames.add(rendition.getQName().getLocalName()));
+                    itemObj.put(ITEM_RENDITIONS, renditionNames);
+                }
+                results.add(itemObj);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Puts the record counts of a page of results into the pagination model. Archived items dropped when the results are built, i.e.
+     * items of trees currently being purged in chunks or items rejected by the {@link #getResultFilter(WebScriptRequest) result filter},
+     * are discounted from both the number of records of the page and the total number of matches.
+     *
+     * @param paginationModel
+     *            the pagination model to fill
+     * @param pageNodeCount
+     *            the number of archived items of the page before building the results
+     * @param results
+     *            the results built for the page
+     * @param numberFound
+     *            the total number of matches including the archived items of the page
+     */
+    protected void putPaginationCounts(final Map<String, Object> paginationModel, final int pageNodeCount,
+            final List<Map<String, Object>> results, final long numberFound)
+    {
+        final int droppedEntries = pageNodeCount - results.size();
+        paginationModel.put(RESPONSE_TOTAL_RECORDS, Integer.valueOf(results.size()));
+        paginationModel.put(RESPONSE_NUMBER_FOUND, Long.valueOf(Math.max(numberFound - droppedEntries, results.size())));
+    }
 
-            final String parentPath = this.nodeService.getPath(originalParent).toDisplayPath(this.nodeService, this.permissionService);
-            displayPathBuilder.insert(0, parentPath);
+    /**
+     * Looks up the renditions of all the archived items of a page of results at once.
+     *
+     * @param resultNodes
+     *            the archived items
+     * @return the renditions of the archived items mapped by node
+     */
+    protected Map<NodeRef, List<ChildAssociationRef>> lookupRenditions(final List<NodeRef> resultNodes)
+    {
+        final Map<NodeRef, List<ChildAssociationRef>> renditionsByNode;
+        if (this.renditionService instanceof ArchiveSupportingRenditionServiceImpl)
+        {
+            renditionsByNode = ((ArchiveSupportingRenditionServiceImpl) this.renditionService).getRenditions(resultNodes);
+        }
+        else if (this.renditionService != null)
+        {
+            renditionsByNode = new HashMap<>();
+            resultNodes.forEach(node -> renditionsByNode.put(node, this.renditionService.getRenditions(node)));
         }
         else
         {
-            // parent no longer exists, so we include marker to avoid misunderstanding relative path with full path
-            displayPathBuilder.insert(0, "?");
+            renditionsByNode = Collections.emptyMap();
+        }
+        return renditionsByNode;
+    }
+
+    /**
+     * Creates the context for enriching the results of the current request.
+     *
+     * @return the enrichment context
+     */
+    protected EnrichmentContext createEnrichmentContext()
+    {
+        return new EnrichmentContext(AuthenticationUtil.getRunAsUser(), this.isRunAsAdministrator(), null);
+    }
+
+    /**
+     * Creates the context for enriching the results of a specific request, applying the {@link #getResultFilter(WebScriptRequest) result
+     * filter} of the request.
+     *
+     * @param req
+     *            the request being processed
+     * @return the enrichment context
+     */
+    protected EnrichmentContext createEnrichmentContext(final WebScriptRequest req)
+    {
+        return new EnrichmentContext(AuthenticationUtil.getRunAsUser(), this.isRunAsAdministrator(), this.getResultFilter(req));
+    }
+
+    /**
+     * Determines the filter to apply to the results of a request when building the result entries, e.g. to remove false positives of
+     * approximate query criteria. This default implementation does not filter any results.
+     *
+     * @param req
+     *            the request being processed
+     * @return the filter to apply or {@code null} if all results should be included
+     */
+    protected Predicate<NodeRef> getResultFilter(final WebScriptRequest req)
+    {
+        return null;
+    }
+
+    /**
+     * Checks whether the current user is the system user or - provided an authority service has been set - an administrator.
+     *
+     * @return {@code true} if the current user is the system user or an administrator, {@code false} otherwise
+     */
+    protected boolean isRunAsAdministrator()
+    {
+        return AuthenticationUtil.isRunAsUserTheSystemUser()
+                || (this.authorityService != null && this.authorityService.isAdminAuthority(AuthenticationUtil.getRunAsUser()));
+    }
+
+    /**
+     * Builds the model entry for a single archived item.
+     *
+     * @param result
+     *            the archived item
+     * @param context
+     *            the context of enriching the results of the current request
+     * @return the model entry or {@code null} if the archived item is rejected by the result filter of the context or part of an archived
+     *         tree currently being purged
+     */
+    protected Map<String, Object> buildResultEntry(final NodeRef result, final EnrichmentContext context)
+    {
+        if (context.resultFilter != null && !context.resultFilter.test(result))
+        {
+            // e.g. a false positive of an approximate query criterion
+            return null;
+        }
+
+        final Map<QName, Serializable> resultProperties = this.nodeService.getProperties(result);
+
+        final String modifier = DefaultTypeConverter.INSTANCE.convert(String.class, resultProperties.get(ContentModel.PROP_MODIFIER));
+        String archiver = DefaultTypeConverter.INSTANCE.convert(String.class, resultProperties.get(ContentModel.PROP_ARCHIVED_BY));
+        Date archivedOn = DefaultTypeConverter.INSTANCE.convert(Date.class, resultProperties.get(ContentModel.PROP_ARCHIVED_DATE));
+        ChildAssociationRef originalParentAssoc = DefaultTypeConverter.INSTANCE.convert(ChildAssociationRef.class,
+                resultProperties.get(ContentModel.PROP_ARCHIVED_ORIGINAL_PARENT_ASSOC));
+        String originalDisplayPath = DefaultTypeConverter.INSTANCE.convert(String.class,
+                resultProperties.get(BetterTrashManagementModel.PROP_ORIGINAL_DISPLAY_PATH));
+
+        final StringBuilder displayPathBuilder = new StringBuilder(1024);
+
+        NodeRef archivedRoot = archiver != null ? result : null;
+        NodeRef previousNode = result;
+        while (archiver == null && previousNode != null)
+        {
+            final ChildAssociationRef primaryParent = this.nodeService.getPrimaryParent(previousNode);
+            final NodeRef parentRef;
+            if (primaryParent != null)
+            {
+                parentRef = primaryParent.getParentRef();
+
+                final Map<QName, Serializable> archivedItemProperties;
+                final String parentName;
+
+                if (this.hasReadPermission(parentRef, context))
+                {
+                    archivedItemProperties = this.nodeService.getProperties(parentRef);
+                    parentName = DefaultTypeConverter.INSTANCE.convert(String.class, archivedItemProperties.get(ContentModel.PROP_NAME));
+                }
+                else
+                {
+                    // ancestors are shared by many results, so read each one only once per request
+                    archivedItemProperties = context.systemReadPropertiesByNode.computeIfAbsent(parentRef,
+                            ancestor -> AuthenticationUtil.runAsSystem(() -> {
+                                final Map<QName, Serializable> properties;
+                                if (this.nodeService.hasAspect(ancestor, ContentModel.ASPECT_ARCHIVED))
+                                {
+                                    properties = this.nodeService.getProperties(ancestor);
+                                }
+                                else
+                                {
+                                    properties = Collections.emptyMap();
+                                }
+                                return properties;
+                            }));
+
+                    parentName = primaryParent.getQName().getLocalName();
+                }
+
+                archiver = DefaultTypeConverter.INSTANCE.convert(String.class, archivedItemProperties.get(ContentModel.PROP_ARCHIVED_BY));
+                archivedOn = DefaultTypeConverter.INSTANCE.convert(Date.class, archivedItemProperties.get(ContentModel.PROP_ARCHIVED_DATE));
+                originalParentAssoc = DefaultTypeConverter.INSTANCE.convert(ChildAssociationRef.class,
+                        archivedItemProperties.get(ContentModel.PROP_ARCHIVED_ORIGINAL_PARENT_ASSOC));
+                originalDisplayPath = DefaultTypeConverter.INSTANCE.convert(String.class,
+                        archivedItemProperties.get(BetterTrashManagementModel.PROP_ORIGINAL_DISPLAY_PATH));
+
+                displayPathBuilder.insert(0, parentName);
+                displayPathBuilder.insert(0, '/');
+
+                if (archiver != null)
+                {
+                    archivedRoot = parentRef;
+                }
+            }
+            else
+            {
+                parentRef = null;
+            }
+            previousNode = parentRef;
+        }
+
+        if (archivedRoot != null && context.purgeInProgressByArchivedRoot.computeIfAbsent(archivedRoot,
+                root -> AuthenticationUtil.runAsSystem(
+                        () -> Boolean.valueOf(this.nodeService.hasAspect(root, BetterTrashManagementModel.ASPECT_PURGE_IN_PROGRESS))))
+                .booleanValue())
+        {
+            // archived tree is being purged in chunks and should not be visible anymore
+            return null;
+        }
+
+        Map<String, Object> modifierObj = context.userObjByUserName.get(modifier);
+        if (modifierObj == null)
+        {
+            modifierObj = this.buildUserObject(modifier);
+            context.userObjByUserName.put(modifier, modifierObj);
+        }
+
+        Map<String, Object> archiverObj = context.userObjByUserName.get(archiver);
+        if (archiverObj == null)
+        {
+            archiverObj = this.buildUserObject(archiver);
+            context.userObjByUserName.put(archiver, archiverObj);
+        }
+
+        final String relativePath = displayPathBuilder.toString();
+        final String originalParentPath;
+        final NodeRef originalParent = originalParentAssoc != null ? originalParentAssoc.getParentRef() : null;
+        if (originalDisplayPath != null)
+        {
+            // recorded at the time of archiving
+            originalParentPath = originalDisplayPath;
+        }
+        else if (originalParent != null)
+        {
+            // items archived before the original display path was recorded
+            // existence is resolved only once per original parent as well
+            originalParentPath = context.originalParentPathByNode.computeIfAbsent(originalParent, parent -> {
+                final String parentPath;
+                if (this.nodeService.exists(parent))
+                {
+                    final Map<QName, Serializable> parentProperties = this.nodeService.getProperties(parent);
+                    final String parentName = DefaultTypeConverter.INSTANCE.convert(String.class,
+                            parentProperties.get(ContentModel.PROP_NAME));
+                    parentPath = this.toDisplayPath(this.nodeService.getPath(parent), context) + "/" + parentName;
+                }
+                else
+                {
+                    // parent no longer exists, so we include marker to avoid misunderstanding relative path with full path
+                    parentPath = "?";
+                }
+                return parentPath;
+            });
+        }
+        else
+        {
+            originalParentPath = "?";
         }
 
         final Map<String, Object> itemObj = new HashMap<>();
-        itemObj.put("modifier", modifierObj);
-        itemObj.put("archiver", archiverObj);
+        itemObj.put(ITEM_MODIFIER, modifierObj);
+        itemObj.put(ITEM_ARCHIVER, archiverObj);
         itemObj.put("archivedOn", archivedOn);
-        itemObj.put("node", result);
-        itemObj.put("displayPath", displayPathBuilder.toString());
+        itemObj.put(ITEM_NODE, result);
+        itemObj.put("displayPath", originalParentPath + relativePath);
+        itemObj.put(ITEM_ORIGINAL_PARENT_PATH, originalParentPath);
+        itemObj.put("relativePath", relativePath);
+        itemObj.put(ITEM_PROPERTY_QNAMES, resultProperties.keySet());
         return itemObj;
     }
 
+    /**
+     * Builds the display path of a path in the same way as {@link Path#toDisplayPath(NodeService, PermissionService)}, using the
+     * memoised permission checks of the current request.
+     *
+     * @param path
+     *            the path
+     * @param context
+     *            the context of enriching the results of the current request
+     * @return the display path
+     */
+    protected String toDisplayPath(final Path path, final EnrichmentContext context)
+    {
+        final StringBuilder displayPathBuilder = new StringBuilder(128);
+        // neither the root nor the node itself are part of the display path
+        for (int idx = 1, max = path.size() - 1; idx < max; idx++)
+        {
+            final Path.Element element = path.get(idx);
+            if (element instanceof Path.ChildAssocElement)
+            {
+                final ChildAssociationRef assocRef = ((Path.ChildAssocElement) element).getRef();
+                final NodeRef node = assocRef.getChildRef();
+
+                displayPathBuilder.append('/');
+                if (this.hasReadPermission(node, context))
+                {
+                    displayPathBuilder.append(this.nodeService.getProperty(node, ContentModel.PROP_NAME));
+                }
+                else
+                {
+                    displayPathBuilder.append(assocRef.getQName().getLocalName());
+                }
+            }
+        }
+        return displayPathBuilder.toString();
+    }
+
+    /**
+     * Checks whether the current user has read permission on a node. Within a request, decisions are memoised per ACL as most nodes of
+     * an (archived) tree share the same ACL, and checks are skipped completely for administrators.
+     *
+     * @param node
+     *            the node to check
+     * @param context
+     *            the context of enriching the results of the current request
+     * @return {@code true} if the current user may read the node
+     */
+    protected boolean hasReadPermission(final NodeRef node, final EnrichmentContext context)
+    {
+        final boolean allowed;
+        if (context.administrator)
+        {
+            allowed = true;
+        }
+        else
+        {
+            final String aclKey = this.getAclKey(node, context);
+            if (aclKey != null)
+            {
+                allowed = context.readAllowedByAclKey.computeIfAbsent(aclKey,
+                        key -> Boolean.valueOf(this.permissionService.hasPermission(node, PermissionService.READ) == AccessStatus.ALLOWED))
+                        .booleanValue();
+            }
+            else
+            {
+                allowed = this.permissionService.hasPermission(node, PermissionService.READ) == AccessStatus.ALLOWED;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Determines the key by which permission decisions for a node can be memoised within a request. Since the owner of a node is granted
+     * permissions independent of the ACL, ownership by the current user is part of the key.
+     *
+     * @param node
+     *            the node
+     * @param context
+     *            the context of enriching the results of the current request
+     * @return the key or {@code null} if decisions for the node cannot be memoised
+     */
+    protected String getAclKey(final NodeRef node, final EnrichmentContext context)
+    {
+        String aclKey = null;
+        if (this.nodeDAO != null)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(node);
+            final Long aclId = nodePair != null ? this.nodeDAO.getNodeAclId(nodePair.getFirst()) : null;
+            if (aclId != null)
+            {
+                Serializable owner = this.nodeDAO.getNodeProperty(nodePair.getFirst(), ContentModel.PROP_OWNER);
+                if (owner == null)
+                {
+                    owner = this.nodeDAO.getNodeProperty(nodePair.getFirst(), ContentModel.PROP_CREATOR);
+                }
+                final boolean owned = context.user.equals(DefaultTypeConverter.INSTANCE.convert(String.class, owner));
+                aclKey = owned ? aclId + "/owned" : String.valueOf(aclId);
+            }
+        }
+        return aclKey;
+    }
+
     protected Map<String, Object> buildUserObject(final String user)
     {
         Map<String, Object> modifierObj;
@@ -360,4 +1670,334 @@ public abstract class AbstractArchivedItemsRetrievalWebScript extends Declarativ
         value = value != null ? value.trim() : null;
         return value;
     }
+
+    /**
+     * Determines the field by which to sort the results of a request.
+     *
+     * @param req
+     *            the request being processed
+     * @return the sort field - defaults to {@link SortField#ARCHIVED_DATE the archive date}
+     * @throws WebScriptException
+     *             if the requested sort field is not supported, or is only supported for top-level archived items and the request is not
+     *             a top-level query
+     */
+    protected SortField getSortField(final WebScriptRequest req)
+    {
+        final String sortByParam = this.getParameter(req, PARAM_SORT_BY);
+        SortField sortField = SortField.ARCHIVED_DATE;
+        if (sortByParam != null && !sortByParam.isEmpty())
+        {
+            sortField = SortField.fromParameterValue(sortByParam);
+            if (sortField == null)
+            {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unsupported sort field " + sortByParam);
+            }
+
+            if (sortField == SortField.ARCHIVER && !this.isTopLevelQuery(req))
+            {
+                // only archived roots carry the archiver, so descendants could not be ordered in any meaningful way
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                        "Sort field " + sortByParam + " is only supported for top-level archived items");
+            }
+        }
+        return sortField;
+    }
+
+    /**
+     * Determines the sort direction for the results of a request.
+     *
+     * @param req
+     *            the request being processed
+     * @param sortField
+     *            the field by which to sort
+     * @return {@code true} if the results should be sorted in ascending order, {@code false} otherwise
+     */
+    protected boolean isSortAscending(final WebScriptRequest req, final SortField sortField)
+    {
+        final String sortAscParam = this.getParameter(req, PARAM_SORT_ASC);
+        final boolean sortAscending = sortAscParam != null && !sortAscParam.isEmpty() ? Boolean.parseBoolean(sortAscParam)
+                : sortField.isAscendingByDefault();
+        return sortAscending;
+    }
+
+    /**
+     * Determines the name of the index-backed field to use in a query for sorting.
+     *
+     * @param sortField
+     *            the field by which to sort
+     * @param topLevel
+     *            {@code true} if the query only matches top-level archived items, {@code false} otherwise
+     * @return the name of the field in the index
+     */
+    protected String getSortFieldName(final SortField sortField, final boolean topLevel)
+    {
+        final String sortFieldName;
+        switch (sortField)
+        {
+            case ARCHIVED_DATE:
+                // only the module's own archive date is set on non-root items (backfilled for items archived before its introduction)
+                sortFieldName = "@" + (topLevel ? ContentModel.PROP_ARCHIVED_DATE : BetterTrashManagementModel.PROP_ARCHIVED_DATE);
+                break;
+            case NAME:
+                sortFieldName = "@" + ContentModel.PROP_NAME;
+                break;
+            case SIZE:
+                sortFieldName = "@" + ContentModel.PROP_CONTENT + ".size";
+                break;
+            case MODIFIED:
+                sortFieldName = "@" + ContentModel.PROP_MODIFIED;
+                break;
+            case ARCHIVER:
+                sortFieldName = "@" + ContentModel.PROP_ARCHIVED_BY;
+                break;
+            default:
+                throw new IllegalStateException("Unsupported sort field " + sortField);
+        }
+        return sortFieldName;
+    }
+
+    /**
+     * Retrieves the value of an archived item by which it is sorted, e.g. in order to merge the sorted results of multiple queries.
+     *
+     * @param node
+     *            the archived item
+     * @param sortField
+     *            the field by which to sort
+     * @return the sort value
+     */
+    @SuppressWarnings("unchecked")
+    protected Comparable<Object> getSortValue(final NodeRef node, final SortField sortField)
+    {
+        final Comparable<?> sortValue;
+        switch (sortField)
+        {
+            case ARCHIVED_DATE:
+                final Serializable archivedDate = this.nodeService.getProperty(node, BetterTrashManagementModel.PROP_ARCHIVED_DATE);
+                sortValue = DefaultTypeConverter.INSTANCE.convert(Date.class,
+                        archivedDate != null ? archivedDate : this.nodeService.getProperty(node, ContentModel.PROP_ARCHIVED_DATE));
+                break;
+            case NAME:
+                final String name = DefaultTypeConverter.INSTANCE.convert(String.class,
+                        this.nodeService.getProperty(node, ContentModel.PROP_NAME));
+                sortValue = name != null ? name.toLowerCase(Locale.ENGLISH) : null;
+                break;
+            case SIZE:
+                final ContentData content = DefaultTypeConverter.INSTANCE.convert(ContentData.class,
+                        this.nodeService.getProperty(node, ContentModel.PROP_CONTENT));
+                sortValue = content != null ? Long.valueOf(content.getSize()) : null;
+                break;
+            case MODIFIED:
+                sortValue = DefaultTypeConverter.INSTANCE.convert(Date.class,
+                        this.nodeService.getProperty(node, ContentModel.PROP_MODIFIED));
+                break;
+            case ARCHIVER:
+                sortValue = DefaultTypeConverter.INSTANCE.convert(String.class,
+                        this.nodeService.getProperty(node, ContentModel.PROP_ARCHIVED_BY));
+                break;
+            default:
+                throw new IllegalStateException("Unsupported sort field " + sortField);
+        }
+        return (Comparable<Object>) sortValue;
+    }
+
+    /**
+     * The fields by which archived items can be sorted.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static enum SortField
+    {
+        ARCHIVED_DATE("archivedDate", false),
+        NAME("name", true),
+        SIZE("size", false),
+        MODIFIED("modified", false),
+        ARCHIVER("archiver", true);
+
+        private final String parameterValue;
+
+        private final boolean ascendingByDefault;
+
+        private SortField(final String parameterValue, final boolean ascendingByDefault)
+        {
+            this.parameterValue = parameterValue;
+            this.ascendingByDefault = ascendingByDefault;
+        }
+
+        /**
+         * @return the ascendingByDefault
+         */
+        public boolean isAscendingByDefault()
+        {
+            return this.ascendingByDefault;
+        }
+
+        /**
+         * Resolves a sort field from a request parameter value.
+         *
+         * @param parameterValue
+         *            the parameter value
+         * @return the sort field or {@code null} if the value does not denote a supported sort field
+         */
+        public static SortField fromParameterValue(final String parameterValue)
+        {
+            SortField match = null;
+            for (final SortField sortField : values())
+            {
+                if (sortField.parameterValue.equalsIgnoreCase(parameterValue))
+                {
+                    match = sortField;
+                }
+            }
+            return match;
+        }
+    }
+
+    /**
+     * Instances of this class hold the state memoised while enriching the results of a single request.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class EnrichmentContext
+    {
+
+        private final String user;
+
+        private final boolean administrator;
+
+        private final Predicate<NodeRef> resultFilter;
+
+        private final Map<String, Map<String, Object>> userObjByUserName = new HashMap<>();
+
+        private final Map<String, Boolean> readAllowedByAclKey = new HashMap<>();
+
+        private final Map<NodeRef, Map<QName, Serializable>> systemReadPropertiesByNode = new HashMap<>();
+
+        private final Map<NodeRef, Boolean> purgeInProgressByArchivedRoot = new HashMap<>();
+
+        private final Map<NodeRef, String> originalParentPathByNode = new HashMap<>();
+
+        protected EnrichmentContext(final String user, final boolean administrator, final Predicate<NodeRef> resultFilter)
+        {
+            this.user = user;
+            this.administrator = administrator;
+            this.resultFilter = resultFilter;
+        }
+
+        /**
+         * @return the number of entries memoised in this context
+         */
+        public int size()
+        {
+            return this.userObjByUserName.size() + this.readAllowedByAclKey.size() + this.systemReadPropertiesByNode.size()
+                    + this.purgeInProgressByArchivedRoot.size() + this.originalParentPathByNode.size();
+        }
+
+        /**
+         * Clears all entries memoised in this context.
+         */
+        public void clear()
+        {
+            this.userObjByUserName.clear();
+            this.readAllowedByAclKey.clear();
+            this.systemReadPropertiesByNode.clear();
+            this.purgeInProgressByArchivedRoot.clear();
+            this.originalParentPathByNode.clear();
+        }
+    }
+
+    /**
+     * Instances of this class hold the ordered database IDs of the archived items matching a query at the time the snapshot was taken,
+     * kept as a primitive array to minimise the footprint in the snapshot cache (8 bytes per item), as well as the total number of
+     * matching items, which exceeds the number of IDs if the snapshot has been truncated.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class ResultSnapshot implements Serializable
+    {
+
+        private static final long serialVersionUID = 2285603817930455921L;
+
+        private final String user;
+
+        private final long[] nodeIds;
+
+        private final long numberFound;
+
+        private final boolean truncated;
+
+        protected ResultSnapshot(final String user, final long[] nodeIds, final long numberFound, final boolean truncated)
+        {
+            this.user = user;
+            this.nodeIds = nodeIds;
+            this.numberFound = numberFound;
+            this.truncated = truncated;
+        }
+
+        /**
+         * @return the user for whom the snapshot was taken
+         */
+        public String getUser()
+        {
+            return this.user;
+        }
+
+        /**
+         * @return the nodeIds
+         */
+        public long[] getNodeIds()
+        {
+            return this.nodeIds;
+        }
+
+        /**
+         * @return the total number of matching items when the snapshot was taken
+         */
+        public long getNumberFound()
+        {
+            return this.numberFound;
+        }
+
+        /**
+         * @return {@code true} if the snapshot does not contain all matching items due to the maximum size of snapshots
+         */
+        public boolean isTruncated()
+        {
+            return this.truncated;
+        }
+    }
+
+    /**
+     * Instances of this class hold the results of querying a single archive context as part of a fan-out query.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class ArchiveContextResults
+    {
+
+        private final List<Pair<NodeRef, Comparable<Object>>> candidates;
+
+        private final long numberFound;
+
+        protected ArchiveContextResults(final List<Pair<NodeRef, Comparable<Object>>> candidates, final long numberFound)
+        {
+            this.candidates = candidates;
+            this.numberFound = numberFound;
+        }
+
+        /**
+         * @return the candidates
+         */
+        public List<Pair<NodeRef, Comparable<Object>>> getCandidates()
+        {
+            return this.candidates;
+        }
+
+        /**
+         * @return the numberFound
+         */
+        public long getNumberFound()
+        {
+            return this.numberFound;
+        }
+    }
 }
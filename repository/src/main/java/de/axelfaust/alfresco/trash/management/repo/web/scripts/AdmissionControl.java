@@ -0,0 +1,379 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Instances of this class limit the number of concurrently executing requests of the web scripts of this module - globally, per class of
+ * operation (e.g. query, children, delete) and per user - so that expensive trash management operations cannot exhaust database
+ * connections or SOLR threads required by core document operations. Requests exceeding a limit wait for a permit up to a configurable
+ * timeout and are rejected with status {@code 429 Too Many Requests} afterwards, accompanied by a {@code Retry-After} header where the web
+ * script has access to the response.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class AdmissionControl implements InitializingBean
+{
+
+    public static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class);
+
+    protected final ConcurrentMap<String, OperationClassState> operationClassStates = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, Semaphore> userSemaphores = new ConcurrentHashMap<>();
+
+    protected boolean enabled = true;
+
+    protected int globalLimit;
+
+    protected int perUserLimit;
+
+    protected Map<String, Integer> operationClassLimits = Collections.emptyMap();
+
+    protected long queueTimeout;
+
+    protected int retryAfter;
+
+    protected Semaphore globalSemaphore;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "operationClassLimits", this.operationClassLimits);
+
+        this.globalSemaphore = this.globalLimit > 0 ? new Semaphore(this.globalLimit, true) : null;
+    }
+
+    /**
+     * @param enabled
+     *            the enabled to set
+     */
+    public void setEnabled(final boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param globalLimit
+     *            the maximum number of concurrently executing requests across all operation classes - a non-positive value disables the
+     *            limit
+     */
+    public void setGlobalLimit(final int globalLimit)
+    {
+        this.globalLimit = globalLimit;
+    }
+
+    /**
+     * @param perUserLimit
+     *            the maximum number of concurrently executing requests of a single user - a non-positive value disables the limit
+     */
+    public void setPerUserLimit(final int perUserLimit)
+    {
+        this.perUserLimit = perUserLimit;
+    }
+
+    /**
+     * @param operationClassLimits
+     *            the maximum numbers of concurrently executing requests per operation class - operation classes without a (positive)
+     *            limit are not limited
+     */
+    public void setOperationClassLimits(final Map<String, Integer> operationClassLimits)
+    {
+        this.operationClassLimits = operationClassLimits;
+    }
+
+    /**
+     * @param queueTimeout
+     *            the maximum time (in milliseconds) a request may wait for permits before it is rejected
+     */
+    public void setQueueTimeout(final long queueTimeout)
+    {
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * @param retryAfter
+     *            the number of seconds clients are asked to wait before retrying a rejected request
+     */
+    public void setRetryAfter(final int retryAfter)
+    {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Executes a request if it can be admitted within the configured limits, or rejects it with status {@code 429 Too Many Requests}
+     * otherwise.
+     *
+     * @param operationClass
+     *            the class of operation of the request
+     * @param res
+     *            the response to the request
+     * @param execution
+     *            the actual execution of the request
+     * @throws IOException
+     *             if the request execution or writing the rejection fails
+     */
+    public void execute(final String operationClass, final WebScriptResponse res, final AdmittedExecution execution) throws IOException
+    {
+        if (this.enabled)
+        {
+            final OperationClassState state = this.operationClassStates.computeIfAbsent(operationClass, this::createOperationClassState);
+            final List<Semaphore> acquiredSemaphores = this.admit(operationClass, state);
+            if (acquiredSemaphores != null)
+            {
+                try
+                {
+                    execution.execute();
+                }
+                finally
+                {
+                    this.release(state, acquiredSemaphores);
+                }
+            }
+            else
+            {
+                res.setStatus(STATUS_TOO_MANY_REQUESTS);
+                res.setHeader("Retry-After", String.valueOf(this.retryAfter));
+                res.setContentType("application/json");
+                res.setContentEncoding("UTF-8");
+                res.getWriter().write("{\"message\": \"Too many concurrent requests - please retry later\"}");
+            }
+        }
+        else
+        {
+            execution.execute();
+        }
+    }
+
+    /**
+     * Executes a request if it can be admitted within the configured limits, or rejects it with status {@code 429 Too Many Requests}
+     * otherwise. This variant is meant for {@link org.springframework.extensions.webscripts.DeclarativeWebScript declarative web scripts}
+     * which have no access to the response, so the rejection is signalled via an exception and cannot carry a {@code Retry-After} header -
+     * the number of seconds clients are asked to wait is included in the message instead.
+     *
+     * @param operationClass
+     *            the class of operation of the request
+     * @param execution
+     *            the actual execution of the request
+     * @return the result of the execution
+     * @throws WebScriptException
+     *             if the request has been rejected
+     */
+    public <T> T execute(final String operationClass, final Supplier<T> execution)
+    {
+        final T result;
+        if (this.enabled)
+        {
+            final OperationClassState state = this.operationClassStates.computeIfAbsent(operationClass, this::createOperationClassState);
+            final List<Semaphore> acquiredSemaphores = this.admit(operationClass, state);
+            if (acquiredSemaphores == null)
+            {
+                throw new WebScriptException(STATUS_TOO_MANY_REQUESTS,
+                        "Too many concurrent requests - please retry in " + this.retryAfter + " seconds");
+            }
+
+            try
+            {
+                result = execution.get();
+            }
+            finally
+            {
+                this.release(state, acquiredSemaphores);
+            }
+        }
+        else
+        {
+            result = execution.get();
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves the metrics of the admission control per operation class.
+     *
+     * @return the metrics as a list of maps with the keys {@code operationClass}, {@code limit}, {@code active}, {@code queued},
+     *         {@code admitted} and {@code rejected}
+     */
+    public List<Map<String, Object>> getMetrics()
+    {
+        final List<Map<String, Object>> metrics = new ArrayList<>();
+        this.operationClassStates.forEach((operationClass, state) -> {
+            final Map<String, Object> metric = new HashMap<>();
+            metric.put("operationClass", operationClass);
+            metric.put("limit", Integer.valueOf(state.semaphore != null ? state.limit : -1));
+            metric.put("active", Integer.valueOf(state.active.get()));
+            metric.put("queued", Integer.valueOf(state.queued.get()));
+            metric.put("admitted", Long.valueOf(state.admitted.sum()));
+            metric.put("rejected", Long.valueOf(state.rejected.sum()));
+            metrics.add(metric);
+        });
+        metrics.sort((a, b) -> String.valueOf(a.get("operationClass")).compareTo(String.valueOf(b.get("operationClass"))));
+        return metrics;
+    }
+
+    protected List<Semaphore> admit(final String operationClass, final OperationClassState state)
+    {
+        final List<Semaphore> acquiredSemaphores = this.acquire(state, AuthenticationUtil.getFullyAuthenticatedUser());
+        if (acquiredSemaphores != null)
+        {
+            state.admitted.increment();
+            state.active.incrementAndGet();
+        }
+        else
+        {
+            state.rejected.increment();
+            LOGGER.debug("Rejecting {} request as concurrency limits have been exceeded for {} ms", operationClass, this.queueTimeout);
+        }
+        return acquiredSemaphores;
+    }
+
+    protected void release(final OperationClassState state, final List<Semaphore> acquiredSemaphores)
+    {
+        state.active.decrementAndGet();
+        acquiredSemaphores.forEach(Semaphore::release);
+    }
+
+    protected OperationClassState createOperationClassState(final String operationClass)
+    {
+        final Integer limit = this.operationClassLimits.get(operationClass);
+        return new OperationClassState(limit != null ? limit.intValue() : 0);
+    }
+
+    protected List<Semaphore> acquire(final OperationClassState state, final String user)
+    {
+        final List<Semaphore> semaphores = new ArrayList<>(3);
+        // consistent order of acquisition - most specific limit first so that a single user cannot block global permits while queued
+        if (this.perUserLimit > 0 && user != null)
+        {
+            semaphores.add(this.userSemaphores.computeIfAbsent(user, u -> new Semaphore(this.perUserLimit, true)));
+        }
+        if (state.semaphore != null)
+        {
+            semaphores.add(state.semaphore);
+        }
+        if (this.globalSemaphore != null)
+        {
+            semaphores.add(this.globalSemaphore);
+        }
+
+        final long deadline = System.currentTimeMillis() + this.queueTimeout;
+        final List<Semaphore> acquiredSemaphores = new ArrayList<>(semaphores.size());
+
+        state.queued.incrementAndGet();
+        try
+        {
+            for (final Semaphore semaphore : semaphores)
+            {
+                final long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+                if (semaphore.tryAcquire(remaining, TimeUnit.MILLISECONDS))
+                {
+                    acquiredSemaphores.add(semaphore);
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+        catch (final InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            state.queued.decrementAndGet();
+        }
+
+        List<Semaphore> result = acquiredSemaphores;
+        if (acquiredSemaphores.size() != semaphores.size())
+        {
+            acquiredSemaphores.forEach(Semaphore::release);
+            result = null;
+        }
+        return result;
+    }
+
+    /**
+     * Implementations of this interface represent the actual execution of an admitted request.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    @FunctionalInterface
+    public static interface AdmittedExecution
+    {
+
+        /**
+         * Executes the admitted request.
+         *
+         * @throws IOException
+         *             if the execution fails writing the response
+         */
+        void execute() throws IOException;
+    }
+
+    /**
+     * Instances of this class hold the state of the admission control for a single operation class.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class OperationClassState
+    {
+
+        private final int limit;
+
+        private final Semaphore semaphore;
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        private final AtomicInteger queued = new AtomicInteger();
+
+        private final LongAdder admitted = new LongAdder();
+
+        private final LongAdder rejected = new LongAdder();
+
+        protected OperationClassState(final int limit)
+        {
+            this.limit = limit;
+            this.semaphore = limit > 0 ? new Semaphore(limit, true) : null;
+        }
+    }
+}
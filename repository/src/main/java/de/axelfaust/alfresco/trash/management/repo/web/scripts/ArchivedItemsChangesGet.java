@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsTransactionDelta;
+
+/**
+ * Instances of this web script provide an incremental feed of the changes to the results of an {@link ArchivedItemsQueryGet archived
+ * items query} since a transaction watermark, i.e. the items archived (or changed) since then which match the query, as well as the items
+ * purged, restored or otherwise no longer matching the query. Changes are read from the node transaction history of the archive stores, so
+ * clients can keep a displayed list up-to-date without re-running the query.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsChangesGet extends ArchivedItemsQueryGet
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsChangesGet.class);
+
+    private static final String PARAM_SINCE = "since";
+
+    private static final String RESPONSE_WATERMARK = "watermark";
+
+    private static final String RESPONSE_RESYNC = "resync";
+
+    private static final String RESPONSE_REMOVED = "removed";
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        super.afterPropertiesSet();
+        PropertyCheck.mandatory(this, "nodeDAO", this.nodeDAO);
+        PropertyCheck.mandatory(this, "transactionDelta", this.transactionDelta);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation determines the changes to the results of the query since the transaction watermark provided by the client. If no
+     * watermark has been provided, only the current watermark is determined.
+     */
+    @Override
+    protected Map<String, Object> executeRetrieval(final WebScriptRequest req, final List<NodeRef> archiveContextNodes)
+    {
+        final String sinceParam = this.getParameter(req, PARAM_SINCE);
+        Long since = null;
+        if (sinceParam != null && !sinceParam.isEmpty())
+        {
+            try
+            {
+                since = Long.valueOf(sinceParam);
+            }
+            catch (final NumberFormatException nfex)
+            {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid watermark " + sinceParam, nfex);
+            }
+        }
+
+        // determined before any changes so that nothing committed in between is missed
+        final long watermark = this.transactionDelta.getWatermark();
+
+        final Set<NodeRef> addedNodes = new LinkedHashSet<>();
+        final Set<NodeRef> removedNodes = new LinkedHashSet<>();
+        boolean resync = false;
+        if (since != null)
+        {
+            for (final NodeRef archiveContextNode : archiveContextNodes)
+            {
+                final Predicate<NodeRef> deltaFilter = this.buildTransactionDeltaFilter(req, archiveContextNode);
+                if (deltaFilter == null)
+                {
+                    throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                            "Changes can only be determined for queries without a custom filter query or keywords");
+                }
+
+                resync = !this.collectChanges(archiveContextNode.getStoreRef(), since.longValue(), deltaFilter, this.isTopLevelQuery(req),
+                        addedNodes, removedNodes);
+                if (resync)
+                {
+                    break;
+                }
+            }
+        }
+
+        final Map<String, Object> model = new HashMap<>();
+        model.put(RESPONSE_WATERMARK, Long.valueOf(watermark));
+        model.put(RESPONSE_RESYNC, Boolean.valueOf(resync));
+
+        final List<Map<String, Object>> results;
+        if (resync)
+        {
+            LOGGER.debug("Too many changes since watermark {} - client needs to re-run the query", since);
+            results = new ArrayList<>();
+            model.put(RESPONSE_REMOVED, new ArrayList<NodeRef>());
+        }
+        else
+        {
+            final SortField sortField = this.getSortField(req);
+            final Comparator<Comparable<Object>> valueComparator = Comparator.nullsLast(this.isSortAscending(req, sortField)
+                    ? Comparator.<Comparable<Object>> naturalOrder() : Comparator.<Comparable<Object>> reverseOrder());
+
+            final List<Pair<NodeRef, Comparable<Object>>> sortableNodes = new ArrayList<>();
+            addedNodes.forEach(node -> sortableNodes.add(new Pair<>(node, this.getSortValue(node, sortField))));
+            sortableNodes.sort((nodeA, nodeB) -> valueComparator.compare(nodeA.getSecond(), nodeB.getSecond()));
+
+            final List<NodeRef> sortedNodes = new ArrayList<>();
+            sortableNodes.forEach(sortableNode -> sortedNodes.add(sortableNode.getFirst()));
+            results = this.processResults(sortedNodes);
+            model.put(RESPONSE_REMOVED, new ArrayList<>(removedNodes));
+
+            LOGGER.debug("Determined {} added and {} removed items since watermark {}", results.size(), removedNodes.size(), since);
+        }
+        model.put(RESPONSE_RESULTS, results);
+
+        final String compactParam = this.getParameter(req, PARAM_COMPACT);
+        if (Boolean.parseBoolean(compactParam))
+        {
+            model.put(RESPONSE_COMPACT_TABLES, this.buildCompactTables(results));
+        }
+
+        return model;
+    }
+
+    /**
+     * Collects the changes to the results of the query in an archive store since a transaction watermark.
+     *
+     * @param archiveStore
+     *            the archive store
+     * @param since
+     *            the transaction watermark
+     * @param deltaFilter
+     *            the filter replicating the conditions of the query
+     * @param topLevel
+     *            {@code true} if the query only matches top-level archived items
+     * @param addedNodes
+     *            the nodes added to (or changed in) the results of the query
+     * @param removedNodes
+     *            the nodes removed from the results of the query
+     * @return {@code true} if the changes could be determined, {@code false} if there have been too many changes
+     */
+    protected boolean collectChanges(final StoreRef archiveStore, final long since, final Predicate<NodeRef> deltaFilter,
+            final boolean topLevel, final Set<NodeRef> addedNodes, final Set<NodeRef> removedNodes)
+    {
+        final ArchivedItemsTransactionDelta.Delta delta = this.transactionDelta.getChangesSince(archiveStore, since);
+        if (delta != null)
+        {
+            // purged / restored nodes no longer exist in the archive store
+            removedNodes.addAll(delta.getDeletedNodes());
+
+            final List<NodeRef> changedNodes = new ArrayList<>(delta.getChangedNodes());
+            this.nodeDAO.cacheNodes(changedNodes);
+            for (final NodeRef node : changedNodes)
+            {
+                this.checkNotCancelled();
+
+                if (this.matchesTransactionDeltaFilter(node, deltaFilter))
+                {
+                    addedNodes.add(node);
+                }
+                // nodes within archived trees have never been part of top-level results
+                else if (!topLevel || !this.nodeService.exists(node) || this.nodeService.hasAspect(node, ContentModel.ASPECT_ARCHIVED))
+                {
+                    removedNodes.add(node);
+                }
+            }
+        }
+        return delta != null;
+    }
+}
@@ -15,21 +15,29 @@
  */
 package de.axelfaust.alfresco.trash.management.repo.web.scripts;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
 import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.util.PropertyCheck;
 import org.springframework.extensions.webscripts.Cache;
 import org.springframework.extensions.webscripts.Match;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 
+import de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel;
+
 /**
  * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
  */
@@ -42,11 +50,81 @@ public class ArchivedItemsChildrenGet extends AbstractArchivedItemsRetrievalWebS
 
     private static final String TEMPLATE_UUID = "uuid";
 
+    private static final String PARAM_DEPTH = "depth";
+
+    private static final String RESPONSE_TREE_TRUNCATED = "treeTruncated";
+
+    protected DictionaryService dictionaryService;
+
+    protected int maxDepth = 5;
+
+    protected int maxItemsPerLevel = 500;
+
+    protected int maxTotalItems = 2000;
+
+    protected int parentBatchSize = 100;
+
     /**
+     *
      * {@inheritDoc}
      */
     @Override
-    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    public void afterPropertiesSet()
+    {
+        super.afterPropertiesSet();
+        PropertyCheck.mandatory(this, "dictionaryService", this.dictionaryService);
+    }
+
+    /**
+     * @param dictionaryService
+     *            the dictionaryService to set
+     */
+    public void setDictionaryService(final DictionaryService dictionaryService)
+    {
+        this.dictionaryService = dictionaryService;
+    }
+
+    /**
+     * @param maxDepth
+     *            the maximum depth of nested children that may be requested
+     */
+    public void setMaxDepth(final int maxDepth)
+    {
+        this.maxDepth = Math.max(maxDepth, 1);
+    }
+
+    /**
+     * @param maxItemsPerLevel
+     *            the maximum number of nested children retrieved per level below the first one
+     */
+    public void setMaxItemsPerLevel(final int maxItemsPerLevel)
+    {
+        this.maxItemsPerLevel = Math.max(maxItemsPerLevel, 1);
+    }
+
+    /**
+     * @param maxTotalItems
+     *            the maximum number of items (including the first level) in a nested tree
+     */
+    public void setMaxTotalItems(final int maxTotalItems)
+    {
+        this.maxTotalItems = Math.max(maxTotalItems, 1);
+    }
+
+    /**
+     * @param parentBatchSize
+     *            the number of parents for which nested children are retrieved in a single query
+     */
+    public void setParentBatchSize(final int parentBatchSize)
+    {
+        this.parentBatchSize = Math.max(parentBatchSize, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Map<String, Object> executeRetrievalRequest(final WebScriptRequest req, final Status status, final Cache cache)
     {
         final Match serviceMatch = req.getServiceMatch();
         final Map<String, String> templateVars = serviceMatch.getTemplateVars();
@@ -72,12 +150,174 @@ public class ArchivedItemsChildrenGet extends AbstractArchivedItemsRetrievalWebS
             currentNode = primaryParent != null ? primaryParent.getParentRef() : null;
         }
 
-        if (currentNode == null)
+        // archived trees being purged in chunks are treated as if they were already gone
+        if (currentNode == null || this.nodeService.hasAspect(currentNode, BetterTrashManagementModel.ASPECT_PURGE_IN_PROGRESS))
         {
             throw new WebScriptException(Status.STATUS_NOT_FOUND, "Archived node " + node + " does not exist");
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation adds the nested children of folders up to the requested depth, retrieving each level in batched queries. As all
+     * nested children are descendants of the validated archived item, they do not need to be validated individually.
+     */
+    @Override
+    protected void completeResults(final WebScriptRequest req, final List<NodeRef> archiveContextNodes,
+            final List<Map<String, Object>> results, final Map<String, Object> model)
+    {
+        final String depthParam = this.getParameter(req, PARAM_DEPTH);
+        int depth;
+        try
+        {
+            depth = depthParam != null && !depthParam.isEmpty() ? Integer.parseInt(depthParam, 10) : 1;
+        }
+        catch (final NumberFormatException nfex)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid depth " + depthParam, nfex);
+        }
+        depth = Math.min(Math.max(depth, 1), this.maxDepth);
+
+        final SortField sortField = this.getSortField(req);
+        final boolean sortAscending = this.isSortAscending(req, sortField);
+        final EnrichmentContext context = this.createEnrichmentContext();
+
+        boolean truncated = false;
+        int remainingItems = this.maxTotalItems - results.size();
+        List<Map<String, Object>> currentLevel = results;
+        for (int level = 2; level <= depth && !currentLevel.isEmpty(); level++)
+        {
+            final List<NodeRef> parents = new ArrayList<>();
+            final Map<NodeRef, Map<String, Object>> parentEntries = new HashMap<>();
+            for (final Map<String, Object> entry : currentLevel)
+            {
+                final NodeRef node = (NodeRef) entry.get(ITEM_NODE);
+                if (this.dictionaryService.isSubClass(this.nodeService.getType(node), ContentModel.TYPE_FOLDER))
+                {
+                    parents.add(node);
+                    parentEntries.put(node, entry);
+                    entry.put(ITEM_CHILDREN, new ArrayList<Map<String, Object>>());
+                    entry.put(ITEM_CHILDREN_TRUNCATED, Boolean.FALSE);
+                }
+            }
+
+            final List<Map<String, Object>> nextLevel = new ArrayList<>();
+            for (int offset = 0; offset < parents.size(); offset += this.parentBatchSize)
+            {
+                final List<NodeRef> parentBatch = parents.subList(offset, Math.min(offset + this.parentBatchSize, parents.size()));
+                final int limit = Math.min(this.maxItemsPerLevel - nextLevel.size(), remainingItems);
+                if (limit > 0)
+                {
+                    nextLevel.addAll(this.retrieveNestedChildren(parentBatch, parentEntries, limit, sortField, sortAscending, context));
+                }
+                else
+                {
+                    parentBatch.forEach(parent -> parentEntries.get(parent).put(ITEM_CHILDREN_TRUNCATED, Boolean.TRUE));
+                }
+                truncated = truncated || Boolean.TRUE.equals(parentEntries.get(parentBatch.get(0)).get(ITEM_CHILDREN_TRUNCATED));
+            }
+
+            remainingItems -= nextLevel.size();
+            currentLevel = nextLevel;
+        }
+
+        model.put(RESPONSE_TREE_TRUNCATED, Boolean.valueOf(truncated));
+    }
+
+    /**
+     * Retrieves the children of a batch of parents in a single query and adds them to the entries of their parents.
+     *
+     * @param parents
+     *            the parents
+     * @param parentEntries
+     *            the result entries of the parents
+     * @param limit
+     *            the maximum number of children to retrieve - the entries of all parents are flagged as truncated if there are more
+     * @param sortField
+     *            the field by which to sort the children
+     * @param sortAscending
+     *            {@code true} if the children should be sorted in ascending order
+     * @param context
+     *            the context of enriching the results of the current request
+     * @return the result entries of the retrieved children
+     */
+    protected List<Map<String, Object>> retrieveNestedChildren(final List<NodeRef> parents,
+            final Map<NodeRef, Map<String, Object>> parentEntries, final int limit, final SortField sortField, final boolean sortAscending,
+            final EnrichmentContext context)
+    {
+        final SearchParameters sp = this.prepareNestedChildrenSearchParameters(parents, limit + 1);
+        sp.addSort(this.getSortFieldName(sortField, false), sortAscending);
+
+        final List<NodeRef> childNodes;
+        final ResultSet resultSet = this.searchService.query(sp);
+        try
+        {
+            childNodes = new ArrayList<>(resultSet.getNodeRefs());
+        }
+        finally
+        {
+            resultSet.close();
+        }
+
+        if (childNodes.size() > limit)
+        {
+            childNodes.subList(limit, childNodes.size()).clear();
+            // cannot tell which parents are missing children, so flag all of the batch
+            parents.forEach(parent -> parentEntries.get(parent).put(ITEM_CHILDREN_TRUNCATED, Boolean.TRUE));
+        }
+
+        final List<Map<String, Object>> childEntries = new ArrayList<>();
+        for (final Map<String, Object> childEntry : this.processResults(childNodes, context))
+        {
+            final ChildAssociationRef primaryParent = this.nodeService.getPrimaryParent((NodeRef) childEntry.get(ITEM_NODE));
+            final Map<String, Object> parentEntry = primaryParent != null ? parentEntries.get(primaryParent.getParentRef()) : null;
+            if (parentEntry != null)
+            {
+                @SuppressWarnings("unchecked")
+                final List<Map<String, Object>> children = (List<Map<String, Object>>) parentEntry.get(ITEM_CHILDREN);
+                children.add(childEntry);
+                childEntries.add(childEntry);
+            }
+        }
+        return childEntries;
+    }
+
+    protected SearchParameters prepareNestedChildrenSearchParameters(final List<NodeRef> parents, final int limit)
+    {
+        final SearchParameters sp = new SearchParameters();
+        sp.addStore(parents.get(0).getStoreRef());
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setQueryConsistency(QueryConsistency.TRANSACTIONAL_IF_POSSIBLE);
+
+        final StringBuilder queryBuilder = new StringBuilder();
+        for (final NodeRef parent : parents)
+        {
+            if (queryBuilder.length() > 0)
+            {
+                queryBuilder.append(" OR ");
+            }
+            queryBuilder.append("PARENT:\"").append(parent).append("\"");
+        }
+        sp.setQuery(queryBuilder.toString());
+
+        sp.setSkipCount(0);
+        sp.setLimit(limit);
+        sp.setMaxItems(limit);
+        return sp;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isTopLevelQuery(final WebScriptRequest req)
+    {
+        // children of archived items are never archived roots themselves
+        return false;
+    }
+
     @Override
     protected SearchParameters prepareSearchParameters(final WebScriptRequest req, final NodeRef archiveContextNode, final int pageSize,
             final int startIndex)
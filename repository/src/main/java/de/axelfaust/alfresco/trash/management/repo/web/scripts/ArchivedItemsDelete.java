@@ -20,37 +20,194 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.web.scripts.archive.AbstractArchivedNodeWebScript;
 import org.alfresco.repo.web.scripts.archive.ArchivedNodesDelete;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.extensions.webscripts.Cache;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsSpaceEstimator;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsSpaceEstimator.SpaceEstimate;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedNodesPurger;
+
 /**
  *
  * @author Jonas van Malders
  * @author Ana Gouveia
  * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
  */
-public class ArchivedItemsDelete extends AbstractArchivedNodeWebScript
+public class ArchivedItemsDelete extends AbstractArchivedNodeWebScript implements InitializingBean
 {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsDelete.class);
 
+    private static final String RESPONSE_DENIED_NODES = "deniedNodes";
+
+    private static final String RESPONSE_DRY_RUN = "dryRun";
+
+    private static final String RESPONSE_ESTIMATES = "estimates";
+
+    private static final String RESPONSE_TOTAL_NODE_COUNT = "totalNodeCount";
+
+    private static final String RESPONSE_TOTAL_RECLAIMABLE_BYTES = "totalReclaimableBytes";
+
+    protected NodeDAO nodeDAO;
+
+    protected AuthorityService authorityService;
+
+    protected ArchivedNodesPurger archivedNodesPurger;
+
+    protected ArchivedItemsSpaceEstimator spaceEstimator;
+
+    protected TransactionService transactionService;
+
+    protected AdmissionControl admissionControl;
+
+    protected String admissionOperationClass;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "nodeDAO", this.nodeDAO);
+        PropertyCheck.mandatory(this, "authorityService", this.authorityService);
+        PropertyCheck.mandatory(this, "archivedNodesPurger", this.archivedNodesPurger);
+        PropertyCheck.mandatory(this, "spaceEstimator", this.spaceEstimator);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+    }
+
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param authorityService
+     *            the authorityService to set
+     */
+    public void setAuthorityService(final AuthorityService authorityService)
+    {
+        this.authorityService = authorityService;
+    }
+
+    /**
+     * @param archivedNodesPurger
+     *            the archivedNodesPurger to set
+     */
+    public void setArchivedNodesPurger(final ArchivedNodesPurger archivedNodesPurger)
+    {
+        this.archivedNodesPurger = archivedNodesPurger;
+    }
+
+    /**
+     * @param spaceEstimator
+     *            the spaceEstimator to set
+     */
+    public void setSpaceEstimator(final ArchivedItemsSpaceEstimator spaceEstimator)
+    {
+        this.spaceEstimator = spaceEstimator;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param admissionControl
+     *            the admissionControl to set
+     */
+    public void setAdmissionControl(final AdmissionControl admissionControl)
+    {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * @param admissionOperationClass
+     *            the class of operation by which requests of this web script are subject to {@link AdmissionControl admission control}
+     */
+    public void setAdmissionOperationClass(final String admissionOperationClass)
+    {
+        this.admissionOperationClass = admissionOperationClass;
+    }
+
     /**
      *
      * {@inheritDoc}
      */
     @Override
     protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        // web script descriptor declares no transaction so that requests wait for admission without holding a transaction / DB connection
+        final Map<String, Object> model;
+        if (this.admissionControl != null)
+        {
+            final String operationClass = this.admissionOperationClass != null ? this.admissionOperationClass
+                    : this.getDescription().getId();
+            model = this.admissionControl.execute(operationClass, () -> this.executeInTransaction(req, status));
+        }
+        else
+        {
+            model = this.executeInTransaction(req, status);
+        }
+        return model;
+    }
+
+    /**
+     * Executes an admitted request within a read-write transaction. The response template only renders plain values, so it does not need
+     * to be covered by the transaction.
+     *
+     * @param req
+     *            the request being processed
+     * @param status
+     *            the status of the response
+     * @return the model for the response template
+     */
+    protected Map<String, Object> executeInTransaction(final WebScriptRequest req, final Status status)
+    {
+        final Map<String, Object> model = this.transactionService.getRetryingTransactionHelper()
+                .doInTransaction(() -> this.executePurge(req, status), false, false);
+        return model;
+    }
+
+    /**
+     * Purges the archived nodes listed in a request after validating the permissions of the current user. If the request is flagged as a
+     * dry run, the nodes are not purged and the model instead contains the estimated impact of purging them.
+     *
+     * @param req
+     *            the request being processed
+     * @param status
+     *            the status of the response
+     * @return the model for the response template
+     */
+    protected Map<String, Object> executePurge(final WebScriptRequest req, final Status status)
     {
         final Map<String, Object> model = new HashMap<>();
 
@@ -61,9 +218,11 @@ public class ArchivedItemsDelete extends AbstractArchivedNodeWebScript
         }
 
         final List<NodeRef> nodesToBePurged = new ArrayList<>();
+        final boolean dryRun;
         try
         {
             final JSONObject rq = (JSONObject) parsedContent;
+            dryRun = rq.optBoolean(RESPONSE_DRY_RUN, false);
             final JSONArray nodes = rq.getJSONArray("nodes");
 
             for (int slot = 0; slot < nodes.length(); slot++)
@@ -73,9 +232,6 @@ public class ArchivedItemsDelete extends AbstractArchivedNodeWebScript
                 {
                     final NodeRef nodeRef = new NodeRef(nodeRefStr);
 
-                    // check if the current user has the permission to purge the node
-                    this.validatePermission(nodeRef, AuthenticationUtil.getRunAsUser());
-
                     // If there is a specific NodeRef, then that is the only Node that should be purged.
                     // In this case, the NodeRef points to the actual node to be purged i.e. the node in
                     // the archive store.
@@ -88,14 +244,113 @@ public class ArchivedItemsDelete extends AbstractArchivedNodeWebScript
             throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid request JSON data", jsonEx);
         }
 
+        // check if the current user has the permission to purge the nodes
+        final List<NodeRef> deniedNodes = this.validatePermissions(nodesToBePurged, AuthenticationUtil.getRunAsUser());
+        if (!deniedNodes.isEmpty())
+        {
+            LOGGER.debug("Denying purge of {} nodes as user lacks permission to purge {} of them", nodesToBePurged.size(),
+                    deniedNodes.size());
+            LOGGER.trace("User lacks permission to purge nodes {}", deniedNodes);
+
+            status.setCode(Status.STATUS_FORBIDDEN);
+            status.setMessage("You don't have permission to act on " + deniedNodes.size() + " of the nodes.");
+            model.put(RESPONSE_DENIED_NODES, deniedNodes);
+            return model;
+        }
+
+        if (dryRun)
+        {
+            LOGGER.debug("Estimating purge impact of {} nodes", nodesToBePurged.size());
+            this.estimatePurge(nodesToBePurged, model);
+            return model;
+        }
+
         LOGGER.debug("Purging {} nodes", nodesToBePurged.size());
         LOGGER.trace("Purging nodes {}", nodesToBePurged);
 
-        // Now having identified the nodes to be purged, we simply have to do it.
-        this.nodeArchiveService.purgeArchivedNodes(nodesToBePurged);
+        // Now having identified the nodes to be purged, we simply have to do it (large trees are hidden now and purged in chunks later)
+        this.archivedNodesPurger.purgeArchivedNodes(nodesToBePurged);
 
         model.put(ArchivedNodesDelete.PURGED_NODES, nodesToBePurged);
 
         return model;
     }
+
+    /**
+     * Estimates the impact of purging a set of archived nodes, i.e. the number of nodes that would be deleted and the content storage that
+     * would be reclaimed.
+     *
+     * @param nodes
+     *            the nodes to be purged
+     * @param model
+     *            the model for the response template
+     */
+    protected void estimatePurge(final List<NodeRef> nodes, final Map<String, Object> model)
+    {
+        final List<SpaceEstimate> estimates = this.spaceEstimator.estimate(nodes);
+
+        long totalNodeCount = 0;
+        long totalReclaimableBytes = 0;
+        for (final SpaceEstimate estimate : estimates)
+        {
+            totalNodeCount += estimate.getNodeCount();
+            totalReclaimableBytes += estimate.getReclaimableBytes();
+        }
+
+        model.put(RESPONSE_DRY_RUN, Boolean.TRUE);
+        model.put(RESPONSE_ESTIMATES, estimates);
+        model.put(RESPONSE_TOTAL_NODE_COUNT, Long.valueOf(totalNodeCount));
+        model.put(RESPONSE_TOTAL_RECLAIMABLE_BYTES, Long.valueOf(totalReclaimableBytes));
+    }
+
+    /**
+     * Validates the permissions of a user to purge a set of archived nodes in bulk. In contrast to
+     * {@link #validatePermission(NodeRef, String) the default validation}, this operation short-circuits the check for administrators,
+     * bulk-loads all nodes to avoid individual database lookups, and determines the full set of nodes the user is not allowed to purge
+     * instead of failing on the first one.
+     *
+     * @param nodes
+     *            the nodes to validate
+     * @param user
+     *            the user for which to validate the permission
+     * @return the list of nodes the user is not allowed to purge - will be empty if the user can purge all nodes
+     */
+    protected List<NodeRef> validatePermissions(final List<NodeRef> nodes, final String user)
+    {
+        final List<NodeRef> deniedNodes = new ArrayList<>();
+
+        // administrators have full access on any archived node
+        if (!nodes.isEmpty() && !this.authorityService.isAdminAuthority(user))
+        {
+            this.nodeDAO.cacheNodes(nodes);
+
+            for (final NodeRef node : nodes)
+            {
+                final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(node);
+                if (nodePair == null)
+                {
+                    deniedNodes.add(node);
+                }
+                else
+                {
+                    final String archivedBy = DefaultTypeConverter.INSTANCE.convert(String.class,
+                            this.nodeDAO.getNodeProperty(nodePair.getFirst(), ContentModel.PROP_ARCHIVED_BY));
+                    // fast path only covers the most common case - full check deals with any special handling, e.g. case-insensitivity
+                    if (!user.equals(archivedBy))
+                    {
+                        try
+                        {
+                            this.validatePermission(node, user);
+                        }
+                        catch (final WebScriptException wsex)
+                        {
+                            deniedNodes.add(node);
+                        }
+                    }
+                }
+            }
+        }
+
+        return deniedNodes;
+    }
 }
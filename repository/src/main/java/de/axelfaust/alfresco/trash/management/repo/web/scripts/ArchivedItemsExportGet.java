@@ -0,0 +1,456 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.ISO8601DateFormat;
+import org.alfresco.util.PropertyCheck;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * This web script streams a full listing of archived items matching the filters supported by {@link ArchivedItemsQueryGet} as either
+ * NDJSON or CSV. Results are read in cursor-based batches (ordered by the database ID of nodes), each batch being retrieved and enriched in
+ * its own read-only transaction, so that neither memory usage nor transaction duration depend on the total number of exported items.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsExportGet extends AbstractWebScript implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsExportGet.class);
+
+    private static final String PARAM_BASE_STORE = "baseStore";
+
+    private static final String PARAM_EXPORT_FORMAT = "exportFormat";
+
+    private static final String EXPORT_FORMAT_NDJSON = "ndjson";
+
+    private static final String EXPORT_FORMAT_CSV = "csv";
+
+    private static final String[] EXPORT_COLUMNS = { "nodeRef", "name", "nodeType", "mimetype", "size", "modified", "modifier", "archived",
+            "archiver", "displayPath" };
+
+    // limit the number of memoised users / permission decisions / ancestors to keep memory usage constant for large exports
+    private static final int MAX_CACHED_ENTRIES = 10000;
+
+    protected ArchivedItemsQueryGet queryWebScript;
+
+    protected NodeService nodeService;
+
+    protected NamespaceService namespaceService;
+
+    protected TransactionService transactionService;
+
+    protected int batchSize = 500;
+
+    protected AdmissionControl admissionControl;
+
+    protected String admissionOperationClass;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "queryWebScript", this.queryWebScript);
+        PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "namespaceService", this.namespaceService);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+
+        if (this.batchSize <= 0)
+        {
+            throw new IllegalStateException("batchSize must be a positive integer");
+        }
+    }
+
+    /**
+     * @param queryWebScript
+     *            the queryWebScript to set
+     */
+    public void setQueryWebScript(final ArchivedItemsQueryGet queryWebScript)
+    {
+        this.queryWebScript = queryWebScript;
+    }
+
+    /**
+     * @param nodeService
+     *            the nodeService to set
+     */
+    public void setNodeService(final NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param namespaceService
+     *            the namespaceService to set
+     */
+    public void setNamespaceService(final NamespaceService namespaceService)
+    {
+        this.namespaceService = namespaceService;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param batchSize
+     *            the batchSize to set
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param admissionControl
+     *            the admissionControl to set
+     */
+    public void setAdmissionControl(final AdmissionControl admissionControl)
+    {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * @param admissionOperationClass
+     *            the class of operation by which requests of this web script are subject to {@link AdmissionControl admission control}
+     */
+    public void setAdmissionOperationClass(final String admissionOperationClass)
+    {
+        this.admissionOperationClass = admissionOperationClass;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException
+    {
+        if (this.admissionControl != null)
+        {
+            final String operationClass = this.admissionOperationClass != null ? this.admissionOperationClass
+                    : this.getDescription().getId();
+            this.admissionControl.execute(operationClass, res, () -> this.executeExport(req, res));
+        }
+        else
+        {
+            this.executeExport(req, res);
+        }
+    }
+
+    /**
+     * Exports the archived items matching a request, writing them to the response in batches.
+     *
+     * @param req
+     *            the request being processed
+     * @param res
+     *            the response to write to
+     * @throws IOException
+     *             if writing the response fails
+     */
+    protected void executeExport(final WebScriptRequest req, final WebScriptResponse res) throws IOException
+    {
+        final String exportFormatParam = this.queryWebScript.getParameter(req, PARAM_EXPORT_FORMAT);
+        final String exportFormat = exportFormatParam != null && !exportFormatParam.isEmpty()
+                ? exportFormatParam.toLowerCase(Locale.ENGLISH) : EXPORT_FORMAT_NDJSON;
+        final boolean csv;
+        if (EXPORT_FORMAT_CSV.equals(exportFormat))
+        {
+            csv = true;
+        }
+        else if (EXPORT_FORMAT_NDJSON.equals(exportFormat))
+        {
+            csv = false;
+        }
+        else
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unsupported export format " + exportFormat);
+        }
+
+        final List<NodeRef> storeArchiveNodes = this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+            final List<NodeRef> archiveNodes = new ArrayList<>();
+            final String baseStoreParam = this.queryWebScript.getParameter(req, PARAM_BASE_STORE);
+            final List<StoreRef> baseStores = this.queryWebScript.resolveBaseStores(baseStoreParam);
+            for (final StoreRef baseStore : baseStores)
+            {
+                final NodeRef storeArchiveNode = this.queryWebScript.nodeArchiveService.getStoreArchiveNode(baseStore);
+                if (storeArchiveNode != null && !archiveNodes.contains(storeArchiveNode))
+                {
+                    archiveNodes.add(storeArchiveNode);
+                }
+            }
+            return archiveNodes;
+        }, true, false);
+
+        res.setContentType(csv ? "text/csv" : "application/x-ndjson");
+        res.setContentEncoding("UTF-8");
+        res.setHeader("Content-Disposition", "attachment; filename=\"archivedItems." + exportFormat + "\"");
+
+        final Writer writer = res.getWriter();
+        if (csv)
+        {
+            this.writeCsvRow(writer, Arrays.asList(EXPORT_COLUMNS));
+        }
+
+        final AbstractArchivedItemsRetrievalWebScript.EnrichmentContext context = this.queryWebScript.createEnrichmentContext(req);
+        long exportedItems = 0;
+        for (final NodeRef storeArchiveNode : storeArchiveNodes)
+        {
+            long lastNodeId = -1;
+            boolean moreResults = true;
+            while (moreResults)
+            {
+                if (context.size() > MAX_CACHED_ENTRIES)
+                {
+                    context.clear();
+                }
+
+                final long cursorNodeId = lastNodeId;
+                final ExportBatch batch = this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+                    return this.readBatch(req, storeArchiveNode, cursorNodeId, context);
+                }, true, true);
+
+                // write outside of transaction so slow clients do not prolong it
+                for (final Map<String, String> row : batch.getRows())
+                {
+                    if (csv)
+                    {
+                        final List<String> values = new ArrayList<>();
+                        for (final String column : EXPORT_COLUMNS)
+                        {
+                            values.add(row.get(column));
+                        }
+                        this.writeCsvRow(writer, values);
+                    }
+                    else
+                    {
+                        this.writeJsonRow(writer, row);
+                    }
+                }
+                writer.flush();
+
+                exportedItems += batch.getRows().size();
+                lastNodeId = batch.getLastNodeId();
+                moreResults = batch.isFull();
+            }
+        }
+
+        LOGGER.debug("Exported {} archived items from {} archive stores", exportedItems, storeArchiveNodes.size());
+    }
+
+    protected ExportBatch readBatch(final WebScriptRequest req, final NodeRef storeArchiveNode, final long lastNodeId,
+            final AbstractArchivedItemsRetrievalWebScript.EnrichmentContext context)
+    {
+        final SearchParameters sp = this.queryWebScript.prepareSearchParameters(req, storeArchiveNode, this.batchSize, 0);
+        sp.addFilterQuery(ContentModel.PROP_NODE_DBID.toPrefixString(this.namespaceService) + ":[" + (lastNodeId + 1) + " TO "
+                + Long.MAX_VALUE + "]");
+        sp.addSort("@" + ContentModel.PROP_NODE_DBID, true);
+
+        final List<Map<String, String>> rows = new ArrayList<>();
+        long batchLastNodeId = lastNodeId;
+        int resultCount;
+
+        final ResultSet resultSet = this.queryWebScript.searchService.query(sp);
+        try
+        {
+            final List<NodeRef> nodeRefs = resultSet.getNodeRefs();
+            resultCount = nodeRefs.size();
+            for (final NodeRef nodeRef : nodeRefs)
+            {
+                final Map<QName, Serializable> properties = this.nodeService.getProperties(nodeRef);
+                final Long nodeId = DefaultTypeConverter.INSTANCE.convert(Long.class, properties.get(ContentModel.PROP_NODE_DBID));
+                if (nodeId != null && nodeId.longValue() > batchLastNodeId)
+                {
+                    batchLastNodeId = nodeId.longValue();
+                }
+
+                final Map<String, Object> itemObj = this.queryWebScript.buildResultEntry(nodeRef, context);
+                if (itemObj != null)
+                {
+                    rows.add(this.toRow(nodeRef, properties, itemObj));
+                }
+            }
+        }
+        finally
+        {
+            resultSet.close();
+        }
+
+        // a full batch indicates there may be more results, but only if the cursor has actually advanced
+        return new ExportBatch(rows, batchLastNodeId, resultCount >= this.batchSize && batchLastNodeId > lastNodeId);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Map<String, String> toRow(final NodeRef nodeRef, final Map<QName, Serializable> properties, final Map<String, Object> itemObj)
+    {
+        final Map<String, String> row = new HashMap<>();
+        row.put("nodeRef", nodeRef.toString());
+        row.put("name", DefaultTypeConverter.INSTANCE.convert(String.class, properties.get(ContentModel.PROP_NAME)));
+        row.put("nodeType", this.nodeService.getType(nodeRef).toPrefixString(this.namespaceService));
+
+        final ContentData content = DefaultTypeConverter.INSTANCE.convert(ContentData.class, properties.get(ContentModel.PROP_CONTENT));
+        if (content != null)
+        {
+            row.put("mimetype", content.getMimetype());
+            row.put("size", String.valueOf(content.getSize()));
+        }
+
+        final Date modified = DefaultTypeConverter.INSTANCE.convert(Date.class, properties.get(ContentModel.PROP_MODIFIED));
+        row.put("modified", modified != null ? ISO8601DateFormat.format(modified) : null);
+        row.put("modifier", DefaultTypeConverter.INSTANCE.convert(String.class, properties.get(ContentModel.PROP_MODIFIER)));
+
+        final Date archivedOn = (Date) itemObj.get("archivedOn");
+        row.put("archived", archivedOn != null ? ISO8601DateFormat.format(archivedOn) : null);
+        final Map<String, Object> archiverObj = (Map<String, Object>) itemObj.get("archiver");
+        row.put("archiver", archiverObj != null ? (String) archiverObj.get("userName") : null);
+        row.put("displayPath", (String) itemObj.get("displayPath"));
+        return row;
+    }
+
+    protected void writeJsonRow(final Writer writer, final Map<String, String> row) throws IOException
+    {
+        final JSONObject rowObj = new JSONObject();
+        try
+        {
+            for (final String column : EXPORT_COLUMNS)
+            {
+                final String value = row.get(column);
+                if (value != null)
+                {
+                    rowObj.put(column, value);
+                }
+            }
+        }
+        catch (final JSONException jsonEx)
+        {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Failed to write export row", jsonEx);
+        }
+        writer.write(rowObj.toString());
+        writer.write('\n');
+    }
+
+    protected void writeCsvRow(final Writer writer, final List<String> values) throws IOException
+    {
+        boolean first = true;
+        for (final String value : values)
+        {
+            if (!first)
+            {
+                writer.write(',');
+            }
+            first = false;
+
+            if (value != null)
+            {
+                if (value.indexOf(',') != -1 || value.indexOf('"') != -1 || value.indexOf('\n') != -1 || value.indexOf('\r') != -1)
+                {
+                    writer.write('"');
+                    writer.write(value.replace("\"", "\"\""));
+                    writer.write('"');
+                }
+                else
+                {
+                    writer.write(value);
+                }
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Instances of this class hold the rows of a single export batch.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class ExportBatch
+    {
+
+        private final List<Map<String, String>> rows;
+
+        private final long lastNodeId;
+
+        private final boolean full;
+
+        protected ExportBatch(final List<Map<String, String>> rows, final long lastNodeId, final boolean full)
+        {
+            this.rows = rows;
+            this.lastNodeId = lastNodeId;
+            this.full = full;
+        }
+
+        /**
+         * @return the rows
+         */
+        public List<Map<String, String>> getRows()
+        {
+            return this.rows;
+        }
+
+        /**
+         * @return the lastNodeId
+         */
+        public long getLastNodeId()
+        {
+            return this.lastNodeId;
+        }
+
+        /**
+         * @return the full
+         */
+        public boolean isFull()
+        {
+            return this.full;
+        }
+    }
+}
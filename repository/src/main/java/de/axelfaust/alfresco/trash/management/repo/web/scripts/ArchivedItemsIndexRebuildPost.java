@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.util.PropertyCheck;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsIndex;
+
+/**
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsIndexRebuildPost extends DeclarativeWebScript implements InitializingBean
+{
+
+    protected ArchivedItemsIndex archivedItemsIndex;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "archivedItemsIndex", this.archivedItemsIndex);
+    }
+
+    /**
+     * @param archivedItemsIndex
+     *            the archivedItemsIndex to set
+     */
+    public void setArchivedItemsIndex(final ArchivedItemsIndex archivedItemsIndex)
+    {
+        this.archivedItemsIndex = archivedItemsIndex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        final Map<String, Object> model = new HashMap<>();
+        model.put("scheduled", Boolean.valueOf(this.archivedItemsIndex.rebuild()));
+        return model;
+    }
+}
@@ -15,43 +15,79 @@
  */
 package de.axelfaust.alfresco.trash.management.repo.web.scripts;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
+import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.node.archive.NodeArchiveService;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
 import org.alfresco.service.cmr.search.QueryConsistency;
 import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchParameters.Operator;
 import org.alfresco.service.cmr.search.SearchService;
-import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.util.ISO8601DateFormat;
+import org.alfresco.util.Pair;
 import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.extensions.webscripts.Cache;
 import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 
+import de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsIndex;
+import de.axelfaust.alfresco.trash.management.repo.archive.NameNGrams;
+
 /**
  * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
  */
 public class ArchivedItemsQueryGet extends AbstractArchivedItemsRetrievalWebScript
 {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsQueryGet.class);
+
     private static final String PARAM_BASE_STORE = "baseStore";
 
+    private static final String BASE_STORE_ALL = "all";
+
     private static final String PARAM_ARCHIVED_BY_USER = "archivedByUser";
 
     private static final String PARAM_TOP_LEVEL = "topLevel";
 
     private static final String PARAM_NAME_FILTER = "name";
 
+    private static final String PARAM_ORIGINAL_LOCATION = "originalLocation";
+
     private static final String PARAM_FILTER_QUERY = "filterQuery";
 
+    private static final String PARAM_KEYWORDS = "keywords";
+
+    private static final String PARAM_SEARCH_MODE = "searchMode";
+
+    private static final String SEARCH_MODE_METADATA = "metadata";
+
+    private static final String SEARCH_MODE_CONTENT = "content";
+
+    private static final String KEYWORDS_TEMPLATE_METADATA = "%(cm:name cm:title cm:description ia:whatEvent ia:descriptionEvent "
+            + "lnk:title lnk:description btmm:originalDisplayPath)";
+
+    private static final String KEYWORDS_TEMPLATE_CONTENT = "%(cm:name cm:title cm:description ia:whatEvent ia:descriptionEvent "
+            + "lnk:title lnk:description btmm:originalDisplayPath TEXT TAG)";
+
     private static final String PARAM_FILTER_QUERY_DEFAULT_OPERATOR = "defaultOperator";
 
     private static final String PARAM_FILTER_QUERY_DEFAULT_TEMPLATE = "defaultQueryTemplate";
@@ -60,10 +96,10 @@ public class ArchivedItemsQueryGet extends AbstractArchivedItemsRetrievalWebScri
 
     private static final String PARAM_FILTER_ARCHIVE_DATE_TO = "archiveDateTo";
 
-    protected NamespaceService namespaceService;
-
     protected NodeArchiveService nodeArchiveService;
 
+    protected ArchivedItemsIndex archivedItemsIndex;
+
     /**
      *
      * {@inheritDoc}
@@ -72,43 +108,422 @@ public class ArchivedItemsQueryGet extends AbstractArchivedItemsRetrievalWebScri
     public void afterPropertiesSet()
     {
         super.afterPropertiesSet();
-        PropertyCheck.mandatory(this, "namespaceService", this.namespaceService);
         PropertyCheck.mandatory(this, "nodeArchiveService", this.nodeArchiveService);
     }
 
     /**
-     * @param namespaceService
-     *            the namespaceService to set
+     * @param nodeArchiveService
+     *            the nodeArchiveService to set
      */
-    public void setNamespaceService(final NamespaceService namespaceService)
+    public void setNodeArchiveService(final NodeArchiveService nodeArchiveService)
     {
-        this.namespaceService = namespaceService;
+        this.nodeArchiveService = nodeArchiveService;
     }
 
     /**
-     * @param nodeArchiveService
-     *            the nodeArchiveService to set
+     * @param archivedItemsIndex
+     *            the archivedItemsIndex to set
      */
-    public void setNodeArchiveService(final NodeArchiveService nodeArchiveService)
+    public void setArchivedItemsIndex(final ArchivedItemsIndex archivedItemsIndex)
     {
-        this.nodeArchiveService = nodeArchiveService;
+        this.archivedItemsIndex = archivedItemsIndex;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    protected Map<String, Object> executeRetrievalRequest(final WebScriptRequest req, final Status status, final Cache cache)
     {
         final String baseStoreParam = this.getParameter(req, PARAM_BASE_STORE);
-        final StoreRef baseStore = baseStoreParam != null && !baseStoreParam.isEmpty() ? new StoreRef(baseStoreParam)
-                : StoreRef.STORE_REF_WORKSPACE_SPACESSTORE;
+        final List<StoreRef> baseStores = this.resolveBaseStores(baseStoreParam);
 
-        final NodeRef storeArchiveNode = this.nodeArchiveService.getStoreArchiveNode(baseStore);
-        final Map<String, Object> model = this.executeImpl(req, storeArchiveNode, status, cache);
+        final List<NodeRef> storeArchiveNodes = new ArrayList<>();
+        for (final StoreRef baseStore : baseStores)
+        {
+            final NodeRef storeArchiveNode = this.nodeArchiveService.getStoreArchiveNode(baseStore);
+            if (storeArchiveNode != null && !storeArchiveNodes.contains(storeArchiveNode))
+            {
+                storeArchiveNodes.add(storeArchiveNode);
+            }
+        }
+
+        final Map<String, Object> model = this.executeImpl(req, storeArchiveNodes, status, cache);
         return model;
     }
 
+    /**
+     * Resolves the base stores for which archived items should be queried. The parameter value may either be empty (defaulting to
+     * {@link StoreRef#STORE_REF_WORKSPACE_SPACESSTORE the default workspace store}), a comma-separated list of store references or
+     * {@code all} to select all stores of the current tenant.
+     *
+     * @param baseStoreParam
+     *            the value of the base store parameter
+     * @return the list of base stores
+     */
+    protected List<StoreRef> resolveBaseStores(final String baseStoreParam)
+    {
+        final List<StoreRef> baseStores = new ArrayList<>();
+        if (baseStoreParam == null || baseStoreParam.isEmpty())
+        {
+            baseStores.add(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+        }
+        else if (BASE_STORE_ALL.equalsIgnoreCase(baseStoreParam))
+        {
+            // stores without an archive (including archive stores themselves) are filtered by caller
+            baseStores.addAll(this.nodeService.getStores());
+        }
+        else
+        {
+            for (final String baseStoreFragment : baseStoreParam.split(","))
+            {
+                final String baseStoreStr = baseStoreFragment.trim();
+                if (!baseStoreStr.isEmpty())
+                {
+                    baseStores.add(new StoreRef(baseStoreStr));
+                }
+            }
+        }
+        return baseStores;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation answers top-level listings from the {@link ArchivedItemsIndex archived items index} if the index is ready and
+     * the request only uses filters (archiver, name fragment and archive date range) and sorting (archive date) supported by the index.
+     */
+    @Override
+    protected boolean executeIndexedQuery(final WebScriptRequest req, final List<NodeRef> archiveContextNodes, final int pageSize,
+            final int startIndex, final Map<String, Object> model, final Map<String, Object> paginationModel)
+    {
+        final ArchivedItemsIndex.Query query = this.archivedItemsIndex != null && this.archivedItemsIndex.isReady()
+                ? this.buildIndexQuery(req, archiveContextNodes)
+                : null;
+
+        boolean handled = false;
+        if (query != null)
+        {
+            final ArchivedItemsIndex.QueryResult result = this.archivedItemsIndex.query(query, this.getIndexAcceptor(), startIndex,
+                    pageSize);
+            if (result != null)
+            {
+                final List<Map<String, Object>> results = this.processResults(result.getPage(), this.createEnrichmentContext(req));
+                model.put(RESPONSE_RESULTS, results);
+                this.putPaginationCounts(paginationModel, result.getPage().size(), results, result.getNumberFound());
+                if (!result.isNumberFoundExact())
+                {
+                    // lower bound only, still exceeding the end of the page if there are any further items
+                    paginationModel.put(RESPONSE_NUMBER_FOUND_APPROXIMATE, Boolean.TRUE);
+                }
+                handled = true;
+            }
+        }
+        return handled;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation takes the snapshot from the {@link ArchivedItemsIndex archived items index} under the same conditions as
+     * {@link #executeIndexedQuery(WebScriptRequest, List, int, int, Map, Map) regular pages}.
+     */
+    @Override
+    protected Pair<List<NodeRef>, Long> collectSnapshotNodes(final WebScriptRequest req, final List<NodeRef> archiveContextNodes,
+            final int maxItems)
+    {
+        final ArchivedItemsIndex.Query query = this.archivedItemsIndex != null && this.archivedItemsIndex.isReady()
+                ? this.buildIndexQuery(req, archiveContextNodes)
+                : null;
+
+        final ArchivedItemsIndex.QueryResult result = query != null
+                ? this.archivedItemsIndex.query(query, this.getIndexAcceptor(), 0, maxItems)
+                : null;
+
+        final Pair<List<NodeRef>, Long> nodes = result != null
+                ? new Pair<>(new ArrayList<>(result.getPage()), Long.valueOf(result.getNumberFound()))
+                : super.collectSnapshotNodes(req, archiveContextNodes, maxItems);
+        return nodes;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation removes the false positives of name filters evaluated via {@link NameNGrams name n-grams}, i.e. names
+     * containing all n-grams of the filter term, but not contiguously.
+     */
+    @Override
+    protected Predicate<NodeRef> getResultFilter(final WebScriptRequest req)
+    {
+        final String nameTerm = this.getNameNGramsTerm(req);
+        Predicate<NodeRef> resultFilter = null;
+        if (nameTerm != null && nameTerm.length() > NameNGrams.MAX_NGRAM_LENGTH)
+        {
+            final String normalisedNameTerm = nameTerm.toLowerCase(Locale.ENGLISH);
+            resultFilter = node -> {
+                final String name = DefaultTypeConverter.INSTANCE.convert(String.class,
+                        this.nodeService.getProperty(node, ContentModel.PROP_NAME));
+                return name != null && name.toLowerCase(Locale.ENGLISH).contains(normalisedNameTerm);
+            };
+        }
+        return resultFilter;
+    }
+
+    /**
+     * Determines the term of the name filter of a request if it is evaluated as a substring search via {@link NameNGrams name n-grams},
+     * which requires a top-level query, a completed backfill and a term without any inner wildcards.
+     *
+     * @param req
+     *            the request being processed
+     * @return the name filter term or {@code null} if the name filter of the request (if any) is not evaluated via name n-grams
+     */
+    protected String getNameNGramsTerm(final WebScriptRequest req)
+    {
+        final String filterNameParam = this.getParameter(req, PARAM_NAME_FILTER);
+        final String nameTerm = filterNameParam != null ? filterNameParam.replaceAll("^\\*+|\\*+$", "") : "";
+
+        String nGramsTerm = null;
+        if (this.isTopLevelQuery(req) && this.nameNGramsBackfill != null && this.nameNGramsBackfill.isComplete() && !nameTerm.isEmpty()
+                && nameTerm.indexOf('*') == -1 && nameTerm.indexOf('?') == -1)
+        {
+            nGramsTerm = nameTerm;
+        }
+        return nGramsTerm;
+    }
+
+    /**
+     * Determines the acceptor for results from the {@link ArchivedItemsIndex archived items index}. Administrators may read all
+     * archived items, so no permission checks are needed and the index can provide an exact number of found items.
+     *
+     * @return the acceptor for results from the index or {@code null} if all results are accepted
+     */
+    protected Predicate<NodeRef> getIndexAcceptor()
+    {
+        final Predicate<NodeRef> acceptor;
+        if (this.isRunAsAdministrator())
+        {
+            acceptor = null;
+        }
+        else
+        {
+            acceptor = nodeRef -> this.permissionService.hasPermission(nodeRef, PermissionService.READ) == AccessStatus.ALLOWED;
+        }
+        return acceptor;
+    }
+
+    /**
+     * Builds the query against the {@link ArchivedItemsIndex archived items index} for a request.
+     *
+     * @param req
+     *            the request being processed
+     * @param archiveContextNodes
+     *            the archive context nodes to query
+     * @return the index query or {@code null} if the request cannot be answered from the index
+     */
+    protected ArchivedItemsIndex.Query buildIndexQuery(final WebScriptRequest req, final List<NodeRef> archiveContextNodes)
+    {
+        final boolean topLevel = this.isTopLevelQuery(req);
+        final String filterQueryParam = this.getParameter(req, PARAM_FILTER_QUERY);
+        final String keywordsParam = this.getParameter(req, PARAM_KEYWORDS);
+        final String originalLocationParam = this.getParameter(req, PARAM_ORIGINAL_LOCATION);
+        final String filterNameParam = this.getParameter(req, PARAM_NAME_FILTER);
+
+        final SortField sortField = this.getSortField(req);
+
+        ArchivedItemsIndex.Query query = null;
+        if (topLevel && (filterQueryParam == null || filterQueryParam.isEmpty()) && (keywordsParam == null || keywordsParam.isEmpty())
+                && (originalLocationParam == null || originalLocationParam.isEmpty()) && sortField == SortField.ARCHIVED_DATE)
+        {
+            String nameFragment = null;
+            if (filterNameParam != null && !filterNameParam.isEmpty())
+            {
+                // index only supports the default "contains" semantics of the name filter
+                nameFragment = filterNameParam.replaceAll("^\\*+|\\*+$", "");
+            }
+
+            if (nameFragment == null || (nameFragment.indexOf('*') == -1 && nameFragment.indexOf('?') == -1))
+            {
+                query = new ArchivedItemsIndex.Query();
+                for (final NodeRef archiveContextNode : archiveContextNodes)
+                {
+                    query.addStore(archiveContextNode.getStoreRef());
+                }
+                query.setArchiver(this.getParameter(req, PARAM_ARCHIVED_BY_USER));
+                query.setNameFragment(nameFragment != null && !nameFragment.isEmpty() ? nameFragment : null);
+                query.setAscending(this.isSortAscending(req, sortField));
+
+                try
+                {
+                    query.setArchivedFrom(this.parseIndexDateBound(this.getParameter(req, PARAM_FILTER_ARCHIVE_DATE_FROM), "MIN"));
+                    query.setArchivedTo(this.parseIndexDateBound(this.getParameter(req, PARAM_FILTER_ARCHIVE_DATE_TO), "NOW"));
+                }
+                catch (final AlfrescoRuntimeException arex)
+                {
+                    // e.g. SOLR date math expressions
+                    LOGGER.debug("Archive date filter not supported by archived items index - falling back to query", arex);
+                    query = null;
+                }
+            }
+        }
+        return query;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation supports hybrid consistency for listings without a custom filter query or keywords and with archive date filters
+     * specified as absolute dates. For listings that are not limited to top-level archived items, nodes need to be the root of an
+     * archived tree or one of its descendants.
+     */
+    @Override
+    protected Predicate<NodeRef> buildTransactionDeltaFilter(final WebScriptRequest req, final NodeRef archiveContextNode)
+    {
+        final boolean topLevel = this.isTopLevelQuery(req);
+        final String filterQueryParam = this.getParameter(req, PARAM_FILTER_QUERY);
+        final String keywordsParam = this.getParameter(req, PARAM_KEYWORDS);
+
+        Predicate<NodeRef> filter = null;
+        if ((filterQueryParam == null || filterQueryParam.isEmpty()) && (keywordsParam == null || keywordsParam.isEmpty()))
+        {
+            final String archivedByUserParam = this.getParameter(req, PARAM_ARCHIVED_BY_USER);
+            final String filterNameParam = this.getParameter(req, PARAM_NAME_FILTER);
+            final String originalLocationParam = this.getParameter(req, PARAM_ORIGINAL_LOCATION);
+            final String originalLocationPrefix = originalLocationParam != null && !originalLocationParam.isEmpty()
+                    ? originalLocationParam.toLowerCase(Locale.ENGLISH)
+                    : null;
+
+            try
+            {
+                final Date archivedFrom = this.parseIndexDateBound(this.getParameter(req, PARAM_FILTER_ARCHIVE_DATE_FROM), "MIN");
+                final Date archivedTo = this.parseIndexDateBound(this.getParameter(req, PARAM_FILTER_ARCHIVE_DATE_TO), "NOW");
+
+                Pattern namePattern = null;
+                if (filterNameParam != null && !filterNameParam.isEmpty())
+                {
+                    // same "contains" semantics with wildcards as the name filter query
+                    final StringBuilder namePatternBuilder = new StringBuilder();
+                    for (final String fragment : filterNameParam.replaceAll("^\\*+|\\*+$", "").split("(?=[*?])|(?<=[*?])"))
+                    {
+                        if ("*".equals(fragment))
+                        {
+                            namePatternBuilder.append(".*");
+                        }
+                        else if ("?".equals(fragment))
+                        {
+                            namePatternBuilder.append('.');
+                        }
+                        else if (!fragment.isEmpty())
+                        {
+                            namePatternBuilder.append(Pattern.quote(fragment));
+                        }
+                    }
+                    namePattern = Pattern.compile(namePatternBuilder.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                }
+
+                final Pattern effectiveNamePattern = namePattern;
+                filter = node -> {
+                    final NodeRef archivedRoot;
+                    if (topLevel)
+                    {
+                        archivedRoot = this.nodeService.hasAspect(node, ContentModel.ASPECT_ARCHIVED) ? node : null;
+                    }
+                    else
+                    {
+                        archivedRoot = this.findArchivedRoot(node);
+                    }
+
+                    // large archived trees being purged in chunks are hidden with all their descendants from listings of all levels
+                    boolean matches = archivedRoot != null
+                            && !this.nodeService.hasAspect(archivedRoot, BetterTrashManagementModel.ASPECT_PURGE_IN_PROGRESS);
+
+                    if (matches && archivedByUserParam != null)
+                    {
+                        // equivalent to the archive user node being an ancestor for listings of all levels
+                        matches = archivedByUserParam.equals(DefaultTypeConverter.INSTANCE.convert(String.class,
+                                this.nodeService.getProperty(archivedRoot, ContentModel.PROP_ARCHIVED_BY)));
+                    }
+
+                    if (matches && effectiveNamePattern != null)
+                    {
+                        final String name = DefaultTypeConverter.INSTANCE.convert(String.class,
+                                this.nodeService.getProperty(node, ContentModel.PROP_NAME));
+                        matches = name != null && effectiveNamePattern.matcher(name).find();
+                    }
+
+                    if (matches && originalLocationPrefix != null)
+                    {
+                        final String originalDisplayPath = DefaultTypeConverter.INSTANCE.convert(String.class,
+                                this.nodeService.getProperty(node, BetterTrashManagementModel.PROP_ORIGINAL_DISPLAY_PATH));
+                        matches = originalDisplayPath != null
+                                && originalDisplayPath.toLowerCase(Locale.ENGLISH).startsWith(originalLocationPrefix);
+                    }
+
+                    if (matches && (archivedFrom != null || archivedTo != null))
+                    {
+                        final Date archivedDate = DefaultTypeConverter.INSTANCE.convert(Date.class,
+                                this.nodeService.getProperty(node, ContentModel.PROP_ARCHIVED_DATE));
+                        matches = archivedDate != null && (archivedFrom == null || !archivedDate.before(archivedFrom))
+                                && (archivedTo == null || !archivedDate.after(archivedTo));
+                    }
+                    return matches;
+                };
+            }
+            catch (final AlfrescoRuntimeException arex)
+            {
+                // e.g. SOLR date math expressions
+                LOGGER.debug("Archive date filter cannot be evaluated against the database - not using hybrid consistency", arex);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Finds the root of the archived tree containing a node by walking up its primary parents.
+     *
+     * @param node
+     *            the node to check
+     * @return the root of the archived tree or {@code null} if the node is not contained in an archived tree
+     */
+    protected NodeRef findArchivedRoot(final NodeRef node)
+    {
+        NodeRef current = node;
+        while (current != null && !this.nodeService.hasAspect(current, ContentModel.ASPECT_ARCHIVED))
+        {
+            if (ContentModel.TYPE_ARCHIVE_USER.equals(this.nodeService.getType(current)))
+            {
+                current = null;
+            }
+            else
+            {
+                final ChildAssociationRef parentAssoc = this.nodeService.getPrimaryParent(current);
+                current = parentAssoc != null ? parentAssoc.getParentRef() : null;
+            }
+        }
+        return current;
+    }
+
+    protected Date parseIndexDateBound(final String dateParam, final String unboundedValue)
+    {
+        Date date = null;
+        if (dateParam != null && !dateParam.isEmpty() && !unboundedValue.equalsIgnoreCase(dateParam))
+        {
+            date = ISO8601DateFormat.parse(dateParam);
+        }
+        return date;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isTopLevelQuery(final WebScriptRequest req)
+    {
+        final String topLevelParam = this.getParameter(req, PARAM_TOP_LEVEL);
+        final boolean topLevel = topLevelParam != null && !topLevelParam.isEmpty() ? Boolean.parseBoolean(topLevelParam) : true;
+        return topLevel;
+    }
+
     /**
      *
      * {@inheritDoc}
@@ -118,15 +533,32 @@ public class ArchivedItemsQueryGet extends AbstractArchivedItemsRetrievalWebScri
             final int startIndex)
     {
         final String archivedByUserParam = this.getParameter(req, PARAM_ARCHIVED_BY_USER);
-        final String topLevelParam = this.getParameter(req, PARAM_TOP_LEVEL);
-        final boolean topLevel = topLevelParam != null && !topLevelParam.isEmpty() ? Boolean.parseBoolean(topLevelParam) : true;
+        final boolean topLevel = this.isTopLevelQuery(req);
 
         final String filterNameParam = this.getParameter(req, PARAM_NAME_FILTER);
+        final String originalLocationParam = this.getParameter(req, PARAM_ORIGINAL_LOCATION);
 
         final String filterQueryParam = this.getParameter(req, PARAM_FILTER_QUERY);
+        final String keywordsParam = this.getParameter(req, PARAM_KEYWORDS);
+        final String searchModeParam = this.getParameter(req, PARAM_SEARCH_MODE);
         final String defaultOperator = this.getParameter(req, PARAM_FILTER_QUERY_DEFAULT_OPERATOR);
         final String defaultQueryTemplate = this.getParameter(req, PARAM_FILTER_QUERY_DEFAULT_TEMPLATE);
 
+        final boolean contentSearch;
+        if (searchModeParam == null || searchModeParam.isEmpty() || SEARCH_MODE_METADATA.equalsIgnoreCase(searchModeParam))
+        {
+            // full-text content matching is by far the most expensive query - only on explicit request
+            contentSearch = false;
+        }
+        else if (SEARCH_MODE_CONTENT.equalsIgnoreCase(searchModeParam))
+        {
+            contentSearch = true;
+        }
+        else
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unsupported search mode " + searchModeParam);
+        }
+
         final String filterArchiveDateFromParam = this.getParameter(req, PARAM_FILTER_ARCHIVE_DATE_FROM);
         final String filterArchiveDateToParam = this.getParameter(req, PARAM_FILTER_ARCHIVE_DATE_TO);
 
@@ -134,7 +566,7 @@ public class ArchivedItemsQueryGet extends AbstractArchivedItemsRetrievalWebScri
         sp.addStore(archiveContextNode.getStoreRef());
         sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
         // TODO Switch to TRANSACTIONAL_IF_POSSIBLE when we can handle paginated topLevel queries for large archived elements counts in
-        // an efficient manner
+        // an efficient manner - until then, hybrid consistency merges in the changes not yet tracked by the index
         sp.setQueryConsistency(QueryConsistency.EVENTUAL);
 
         final StringBuilder queryBuilder = new StringBuilder();
@@ -142,10 +574,14 @@ public class ArchivedItemsQueryGet extends AbstractArchivedItemsRetrievalWebScri
         {
             if (archivedByUserParam != null)
             {
-                queryBuilder.append('=').append(ContentModel.PROP_ARCHIVED_BY.toPrefixString(this.namespaceService)).append(":\"")
-                        .append(archivedByUserParam).append('"').append(" AND ");
+                // separate filter query can be cached independently of the (constant) main query
+                sp.addFilterQuery('=' + ContentModel.PROP_ARCHIVED_BY.toPrefixString(this.namespaceService) + ":\""
+                        + archivedByUserParam.replace("\\", "\\\\").replace("\"", "\\\"") + '"');
             }
             queryBuilder.append("ASPECT:\"").append(ContentModel.ASPECT_ARCHIVED.toPrefixString(this.namespaceService)).append('"');
+            // large archived trees being purged in chunks are hidden as soon as the purge has been requested
+            queryBuilder.append(" AND NOT ASPECT:\"")
+                    .append(BetterTrashManagementModel.ASPECT_PURGE_IN_PROGRESS.toPrefixString(this.namespaceService)).append('"');
         }
         else if (archivedByUserParam != null)
         {
@@ -166,20 +602,52 @@ public class ArchivedItemsQueryGet extends AbstractArchivedItemsRetrievalWebScri
         if (filterNameParam != null && !filterNameParam.isEmpty())
         {
             queryBuilder.delete(0, queryBuilder.length());
-            queryBuilder.append('=').append(ContentModel.PROP_NAME.toPrefixString(this.namespaceService)).append(":\"");
-            if (!filterNameParam.startsWith("*"))
+
+            final String nameTerm = this.getNameNGramsTerm(req);
+            if (nameTerm != null)
             {
-                queryBuilder.append('*');
+                // substring search as plain term lookups instead of expensive leading wildcard query (n-grams only exist on archived roots)
+                final String nGramsField = BetterTrashManagementModel.PROP_NAME_NGRAMS.toPrefixString(this.namespaceService);
+                for (final String nGram : NameNGrams.buildQueryNGrams(nameTerm))
+                {
+                    if (queryBuilder.length() > 0)
+                    {
+                        queryBuilder.append(" AND ");
+                    }
+                    queryBuilder.append('=').append(nGramsField).append(":\"")
+                            .append(nGram.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                }
             }
-            queryBuilder.append(filterNameParam.replace("\\", "\\\\").replace("\"", "\\\""));
-            if (!filterNameParam.endsWith("*"))
+            else
             {
-                queryBuilder.append('*');
+                queryBuilder.append('=').append(ContentModel.PROP_NAME.toPrefixString(this.namespaceService)).append(":\"");
+                if (!filterNameParam.startsWith("*"))
+                {
+                    queryBuilder.append('*');
+                }
+                queryBuilder.append(filterNameParam.replace("\\", "\\\\").replace("\"", "\\\""));
+                if (!filterNameParam.endsWith("*"))
+                {
+                    queryBuilder.append('*');
+                }
+                queryBuilder.append('"');
             }
-            queryBuilder.append('"');
             sp.addFilterQuery(queryBuilder.toString());
         }
 
+        if (originalLocationParam != null && !originalLocationParam.isEmpty())
+        {
+            // recorded at the time of archiving on archived roots only - matches the location and any of its sub-folders
+            sp.addFilterQuery('=' + BetterTrashManagementModel.PROP_ORIGINAL_DISPLAY_PATH.toPrefixString(this.namespaceService) + ":\""
+                    + originalLocationParam.replace("\\", "\\\\").replace("\"", "\\\"") + "*\"");
+        }
+
+        if (keywordsParam != null && !keywordsParam.isEmpty())
+        {
+            // matched against the default field, i.e. the "keywords" template
+            sp.addFilterQuery(keywordsParam);
+        }
+
         if (filterQueryParam != null && !filterQueryParam.isEmpty())
         {
             sp.addFilterQuery(filterQueryParam);
@@ -197,8 +665,7 @@ public class ArchivedItemsQueryGet extends AbstractArchivedItemsRetrievalWebScri
         }
         else
         {
-            sp.addQueryTemplate("keywords",
-                    "%(cm:name cm:title cm:description ia:whatEvent ia:descriptionEvent lnk:title lnk:description TEXT TAG)");
+            sp.addQueryTemplate("keywords", contentSearch ? KEYWORDS_TEMPLATE_CONTENT : KEYWORDS_TEMPLATE_METADATA);
         }
 
         if ((filterArchiveDateFromParam != null && !filterArchiveDateFromParam.isEmpty())
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.archive.NodeArchiveService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsSpaceEstimator;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsSpaceEstimator.SpaceEstimate;
+
+/**
+ * This web script ranks the archived items of an archive store by the storage that would be reclaimed by purging them, allowing
+ * administrators to free the most storage with the fewest purge operations.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsReclaimableGet extends DeclarativeWebScript implements InitializingBean
+{
+
+    private static final String PARAM_BASE_STORE = "baseStore";
+
+    private static final String PARAM_MAX_ITEMS = "maxItems";
+
+    protected NodeService nodeService;
+
+    protected NodeArchiveService nodeArchiveService;
+
+    protected ArchivedItemsSpaceEstimator spaceEstimator;
+
+    protected int defaultMaxItems = 50;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "nodeArchiveService", this.nodeArchiveService);
+        PropertyCheck.mandatory(this, "spaceEstimator", this.spaceEstimator);
+    }
+
+    /**
+     * @param nodeService
+     *            the nodeService to set
+     */
+    public void setNodeService(final NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param nodeArchiveService
+     *            the nodeArchiveService to set
+     */
+    public void setNodeArchiveService(final NodeArchiveService nodeArchiveService)
+    {
+        this.nodeArchiveService = nodeArchiveService;
+    }
+
+    /**
+     * @param spaceEstimator
+     *            the spaceEstimator to set
+     */
+    public void setSpaceEstimator(final ArchivedItemsSpaceEstimator spaceEstimator)
+    {
+        this.spaceEstimator = spaceEstimator;
+    }
+
+    /**
+     * @param defaultMaxItems
+     *            the number of archived items to return if the request does not specify a limit
+     */
+    public void setDefaultMaxItems(final int defaultMaxItems)
+    {
+        this.defaultMaxItems = defaultMaxItems;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        final String baseStoreParam = req.getParameter(PARAM_BASE_STORE);
+        final String maxItemsParam = req.getParameter(PARAM_MAX_ITEMS);
+
+        final StoreRef baseStore = baseStoreParam != null && !baseStoreParam.isEmpty() ? new StoreRef(baseStoreParam)
+                : StoreRef.STORE_REF_WORKSPACE_SPACESSTORE;
+        final int maxItems;
+        try
+        {
+            maxItems = maxItemsParam != null && !maxItemsParam.isEmpty() ? Integer.parseInt(maxItemsParam, 10) : this.defaultMaxItems;
+        }
+        catch (final NumberFormatException nfex)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid maxItems " + maxItemsParam, nfex);
+        }
+
+        final NodeRef storeArchiveNode = this.nodeArchiveService.getStoreArchiveNode(baseStore);
+        if (storeArchiveNode == null)
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "No archive store for " + baseStore);
+        }
+
+        final List<SpaceEstimate> estimates = this.spaceEstimator.rankArchivedRoots(storeArchiveNode.getStoreRef(), Math.max(maxItems, 1));
+
+        final List<Map<String, Object>> items = new ArrayList<>();
+        for (final SpaceEstimate estimate : estimates)
+        {
+            final Map<QName, Serializable> properties = this.nodeService.getProperties(estimate.getNodeRef());
+
+            final Map<String, Object> item = new HashMap<>();
+            item.put("nodeRef", estimate.getNodeRef());
+            item.put("name", properties.get(ContentModel.PROP_NAME));
+            item.put("archivedBy", properties.get(ContentModel.PROP_ARCHIVED_BY));
+            item.put("archivedDate", properties.get(ContentModel.PROP_ARCHIVED_DATE));
+            item.put("nodeCount", Long.valueOf(estimate.getNodeCount()));
+            item.put("reclaimableBytes", Long.valueOf(estimate.getReclaimableBytes()));
+            items.add(item);
+        }
+
+        final Map<String, Object> model = new HashMap<>();
+        model.put("items", items);
+        return model;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.util.PropertyCheck;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * This web script allows clients to cancel the processing of a retrieval request for archived items they have abandoned.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsRequestCancelPost extends DeclarativeWebScript implements InitializingBean
+{
+
+    private static final String URL_PARAM_REQUEST_ID = "requestId";
+
+    protected RequestCancellationRegistry requestCancellationRegistry;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "requestCancellationRegistry", this.requestCancellationRegistry);
+    }
+
+    /**
+     * @param requestCancellationRegistry
+     *            the requestCancellationRegistry to set
+     */
+    public void setRequestCancellationRegistry(final RequestCancellationRegistry requestCancellationRegistry)
+    {
+        this.requestCancellationRegistry = requestCancellationRegistry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        final String requestId = req.getServiceMatch().getTemplateVars().get(URL_PARAM_REQUEST_ID);
+        if (requestId == null || requestId.isEmpty())
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No request ID provided");
+        }
+
+        final Map<String, Object> model = new HashMap<>();
+        model.put("cancelled", Boolean.valueOf(this.requestCancellationRegistry.cancel(AuthenticationUtil.getFullyAuthenticatedUser(),
+                requestId)));
+        return model;
+    }
+}
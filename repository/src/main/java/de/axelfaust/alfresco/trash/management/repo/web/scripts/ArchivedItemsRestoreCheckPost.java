@@ -0,0 +1,444 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.web.scripts.archive.AbstractArchivedNodeWebScript;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Instances of this web script check whether a selection of archived items can be restored to their original location without actually
+ * restoring them, determining a verdict for each item. Original parent associations are resolved in bulk, sibling name conflicts are
+ * checked with one child name lookup per original parent (and batch of names), and the permission to create children is evaluated only
+ * once per distinct ACL of the original parents.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsRestoreCheckPost extends AbstractArchivedNodeWebScript implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsRestoreCheckPost.class);
+
+    private static final String RESPONSE_RESULTS = "results";
+
+    private static final String RESPONSE_RESTORABLE_COUNT = "restorableCount";
+
+    private static final String RESPONSE_FAILING_COUNT = "failingCount";
+
+    private static final String ITEM_NODE_REF = "nodeRef";
+
+    private static final String ITEM_VERDICT = "verdict";
+
+    private static final String ITEM_ORIGINAL_PARENT = "originalParent";
+
+    protected NodeDAO nodeDAO;
+
+    protected NodeService nodeService;
+
+    protected PermissionService permissionService;
+
+    protected AuthorityService authorityService;
+
+    protected int batchSize = 500;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "nodeDAO", this.nodeDAO);
+        PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "permissionService", this.permissionService);
+        PropertyCheck.mandatory(this, "authorityService", this.authorityService);
+    }
+
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param nodeService
+     *            the (non-public) nodeService to set - sibling name conflicts need to be detected irrespective of permissions
+     */
+    public void setNodeService(final NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param permissionService
+     *            the permissionService to set
+     */
+    public void setPermissionService(final PermissionService permissionService)
+    {
+        this.permissionService = permissionService;
+    }
+
+    /**
+     * @param authorityService
+     *            the authorityService to set
+     */
+    public void setAuthorityService(final AuthorityService authorityService)
+    {
+        this.authorityService = authorityService;
+    }
+
+    /**
+     * @param batchSize
+     *            the maximum number of names to look up in a single child name lookup
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest req, final Status status, final Cache cache)
+    {
+        final Object parsedContent = req.parseContent();
+        if (!(parsedContent instanceof JSONObject))
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No or invalid request data provided - only JSON data is supported");
+        }
+
+        final Set<NodeRef> selectedNodes = new LinkedHashSet<>();
+        try
+        {
+            final JSONArray nodesArr = ((JSONObject) parsedContent).getJSONArray("nodes");
+            for (int slot = 0; slot < nodesArr.length(); slot++)
+            {
+                final String nodeRefStr = nodesArr.getString(slot);
+                if (nodeRefStr != null && NodeRef.isNodeRef(nodeRefStr))
+                {
+                    selectedNodes.add(new NodeRef(nodeRefStr));
+                }
+            }
+        }
+        catch (final JSONException jsonEx)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid request JSON data", jsonEx);
+        }
+
+        final List<NodeRef> nodes = new ArrayList<>(selectedNodes);
+        LOGGER.debug("Checking restore of {} nodes", nodes.size());
+        final Map<NodeRef, Pair<RestoreVerdict, NodeRef>> verdicts = this.checkRestore(nodes, AuthenticationUtil.getRunAsUser());
+
+        final List<Map<String, Object>> results = new ArrayList<>();
+        int restorableCount = 0;
+        for (final NodeRef node : nodes)
+        {
+            final Pair<RestoreVerdict, NodeRef> verdict = verdicts.get(node);
+            if (verdict.getFirst().isRestorable())
+            {
+                restorableCount++;
+            }
+
+            final Map<String, Object> itemObj = new HashMap<>();
+            itemObj.put(ITEM_NODE_REF, node);
+            itemObj.put(ITEM_VERDICT, verdict.getFirst());
+            itemObj.put(ITEM_ORIGINAL_PARENT, verdict.getSecond());
+            results.add(itemObj);
+        }
+
+        final Map<String, Object> model = new HashMap<>();
+        model.put(RESPONSE_RESULTS, results);
+        model.put(RESPONSE_RESTORABLE_COUNT, Integer.valueOf(restorableCount));
+        model.put(RESPONSE_FAILING_COUNT, Integer.valueOf(nodes.size() - restorableCount));
+        return model;
+    }
+
+    /**
+     * Checks whether a user can restore a set of archived nodes to their original location.
+     *
+     * @param nodes
+     *            the nodes to check
+     * @param user
+     *            the user for which to check the restore
+     * @return the verdicts and (if known) the original parents mapped by node
+     */
+    protected Map<NodeRef, Pair<RestoreVerdict, NodeRef>> checkRestore(final List<NodeRef> nodes, final String user)
+    {
+        final Map<NodeRef, Pair<RestoreVerdict, NodeRef>> verdicts = new LinkedHashMap<>();
+        final boolean administrator = this.authorityService.isAdminAuthority(user);
+
+        this.nodeDAO.cacheNodes(nodes);
+        final Map<NodeRef, ChildAssociationRef> originalParentAssocs = new LinkedHashMap<>();
+        for (final NodeRef node : nodes)
+        {
+            final Pair<Long, NodeRef> nodePair = this.nodeDAO.getNodePair(node);
+            if (nodePair == null)
+            {
+                verdicts.put(node, new Pair<>(RestoreVerdict.NOT_FOUND, null));
+            }
+            else if (!this.nodeDAO.hasNodeAspect(nodePair.getFirst(), ContentModel.ASPECT_ARCHIVED))
+            {
+                verdicts.put(node, new Pair<>(RestoreVerdict.NOT_ARCHIVED, null));
+            }
+            else if (!administrator && !this.canAccessArchivedNode(nodePair, user))
+            {
+                verdicts.put(node, new Pair<>(RestoreVerdict.ACCESS_DENIED, null));
+            }
+            else
+            {
+                final ChildAssociationRef originalParentAssoc = DefaultTypeConverter.INSTANCE.convert(ChildAssociationRef.class,
+                        this.nodeDAO.getNodeProperty(nodePair.getFirst(), ContentModel.PROP_ARCHIVED_ORIGINAL_PARENT_ASSOC));
+                if (originalParentAssoc == null)
+                {
+                    verdicts.put(node, new Pair<>(RestoreVerdict.PARENT_MISSING, null));
+                }
+                else
+                {
+                    originalParentAssocs.put(node, originalParentAssoc);
+                }
+            }
+        }
+
+        final Set<NodeRef> originalParents = new HashSet<>();
+        originalParentAssocs.values().forEach(assoc -> originalParents.add(assoc.getParentRef()));
+        this.nodeDAO.cacheNodes(new ArrayList<>(originalParents));
+
+        final Map<String, Boolean> createAllowedByAclKey = new HashMap<>();
+        final Map<Pair<NodeRef, QName>, Map<String, NodeRef>> restoredNodeByNameByParentAndType = new LinkedHashMap<>();
+        for (final Map.Entry<NodeRef, ChildAssociationRef> entry : originalParentAssocs.entrySet())
+        {
+            final NodeRef node = entry.getKey();
+            final NodeRef originalParent = entry.getValue().getParentRef();
+            final Pair<Long, NodeRef> parentPair = this.nodeDAO.getNodePair(originalParent);
+
+            if (parentPair == null)
+            {
+                // includes parents that have been archived themselves
+                verdicts.put(node, new Pair<>(RestoreVerdict.PARENT_MISSING, originalParent));
+            }
+            else if (!administrator && !this.canCreateChildren(parentPair, user, createAllowedByAclKey))
+            {
+                verdicts.put(node, new Pair<>(RestoreVerdict.PERMISSION_DENIED, originalParent));
+            }
+            else
+            {
+                final String name = DefaultTypeConverter.INSTANCE.convert(String.class,
+                        this.nodeDAO.getNodeProperty(this.nodeDAO.getNodePair(node).getFirst(), ContentModel.PROP_NAME));
+                final Map<String, NodeRef> restoredNodeByName = restoredNodeByNameByParentAndType
+                        .computeIfAbsent(new Pair<>(originalParent, entry.getValue().getTypeQName()), key -> new LinkedHashMap<>());
+
+                // child names are unique irrespective of case
+                final String nameKey = name != null ? name.toLowerCase(Locale.ENGLISH) : null;
+                if (nameKey != null && restoredNodeByName.containsKey(nameKey))
+                {
+                    // first node of the selection with that name wins
+                    verdicts.put(node, new Pair<>(RestoreVerdict.NAME_CONFLICT, originalParent));
+                }
+                else
+                {
+                    if (nameKey != null)
+                    {
+                        restoredNodeByName.put(nameKey, node);
+                    }
+                    verdicts.put(node, new Pair<>(RestoreVerdict.OK, originalParent));
+                }
+            }
+        }
+
+        for (final Map.Entry<Pair<NodeRef, QName>, Map<String, NodeRef>> entry : restoredNodeByNameByParentAndType.entrySet())
+        {
+            final NodeRef originalParent = entry.getKey().getFirst();
+            final Set<String> conflictingNames = this.findExistingChildNames(originalParent, entry.getKey().getSecond(),
+                    entry.getValue().keySet());
+            for (final String conflictingName : conflictingNames)
+            {
+                verdicts.put(entry.getValue().get(conflictingName), new Pair<>(RestoreVerdict.NAME_CONFLICT, originalParent));
+            }
+        }
+
+        return verdicts;
+    }
+
+    /**
+     * Checks whether a user may access (and thus restore) an archived node, which is always the case for the user that archived it.
+     *
+     * @param nodePair
+     *            the ID and reference of the archived node
+     * @param user
+     *            the user for which to check the access
+     * @return {@code true} if the user may access the archived node
+     */
+    protected boolean canAccessArchivedNode(final Pair<Long, NodeRef> nodePair, final String user)
+    {
+        final String archivedBy = DefaultTypeConverter.INSTANCE.convert(String.class,
+                this.nodeDAO.getNodeProperty(nodePair.getFirst(), ContentModel.PROP_ARCHIVED_BY));
+
+        boolean accessible = user.equals(archivedBy);
+        // fast path only covers the most common case - full check deals with any special handling, e.g. case-insensitivity
+        if (!accessible)
+        {
+            try
+            {
+                this.validatePermission(nodePair.getSecond(), user);
+                accessible = true;
+            }
+            catch (final WebScriptException wsex)
+            {
+                LOGGER.trace("User {} may not access archived node {}", user, nodePair.getSecond());
+            }
+        }
+        return accessible;
+    }
+
+    /**
+     * Checks whether a user may create children in an original parent. Decisions are memoised per ACL as the original parents of a
+     * selection typically share only a few ACLs.
+     *
+     * @param parentPair
+     *            the ID and reference of the original parent
+     * @param user
+     *            the user for which to check the permission
+     * @param createAllowedByAclKey
+     *            the memoised decisions
+     * @return {@code true} if the user may create children in the original parent
+     */
+    protected boolean canCreateChildren(final Pair<Long, NodeRef> parentPair, final String user,
+            final Map<String, Boolean> createAllowedByAclKey)
+    {
+        final Long aclId = this.nodeDAO.getNodeAclId(parentPair.getFirst());
+
+        final boolean allowed;
+        if (aclId != null)
+        {
+            // owner is granted permissions independent of the ACL
+            Serializable owner = this.nodeDAO.getNodeProperty(parentPair.getFirst(), ContentModel.PROP_OWNER);
+            if (owner == null)
+            {
+                owner = this.nodeDAO.getNodeProperty(parentPair.getFirst(), ContentModel.PROP_CREATOR);
+            }
+            final boolean owned = user.equals(DefaultTypeConverter.INSTANCE.convert(String.class, owner));
+            final String aclKey = owned ? aclId + "/owned" : String.valueOf(aclId);
+
+            allowed = createAllowedByAclKey.computeIfAbsent(aclKey, key -> Boolean.valueOf(this.hasCreateChildrenPermission(parentPair)))
+                    .booleanValue();
+        }
+        else
+        {
+            allowed = this.hasCreateChildrenPermission(parentPair);
+        }
+        return allowed;
+    }
+
+    protected boolean hasCreateChildrenPermission(final Pair<Long, NodeRef> parentPair)
+    {
+        final boolean allowed = this.permissionService.hasPermission(parentPair.getSecond(),
+                PermissionService.CREATE_CHILDREN) == AccessStatus.ALLOWED;
+        return allowed;
+    }
+
+    /**
+     * Determines which of a set of names are already used by children of a parent.
+     *
+     * @param parent
+     *            the parent
+     * @param assocTypeQName
+     *            the type of association by which the children are associated
+     * @param nameKeys
+     *            the lower-case names to look up
+     * @return the lower-case names already used by children
+     */
+    protected Set<String> findExistingChildNames(final NodeRef parent, final QName assocTypeQName, final Set<String> nameKeys)
+    {
+        final Set<String> existingNames = new HashSet<>();
+        final List<String> names = new ArrayList<>(nameKeys);
+        for (int offset = 0; offset < names.size(); offset += this.batchSize)
+        {
+            final List<String> batch = names.subList(offset, Math.min(offset + this.batchSize, names.size()));
+            final List<ChildAssociationRef> children = this.nodeService.getChildrenByName(parent, assocTypeQName, batch);
+            for (final ChildAssociationRef child : children)
+            {
+                final String childName = DefaultTypeConverter.INSTANCE.convert(String.class,
+                        this.nodeService.getProperty(child.getChildRef(), ContentModel.PROP_NAME));
+                if (childName != null && nameKeys.contains(childName.toLowerCase(Locale.ENGLISH)))
+                {
+                    existingNames.add(childName.toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+        return existingNames;
+    }
+
+    /**
+     * The possible verdicts of checking whether an archived node can be restored to its original location.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    public static enum RestoreVerdict
+    {
+        OK,
+        NOT_FOUND,
+        NOT_ARCHIVED,
+        ACCESS_DENIED,
+        PARENT_MISSING,
+        PERMISSION_DENIED,
+        NAME_CONFLICT;
+
+        /**
+         * @return {@code true} if an archived node with this verdict can be restored
+         */
+        public boolean isRestorable()
+        {
+            return this == OK;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Instances of this class keep track of the retrieval requests currently being processed which have been tagged with a client-provided
+ * request ID, so that clients can cancel the processing of requests they have abandoned, e.g. because filters have been changed while a
+ * query was still running. Servlet containers do not reliably signal a client disconnecting before the response is written, and the Share
+ * proxy would not propagate an abort anyway, so the cancellation needs to be explicitly requested by the client.
+ *
+ * Cancellations for requests which have not been registered yet (client cancelled before the request reached the repository) are
+ * remembered for a limited time, so that the request is cancelled immediately once it is registered.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class RequestCancellationRegistry
+{
+
+    protected final ConcurrentMap<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    protected long pendingCancellationTimeToLive = 60000;
+
+    /**
+     * @param pendingCancellationTimeToLive
+     *            the time (in milliseconds) to remember a cancellation for a request that has not (yet) been registered
+     */
+    public void setPendingCancellationTimeToLive(final long pendingCancellationTimeToLive)
+    {
+        this.pendingCancellationTimeToLive = pendingCancellationTimeToLive;
+    }
+
+    /**
+     * Registers a request being processed.
+     *
+     * @param user
+     *            the user on whose behalf the request is being processed
+     * @param requestId
+     *            the client-provided ID of the request
+     * @return the registration of the request - needs to be {@link Registration#close() closed} when the request has been processed
+     */
+    public Registration register(final String user, final String requestId)
+    {
+        final String key = buildKey(user, requestId);
+        final Registration registration = new Registration(this, key);
+
+        final Registration existingRegistration = this.registrations.put(key, registration);
+        if (existingRegistration != null && existingRegistration.registry == null)
+        {
+            registration.cancelled = true;
+        }
+        return registration;
+    }
+
+    /**
+     * Cancels the processing of a request.
+     *
+     * @param user
+     *            the user on whose behalf the request is being processed - only requests of the same user can be cancelled
+     * @param requestId
+     *            the client-provided ID of the request
+     * @return {@code true} if the request was being processed, {@code false} if the request has not been registered yet (and the
+     *         cancellation has been remembered for a limited time)
+     */
+    public boolean cancel(final String user, final String requestId)
+    {
+        this.expirePendingCancellations();
+
+        final String key = buildKey(user, requestId);
+        final Registration pendingCancellation = new Registration(null, key);
+        pendingCancellation.cancelled = true;
+
+        final Registration registration = this.registrations.putIfAbsent(key, pendingCancellation);
+        if (registration != null)
+        {
+            registration.cancelled = true;
+        }
+        return registration != null && registration.registry != null;
+    }
+
+    protected void expirePendingCancellations()
+    {
+        final long cutOff = System.currentTimeMillis() - this.pendingCancellationTimeToLive;
+        this.registrations.values().removeIf(registration -> registration.registry == null && registration.createdAt < cutOff);
+    }
+
+    protected static String buildKey(final String user, final String requestId)
+    {
+        return user + "/" + requestId;
+    }
+
+    /**
+     * Instances of this class represent the registration of a request being processed.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    public static class Registration implements AutoCloseable
+    {
+
+        private final RequestCancellationRegistry registry;
+
+        private final String key;
+
+        private final long createdAt = System.currentTimeMillis();
+
+        private volatile boolean cancelled;
+
+        protected Registration(final RequestCancellationRegistry registry, final String key)
+        {
+            this.registry = registry;
+            this.key = key;
+        }
+
+        /**
+         * @return {@code true} if the processing of the request has been cancelled by the client
+         */
+        public boolean isCancelled()
+        {
+            return this.cancelled;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+        {
+            if (this.registry != null)
+            {
+                this.registry.registrations.remove(this.key, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+<#compress>
+{
+    "admission": [<#list admission as metric>
+        {
+            "operationClass": "${metric.operationClass?json_string}",
+            "limit": ${metric.limit?c},
+            "active": ${metric.active?c},
+            "queued": ${metric.queued?c},
+            "admitted": ${metric.admitted?c},
+            "rejected": ${metric.rejected?c}
+        }<#if metric_has_next>,</#if></#list>
+    ]
+}
+</#compress>
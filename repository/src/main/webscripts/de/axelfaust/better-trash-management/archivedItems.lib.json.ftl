@@ -1,48 +1,139 @@
 <#macro renderArchivedItemsList results pagination><#compress><#escape x as jsonUtils.encodeJSONString(x)>
+<#if compactTables??>
+<@renderCompactArchivedItemsList results pagination compactTables><#nested /></@>
+<#else>
 {
     "startIndex" : ${pagination.startIndex?c},
     "totalRecords" : ${pagination.totalRecords?c},
     "numberFound" : ${pagination.numberFound?c},
+    <#if pagination.numberFoundApproximate??>"numberFoundApproximate" : ${pagination.numberFoundApproximate?c},</#if>
+    <#if pagination.snapshotToken??>"snapshotToken" : "${pagination.snapshotToken}",</#if>
+    <#if pagination.snapshotTruncated??>"snapshotTruncated" : ${pagination.snapshotTruncated?c},</#if>
     "items": [<#list results as resultItem>
-        {
-            <#assign node = resultItem.node />
-            <#assign version = "1.0">
-            <#if node.hasAspect("cm:versionable")><#assign version = node.properties["cm:versionLabel"]!""></#if>
-            
-            "nodeRef": "${node.nodeRef}",
-            "name": "${node.name}",
-            "nodeType": "${node.type}",
-            "nodeTypeShort": "${shortQName(node.type)}",
-            <#-- simple type - UI in some parts does hard-coded value comparisons -->
-            "type": "${node.isContainer?string('folder', node.isDocument?string('document', 'node'))}",
-            "version": "${version}",
-            <#if node.isDocument>
-                "mimetype": "${node.mimetype!""}",
-                "size": ${node.size?c},
-                "contentUrl": "api/node/content/${node.storeType}/${node.storeId}/${node.id}/${node.name?url}",
-            </#if>
-            "modified": "${xmldate(node.properties.modified)}",
-            "modifier": "${node.properties.modifier}",
-            "modifierDisplayName": "${resultItem.modifier.displayName!""}",
-            "archived": "${xmldate(resultItem.archivedOn)}",
-            "archiver": "${resultItem.archiver.userName}",
-            "archiverDisplayName": "${resultItem.archiver.displayName!""}",
-            "displayPath": "${resultItem.displayPath!""}",
-            "properties": {
-                <#assign lastRendered = false />
-                <#list node.properties?keys as key>
-                    <#if node.properties[key]??>
-                        <#if lastRendered == true>,</#if>"${shortQName(key)}" : <@renderProperty key node.properties[key] />
-                    <#assign lastRendered = true />
-                <#else>
-                    <#assign lastRendered = false />
-                </#if>
-           </#list>
-            }
-        }<#if resultItem_has_next>,</#if>
+        <@renderArchivedItem resultItem /><#if resultItem_has_next>,</#if>
     </#list>]
     <#nested />
 }
+</#if>
+</#escape></#compress></#macro>
+
+<#-- users, original parent paths and qualified names are only referenced by their index in side tables -->
+<#macro renderCompactArchivedItemsList results pagination tables><#compress><#escape x as jsonUtils.encodeJSONString(x)>
+{
+    "startIndex" : ${pagination.startIndex?c},
+    "totalRecords" : ${pagination.totalRecords?c},
+    "numberFound" : ${pagination.numberFound?c},
+    <#if pagination.numberFoundApproximate??>"numberFoundApproximate" : ${pagination.numberFoundApproximate?c},</#if>
+    <#if pagination.snapshotToken??>"snapshotToken" : "${pagination.snapshotToken}",</#if>
+    <#if pagination.snapshotTruncated??>"snapshotTruncated" : ${pagination.snapshotTruncated?c},</#if>
+    "compact": <@renderCompactTables tables />,
+    "items": [<#list results as resultItem>
+        <@renderCompactArchivedItem resultItem tables /><#if resultItem_has_next>,</#if>
+    </#list>]
+    <#nested />
+}
+</#escape></#compress></#macro>
+
+<#macro renderCompactTables tables><#compress><#escape x as jsonUtils.encodeJSONString(x)>
+    {
+        "users": [<#list tables.users as user>
+            {
+                "userName": "${user.userName!""}",
+                "displayName": "${user.displayName!""}",
+                "firstName": "${user.firstName!""}",
+                "lastName": "${user.lastName!""}"
+            }<#if user_has_next>,</#if>
+        </#list>],
+        "paths": [<#list tables.paths as path>"${path}"<#if path_has_next>,</#if></#list>],
+        "qnames": [<#list tables.qnames as qname>"${qname}"<#if qname_has_next>,</#if></#list>],
+        "namespaces": {<#list tables.namespaces?keys as prefix>"${prefix}": "${tables.namespaces[prefix]}"<#if prefix_has_next>,</#if></#list>}
+    }
+</#escape></#compress></#macro>
+
+<#macro renderArchivedItem resultItem><#compress><#escape x as jsonUtils.encodeJSONString(x)>
+    {
+        <#local node = resultItem.node />
+        <#local version = "1.0">
+        <#if node.hasAspect("cm:versionable")><#local version = node.properties["cm:versionLabel"]!""></#if>
+        
+        "nodeRef": "${node.nodeRef}",
+        "name": "${node.name}",
+        "nodeType": "${node.type}",
+        "nodeTypeShort": "${shortQName(node.type)}",
+        <#-- simple type - UI in some parts does hard-coded value comparisons -->
+        "type": "${node.isContainer?string('folder', node.isDocument?string('document', 'node'))}",
+        "version": "${version}",
+        <#if node.isDocument>
+            "mimetype": "${node.mimetype!""}",
+            "size": ${node.size?c},
+            "contentUrl": "api/node/content/${node.storeType}/${node.storeId}/${node.id}/${node.name?url}",
+        </#if>
+        "modified": "${xmldate(node.properties.modified)}",
+        "modifier": "${node.properties.modifier}",
+        "modifierDisplayName": "${resultItem.modifier.displayName!""}",
+        "archived": "${xmldate(resultItem.archivedOn)}",
+        "archiver": "${resultItem.archiver.userName}",
+        "archiverDisplayName": "${resultItem.archiver.displayName!""}",
+        "displayPath": "${resultItem.displayPath!""}",
+        <#if resultItem.renditions??>
+            "renditions": [<#list resultItem.renditions as rendition>"${rendition}"<#if rendition_has_next>,</#if></#list>],
+        </#if>
+        <#if resultItem.children??>
+            "childrenTruncated": ${resultItem.childrenTruncated?c},
+            "children": [<#list resultItem.children as childItem><@renderArchivedItem childItem /><#if childItem_has_next>,</#if></#list>],
+        </#if>
+        "properties": {
+            <#local lastRendered = false />
+            <#list node.properties?keys as key>
+                <#if node.properties[key]??>
+                    <#if lastRendered == true>,</#if>"${shortQName(key)}" : <@renderProperty key node.properties[key] />
+                <#local lastRendered = true />
+            <#else>
+                <#local lastRendered = false />
+            </#if>
+       </#list>
+        }
+    }
+</#escape></#compress></#macro>
+
+<#macro renderCompactArchivedItem resultItem tables><#compress><#escape x as jsonUtils.encodeJSONString(x)>
+    {
+        <#local node = resultItem.node />
+        <#local version = "1.0">
+        <#if node.hasAspect("cm:versionable")><#local version = node.properties["cm:versionLabel"]!""></#if>
+
+        "nodeRef": "${node.nodeRef}",
+        "name": "${node.name}",
+        "nodeType": ${resultItem.nodeTypeIndex?c},
+        "type": "${node.isContainer?string('folder', node.isDocument?string('document', 'node'))}",
+        "version": "${version}",
+        <#if node.isDocument>
+            "mimetype": "${node.mimetype!""}",
+            "size": ${node.size?c},
+        </#if>
+        "modified": "${xmldate(node.properties.modified)}",
+        "modifier": ${resultItem.modifierIndex?c},
+        "archived": "${xmldate(resultItem.archivedOn)}",
+        "archiver": ${resultItem.archiverIndex?c},
+        "path": ${resultItem.pathIndex?c},
+        "relativePath": "${resultItem.relativePath}",
+        <#if resultItem.renditions??>
+            "renditions": [<#list resultItem.renditions as rendition>"${rendition}"<#if rendition_has_next>,</#if></#list>],
+        </#if>
+        <#if resultItem.children??>
+            "childrenTruncated": ${resultItem.childrenTruncated?c},
+            "children": [<#list resultItem.children as childItem><@renderCompactArchivedItem childItem tables /><#if childItem_has_next>,</#if></#list>],
+        </#if>
+        "properties": {
+            <#local firstRendered = true />
+            <#list node.properties?keys as key>
+                <#if node.properties[key]?? && tables.qnameIndices[key]??>
+                    <#if firstRendered == false>,</#if>"${tables.qnameIndices[key]?c}" : <@renderProperty key node.properties[key] />
+                    <#local firstRendered = false />
+                </#if>
+            </#list>
+        }
+    }
 </#escape></#compress></#macro>
 
 <#macro renderProperty key value><#compress><#escape x as jsonUtils.encodeJSONString(x)>
@@ -0,0 +1,16 @@
+<#compress>
+<#include "archivedItems.lib.json.ftl"/>
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+    "watermark": ${watermark?c},
+    "resync": ${resync?c},
+    "removed": [<#list removed as nodeRef>"${nodeRef}"<#if nodeRef_has_next>,</#if></#list>],
+    <#if compactTables??>
+    "compact": <@renderCompactTables compactTables />,
+    "items": [<#list results as resultItem><@renderCompactArchivedItem resultItem compactTables /><#if resultItem_has_next>,</#if></#list>]
+    <#else>
+    "items": [<#list results as resultItem><@renderArchivedItem resultItem /><#if resultItem_has_next>,</#if></#list>]
+    </#if>
+}
+</#escape>
+</#compress>
\ No newline at end of file
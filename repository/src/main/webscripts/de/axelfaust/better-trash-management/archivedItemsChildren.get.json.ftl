@@ -1,5 +1,6 @@
 <#compress>
 <#include "archivedItems.lib.json.ftl"/>
 <@renderArchivedItemsList results pagination>
+<#if treeTruncated??>, "treeTruncated": ${treeTruncated?c}</#if>
 </@>
 </#compress>
\ No newline at end of file
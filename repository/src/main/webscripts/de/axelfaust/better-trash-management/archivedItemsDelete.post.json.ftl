@@ -1 +1 @@
-{"success": "true"}
\ No newline at end of file
+<#if deniedNodes??><#escape x as jsonUtils.encodeJSONString(x)>{"success": "false", "deniedNodes": [<#list deniedNodes as deniedNode>"${deniedNode}"<#if deniedNode_has_next>,</#if></#list>]}</#escape><#elseif dryRun??>{"success": "true", "dryRun": true, "totalNodeCount": ${totalNodeCount?c}, "totalReclaimableBytes": ${totalReclaimableBytes?c}, "estimates": [<#list estimates as estimate>{"nodeRef": "${estimate.nodeRef}", "nodeCount": ${estimate.nodeCount?c}, "reclaimableBytes": ${estimate.reclaimableBytes?c}}<#if estimate_has_next>,</#if></#list>]}<#else>{"success": "true"}</#if>
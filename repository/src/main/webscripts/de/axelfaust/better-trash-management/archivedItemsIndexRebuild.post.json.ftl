@@ -0,0 +1 @@
+{"scheduled": ${scheduled?c}}
\ No newline at end of file
@@ -0,0 +1,14 @@
+<#compress><#escape x as jsonUtils.encodeJSONString(x)>
+{
+    "items": [<#list items as item>
+        {
+            "nodeRef": "${item.nodeRef}",
+            "name": "${item.name!""}",
+            "archivedBy": "${item.archivedBy!""}",
+            "archivedDate": <#if item.archivedDate??>"${xmldate(item.archivedDate)}"<#else>null</#if>,
+            "nodeCount": ${item.nodeCount?c},
+            "reclaimableBytes": ${item.reclaimableBytes?c}
+        }<#if item_has_next>,</#if>
+    </#list>]
+}
+</#escape></#compress>
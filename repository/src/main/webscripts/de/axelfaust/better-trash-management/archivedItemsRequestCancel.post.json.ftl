@@ -0,0 +1 @@
+{"cancelled": ${cancelled?c}}
\ No newline at end of file
@@ -0,0 +1 @@
+<#escape x as jsonUtils.encodeJSONString(x)>{"restorableCount": ${restorableCount?c}, "failingCount": ${failingCount?c}, "items": [<#list results as result>{"nodeRef": "${result.nodeRef}", "verdict": "${result.verdict}", "restorable": ${result.verdict.restorable?c}<#if result.originalParent??>, "originalParent": "${result.originalParent}"</#if>}<#if result_has_next>,</#if></#list>]}</#escape>
\ No newline at end of file
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.loadtest;
+
+import java.util.Locale;
+
+/**
+ * Instances of this class describe the shape of the archive stores generated by an {@link InMemoryRepository in-memory repository}, i.e.
+ * the number of stores, users and archived trees as well as the size of the trees and how often their permission inheritance is broken.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchiveShape
+{
+
+    protected int stores = 1;
+
+    protected int users = 20;
+
+    protected int rootsPerUser = 200;
+
+    protected int depth = 2;
+
+    protected int fanOut = 5;
+
+    protected double folderRatio = 0.3;
+
+    protected double brokenInheritanceRatio = 0.1;
+
+    protected long seed = 42;
+
+    /**
+     * Creates a shape from the {@code btm.*} system properties, using the defaults of this class for any property not set.
+     *
+     * @return the shape
+     */
+    public static ArchiveShape fromSystemProperties()
+    {
+        final ArchiveShape shape = new ArchiveShape();
+        shape.stores = Math.max(Integer.getInteger("btm.stores", shape.stores).intValue(), 1);
+        shape.users = Math.max(Integer.getInteger("btm.users", shape.users).intValue(), 1);
+        shape.rootsPerUser = Math.max(Integer.getInteger("btm.rootsPerUser", shape.rootsPerUser).intValue(), 1);
+        shape.depth = Math.max(Integer.getInteger("btm.depth", shape.depth).intValue(), 0);
+        shape.fanOut = Math.max(Integer.getInteger("btm.fanOut", shape.fanOut).intValue(), 1);
+        shape.folderRatio = Double.parseDouble(System.getProperty("btm.folderRatio", String.valueOf(shape.folderRatio)));
+        shape.brokenInheritanceRatio = Double
+                .parseDouble(System.getProperty("btm.brokenInheritanceRatio", String.valueOf(shape.brokenInheritanceRatio)));
+        shape.seed = Long.getLong("btm.seed", shape.seed).longValue();
+        return shape;
+    }
+
+    /**
+     * @return the number of base stores, each with its own archive store
+     */
+    public int getStores()
+    {
+        return this.stores;
+    }
+
+    /**
+     * @return the number of users archiving items
+     */
+    public int getUsers()
+    {
+        return this.users;
+    }
+
+    /**
+     * @return the number of archived trees per user (distributed across the stores)
+     */
+    public int getRootsPerUser()
+    {
+        return this.rootsPerUser;
+    }
+
+    /**
+     * @return the number of levels below the root of an archived folder tree
+     */
+    public int getDepth()
+    {
+        return this.depth;
+    }
+
+    /**
+     * @return the number of children of each folder in an archived tree
+     */
+    public int getFanOut()
+    {
+        return this.fanOut;
+    }
+
+    /**
+     * @return the ratio of folders among archived roots and their children (except on the lowest level)
+     */
+    public double getFolderRatio()
+    {
+        return this.folderRatio;
+    }
+
+    /**
+     * @return the ratio of archived folders which do not inherit the permissions of their parent, i.e. are only readable by their
+     *         archiver
+     */
+    public double getBrokenInheritanceRatio()
+    {
+        return this.brokenInheritanceRatio;
+    }
+
+    /**
+     * @return the seed for the generation of the initial archived trees
+     */
+    public long getSeed()
+    {
+        return this.seed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ENGLISH,
+                "stores=%d, users=%d, rootsPerUser=%d, depth=%d, fanOut=%d, folderRatio=%.2f, brokenInheritanceRatio=%.2f, seed=%d",
+                this.stores, this.users, this.rootsPerUser, this.depth, this.fanOut, this.folderRatio, this.brokenInheritanceRatio,
+                this.seed);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instances of this class count the calls made to the {@link ServiceStandIns service stand-ins} on behalf of a single operation of a load
+ * test. The counts of an operation are bound to the thread executing it and need to be {@link ContextPropagatingExecutorService
+ * propagated} to any thread the operation fans out to, so that calls made on those threads are counted as well.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class CallCounts
+{
+
+    private static final ThreadLocal<CallCounts> CURRENT_CALL_COUNTS = new ThreadLocal<>();
+
+    protected final ConcurrentMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Retrieves the call counts bound to the current thread.
+     *
+     * @return the call counts or {@code null} if no call counts are bound to the current thread
+     */
+    public static CallCounts current()
+    {
+        return CURRENT_CALL_COUNTS.get();
+    }
+
+    /**
+     * Binds call counts to the current thread.
+     *
+     * @param callCounts
+     *            the call counts to bind - may be {@code null} to unbind any call counts
+     * @return the call counts previously bound to the current thread
+     */
+    public static CallCounts bind(final CallCounts callCounts)
+    {
+        final CallCounts previous = CURRENT_CALL_COUNTS.get();
+        if (callCounts != null)
+        {
+            CURRENT_CALL_COUNTS.set(callCounts);
+        }
+        else
+        {
+            CURRENT_CALL_COUNTS.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Counts a call against the call counts bound to the current thread, if any.
+     *
+     * @param call
+     *            the name of the call
+     */
+    public static void count(final String call)
+    {
+        final CallCounts callCounts = CURRENT_CALL_COUNTS.get();
+        if (callCounts != null)
+        {
+            callCounts.add(call, 1);
+        }
+    }
+
+    /**
+     * Adds to the count of a call.
+     *
+     * @param call
+     *            the name of the call
+     * @param count
+     *            the number of calls to add
+     */
+    public void add(final String call, final long count)
+    {
+        this.counts.computeIfAbsent(call, key -> new LongAdder()).add(count);
+    }
+
+    /**
+     * Adds all counts of these call counts to other call counts.
+     *
+     * @param callCounts
+     *            the call counts to add to
+     */
+    public void addTo(final CallCounts callCounts)
+    {
+        this.counts.forEach((call, count) -> callCounts.add(call, count.sum()));
+    }
+
+    /**
+     * Sums up the counts of all calls with a specific prefix, e.g. all calls of a specific service.
+     *
+     * @param prefix
+     *            the prefix of the calls to sum up
+     * @return the sum of the counts
+     */
+    public long sum(final String prefix)
+    {
+        long sum = 0;
+        for (final Map.Entry<String, LongAdder> entry : this.counts.entrySet())
+        {
+            if (entry.getKey().startsWith(prefix))
+            {
+                sum += entry.getValue().sum();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the counts of all calls mapped by the name of the call
+     */
+    public Map<String, Long> toMap()
+    {
+        final Map<String, Long> counts = new HashMap<>();
+        this.counts.forEach((call, count) -> counts.put(call, Long.valueOf(count.sum())));
+        return counts;
+    }
+}
@@ -0,0 +1,1361 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.loadtest;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.node.archive.NodeArchiveService;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchParameters.SortDefinition;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.NamespaceException;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.QNamePattern;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.alfresco.util.Pair;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import de.axelfaust.alfresco.trash.management.repo.BetterTrashManagementModel;
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedItemsSpaceEstimator;
+
+/**
+ * Instances of this class hold an in-memory model of archive stores and provide {@link ServiceStandIns stand-ins} for the Alfresco
+ * services used by the archived items web scripts, so that their behaviour under load can be measured without a repository, database or
+ * SOLR. The stand-in for the {@link SearchService} only supports the query shapes used by the web scripts (archived roots, children and
+ * descendants of nodes with simple property filter queries) and applies permission checks and sorting just like SOLR would.
+ *
+ * Permissions are modelled via ACLs, with archived trees either inheriting an ACL readable by everyone or breaking inheritance on any
+ * folder with an ACL only readable by the archiver. As in Alfresco, creators (owners) of nodes and administrators can always read nodes.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class InMemoryRepository
+{
+
+    public static final String ADMIN_USER = "admin";
+
+    private static final Long ACL_EVERYONE = Long.valueOf(1);
+
+    private static final long ARCHIVE_PERIOD_MILLIS = TimeUnit.DAYS.toMillis(90);
+
+    private static final String[] EXTENSIONS = { "pdf", "docx", "txt", "png" };
+
+    private static final Pattern ASPECT_PATTERN = Pattern.compile("(NOT\\s+)?ASPECT:\"([^\"]+)\"");
+
+    private static final Pattern PARENT_PATTERN = Pattern.compile("PARENT:\"([^\"]+)\"");
+
+    private static final Pattern ANCESTOR_PATTERN = Pattern.compile("ANCESTOR:\"([^\"]+)\"");
+
+    private static final Pattern FILTER_QUERY_PATTERN = Pattern.compile("=([^:=\"]+:[^:=\"]+):\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private static final Map<String, String> NAMESPACES;
+
+    private static final Map<QName, QName> SUPER_TYPES;
+    static
+    {
+        final Map<String, String> namespaces = new HashMap<>();
+        namespaces.put(NamespaceService.CONTENT_MODEL_PREFIX, NamespaceService.CONTENT_MODEL_1_0_URI);
+        namespaces.put(NamespaceService.SYSTEM_MODEL_PREFIX, NamespaceService.SYSTEM_MODEL_1_0_URI);
+        namespaces.put(NamespaceService.APP_MODEL_PREFIX, NamespaceService.APP_MODEL_1_0_URI);
+        namespaces.put(BetterTrashManagementModel.NAMESPACE_PREFIX, BetterTrashManagementModel.NAMESPACE_URK);
+        NAMESPACES = Collections.unmodifiableMap(namespaces);
+
+        final Map<QName, QName> superTypes = new HashMap<>();
+        superTypes.put(ContentModel.TYPE_FOLDER, ContentModel.TYPE_CMOBJECT);
+        superTypes.put(ContentModel.TYPE_CONTENT, ContentModel.TYPE_CMOBJECT);
+        superTypes.put(ContentModel.TYPE_PERSON, ContentModel.TYPE_AUTHORITY);
+        SUPER_TYPES = Collections.unmodifiableMap(superTypes);
+    }
+
+    protected final ArchiveShape shape;
+
+    protected final AtomicLong nextNodeId = new AtomicLong(1);
+
+    protected final AtomicLong nextAclId = new AtomicLong(ACL_EVERYONE.longValue() + 1);
+
+    protected final ConcurrentMap<NodeRef, Node> nodesByRef = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<Long, Node> nodesById = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<Long, String> restrictedAclReaders = new ConcurrentHashMap<>();
+
+    protected final List<StoreRef> baseStores = new ArrayList<>();
+
+    protected final List<StoreRef> stores = new ArrayList<>();
+
+    protected final Map<StoreRef, Node> archiveRootsByBaseStore = new HashMap<>();
+
+    protected final Map<StoreRef, Set<Node>> archivedRootsByArchiveStore = new HashMap<>();
+
+    protected final ConcurrentMap<String, Node> archiveUsersByKey = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, NodeRef> personsByUserName = new ConcurrentHashMap<>();
+
+    protected final List<String> users = new ArrayList<>();
+
+    protected final Map<String, List<NodeRef>> archivedRootsByUser = new HashMap<>();
+
+    protected final NodeService nodeService = ServiceStandIns.create(NodeService.class, new NodeServiceImpl());
+
+    protected final SearchService searchService = ServiceStandIns.create(SearchService.class, new SearchServiceImpl());
+
+    protected final NodeArchiveService nodeArchiveService = ServiceStandIns.create(NodeArchiveService.class, new NodeArchiveServiceImpl());
+
+    protected final NodeDAO nodeDAO = ServiceStandIns.create(NodeDAO.class, new NodeDAOImpl());
+
+    protected final PermissionService permissionService = ServiceStandIns.create(PermissionService.class, new PermissionServiceImpl());
+
+    protected final PersonService personService = ServiceStandIns.create(PersonService.class, new PersonServiceImpl());
+
+    protected final AuthorityService authorityService = ServiceStandIns.create(AuthorityService.class, new AuthorityServiceImpl());
+
+    protected final NamespaceService namespaceService = ServiceStandIns.create(NamespaceService.class, new NamespaceServiceImpl());
+
+    protected final DictionaryService dictionaryService = ServiceStandIns.create(DictionaryService.class, new DictionaryServiceImpl());
+
+    protected final TransactionService transactionService = ServiceStandIns.create(TransactionService.class,
+            new TransactionServiceImpl());
+
+    protected final ArchivedItemsSpaceEstimator spaceEstimator = new SpaceEstimatorImpl();
+
+    public InMemoryRepository(final ArchiveShape shape)
+    {
+        this.shape = shape;
+    }
+
+    /**
+     * Generates the stores, persons and initial archived trees according to the shape of this repository.
+     */
+    public void generate()
+    {
+        final Random random = new Random(this.shape.getSeed());
+
+        for (int storeIdx = 0; storeIdx < this.shape.getStores(); storeIdx++)
+        {
+            final StoreRef baseStore = storeIdx == 0 ? StoreRef.STORE_REF_WORKSPACE_SPACESSTORE
+                    : new StoreRef(StoreRef.PROTOCOL_WORKSPACE, "store" + storeIdx);
+            final StoreRef archiveStore = new StoreRef(StoreRef.PROTOCOL_ARCHIVE, baseStore.getIdentifier());
+            this.baseStores.add(baseStore);
+            this.stores.add(baseStore);
+            this.stores.add(archiveStore);
+
+            final Node archiveRoot = this.createNode(archiveStore, null, null, ContentModel.TYPE_STOREROOT, ACL_EVERYONE);
+            this.archiveRootsByBaseStore.put(baseStore, archiveRoot);
+            this.archivedRootsByArchiveStore.put(archiveStore, ConcurrentHashMap.newKeySet());
+        }
+
+        this.createPerson(ADMIN_USER, "Administrator", "");
+        for (int userIdx = 1; userIdx <= this.shape.getUsers(); userIdx++)
+        {
+            final String user = "user" + userIdx;
+            this.users.add(user);
+            this.archivedRootsByUser.put(user, new ArrayList<>());
+            this.createPerson(user, "User", String.valueOf(userIdx));
+        }
+
+        for (int rootIdx = 0; rootIdx < this.shape.getRootsPerUser(); rootIdx++)
+        {
+            final StoreRef baseStore = this.baseStores.get(rootIdx % this.baseStores.size());
+            for (final String user : this.users)
+            {
+                this.addArchivedTree(user, baseStore, random);
+            }
+        }
+    }
+
+    /**
+     * Archives a new tree on behalf of a user, e.g. to replenish the archive store after a tree has been purged.
+     *
+     * @param user
+     *            the user archiving the tree
+     * @param baseStore
+     *            the store from which the tree is archived
+     * @param random
+     *            the source of randomness for the properties and structure of the tree
+     * @return the root of the archived tree
+     */
+    public NodeRef addArchivedTree(final String user, final StoreRef baseStore, final Random random)
+    {
+        final StoreRef archiveStore = new StoreRef(StoreRef.PROTOCOL_ARCHIVE, baseStore.getIdentifier());
+        final Node archiveUser = this.archiveUsersByKey.computeIfAbsent(archiveStore + "/" + user,
+                key -> this.createArchiveUser(baseStore, user));
+
+        final boolean folder = this.shape.getDepth() > 0 && random.nextDouble() < this.shape.getFolderRatio();
+        final Long aclId = folder && random.nextDouble() < this.shape.getBrokenInheritanceRatio() ? this.createRestrictedAcl(user)
+                : ACL_EVERYONE;
+        final Date archivedDate = new Date(System.currentTimeMillis() - (long) (random.nextDouble() * ARCHIVE_PERIOD_MILLIS));
+
+        final Node root = this.createItemNode(archiveStore, archiveUser, ContentModel.ASSOC_ARCHIVED_LINK, folder, aclId, user,
+                archivedDate, random);
+        root.aspects.add(ContentModel.ASPECT_ARCHIVED);
+        root.properties.put(ContentModel.PROP_ARCHIVED_BY, user);
+        root.properties.put(ContentModel.PROP_ARCHIVED_DATE, archivedDate);
+        root.properties.put(ContentModel.PROP_ARCHIVED_ORIGINAL_PARENT_ASSOC, new ChildAssociationRef(ContentModel.ASSOC_CONTAINS,
+                new NodeRef(baseStore, GUID.generate()), root.assocQName, new NodeRef(baseStore, root.nodeRef.getId()), true, -1));
+        root.properties.put(BetterTrashManagementModel.PROP_ORIGINAL_DISPLAY_PATH,
+                "/Company Home/Sites/site-" + random.nextInt(10) + "/documentLibrary");
+
+        if (folder)
+        {
+            this.addChildren(root, 1, user, archivedDate, random);
+        }
+
+        this.archivedRootsByArchiveStore.get(archiveStore).add(root);
+        final List<NodeRef> userRoots = this.archivedRootsByUser.get(user);
+        synchronized (userRoots)
+        {
+            userRoots.add(root.nodeRef);
+        }
+        return root.nodeRef;
+    }
+
+    /**
+     * Picks a random archived root of a user.
+     *
+     * @param user
+     *            the user who archived the root
+     * @param random
+     *            the source of randomness
+     * @param preferFolder
+     *            {@code true} if folders should be preferred, e.g. to list their children
+     * @return the archived root or {@code null} if the user has no archived roots
+     */
+    public NodeRef pickArchivedRoot(final String user, final Random random, final boolean preferFolder)
+    {
+        NodeRef archivedRoot = null;
+        final List<NodeRef> userRoots = this.archivedRootsByUser.get(user);
+        synchronized (userRoots)
+        {
+            for (int attempt = 0; attempt < 10 && !userRoots.isEmpty(); attempt++)
+            {
+                archivedRoot = userRoots.get(random.nextInt(userRoots.size()));
+                final Node node = this.nodesByRef.get(archivedRoot);
+                if (!preferFolder || (node != null && ContentModel.TYPE_FOLDER.equals(node.type)))
+                {
+                    break;
+                }
+            }
+        }
+        return archivedRoot;
+    }
+
+    /**
+     * Takes a random archived root of a user, so that it cannot be taken again, e.g. by a concurrent purge.
+     *
+     * @param user
+     *            the user who archived the root
+     * @param random
+     *            the source of randomness
+     * @return the archived root or {@code null} if the user has no archived roots
+     */
+    public NodeRef takeArchivedRoot(final String user, final Random random)
+    {
+        NodeRef archivedRoot = null;
+        final List<NodeRef> userRoots = this.archivedRootsByUser.get(user);
+        synchronized (userRoots)
+        {
+            if (!userRoots.isEmpty())
+            {
+                final int idx = random.nextInt(userRoots.size());
+                archivedRoot = userRoots.get(idx);
+                // swap-remove as order does not matter
+                userRoots.set(idx, userRoots.get(userRoots.size() - 1));
+                userRoots.remove(userRoots.size() - 1);
+            }
+        }
+        return archivedRoot;
+    }
+
+    /**
+     * @return the base stores (all of which have an archive store)
+     */
+    public List<StoreRef> getBaseStores()
+    {
+        return Collections.unmodifiableList(this.baseStores);
+    }
+
+    /**
+     * @return the (non-administrative) users archiving items
+     */
+    public List<String> getUsers()
+    {
+        return Collections.unmodifiableList(this.users);
+    }
+
+    /**
+     * @return the number of nodes in all stores
+     */
+    public int getNodeCount()
+    {
+        return this.nodesByRef.size();
+    }
+
+    /**
+     * @return the nodeService
+     */
+    public NodeService getNodeService()
+    {
+        return this.nodeService;
+    }
+
+    /**
+     * @return the searchService
+     */
+    public SearchService getSearchService()
+    {
+        return this.searchService;
+    }
+
+    /**
+     * @return the nodeArchiveService
+     */
+    public NodeArchiveService getNodeArchiveService()
+    {
+        return this.nodeArchiveService;
+    }
+
+    /**
+     * @return the nodeDAO
+     */
+    public NodeDAO getNodeDAO()
+    {
+        return this.nodeDAO;
+    }
+
+    /**
+     * @return the permissionService
+     */
+    public PermissionService getPermissionService()
+    {
+        return this.permissionService;
+    }
+
+    /**
+     * @return the personService
+     */
+    public PersonService getPersonService()
+    {
+        return this.personService;
+    }
+
+    /**
+     * @return the authorityService
+     */
+    public AuthorityService getAuthorityService()
+    {
+        return this.authorityService;
+    }
+
+    /**
+     * @return the namespaceService
+     */
+    public NamespaceService getNamespaceService()
+    {
+        return this.namespaceService;
+    }
+
+    /**
+     * @return the dictionaryService
+     */
+    public DictionaryService getDictionaryService()
+    {
+        return this.dictionaryService;
+    }
+
+    /**
+     * @return the transactionService
+     */
+    public TransactionService getTransactionService()
+    {
+        return this.transactionService;
+    }
+
+    /**
+     * @return the spaceEstimator - only supports the detection of large trees
+     */
+    public ArchivedItemsSpaceEstimator getSpaceEstimator()
+    {
+        return this.spaceEstimator;
+    }
+
+    protected void addChildren(final Node parent, final int level, final String user, final Date archivedDate, final Random random)
+    {
+        for (int childIdx = 0; childIdx < this.shape.getFanOut(); childIdx++)
+        {
+            final boolean folder = level < this.shape.getDepth() && random.nextDouble() < this.shape.getFolderRatio();
+            final Long aclId = folder && random.nextDouble() < this.shape.getBrokenInheritanceRatio() ? this.createRestrictedAcl(user)
+                    : parent.aclId;
+            final Node child = this.createItemNode(parent.nodeRef.getStoreRef(), parent, ContentModel.ASSOC_CONTAINS, folder, aclId, user,
+                    archivedDate, random);
+            if (folder)
+            {
+                this.addChildren(child, level + 1, user, archivedDate, random);
+            }
+        }
+    }
+
+    protected Node createItemNode(final StoreRef store, final Node parent, final QName assocType, final boolean folder, final Long aclId,
+            final String user, final Date archivedDate, final Random random)
+    {
+        final Node node = this.createNode(store, parent, assocType, folder ? ContentModel.TYPE_FOLDER : ContentModel.TYPE_CONTENT, aclId);
+
+        final String name = folder ? "Folder " + node.id : "Document " + node.id + "." + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+        final Date created = new Date(archivedDate.getTime() - (long) (random.nextDouble() * ARCHIVE_PERIOD_MILLIS));
+        final Date modified = new Date(created.getTime() + (long) (random.nextDouble() * (archivedDate.getTime() - created.getTime())));
+
+        node.properties.put(ContentModel.PROP_NAME, name);
+        node.properties.put(ContentModel.PROP_CREATOR, user);
+        node.properties.put(ContentModel.PROP_CREATED, created);
+        node.properties.put(ContentModel.PROP_MODIFIER, random.nextBoolean() ? user : ADMIN_USER);
+        node.properties.put(ContentModel.PROP_MODIFIED, modified);
+        node.properties.put(BetterTrashManagementModel.PROP_ARCHIVED_DATE, archivedDate);
+        if (!folder)
+        {
+            node.properties.put(ContentModel.PROP_CONTENT, new ContentData("store://" + GUID.generate() + ".bin",
+                    "application/octet-stream", random.nextInt(10 * 1024 * 1024), "UTF-8"));
+        }
+        node.aspects.add(ContentModel.ASPECT_AUDITABLE);
+        node.aspects.add(BetterTrashManagementModel.ASPECT_ARCHIVED_ITEM);
+        return node;
+    }
+
+    protected Node createArchiveUser(final StoreRef baseStore, final String user)
+    {
+        final Node archiveRoot = this.archiveRootsByBaseStore.get(baseStore);
+        final Node archiveUser = this.createNode(archiveRoot.nodeRef.getStoreRef(), archiveRoot, ContentModel.ASSOC_ARCHIVE_USER_LINK,
+                ContentModel.TYPE_ARCHIVE_USER, ACL_EVERYONE);
+        archiveUser.properties.put(ContentModel.PROP_NAME, user);
+        return archiveUser;
+    }
+
+    protected void createPerson(final String user, final String firstName, final String lastName)
+    {
+        final Node person = this.createNode(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, null, null, ContentModel.TYPE_PERSON, ACL_EVERYONE);
+        person.properties.put(ContentModel.PROP_USERNAME, user);
+        person.properties.put(ContentModel.PROP_FIRSTNAME, firstName);
+        person.properties.put(ContentModel.PROP_LASTNAME, lastName);
+        this.personsByUserName.put(user, person.nodeRef);
+    }
+
+    protected Long createRestrictedAcl(final String reader)
+    {
+        final Long aclId = Long.valueOf(this.nextAclId.getAndIncrement());
+        this.restrictedAclReaders.put(aclId, reader);
+        return aclId;
+    }
+
+    protected Node createNode(final StoreRef store, final Node parent, final QName assocType, final QName type, final Long aclId)
+    {
+        final Long id = Long.valueOf(this.nextNodeId.getAndIncrement());
+        final String uuid = GUID.generate();
+        final Node node = new Node(id, new NodeRef(store, uuid), type, parent, assocType,
+                QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, uuid), aclId);
+        this.nodesByRef.put(node.nodeRef, node);
+        this.nodesById.put(id, node);
+        if (parent != null)
+        {
+            parent.children.add(node);
+        }
+        return node;
+    }
+
+    protected void removeTree(final Node node)
+    {
+        for (final Node child : node.children)
+        {
+            this.removeTree(child);
+        }
+
+        this.nodesByRef.remove(node.nodeRef);
+        this.nodesById.remove(node.id);
+        if (node.parent != null)
+        {
+            node.parent.children.remove(node);
+        }
+
+        if (node.aspects.contains(ContentModel.ASPECT_ARCHIVED))
+        {
+            final Set<Node> archivedRoots = this.archivedRootsByArchiveStore.get(node.nodeRef.getStoreRef());
+            archivedRoots.remove(node);
+
+            final List<NodeRef> userRoots = this.archivedRootsByUser.get(node.properties.get(ContentModel.PROP_ARCHIVED_BY));
+            if (userRoots != null)
+            {
+                synchronized (userRoots)
+                {
+                    userRoots.remove(node.nodeRef);
+                }
+            }
+        }
+    }
+
+    protected Node getNode(final NodeRef nodeRef)
+    {
+        final Node node = this.nodesByRef.get(nodeRef);
+        if (node == null)
+        {
+            throw new InvalidNodeRefException("Node does not exist: " + nodeRef, nodeRef);
+        }
+        return node;
+    }
+
+    protected boolean isAdministrator(final String user)
+    {
+        return ADMIN_USER.equals(user) || AuthenticationUtil.getSystemUserName().equals(user);
+    }
+
+    protected boolean canRead(final Node node, final String user)
+    {
+        final boolean canRead;
+        if (user == null)
+        {
+            canRead = false;
+        }
+        else if (this.isAdministrator(user) || user.equals(node.properties.get(ContentModel.PROP_CREATOR)))
+        {
+            canRead = true;
+        }
+        else
+        {
+            canRead = ACL_EVERYONE.equals(node.aclId) || user.equals(this.restrictedAclReaders.get(node.aclId));
+        }
+        return canRead;
+    }
+
+    protected Predicate<Node> buildFilterQueryPredicate(final String filterQuery)
+    {
+        final Matcher matcher = FILTER_QUERY_PATTERN.matcher(filterQuery.trim());
+        if (!matcher.matches())
+        {
+            throw new UnsupportedOperationException("Filter query not supported by the load-test stand-in: " + filterQuery);
+        }
+
+        final QName property = QName.createQName(matcher.group(1), this.namespaceService);
+        final String value = matcher.group(2).replaceAll("\\\\(.)", "$1");
+
+        final Predicate<Node> predicate;
+        if (value.indexOf('*') != -1 || value.indexOf('?') != -1)
+        {
+            final StringBuilder patternBuilder = new StringBuilder();
+            for (final String fragment : value.split("(?=[*?])|(?<=[*?])"))
+            {
+                if ("*".equals(fragment))
+                {
+                    patternBuilder.append(".*");
+                }
+                else if ("?".equals(fragment))
+                {
+                    patternBuilder.append('.');
+                }
+                else if (!fragment.isEmpty())
+                {
+                    patternBuilder.append(Pattern.quote(fragment));
+                }
+            }
+            final Pattern pattern = Pattern.compile(patternBuilder.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            predicate = node -> {
+                final Serializable propertyValue = node.properties.get(property);
+                return propertyValue != null && pattern.matcher(String.valueOf(propertyValue)).matches();
+            };
+        }
+        else
+        {
+            predicate = node -> value.equals(String.valueOf(node.properties.get(property)));
+        }
+        return predicate;
+    }
+
+    protected Comparator<Node> buildComparator(final List<SortDefinition> sortDefinitions)
+    {
+        Comparator<Node> comparator = null;
+        for (final SortDefinition sortDefinition : sortDefinitions)
+        {
+            final String field = sortDefinition.getField().startsWith("@") ? sortDefinition.getField().substring(1)
+                    : sortDefinition.getField();
+            final boolean size = field.endsWith(".size");
+            final QName property = QName.createQName(size ? field.substring(0, field.length() - ".size".length()) : field);
+
+            final Comparator<Comparable<Object>> valueComparator = Comparator.nullsLast(sortDefinition.isAscending()
+                    ? Comparator.<Comparable<Object>> naturalOrder() : Comparator.<Comparable<Object>> reverseOrder());
+            final Comparator<Node> fieldComparator = Comparator.comparing(node -> getSortValue(node, property, size), valueComparator);
+            comparator = comparator == null ? fieldComparator : comparator.thenComparing(fieldComparator);
+        }
+
+        final Comparator<Node> idComparator = Comparator.comparing(node -> node.id);
+        return comparator == null ? idComparator : comparator.thenComparing(idComparator);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Comparable<Object> getSortValue(final Node node, final QName property, final boolean size)
+    {
+        final Serializable value = node.properties.get(property);
+        final Comparable<?> sortValue;
+        if (value instanceof ContentData)
+        {
+            sortValue = Long.valueOf(((ContentData) value).getSize());
+        }
+        else if (size || value == null)
+        {
+            sortValue = null;
+        }
+        else if (value instanceof String)
+        {
+            sortValue = ((String) value).toLowerCase(Locale.ENGLISH);
+        }
+        else
+        {
+            sortValue = (Comparable<?>) value;
+        }
+        return (Comparable<Object>) sortValue;
+    }
+
+    /**
+     * Instances of this class represent a single node in any of the stores.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class Node
+    {
+
+        protected final Long id;
+
+        protected final NodeRef nodeRef;
+
+        protected final QName type;
+
+        protected final Node parent;
+
+        protected final QName assocType;
+
+        protected final QName assocQName;
+
+        protected final Long aclId;
+
+        protected final Map<QName, Serializable> properties = new ConcurrentHashMap<>();
+
+        protected final Set<QName> aspects = ConcurrentHashMap.newKeySet();
+
+        protected final List<Node> children = new CopyOnWriteArrayList<>();
+
+        protected Node(final Long id, final NodeRef nodeRef, final QName type, final Node parent, final QName assocType,
+                final QName assocQName, final Long aclId)
+        {
+            this.id = id;
+            this.nodeRef = nodeRef;
+            this.type = type;
+            this.parent = parent;
+            this.assocType = assocType;
+            this.assocQName = assocQName;
+            this.aclId = aclId;
+        }
+
+        protected ChildAssociationRef getPrimaryParentAssoc()
+        {
+            final ChildAssociationRef parentAssoc = this.parent != null
+                    ? new ChildAssociationRef(this.assocType, this.parent.nodeRef, this.assocQName, this.nodeRef, true, -1)
+                    : new ChildAssociationRef(null, null, null, this.nodeRef);
+            return parentAssoc;
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected class NodeServiceImpl
+    {
+
+        public List<StoreRef> getStores()
+        {
+            return new ArrayList<>(InMemoryRepository.this.stores);
+        }
+
+        public boolean exists(final StoreRef storeRef)
+        {
+            return InMemoryRepository.this.stores.contains(storeRef);
+        }
+
+        public boolean exists(final NodeRef nodeRef)
+        {
+            return InMemoryRepository.this.nodesByRef.containsKey(nodeRef);
+        }
+
+        public QName getType(final NodeRef nodeRef)
+        {
+            return InMemoryRepository.this.getNode(nodeRef).type;
+        }
+
+        public Map<QName, Serializable> getProperties(final NodeRef nodeRef)
+        {
+            return new HashMap<>(InMemoryRepository.this.getNode(nodeRef).properties);
+        }
+
+        public Serializable getProperty(final NodeRef nodeRef, final QName qname)
+        {
+            return InMemoryRepository.this.getNode(nodeRef).properties.get(qname);
+        }
+
+        public boolean hasAspect(final NodeRef nodeRef, final QName aspectTypeQName)
+        {
+            return InMemoryRepository.this.getNode(nodeRef).aspects.contains(aspectTypeQName);
+        }
+
+        public Set<QName> getAspects(final NodeRef nodeRef)
+        {
+            return new HashSet<>(InMemoryRepository.this.getNode(nodeRef).aspects);
+        }
+
+        public void addAspect(final NodeRef nodeRef, final QName aspectTypeQName, final Map<QName, Serializable> aspectProperties)
+        {
+            final Node node = InMemoryRepository.this.getNode(nodeRef);
+            node.aspects.add(aspectTypeQName);
+            if (aspectProperties != null)
+            {
+                node.properties.putAll(aspectProperties);
+            }
+        }
+
+        public ChildAssociationRef getPrimaryParent(final NodeRef nodeRef)
+        {
+            return InMemoryRepository.this.getNode(nodeRef).getPrimaryParentAssoc();
+        }
+
+        public List<ChildAssociationRef> getChildAssocs(final NodeRef nodeRef)
+        {
+            final List<ChildAssociationRef> childAssocs = new ArrayList<>();
+            InMemoryRepository.this.getNode(nodeRef).children.forEach(child -> childAssocs.add(child.getPrimaryParentAssoc()));
+            return childAssocs;
+        }
+
+        public List<ChildAssociationRef> getChildAssocs(final NodeRef nodeRef, final QNamePattern typeQNamePattern,
+                final QNamePattern qnamePattern, final boolean preload)
+        {
+            return this.getChildAssocs(nodeRef, typeQNamePattern, qnamePattern, Integer.MAX_VALUE, preload);
+        }
+
+        public List<ChildAssociationRef> getChildAssocs(final NodeRef nodeRef, final QNamePattern typeQNamePattern,
+                final QNamePattern qnamePattern, final int maxResults, final boolean preload)
+        {
+            final List<ChildAssociationRef> childAssocs = new ArrayList<>();
+            for (final Node child : InMemoryRepository.this.getNode(nodeRef).children)
+            {
+                if (childAssocs.size() < maxResults && typeQNamePattern.isMatch(child.assocType) && qnamePattern.isMatch(child.assocQName))
+                {
+                    childAssocs.add(child.getPrimaryParentAssoc());
+                }
+            }
+            return childAssocs;
+        }
+
+        public List<ChildAssociationRef> getChildrenByName(final NodeRef nodeRef, final QName assocTypeQName,
+                final Collection<String> childNames)
+        {
+            final List<ChildAssociationRef> childAssocs = new ArrayList<>();
+            for (final Node child : InMemoryRepository.this.getNode(nodeRef).children)
+            {
+                if (child.assocType.equals(assocTypeQName) && childNames.contains(child.properties.get(ContentModel.PROP_NAME)))
+                {
+                    childAssocs.add(child.getPrimaryParentAssoc());
+                }
+            }
+            return childAssocs;
+        }
+
+        public void deleteNode(final NodeRef nodeRef)
+        {
+            InMemoryRepository.this.removeTree(InMemoryRepository.this.getNode(nodeRef));
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected class SearchServiceImpl
+    {
+
+        public ResultSet query(final SearchParameters sp)
+        {
+            final InMemoryRepository repository = InMemoryRepository.this;
+            final StoreRef store = sp.getStores().get(0);
+            final String query = sp.getQuery();
+
+            final Set<QName> requiredAspects = new HashSet<>();
+            final Set<QName> excludedAspects = new HashSet<>();
+            final Matcher aspectMatcher = ASPECT_PATTERN.matcher(query);
+            while (aspectMatcher.find())
+            {
+                final QName aspect = QName.createQName(aspectMatcher.group(2), repository.namespaceService);
+                (aspectMatcher.group(1) != null ? excludedAspects : requiredAspects).add(aspect);
+            }
+
+            final Collection<Node> candidates = new LinkedHashSet<>();
+            final Matcher parentMatcher = PARENT_PATTERN.matcher(query);
+            final Matcher ancestorMatcher = ANCESTOR_PATTERN.matcher(query);
+            if (parentMatcher.find())
+            {
+                do
+                {
+                    final Node parent = repository.nodesByRef.get(new NodeRef(parentMatcher.group(1)));
+                    if (parent != null)
+                    {
+                        candidates.addAll(parent.children);
+                    }
+                }
+                while (parentMatcher.find());
+            }
+            else if (ancestorMatcher.find())
+            {
+                final Node ancestor = repository.nodesByRef.get(new NodeRef(ancestorMatcher.group(1)));
+                if (ancestor != null)
+                {
+                    this.collectDescendants(ancestor, candidates);
+                }
+            }
+            else if (requiredAspects.contains(ContentModel.ASPECT_ARCHIVED))
+            {
+                candidates.addAll(repository.archivedRootsByArchiveStore.getOrDefault(store, Collections.emptySet()));
+            }
+            else
+            {
+                throw new UnsupportedOperationException("Query not supported by the load-test stand-in: " + query);
+            }
+
+            Predicate<Node> filter = node -> node.aspects.containsAll(requiredAspects)
+                    && Collections.disjoint(node.aspects, excludedAspects);
+            if (sp.getFilterQueries() != null)
+            {
+                for (final String filterQuery : sp.getFilterQueries())
+                {
+                    filter = filter.and(repository.buildFilterQueryPredicate(filterQuery));
+                }
+            }
+
+            final String user = AuthenticationUtil.getRunAsUser();
+            final List<Node> matches = new ArrayList<>();
+            for (final Node candidate : candidates)
+            {
+                if (filter.test(candidate) && repository.canRead(candidate, user))
+                {
+                    matches.add(candidate);
+                }
+            }
+            matches.sort(repository.buildComparator(sp.getSortDefinitions()));
+
+            final int skipCount = Math.max(sp.getSkipCount(), 0);
+            final int maxItems = sp.getMaxItems() > 0 ? sp.getMaxItems() : Integer.MAX_VALUE;
+            final List<NodeRef> page = new ArrayList<>();
+            for (int idx = skipCount, max = (int) Math.min(matches.size(), (long) skipCount + maxItems); idx < max; idx++)
+            {
+                page.add(matches.get(idx).nodeRef);
+            }
+
+            return ServiceStandIns.createUncounted(ResultSet.class, new ResultSetImpl(page, skipCount, matches.size()));
+        }
+
+        protected void collectDescendants(final Node node, final Collection<Node> descendants)
+        {
+            for (final Node child : node.children)
+            {
+                descendants.add(child);
+                this.collectDescendants(child, descendants);
+            }
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class ResultSetImpl
+    {
+
+        private final List<NodeRef> nodeRefs;
+
+        private final int start;
+
+        private final long numberFound;
+
+        protected ResultSetImpl(final List<NodeRef> nodeRefs, final int start, final long numberFound)
+        {
+            this.nodeRefs = nodeRefs;
+            this.start = start;
+            this.numberFound = numberFound;
+        }
+
+        public List<NodeRef> getNodeRefs()
+        {
+            return Collections.unmodifiableList(this.nodeRefs);
+        }
+
+        public NodeRef getNodeRef(final int n)
+        {
+            return this.nodeRefs.get(n);
+        }
+
+        public int length()
+        {
+            return this.nodeRefs.size();
+        }
+
+        public int getStart()
+        {
+            return this.start;
+        }
+
+        public boolean hasMore()
+        {
+            return this.start + this.nodeRefs.size() < this.numberFound;
+        }
+
+        public long getNumberFound()
+        {
+            return this.numberFound;
+        }
+
+        public void close()
+        {
+            // NO-OP
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected class NodeArchiveServiceImpl
+    {
+
+        public NodeRef getStoreArchiveNode(final StoreRef originalStoreRef)
+        {
+            final Node archiveRoot = InMemoryRepository.this.archiveRootsByBaseStore.get(originalStoreRef);
+            return archiveRoot != null ? archiveRoot.nodeRef : null;
+        }
+
+        public boolean hasFullAccess(final NodeRef nodeRef)
+        {
+            final String user = AuthenticationUtil.getRunAsUser();
+            final Node node = InMemoryRepository.this.nodesByRef.get(nodeRef);
+            return node != null
+                    && (InMemoryRepository.this.isAdministrator(user) || user.equals(node.properties.get(ContentModel.PROP_ARCHIVED_BY)));
+        }
+
+        public void purgeArchivedNode(final NodeRef archivedNodeRef)
+        {
+            final Node node = InMemoryRepository.this.nodesByRef.get(archivedNodeRef);
+            if (node != null)
+            {
+                InMemoryRepository.this.removeTree(node);
+            }
+        }
+
+        public void purgeArchivedNodes(final List<NodeRef> archivedNodes)
+        {
+            archivedNodes.forEach(this::purgeArchivedNode);
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected class NodeDAOImpl
+    {
+
+        public Pair<Long, NodeRef> getNodePair(final NodeRef nodeRef)
+        {
+            final Node node = InMemoryRepository.this.nodesByRef.get(nodeRef);
+            return node != null ? new Pair<>(node.id, node.nodeRef) : null;
+        }
+
+        public Pair<Long, NodeRef> getNodePair(final Long nodeId)
+        {
+            final Node node = InMemoryRepository.this.nodesById.get(nodeId);
+            return node != null ? new Pair<>(node.id, node.nodeRef) : null;
+        }
+
+        public void cacheNodes(final List<NodeRef> nodeRefs)
+        {
+            // NO-OP - all nodes are in memory
+        }
+
+        public void cacheNodesById(final List<Long> nodeIds)
+        {
+            // NO-OP - all nodes are in memory
+        }
+
+        public Long getNodeAclId(final Long nodeId)
+        {
+            final Node node = InMemoryRepository.this.nodesById.get(nodeId);
+            return node != null ? node.aclId : null;
+        }
+
+        public Serializable getNodeProperty(final Long nodeId, final QName propertyQName)
+        {
+            final Node node = InMemoryRepository.this.nodesById.get(nodeId);
+            return node != null ? node.properties.get(propertyQName) : null;
+        }
+    }
+
+    /**
+     * Instances of this class count the descendants of archived nodes in memory instead of via database queries. Just like the actual
+     * estimator, counting stops once the threshold has been reached.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected class SpaceEstimatorImpl extends ArchivedItemsSpaceEstimator
+    {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Set<NodeRef> findLargeTrees(final Collection<NodeRef> archivedNodes, final long threshold)
+        {
+            CallCounts.count("ArchivedItemsSpaceEstimator.findLargeTrees");
+
+            final Set<NodeRef> largeTreeRoots = new HashSet<>();
+            for (final NodeRef archivedNode : archivedNodes)
+            {
+                final Node root = InMemoryRepository.this.nodesByRef.get(archivedNode);
+                if (root != null)
+                {
+                    long descendants = 0;
+                    final Deque<Node> parents = new ArrayDeque<>();
+                    parents.add(root);
+                    while (!parents.isEmpty() && descendants < threshold)
+                    {
+                        final List<Node> children = parents.poll().children;
+                        descendants += children.size();
+                        parents.addAll(children);
+                    }
+
+                    if (descendants >= threshold)
+                    {
+                        largeTreeRoots.add(archivedNode);
+                    }
+                }
+            }
+            return largeTreeRoots;
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected class PermissionServiceImpl
+    {
+
+        public AccessStatus hasPermission(final NodeRef nodeRef, final String permission)
+        {
+            final Node node = InMemoryRepository.this.nodesByRef.get(nodeRef);
+            final boolean allowed = node != null && PermissionService.READ.equals(permission)
+                    && InMemoryRepository.this.canRead(node, AuthenticationUtil.getRunAsUser());
+            return allowed ? AccessStatus.ALLOWED : AccessStatus.DENIED;
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected class PersonServiceImpl
+    {
+
+        public NodeRef getPerson(final String userName, final boolean autoCreateHomeFolderAndMissingPersonIfAllowed)
+        {
+            return InMemoryRepository.this.personsByUserName.get(userName);
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected class AuthorityServiceImpl
+    {
+
+        public boolean isAdminAuthority(final String authorityName)
+        {
+            return InMemoryRepository.this.isAdministrator(authorityName);
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class NamespaceServiceImpl
+    {
+
+        public String getNamespaceURI(final String prefix)
+        {
+            final String namespaceURI = NAMESPACES.get(prefix);
+            if (namespaceURI == null)
+            {
+                throw new NamespaceException("Namespace prefix " + prefix + " is not mapped to a namespace URI");
+            }
+            return namespaceURI;
+        }
+
+        public Collection<String> getPrefixes(final String namespaceURI)
+        {
+            final List<String> prefixes = new ArrayList<>();
+            NAMESPACES.forEach((prefix, uri) -> {
+                if (uri.equals(namespaceURI))
+                {
+                    prefixes.add(prefix);
+                }
+            });
+            return prefixes;
+        }
+
+        public Collection<String> getPrefixes()
+        {
+            return new ArrayList<>(NAMESPACES.keySet());
+        }
+
+        public Collection<String> getURIs()
+        {
+            return new ArrayList<>(NAMESPACES.values());
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class DictionaryServiceImpl
+    {
+
+        public boolean isSubClass(final QName className, final QName ofClassName)
+        {
+            QName currentClassName = className;
+            while (currentClassName != null && !currentClassName.equals(ofClassName))
+            {
+                currentClassName = SUPER_TYPES.get(currentClassName);
+            }
+            return currentClassName != null;
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class TransactionServiceImpl
+    {
+
+        private final RetryingTransactionHelper retryingTransactionHelper = new DirectTransactionHelper();
+
+        public RetryingTransactionHelper getRetryingTransactionHelper()
+        {
+            return this.retryingTransactionHelper;
+        }
+    }
+
+    /**
+     * Instances of this class execute transactional work directly as there are no transactional resources in the in-memory repository.
+     * Transaction synchronisation is still provided so that {@link org.alfresco.repo.transaction.AlfrescoTransactionSupport transaction
+     * listeners} and resources work as in Alfresco, e.g. to schedule chunked purges after commit. Work requiring a new transaction while
+     * another is active on the current thread runs with the synchronisation of the outer transaction suspended.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class DirectTransactionHelper extends RetryingTransactionHelper
+    {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <R> R doInTransaction(final RetryingTransactionCallback<R> cb, final boolean readOnly, final boolean requiresNew)
+        {
+            final R result;
+            if (!requiresNew && TransactionSynchronizationManager.isSynchronizationActive())
+            {
+                result = execute(cb);
+            }
+            else
+            {
+                final SuspendedTransaction suspended = SuspendedTransaction.suspend();
+                try
+                {
+                    result = executeInNewTransaction(cb, readOnly);
+                }
+                finally
+                {
+                    suspended.resume();
+                }
+            }
+            return result;
+        }
+
+        protected static <R> R executeInNewTransaction(final RetryingTransactionCallback<R> cb, final boolean readOnly)
+        {
+            TransactionSynchronizationManager.initSynchronization();
+            TransactionSynchronizationManager.setActualTransactionActive(true);
+            TransactionSynchronizationManager.setCurrentTransactionReadOnly(readOnly);
+
+            final R result;
+            boolean committed = false;
+            try
+            {
+                result = execute(cb);
+                TransactionSynchronizationUtils.triggerBeforeCommit(readOnly);
+                TransactionSynchronizationUtils.triggerBeforeCompletion();
+                committed = true;
+            }
+            finally
+            {
+                final List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+                TransactionSynchronizationManager.clear();
+                try
+                {
+                    if (committed)
+                    {
+                        TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+                    }
+                    TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations,
+                            committed ? TransactionSynchronization.STATUS_COMMITTED : TransactionSynchronization.STATUS_ROLLED_BACK);
+                }
+                finally
+                {
+                    // resources not unbound by their synchronisations would leak into the next transaction of the thread
+                    new ArrayList<>(TransactionSynchronizationManager.getResourceMap().keySet())
+                            .forEach(TransactionSynchronizationManager::unbindResourceIfPossible);
+                }
+            }
+            return result;
+        }
+
+        protected static <R> R execute(final RetryingTransactionCallback<R> cb)
+        {
+            try
+            {
+                return cb.execute();
+            }
+            catch (final RuntimeException | Error ex)
+            {
+                throw ex;
+            }
+            catch (final Throwable t)
+            {
+                throw new AlfrescoRuntimeException("Transactional work failed", t);
+            }
+        }
+    }
+
+    /**
+     * Instances of this class hold the synchronisation state and resources of a transaction which has been suspended for the execution of
+     * a new transaction on the same thread.
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class SuspendedTransaction
+    {
+
+        private final List<TransactionSynchronization> synchronizations;
+
+        private final Map<Object, Object> resources;
+
+        private final boolean readOnly;
+
+        protected SuspendedTransaction(final List<TransactionSynchronization> synchronizations, final Map<Object, Object> resources,
+                final boolean readOnly)
+        {
+            this.synchronizations = synchronizations;
+            this.resources = resources;
+            this.readOnly = readOnly;
+        }
+
+        protected static SuspendedTransaction suspend()
+        {
+            final SuspendedTransaction suspended;
+            if (TransactionSynchronizationManager.isSynchronizationActive())
+            {
+                final List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+                final boolean readOnly = TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+                final Map<Object, Object> resources = new HashMap<>(TransactionSynchronizationManager.getResourceMap());
+                resources.keySet().forEach(TransactionSynchronizationManager::unbindResource);
+                TransactionSynchronizationManager.clear();
+                suspended = new SuspendedTransaction(synchronizations, resources, readOnly);
+            }
+            else
+            {
+                suspended = new SuspendedTransaction(null, Collections.emptyMap(), false);
+            }
+            return suspended;
+        }
+
+        protected void resume()
+        {
+            if (this.synchronizations != null)
+            {
+                TransactionSynchronizationManager.initSynchronization();
+                TransactionSynchronizationManager.setActualTransactionActive(true);
+                TransactionSynchronizationManager.setCurrentTransactionReadOnly(this.readOnly);
+                this.synchronizations.forEach(TransactionSynchronizationManager::registerSynchronization);
+                this.resources.forEach(TransactionSynchronizationManager::bindResource);
+            }
+        }
+    }
+}
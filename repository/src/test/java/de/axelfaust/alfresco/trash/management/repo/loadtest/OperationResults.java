@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instances of this class collect the results of all executions of a single operation during the measurement phase of a load test, i.e.
+ * the latency of each execution, failures by type and the calls made to the {@link ServiceStandIns service stand-ins}.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class OperationResults
+{
+
+    protected final String operation;
+
+    protected final LongAdder failures = new LongAdder();
+
+    protected final ConcurrentMap<String, LongAdder> failuresByType = new ConcurrentHashMap<>();
+
+    protected final CallCounts callCounts = new CallCounts();
+
+    protected long[] latencies = new long[1024];
+
+    protected int count;
+
+    public OperationResults(final String operation)
+    {
+        this.operation = operation;
+    }
+
+    /**
+     * Records a single execution of the operation.
+     *
+     * @param durationNanos
+     *            the duration of the execution
+     * @param callCounts
+     *            the calls made by the execution
+     * @param failure
+     *            the failure of the execution or {@code null} if it succeeded
+     */
+    public void record(final long durationNanos, final CallCounts callCounts, final Throwable failure)
+    {
+        if (failure != null)
+        {
+            this.failures.increment();
+            this.failuresByType.computeIfAbsent(failure.getClass().getName() + ": " + failure.getMessage(), key -> new LongAdder())
+                    .increment();
+        }
+        callCounts.addTo(this.callCounts);
+
+        synchronized (this)
+        {
+            if (this.count == this.latencies.length)
+            {
+                this.latencies = Arrays.copyOf(this.latencies, this.latencies.length * 2);
+            }
+            this.latencies[this.count++] = durationNanos;
+        }
+    }
+
+    /**
+     * Builds the report lines for the operation.
+     *
+     * @param elapsedMillis
+     *            the duration of the measurement phase
+     * @param topCalls
+     *            the number of most frequent calls to list individually
+     * @return the report lines
+     */
+    public List<String> buildReport(final long elapsedMillis, final int topCalls)
+    {
+        final long[] samples;
+        synchronized (this)
+        {
+            samples = Arrays.copyOf(this.latencies, this.count);
+        }
+        Arrays.sort(samples);
+
+        final int count = samples.length;
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ENGLISH,
+                "%s: %d executions (%d failed), %.1f ops/s, p50 %.2f ms, p99 %.2f ms, %.1f NodeService calls per execution",
+                this.operation, count, this.failures.sum(), count * 1000d / Math.max(elapsedMillis, 1), percentileMillis(samples, 50),
+                percentileMillis(samples, 99), count > 0 ? this.callCounts.sum("NodeService.") / (double) count : 0d));
+
+        final List<Map.Entry<String, Long>> calls = new ArrayList<>(this.callCounts.toMap().entrySet());
+        calls.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+        for (final Map.Entry<String, Long> call : calls.subList(0, Math.min(topCalls, calls.size())))
+        {
+            lines.add(String.format(Locale.ENGLISH, "    %s: %.1f calls per execution", call.getKey(),
+                    count > 0 ? call.getValue().longValue() / (double) count : 0d));
+        }
+
+        this.failuresByType.forEach((type, failures) -> lines.add(String.format(Locale.ENGLISH, "    failed %d times: %s", failures.sum(),
+                type)));
+        return lines;
+    }
+
+    private static double percentileMillis(final long[] sortedSamples, final int percentile)
+    {
+        double result = 0;
+        if (sortedSamples.length > 0)
+        {
+            final int idx = (int) Math.ceil(percentile / 100d * sortedSamples.length) - 1;
+            result = sortedSamples[Math.max(idx, 0)] / 1000000d;
+        }
+        return result;
+    }
+}
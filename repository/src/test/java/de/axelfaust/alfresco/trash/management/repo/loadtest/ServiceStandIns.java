@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.loadtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class creates stand-ins for Alfresco service interfaces which dispatch each call to the public method with the same name and
+ * parameter types of an implementation object. As the service interfaces are quite large, implementation objects only need to provide the
+ * methods actually used by the code under test - any other call fails with an {@link UnsupportedOperationException}. Calls to counted
+ * stand-ins are counted against the {@link CallCounts call counts} bound to the calling thread, using the simple name of the service
+ * interface and the method name as the name of the call.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public final class ServiceStandIns
+{
+
+    private ServiceStandIns()
+    {
+        // NO-OP
+    }
+
+    /**
+     * Creates a stand-in for a service interface with calls being counted.
+     *
+     * @param serviceInterface
+     *            the service interface
+     * @param implementation
+     *            the implementation object
+     * @return the stand-in
+     */
+    public static <T> T create(final Class<T> serviceInterface, final Object implementation)
+    {
+        return create(serviceInterface, implementation, true);
+    }
+
+    /**
+     * Creates a stand-in for an interface with calls not being counted, e.g. for result sets or requests.
+     *
+     * @param serviceInterface
+     *            the interface
+     * @param implementation
+     *            the implementation object
+     * @return the stand-in
+     */
+    public static <T> T createUncounted(final Class<T> serviceInterface, final Object implementation)
+    {
+        return create(serviceInterface, implementation, false);
+    }
+
+    private static <T> T create(final Class<T> serviceInterface, final Object implementation, final boolean counted)
+    {
+        final Object proxy = Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[] { serviceInterface },
+                new StandInInvocationHandler(serviceInterface.getSimpleName(), implementation, counted));
+        return serviceInterface.cast(proxy);
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    private static class StandInInvocationHandler implements InvocationHandler
+    {
+
+        private final String serviceName;
+
+        private final Object implementation;
+
+        private final boolean counted;
+
+        private final ConcurrentMap<Method, Optional<Method>> targetMethods = new ConcurrentHashMap<>();
+
+        private StandInInvocationHandler(final String serviceName, final Object implementation, final boolean counted)
+        {
+            this.serviceName = serviceName;
+            this.implementation = implementation;
+            this.counted = counted;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final Object result;
+            if (method.getDeclaringClass() == Object.class)
+            {
+                switch (method.getName())
+                {
+                    case "equals":
+                        result = Boolean.valueOf(proxy == args[0]);
+                        break;
+                    case "hashCode":
+                        result = Integer.valueOf(System.identityHashCode(proxy));
+                        break;
+                    default:
+                        result = this.serviceName + " stand-in";
+                }
+            }
+            else
+            {
+                final Method targetMethod = this.targetMethods.computeIfAbsent(method, this::resolveTargetMethod)
+                        .orElseThrow(() -> new UnsupportedOperationException(
+                                this.serviceName + "." + method.getName() + " is not supported by the load-test stand-in"));
+
+                if (this.counted)
+                {
+                    CallCounts.count(this.serviceName + "." + method.getName());
+                }
+
+                try
+                {
+                    result = targetMethod.invoke(this.implementation, args);
+                }
+                catch (final InvocationTargetException itex)
+                {
+                    throw itex.getCause();
+                }
+            }
+            return result;
+        }
+
+        private Optional<Method> resolveTargetMethod(final Method method)
+        {
+            Optional<Method> targetMethod;
+            try
+            {
+                final Method implementationMethod = this.implementation.getClass().getMethod(method.getName(), method.getParameterTypes());
+                // implementation classes are typically not public
+                implementationMethod.setAccessible(true);
+                targetMethod = Optional.of(implementationMethod);
+            }
+            catch (final NoSuchMethodException nsmex)
+            {
+                targetMethod = Optional.empty();
+            }
+            return targetMethod;
+        }
+    }
+}
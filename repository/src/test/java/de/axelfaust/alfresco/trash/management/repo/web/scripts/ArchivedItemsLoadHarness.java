@@ -0,0 +1,481 @@
+/*
+ * Copyright 2018 Axel Faust
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.axelfaust.alfresco.trash.management.repo.web.scripts;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Match;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import de.axelfaust.alfresco.trash.management.repo.archive.ArchivedNodesPurger;
+import de.axelfaust.alfresco.trash.management.repo.loadtest.ArchiveShape;
+import de.axelfaust.alfresco.trash.management.repo.loadtest.CallCounts;
+import de.axelfaust.alfresco.trash.management.repo.loadtest.ContextPropagatingExecutorService;
+import de.axelfaust.alfresco.trash.management.repo.loadtest.InMemoryRepository;
+import de.axelfaust.alfresco.trash.management.repo.loadtest.OperationResults;
+import de.axelfaust.alfresco.trash.management.repo.loadtest.ServiceStandIns;
+
+/**
+ * This class runs a load test of the archived items query, children and delete web scripts against an {@link InMemoryRepository in-memory
+ * repository}. A configurable number of threads concurrently executes a weighted mix of operations on behalf of random users (and
+ * administrators) for a warm-up and a measurement phase, and the throughput, p50 / p99 latency and calls to the stand-in services per
+ * operation are reported at the end. Since the stand-ins are much faster than a real database and SOLR, the latencies mainly reflect the
+ * overhead of the web scripts themselves and should be compared between runs rather than taken as absolute values - the call counts are
+ * the more meaningful metric for the load the web scripts put on a repository.
+ *
+ * Requests are executed via {@code executeImpl} of the web scripts, including their admission control and request transactions, as the
+ * final {@code execute} of declarative web scripts only adds the format and template handling of a web script container. Purges of large
+ * trees are performed in chunks by a background executor just like in the repository - since the generated trees are small, the
+ * threshold and chunk size default to much lower values than in the module configuration.
+ *
+ * The load test is run via the {@code load-test} Maven profile and configured via {@code btm.*} system properties, e.g.
+ * {@code mvn -P load-test test -Dbtm.threads=16 -Dbtm.durationSeconds=60 -Dbtm.stores=3}. See {@link ArchiveShape} for the properties
+ * controlling the generated archive stores.
+ *
+ * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+ */
+public class ArchivedItemsLoadHarness
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchivedItemsLoadHarness.class);
+
+    private static final String OPERATION_QUERY = "query";
+
+    private static final String OPERATION_CHILDREN = "children";
+
+    private static final String OPERATION_DELETE = "delete";
+
+    private static final String CHILDREN_TEMPLATE_PATH = "/api/better-trash-management/archivedItems/{storeProtocol}/{storeIdentifier}/"
+            + "{uuid}/children";
+
+    private static final String[] SORT_FIELDS = { "archivedDate", "name", "size", "modified", "archiver" };
+
+    private static final String[] NAME_FRAGMENTS = { "Document 1", "pdf", "Folder", "42" };
+
+    private static final int PAGE_SIZE = 50;
+
+    protected final InMemoryRepository repository;
+
+    protected final ExecutorService fanOutExecutor;
+
+    protected final ArchivedItemsQueryGet queryGet = new ArchivedItemsQueryGet();
+
+    protected final ArchivedItemsChildrenGet childrenGet = new ArchivedItemsChildrenGet();
+
+    protected final ArchivedItemsDelete delete = new ArchivedItemsDelete();
+
+    protected final AdmissionControl admissionControl = new AdmissionControl();
+
+    protected final ExecutorService purgeExecutor = Executors.newSingleThreadExecutor(daemonThreadFactory("purge"));
+
+    protected final AtomicInteger chunkedPurges = new AtomicInteger();
+
+    protected final Map<String, OperationResults> results = new LinkedHashMap<>();
+
+    protected final int threads = Math.max(Integer.getInteger("btm.threads", 8).intValue(), 1);
+
+    protected final int warmupSeconds = Math.max(Integer.getInteger("btm.warmupSeconds", 5).intValue(), 0);
+
+    protected final int durationSeconds = Math.max(Integer.getInteger("btm.durationSeconds", 30).intValue(), 1);
+
+    protected final int queryWeight = Math.max(Integer.getInteger("btm.mix.query", 70).intValue(), 0);
+
+    protected final int childrenWeight = Math.max(Integer.getInteger("btm.mix.children", 20).intValue(), 0);
+
+    protected final int deleteWeight = Math.max(Integer.getInteger("btm.mix.delete", 10).intValue(), 0);
+
+    protected final double adminRatio = Double.parseDouble(System.getProperty("btm.adminRatio", "0.1"));
+
+    protected final int largeTreeThreshold = Integer.getInteger("btm.largeTreeThreshold", 20).intValue();
+
+    protected final int purgeChunkSize = Math.max(Integer.getInteger("btm.purgeChunkSize", 8).intValue(), 1);
+
+    protected volatile boolean running = true;
+
+    protected volatile boolean measuring;
+
+    public static void main(final String[] args) throws Exception
+    {
+        final AuthenticationUtil authenticationUtil = new AuthenticationUtil();
+        authenticationUtil.setDefaultAdminUserName(InMemoryRepository.ADMIN_USER);
+        authenticationUtil.setDefaultGuestUserName("guest");
+        authenticationUtil.afterPropertiesSet();
+
+        final ArchiveShape shape = ArchiveShape.fromSystemProperties();
+        final InMemoryRepository repository = new InMemoryRepository(shape);
+        repository.generate();
+        LOGGER.info("Generated {} nodes for archive shape {}", repository.getNodeCount(), shape);
+
+        new ArchivedItemsLoadHarness(repository).run();
+    }
+
+    public ArchivedItemsLoadHarness(final InMemoryRepository repository)
+    {
+        this.repository = repository;
+
+        // same defaults as the fan-out executor of the module
+        final int fanOutThreads = Math.max(Integer.getInteger("btm.fanOutThreads", 8).intValue(), 1);
+        this.fanOutExecutor = new ContextPropagatingExecutorService(new ThreadPoolExecutor(fanOutThreads, fanOutThreads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(100), daemonThreadFactory("fanOut")));
+
+        // same defaults as the module configuration
+        final Map<String, Integer> operationClassLimits = new HashMap<>();
+        operationClassLimits.put(OPERATION_QUERY, Integer.getInteger("btm.admission.query.limit", 8));
+        operationClassLimits.put(OPERATION_CHILDREN, Integer.getInteger("btm.admission.children.limit", 8));
+        operationClassLimits.put(OPERATION_DELETE, Integer.getInteger("btm.admission.delete.limit", 2));
+        this.admissionControl.setEnabled(Boolean.parseBoolean(System.getProperty("btm.admission.enabled", "true")));
+        this.admissionControl.setGlobalLimit(Integer.getInteger("btm.admission.globalLimit", 16).intValue());
+        this.admissionControl.setPerUserLimit(Integer.getInteger("btm.admission.perUserLimit", 4).intValue());
+        this.admissionControl.setOperationClassLimits(operationClassLimits);
+        this.admissionControl.setQueueTimeout(Long.getLong("btm.admission.queueTimeout", 5000).longValue());
+        this.admissionControl.setRetryAfter(Integer.getInteger("btm.admission.retryAfter", 10).intValue());
+        this.admissionControl.afterPropertiesSet();
+
+        this.configureRetrievalWebScript(this.queryGet);
+        this.queryGet.setNodeArchiveService(repository.getNodeArchiveService());
+        this.queryGet.setAdmissionOperationClass(OPERATION_QUERY);
+        this.queryGet.afterPropertiesSet();
+
+        this.configureRetrievalWebScript(this.childrenGet);
+        this.childrenGet.setDictionaryService(repository.getDictionaryService());
+        this.childrenGet.setAdmissionOperationClass(OPERATION_CHILDREN);
+        this.childrenGet.afterPropertiesSet();
+
+        final ArchivedNodesPurger purger = new ArchivedNodesPurger()
+        {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected void purgeLargeTree(final NodeRef largeTreeRoot, final Runnable beforeChunk)
+            {
+                super.purgeLargeTree(largeTreeRoot, beforeChunk);
+                ArchivedItemsLoadHarness.this.chunkedPurges.incrementAndGet();
+            }
+        };
+        purger.setNodeService(repository.getNodeService());
+        purger.setNodeArchiveService(repository.getNodeArchiveService());
+        purger.setSearchService(repository.getSearchService());
+        purger.setDictionaryService(repository.getDictionaryService());
+        purger.setTransactionService(repository.getTransactionService());
+        purger.setSpaceEstimator(repository.getSpaceEstimator());
+        purger.setPurgeExecutor(this.purgeExecutor);
+        purger.setLargeTreeThreshold(this.largeTreeThreshold);
+        purger.setChunkSize(this.purgeChunkSize);
+        // job locks are only required to resume interrupted purges on bootstrap, so afterPropertiesSet would fail
+
+        this.delete.setNodeArchiveService(repository.getNodeArchiveService());
+        this.delete.setNodeDAO(repository.getNodeDAO());
+        this.delete.setAuthorityService(repository.getAuthorityService());
+        this.delete.setArchivedNodesPurger(purger);
+        this.delete.setTransactionService(repository.getTransactionService());
+        this.delete.setAdmissionControl(this.admissionControl);
+        this.delete.setAdmissionOperationClass(OPERATION_DELETE);
+        // dry runs (space estimation) require a database and are not part of the workload, so afterPropertiesSet would fail
+
+        this.results.put(OPERATION_QUERY, new OperationResults(OPERATION_QUERY));
+        this.results.put(OPERATION_CHILDREN, new OperationResults(OPERATION_CHILDREN));
+        this.results.put(OPERATION_DELETE, new OperationResults(OPERATION_DELETE));
+    }
+
+    /**
+     * Runs the warm-up and measurement phases and logs the report.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting for the phases to end
+     */
+    public void run() throws InterruptedException
+    {
+        if (this.queryWeight + this.childrenWeight + this.deleteWeight <= 0)
+        {
+            throw new IllegalStateException("At least one operation must have a positive weight in the mix");
+        }
+
+        LOGGER.info("Running {} threads with mix query={}, children={}, delete={} and admin ratio {} ({}s warm-up, {}s measurement)",
+                this.threads, this.queryWeight, this.childrenWeight, this.deleteWeight, this.adminRatio, this.warmupSeconds,
+                this.durationSeconds);
+        LOGGER.info("Purging trees with at least {} descendants in chunks of {} nodes", this.largeTreeThreshold, this.purgeChunkSize);
+
+        final ExecutorService workers = Executors.newFixedThreadPool(this.threads, daemonThreadFactory("worker"));
+        for (int idx = 0; idx < this.threads; idx++)
+        {
+            workers.execute(this::runWorker);
+        }
+
+        TimeUnit.SECONDS.sleep(this.warmupSeconds);
+        this.measuring = true;
+        final long measurementStart = System.currentTimeMillis();
+
+        TimeUnit.SECONDS.sleep(this.durationSeconds);
+        this.measuring = false;
+        final long elapsedMillis = System.currentTimeMillis() - measurementStart;
+
+        this.running = false;
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        this.fanOutExecutor.shutdown();
+        // chunked purges still pending are completed so that the node count reflects all purges
+        this.purgeExecutor.shutdown();
+        this.purgeExecutor.awaitTermination(1, TimeUnit.MINUTES);
+
+        LOGGER.info("Results of {}s measurement ({} nodes remaining, {} large trees purged in chunks during the whole run):",
+                TimeUnit.MILLISECONDS.toSeconds(elapsedMillis), this.repository.getNodeCount(), this.chunkedPurges.get());
+        this.results.values().forEach(operationResults -> operationResults.buildReport(elapsedMillis, 5).forEach(LOGGER::info));
+        this.admissionControl.getMetrics()
+                .forEach(metric -> LOGGER.info("admission of {}: limit {}, admitted {}, rejected {}", metric.get("operationClass"),
+                        metric.get("limit"), metric.get("admitted"), metric.get("rejected")));
+    }
+
+    protected void configureRetrievalWebScript(final AbstractArchivedItemsRetrievalWebScript webScript)
+    {
+        webScript.setNodeService(this.repository.getNodeService());
+        webScript.setNamespaceService(this.repository.getNamespaceService());
+        webScript.setPersonService(this.repository.getPersonService());
+        webScript.setPermissionService(this.repository.getPermissionService());
+        webScript.setAuthorityService(this.repository.getAuthorityService());
+        webScript.setSearchService(this.repository.getSearchService());
+        webScript.setTransactionService(this.repository.getTransactionService());
+        webScript.setNodeDAO(this.repository.getNodeDAO());
+        webScript.setFanOutExecutor(this.fanOutExecutor);
+        webScript.setAdmissionControl(this.admissionControl);
+    }
+
+    protected void runWorker()
+    {
+        final Random random = ThreadLocalRandom.current();
+        final List<String> users = this.repository.getUsers();
+        final int totalWeight = this.queryWeight + this.childrenWeight + this.deleteWeight;
+
+        while (this.running)
+        {
+            final boolean admin = random.nextDouble() < this.adminRatio;
+            final String user = admin ? InMemoryRepository.ADMIN_USER : users.get(random.nextInt(users.size()));
+            final String owner = admin || random.nextInt(5) == 0 ? users.get(random.nextInt(users.size())) : user;
+
+            final int pick = random.nextInt(totalWeight);
+            String operation = pick < this.queryWeight ? OPERATION_QUERY
+                    : (pick < this.queryWeight + this.childrenWeight ? OPERATION_CHILDREN : OPERATION_DELETE);
+
+            // preparation of the requests (picking archived items) is not part of the measured execution
+            final NodeRef target;
+            final WebScriptRequest req;
+            switch (operation)
+            {
+                case OPERATION_CHILDREN:
+                    target = this.repository.pickArchivedRoot(owner, random, true);
+                    req = target != null ? this.buildChildrenRequest(target, random) : null;
+                    break;
+                case OPERATION_DELETE:
+                    // users may only purge their own archived items
+                    target = this.repository.takeArchivedRoot(admin ? owner : user, random);
+                    req = target != null ? this.buildDeleteRequest(target) : null;
+                    break;
+                default:
+                    target = null;
+                    req = null;
+            }
+
+            final WebScriptRequest effectiveReq;
+            if (req == null)
+            {
+                operation = OPERATION_QUERY;
+                effectiveReq = this.buildQueryRequest(user, admin, random);
+            }
+            else
+            {
+                effectiveReq = req;
+            }
+
+            final boolean measured = this.measuring;
+            final CallCounts callCounts = new CallCounts();
+            final CallCounts previousCallCounts = CallCounts.bind(callCounts);
+            AuthenticationUtil.setFullyAuthenticatedUser(user);
+
+            Throwable failure = null;
+            final long start = System.nanoTime();
+            try
+            {
+                final Status status = new Status();
+                this.execute(operation, effectiveReq, status);
+                if (status.getCode() != Status.STATUS_OK)
+                {
+                    failure = new WebScriptException(status.getCode(), status.getMessage());
+                }
+            }
+            catch (final RuntimeException ex)
+            {
+                failure = ex;
+            }
+            finally
+            {
+                AuthenticationUtil.clearCurrentSecurityContext();
+                CallCounts.bind(previousCallCounts);
+            }
+            final long durationNanos = System.nanoTime() - start;
+
+            if (measured && this.measuring)
+            {
+                this.results.get(operation).record(durationNanos, callCounts, failure);
+            }
+
+            if (OPERATION_DELETE.equals(operation))
+            {
+                // keep the size of the archive stable
+                final List<StoreRef> baseStores = this.repository.getBaseStores();
+                this.repository.addArchivedTree(admin ? owner : user, baseStores.get(random.nextInt(baseStores.size())), random);
+            }
+        }
+    }
+
+    protected void execute(final String operation, final WebScriptRequest req, final Status status)
+    {
+        switch (operation)
+        {
+            case OPERATION_CHILDREN:
+                this.childrenGet.executeImpl(req, status, new Cache());
+                break;
+            case OPERATION_DELETE:
+                this.delete.executeImpl(req, status, new Cache());
+                break;
+            default:
+                this.queryGet.executeImpl(req, status, new Cache());
+        }
+    }
+
+    protected WebScriptRequest buildQueryRequest(final String user, final boolean admin, final Random random)
+    {
+        final Map<String, String> parameters = new HashMap<>();
+        parameters.put("pageSize", String.valueOf(PAGE_SIZE));
+        parameters.put("startIndex", String.valueOf(random.nextInt(5) * PAGE_SIZE));
+        parameters.put("sortBy", SORT_FIELDS[random.nextInt(SORT_FIELDS.length)]);
+        parameters.put("sortAsc", String.valueOf(random.nextBoolean()));
+        if (!admin && random.nextBoolean())
+        {
+            parameters.put("archivedByUser", user);
+        }
+        if (random.nextInt(5) == 0)
+        {
+            parameters.put("name", NAME_FRAGMENTS[random.nextInt(NAME_FRAGMENTS.length)]);
+        }
+        if (this.repository.getBaseStores().size() > 1)
+        {
+            parameters.put("baseStore", "all");
+        }
+        return ServiceStandIns.createUncounted(WebScriptRequest.class, new LoadTestRequest(parameters, null, null));
+    }
+
+    protected WebScriptRequest buildChildrenRequest(final NodeRef archivedRoot, final Random random)
+    {
+        final Map<String, String> parameters = new HashMap<>();
+        parameters.put("pageSize", String.valueOf(PAGE_SIZE));
+        parameters.put("depth", String.valueOf(1 + random.nextInt(3)));
+
+        final Map<String, String> templateVars = new HashMap<>();
+        templateVars.put("storeProtocol", archivedRoot.getStoreRef().getProtocol());
+        templateVars.put("storeIdentifier", archivedRoot.getStoreRef().getIdentifier());
+        templateVars.put("uuid", archivedRoot.getId());
+        final String matchPath = "/api/better-trash-management/archivedItems/" + archivedRoot.getStoreRef().getProtocol() + "/"
+                + archivedRoot.getStoreRef().getIdentifier() + "/" + archivedRoot.getId() + "/children";
+
+        return ServiceStandIns.createUncounted(WebScriptRequest.class,
+                new LoadTestRequest(parameters, null, new Match(CHILDREN_TEMPLATE_PATH, templateVars, matchPath)));
+    }
+
+    protected WebScriptRequest buildDeleteRequest(final NodeRef archivedRoot)
+    {
+        final JSONObject content;
+        try
+        {
+            content = new JSONObject("{\"nodes\": [\"" + archivedRoot + "\"]}");
+        }
+        catch (final JSONException jsonEx)
+        {
+            throw new IllegalStateException("Failed to build request content", jsonEx);
+        }
+        return ServiceStandIns.createUncounted(WebScriptRequest.class,
+                new LoadTestRequest(Collections.<String, String> emptyMap(), content, null));
+    }
+
+    protected static ThreadFactory daemonThreadFactory(final String name)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     *
+     * @author Axel Faust, <a href="http://acosix.de">Acosix GmbH</a>
+     */
+    protected static class LoadTestRequest
+    {
+
+        private final Map<String, String> parameters;
+
+        private final Object content;
+
+        private final Match serviceMatch;
+
+        protected LoadTestRequest(final Map<String, String> parameters, final Object content, final Match serviceMatch)
+        {
+            this.parameters = parameters;
+            this.content = content;
+            this.serviceMatch = serviceMatch;
+        }
+
+        public String getParameter(final String name)
+        {
+            return this.parameters.get(name);
+        }
+
+        public Object parseContent()
+        {
+            return this.content;
+        }
+
+        public Match getServiceMatch()
+        {
+            return this.serviceMatch;
+        }
+    }
+}
@@ -10,6 +10,7 @@ function main()
     widgets = getHeaderModel(msg.get('better-trash-management.trash-browser.page.title'));
 
     augmentServices(services);
+    preloadSearchListFirstPage(services);
     widgets.push(buildPageWidgets());
     
     model.jsonModel = getFooterModel(services, widgets);
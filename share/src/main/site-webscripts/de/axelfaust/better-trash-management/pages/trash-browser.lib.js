@@ -9,6 +9,8 @@ function augmentServices(services)
         'alfresco/services/NodePreviewService' : true,
         'alfresco/services/LightboxService' : true,
         'alfresco/services/DialogService' : true,
+        // lists load (larger) chunks of items incrementally while scrolling instead of rendering full pages
+        'alfresco/services/InfiniteScrollService' : true,
         // needed for some lazy loading of data (some service expect data in weird/complex structures that we don't provide
         // we would have the data, but there is no way to configure services / widgets to use our data, and transforming is out of the
         // question
@@ -44,6 +46,38 @@ function augmentServices(services)
     }
 }
 
+/* exported preloadSearchListFirstPage */
+function preloadSearchListFirstPage(services)
+{
+    var uri, result, idx, serviceName, service;
+
+    // parameters need to mirror the initial state of BTTM_SEARCH_LIST (page size, sorting, payload and filter defaults)
+    uri = 'api/better-trash-management/archivedItems?pageSize=100&page=1&startIndex=0&sortBy=archivedDate&sortAsc=false&compact=true';
+    uri += '&defaultOperator=AND&searchMode=metadata&topLevel=false&baseStore=' + encodeURIComponent('workspace://SpacesStore');
+
+    // saves the client an additional proxy round trip for the first page right after loading the page
+    result = remote.call('/' + uri);
+    if (result.status.code === 200)
+    {
+        for (idx = 0; idx < services.length; idx++)
+        {
+            serviceName = typeof services[idx] === 'string' ? services[idx] : services[idx].name;
+            if (serviceName === 'better-trash-management/services/TrashManagementService')
+            {
+                service = typeof services[idx] === 'string' ? {
+                    name : serviceName
+                } : services[idx];
+                service.config = service.config || {};
+                service.config.preloadedPages = [ {
+                    url : uri,
+                    response : JSON.parse(result.response)
+                } ];
+                services[idx] = service;
+            }
+        }
+    }
+}
+
 function buildListResultWidgets(idPrefix)
 {
     var widgets = [ {
@@ -279,6 +313,46 @@ function buildListResultWidgets(idPrefix)
     return widgets;
 }
 
+function buildSortWidgets(idPrefix)
+{
+    var widgets = [ {
+        id : idPrefix + '_SORT_FIELD',
+        name : 'alfresco/lists/SortFieldSelect',
+        config : {
+            value : 'archivedDate',
+            sortFieldOptions : [ {
+                label : 'trash-browser.sort.archivedDate.label',
+                value : 'archivedDate',
+                direction : 'descending'
+            }, {
+                label : 'trash-browser.sort.name.label',
+                value : 'name',
+                direction : 'ascending'
+            }, {
+                label : 'trash-browser.sort.size.label',
+                value : 'size',
+                direction : 'descending'
+            }, {
+                label : 'trash-browser.sort.modified.label',
+                value : 'modified',
+                direction : 'descending'
+            }, {
+                label : 'trash-browser.sort.archiver.label',
+                value : 'archiver',
+                direction : 'ascending'
+            } ]
+        }
+    }, {
+        id : idPrefix + '_SORT_ORDER',
+        name : 'alfresco/lists/SortOrderToggle',
+        config : {
+            checked : false
+        }
+    } ];
+
+    return widgets;
+}
+
 function buildSearchPanel()
 {
     var model;
@@ -291,21 +365,28 @@ function buildSearchPanel()
             widgets : [
                     {
                         id : 'BTTM_SEARCH_LIST_PAGINATOR',
-                        name : 'alfresco/lists/Paginator',
+                        name : 'alfresco/menus/AlfMenuBar',
                         config : {
-                            documentsPerPage : 20,
-                            pageSizes : [ 20, 50, 100 ],
+                            // list uses infinite scroll, so there is no page navigation - only list-level actions
                             style : 'text-align:center;',
-                            widgetsBefore : [ {
+                            widgets : [ {
                                 id : 'BTTM_SEARCH_LIST_PAGINATOR_BULK_SELECTOR',
                                 name : 'alfresco/documentlibrary/AlfSelectDocumentListItems'
-                            } ],
-                            widgetsAfter : [ {
+                            } ].concat(buildSortWidgets('BTTM_SEARCH_LIST_PAGINATOR'), [ {
                                 id : 'BTTM_SEARCH_LIST_PAGINATOR_RELOADER',
                                 name : 'alfresco/menus/AlfMenuBarItem',
                                 config : {
                                     label : 'trash-browser.paginator.reload.label',
-                                    publishTopic : 'RELOAD_TRASH_ITEMS'
+                                    // explicit reload must bypass any cached pages
+                                    publishTopic : 'BETTER_TRASH_MANAGEMENT_PUBLISH_CHAIN',
+                                    publishGlobal : true,
+                                    publishPayload : {
+                                        publications : [ {
+                                            publishTopic : 'BETTER_TRASH_MANAGEMENT_INVALIDATE_CACHE'
+                                        }, {
+                                            publishTopic : 'TRASH_SEARCH_LIST/RELOAD_TRASH_ITEMS'
+                                        } ]
+                                    }
                                 }
                             }, {
                                 id : 'BTTM_SEARCH_LIST_PAGINATOR_SELECTED_ITEMS',
@@ -331,7 +412,7 @@ function buildSearchPanel()
                                         }
                                     } ]
                                 }
-                            } ]
+                            } ])
                         }
                     },
                     {
@@ -340,14 +421,17 @@ function buildSearchPanel()
                         config : {
                             reloadDataTopic : 'RELOAD_TRASH_ITEMS',
                             loadDataPublishTopic : 'BETTER_TRASH_MANAGEMENT_QUERY_ARCHIVED_ITEMS',
+                            // most recently deleted items first
+                            sortField : 'archivedDate',
+                            sortAscending : false,
                             loadDataPublishPayload : {
-                                defaultOperator : 'AND',
-                                defaultQueryTemplate : '%(cm:name cm:title cm:description ia:whatEvent ia:descriptionEvent lnk:title lnk:description TEXT TAG)'
+                                // query template for keywords is determined by the repository based on the search mode
+                                defaultOperator : 'AND'
                             // TODO Fill with whatever the service needs
                             },
                             // TODO Report enhancement - filtering should not require these form topic cludges
-                            filteringTopics : [ '_valueChangeOf_ITEM_NAME', '_valueChangeOf_KEYWORDS', '_valueChangeOf_ARCHIVE_DATE',
-                                    '_valueChangeOf_TOP_LEVEL' ],
+                            filteringTopics : [ '_valueChangeOf_ITEM_NAME', '_valueChangeOf_KEYWORDS', '_valueChangeOf_SEARCH_MODE',
+                                    '_valueChangeOf_ORIGINAL_LOCATION', '_valueChangeOf_ARCHIVE_DATE', '_valueChangeOf_TOP_LEVEL' ],
                             widgetsForFilters : [ {
                                 id : 'BTTM_SEARCH_LIST_NAME_FILTER_INPUT',
                                 name : 'alfresco/forms/controls/TextBox',
@@ -372,6 +456,39 @@ function buildSearchPanel()
                                     label : 'trash-browser.filter.keywords.label',
                                     placeHolder : 'trash-browser.filter.keywords.placeHolder'
                                 }
+                            }, {
+                                id : 'BTTM_SEARCH_LIST_SEARCH_MODE_FILTER_INPUT',
+                                name : 'alfresco/forms/controls/Select',
+                                config : {
+                                    // TODO Report enhancement - filter widgets should align properly
+                                    style : 'vertical-align:top;',
+                                    fieldId : 'SEARCH_MODE',
+                                    name : 'searchMode',
+                                    label : 'trash-browser.filter.searchMode.label',
+                                    // matching keywords against content is expensive, so it needs to be selected explicitly
+                                    value : 'metadata',
+                                    optionsConfig : {
+                                        fixed : [ {
+                                            label : 'trash-browser.filter.searchMode.metadata',
+                                            value : 'metadata'
+                                        }, {
+                                            label : 'trash-browser.filter.searchMode.content',
+                                            value : 'content'
+                                        } ]
+                                    }
+                                }
+                            }, {
+                                id : 'BTTM_SEARCH_LIST_ORIGINAL_LOCATION_FILTER_INPUT',
+                                name : 'alfresco/forms/controls/TextBox',
+                                config : {
+                                    // TODO Report enhancement - filter widgets should align properly
+                                    // TODO Report enhancement - simple width customisation
+                                    style : 'vertical-align:top;',
+                                    fieldId : 'ORIGINAL_LOCATION',
+                                    name : 'originalLocation',
+                                    label : 'trash-browser.filter.originalLocation.label',
+                                    placeHolder : 'trash-browser.filter.originalLocation.placeHolder'
+                                }
                             }, {
                                 id : 'BTTM_SEARCH_LIST_ARCHIVE_DATE_FILTER_INPUT',
                                 name : 'better-trash-management/forms/controls/DateRange',
@@ -398,8 +515,12 @@ function buildSearchPanel()
                                 }
                             } ],
                             usePagination : true,
-                            currentPageSize : 20,
+                            // render incrementally while scrolling, fetching fewer, larger chunks (next chunk is prefetched by the service)
+                            useInfiniteScroll : true,
+                            currentPageSize : 100,
                             itemsProperty : 'items',
+                            // totalRecords only denotes the size of the current chunk
+                            totalResultsProperty : 'numberFound',
                             widgets : buildListResultWidgets('BTTM_SEARCH_LIST'),
                             // TODO Report enhancement - layout of AlfList (and sub-modules) should allow for consistent padding to stop
                             // views clinging to the edge while not forcing i.e. filter form to have an even larger inset than by default
@@ -423,21 +544,28 @@ function buildHierarchyPanel()
             pubSubScope : 'TRASH_TREE_LIST/',
             widgets : [ {
                 id : 'BTTM_TREE_LIST_PAGINATOR',
-                name : 'alfresco/lists/Paginator',
+                name : 'alfresco/menus/AlfMenuBar',
                 config : {
-                    documentsPerPage : 20,
-                    pageSizes : [ 20, 50, 100 ],
+                    // list uses infinite scroll, so there is no page navigation - only list-level actions
                     style : 'text-align:center;',
-                    widgetsBefore : [ {
+                    widgets : [ {
                         id : 'BTTM_TREE_LIST_PAGINATOR_BULK_SELECTOR',
                         name : 'alfresco/documentlibrary/AlfSelectDocumentListItems'
-                    } ],
-                    widgetsAfter : [ {
+                    } ].concat(buildSortWidgets('BTTM_TREE_LIST_PAGINATOR'), [ {
                         id : 'BTTM_TREE_LIST_PAGINATOR_RELOADER',
                         name : 'alfresco/menus/AlfMenuBarItem',
                         config : {
                             label : 'trash-browser.paginator.reload.label',
-                            publishTopic : 'RELOAD_TRASH_ITEMS'
+                            // explicit reload must bypass any cached pages
+                            publishTopic : 'BETTER_TRASH_MANAGEMENT_PUBLISH_CHAIN',
+                            publishGlobal : true,
+                            publishPayload : {
+                                publications : [ {
+                                    publishTopic : 'BETTER_TRASH_MANAGEMENT_INVALIDATE_CACHE'
+                                }, {
+                                    publishTopic : 'TRASH_TREE_LIST/RELOAD_TRASH_ITEMS'
+                                } ]
+                            }
                         }
                     }, {
                         id : 'BTTM_TREE_LIST_PAGINATOR_SELECTED_ITEMS',
@@ -462,7 +590,7 @@ function buildHierarchyPanel()
                                 }
                             } ]
                         }
-                    } ]
+                    } ])
                 }
             }, {
                 id : 'BTTM_TREE_LIST',
@@ -470,11 +598,17 @@ function buildHierarchyPanel()
                 config : {
                     reloadDataTopic : 'RELOAD_TRASH_ITEMS',
                     loadDataPublishTopic : 'BETTER_TRASH_MANAGEMENT_BROWSE_ARCHIVED_ITEMS',
+                    sortField : 'name',
+                    sortAscending : true,
                     loadDataPublishPayload : {},
                     filteringTopics : [ 'BETTER_TRASH_MANAGEMENT_SET_PARENT' ],
                     usePagination : true,
-                    currentPageSize : 20,
+                    // render incrementally while scrolling, fetching fewer, larger chunks (next chunk is prefetched by the service)
+                    useInfiniteScroll : true,
+                    currentPageSize : 100,
                     itemsProperty : 'items',
+                    // totalRecords only denotes the size of the current chunk
+                    totalResultsProperty : 'numberFound',
                     widgets : buildListResultWidgets('BTTM_TREE_LIST'),
                     // TODO Report enhancement - layout of AlfList (and sub-modules) should allow for consistent padding to stop views
                     // clinging to the edge while not forcing i.e. filter form to have an even larger inset than by default
@@ -7,8 +7,9 @@
  */
 define(
         [ 'dojo/_base/declare', 'alfresco/services/BaseService', 'alfresco/core/CoreXhr', 'service/constants/Default',
-                'alfresco/core/topics', 'dojo/_base/lang', 'dojo/_base/array', 'alfresco/core/ObjectTypeUtils', 'alfresco/util/urlUtils' ],
-        function(declare, BaseService, CoreXhr, Constants, topics, lang, array, ObjectTypeUtils, urlUtils)
+                'alfresco/core/topics', 'dojo/_base/lang', 'dojo/_base/array', 'alfresco/core/ObjectTypeUtils', 'alfresco/util/urlUtils',
+                'dojo/request/xhr' ],
+        function(declare, BaseService, CoreXhr, Constants, topics, lang, array, ObjectTypeUtils, urlUtils, xhr)
         {
             return declare(
                     [ BaseService, CoreXhr ],
@@ -22,12 +23,119 @@ define(
 
                         deleteArchivedItemsTopic : 'BETTER_TRASH_MANAGEMENT_DELETE_ARCHIVED_ITEMS',
 
+                        checkRestoreArchivedItemsTopic : 'BETTER_TRASH_MANAGEMENT_CHECK_RESTORE_ARCHIVED_ITEMS',
+
+                        invalidateCacheTopic : 'BETTER_TRASH_MANAGEMENT_INVALIDATE_CACHE',
+
+                        /**
+                         * The maximum number of page responses to keep in the (least-recently-used) page cache.
+                         * 
+                         * @instance
+                         * @type {number}
+                         * @default
+                         */
+                        pageCacheSize : 20,
+
+                        /**
+                         * The time (in milliseconds) a cached page response remains valid.
+                         * 
+                         * @instance
+                         * @type {number}
+                         * @default
+                         */
+                        pageCacheTimeToLive : 60000,
+
+                        /**
+                         * The time (in milliseconds) without any new page request after which the next page of the most recently loaded
+                         * list is prefetched. Prefetching is disabled if this is not a positive number.
+                         * 
+                         * @instance
+                         * @type {number}
+                         * @default
+                         */
+                        prefetchDelay : 1500,
+
+                        /**
+                         * The time (in milliseconds) by which loading the first page of a query is delayed, so that a quick succession of
+                         * filter changes (e.g. while typing) only results in a single query for the final filter values. Debouncing is
+                         * disabled if this is not a positive number.
+                         * 
+                         * @instance
+                         * @type {number}
+                         * @default
+                         */
+                        queryDebounceDelay : 300,
+
+                        /**
+                         * Whether to request archived items in the compact response format, in which users, original parent paths and
+                         * qualified names are not repeated for each item but only referenced via side tables.
+                         * 
+                         * @instance
+                         * @type {boolean}
+                         * @default
+                         */
+                        useCompactFormat : true,
+
+                        /**
+                         * The interval (in milliseconds) in which the changes to the results of the most recently loaded query of each list
+                         * are polled from the repository in order to patch the cached pages of the list and reload it. Polling is disabled
+                         * if this is not a positive number.
+                         * 
+                         * @instance
+                         * @type {number}
+                         * @default
+                         */
+                        changesPollInterval : 30000,
+
+                        /**
+                         * The topic (within the pubSub scope of a list) to publish in order to have a list reload its data after it has
+                         * been patched with polled changes.
+                         * 
+                         * @instance
+                         * @type {string}
+                         * @default
+                         */
+                        listReloadTopic : 'RELOAD_TRASH_ITEMS',
+
+                        /**
+                         * Pages of archived items already retrieved during the assembly of the page, each provided as an object with the
+                         * URL of the page (relative to the proxy) and its response. A preloaded page is used - once - instead of issuing a
+                         * request for the first page load with the same parameters (irrespective of their order).
+                         * 
+                         * @instance
+                         * @type {object[]}
+                         * @default
+                         */
+                        preloadedPages : null,
+
                         registerSubscriptions : function betterTrashManagement_service_TrashManagementService__registerSubscriptions()
                         {
+                            this._pageCache = {};
+                            this._pageCacheKeys = [];
+                            this._inFlightPageRequests = {};
+                            this._debouncedQueries = {};
+                            this._prefetchTimeout = null;
+                            this._changesFeeds = {};
+                            this._preloadedPages = {};
+
+                            if (lang.isArray(this.preloadedPages))
+                            {
+                                array.forEach(this.preloadedPages, function(preloadedPage)
+                                {
+                                    if (preloadedPage.url && preloadedPage.response)
+                                    {
+                                        this._preloadedPages[this._normaliseUrl(Constants.PROXY_URI + preloadedPage.url)] =
+                                                preloadedPage.response;
+                                    }
+                                }, this);
+                            }
+
                             this.alfSubscribe(this.pubChainTopic, lang.hitch(this, this.onPublishChain));
+                            this.alfSubscribe(this.invalidateCacheTopic, lang.hitch(this, this.onInvalidateCache));
                             this.alfSubscribe(this.browseArchivedItemsTopic, lang.hitch(this, this.onBrowseArchivedItems));
                             this.alfSubscribe(this.queryArchivedItemsTopic, lang.hitch(this, this.onQueryArchivedItems));
                             this.alfSubscribe(this.deleteArchivedItemsTopic, lang.hitch(this, this.onDeleteArchivedItems));
+                            this.alfSubscribe(this.checkRestoreArchivedItemsTopic, lang.hitch(this, this.onCheckRestoreArchivedItems));
                         },
 
                         // TODO There should be a standard way to have a publication composed of multiple topics + payloads
@@ -56,7 +164,7 @@ define(
                         onBrowseArchivedItems : function betterTrashManagement_service_TrashManagementService__onBrowseArchivedItems(
                                 payload)
                         {
-                            var nodeRef, url, config, uuid;
+                            var nodeRef, url, nextPageUrl;
 
                             if (payload.nodeRef)
                             {
@@ -77,71 +185,195 @@ define(
 
                             if (nodeRef)
                             {
-                                url = Constants.PROXY_URI + 'api/better-trash-management/archivedItems/';
-                                url += encodeURI(nodeRef.replace(/:?\/+/g, '/'));
-                                url += '/children';
+                                url = this._buildBrowseUrl(payload, nodeRef, payload.page);
+                                nextPageUrl = payload.page && payload.pageSize ? this._buildBrowseUrl(payload, nodeRef, payload.page + 1)
+                                        : null;
 
-                                if (payload.pageSize)
-                                {
-                                    url = urlUtils.addQueryParameter(url, 'pageSize', payload.pageSize, true);
-                                }
+                                this._loadPage(url, nextPageUrl, payload, this.browseArchivedItemsTopic);
+                            }
+                            else
+                            {
+                                this.alfPublish(payload.failureTopic
+                                        || ((payload.alfResponseTopic || this.browseArchivedItemsTopic) + '_FAILURE'), {}, false, false,
+                                        payload.alfResponseScope);
+                            }
+                        },
+
+                        onQueryArchivedItems : function betterTrashManagement_service_TrashManagementService__onQueryArchivedItems(payload)
+                        {
+                            var url, nextPageUrl, requesterKey, feed, onFirstPageLoaded;
+
+                            url = this._buildQueryUrl(payload, payload.page);
+                            nextPageUrl = payload.page && payload.pageSize ? this._buildQueryUrl(payload, payload.page + 1) : null;
+
+                            requesterKey = this._getRequesterKey(payload, this.queryArchivedItemsTopic);
+                            if (this._debouncedQueries.hasOwnProperty(requesterKey))
+                            {
+                                window.clearTimeout(this._debouncedQueries[requesterKey]);
+                                delete this._debouncedQueries[requesterKey];
+                            }
+
+                            onFirstPageLoaded = null;
+                            if ((payload.page || 1) === 1)
+                            {
+                                this._consumePreloadedPage(url);
 
-                                if (payload.page)
+                                // changes of a superseded query are no longer of interest
+                                feed = this._changesFeeds[requesterKey];
+                                if (feed && feed.changesUrl !== this._buildQueryUrl(payload, null, '/changes'))
                                 {
-                                    url = urlUtils.addQueryParameter(url, 'page', payload.page, true);
+                                    this._stopChangesFeed(requesterKey);
                                 }
+                                // polling only makes sense once there is a successfully loaded list to keep up-to-date
+                                onFirstPageLoaded = lang.hitch(this, this._startChangesFeed, requesterKey, payload);
+                            }
 
-                                if (payload.page && payload.pageSize)
+                            // only (re-)queries for the first page are the result of filter changes - subsequent pages load immediately
+                            if (this.queryDebounceDelay > 0 && (payload.page || 1) === 1 && !this._pageCache.hasOwnProperty(url))
+                            {
+                                this._debouncedQueries[requesterKey] = window.setTimeout(lang.hitch(this, function()
                                 {
-                                    var startIndex = (payload.page - 1) * payload.pageSize;
-                                    url = urlUtils.addQueryParameter(url, 'startIndex', startIndex, true);
-                                }
+                                    delete this._debouncedQueries[requesterKey];
+                                    this._loadPage(url, nextPageUrl, payload, this.queryArchivedItemsTopic, onFirstPageLoaded);
+                                }), this.queryDebounceDelay);
+                            }
+                            else
+                            {
+                                this._loadPage(url, nextPageUrl, payload, this.queryArchivedItemsTopic, onFirstPageLoaded);
+                            }
+                        },
+
+                        onDeleteArchivedItems : function betterTrashManagement_service_TrashManagementService__onDeleteArchivedItems(
+                                payload)
+                        {
+                            var nodes, url, config, uuid;
+
+                            nodes = this._getSelectedNodeRefs(payload);
+                            if (nodes)
+                            {
+                                url = Constants.PROXY_URI + 'api/better-trash-management/archivedItems/bulkDelete';
 
                                 config = {
                                     preventCache : true,
                                     url : url,
-                                    method : 'GET'
+                                    data : {
+                                        nodes : nodes
+                                    },
+                                    method : 'POST'
                                 };
 
                                 uuid = this.generateUuid();
-                                this.alfSubscribe(uuid + '_SUCCESS', lang.hitch(this, this._successTranslator, payload, uuid,
-                                        this.browseArchivedItemsTopic));
+                                this.alfSubscribe(uuid + '_SUCCESS', lang.hitch(this, this._onDeleteArchivedItemsSuccess, payload, uuid));
                                 this.alfSubscribe(uuid + '_FAILURE', lang.hitch(this, this._successTranslator, payload, uuid,
-                                        this.browseArchivedItemsTopic));
+                                        this.deleteArchivedItemsTopic));
                                 config.alfTopic = uuid;
 
                                 this.serviceXhr(config);
                             }
-                            else
+                        },
+
+                        onCheckRestoreArchivedItems : function betterTrashManagement_service_TrashManagementService__onCheckRestoreArchivedItems(
+                                payload)
+                        {
+                            var nodes, config, uuid;
+
+                            nodes = this._getSelectedNodeRefs(payload);
+                            if (nodes)
                             {
-                                this.alfPublish(payload.failureTopic
-                                        || ((payload.alfResponseTopic || this.browseArchivedItemsTopic) + '_FAILURE'), {}, false, false,
-                                        payload.alfResponseScope);
+                                // verdicts for all selected items in one call instead of failing restores one at a time
+                                config = {
+                                    preventCache : true,
+                                    url : Constants.PROXY_URI + 'api/better-trash-management/archivedItems/restoreCheck',
+                                    data : {
+                                        nodes : nodes
+                                    },
+                                    method : 'POST'
+                                };
+
+                                uuid = this.generateUuid();
+                                this.alfSubscribe(uuid + '_SUCCESS', lang.hitch(this, this._successTranslator, payload, uuid,
+                                        this.checkRestoreArchivedItemsTopic));
+                                this.alfSubscribe(uuid + '_FAILURE', lang.hitch(this, this._failureTranslator, payload, uuid,
+                                        this.checkRestoreArchivedItemsTopic));
+                                config.alfTopic = uuid;
+
+                                this.serviceXhr(config);
                             }
                         },
 
-                        onQueryArchivedItems : function betterTrashManagement_service_TrashManagementService__onQueryArchivedItems(payload)
+                        _getSelectedNodeRefs : function betterTrashManagement_service_TrashManagementService__getSelectedNodeRefs(payload)
                         {
-                            var url, config, processedFilters, uuid;
-
-                            url = Constants.PROXY_URI + 'api/better-trash-management/archivedItems';
+                            var iterFn, nodes;
 
-                            if (payload.pageSize)
+                            iterFn = function betterTrashManagement_service_TrashManagementService__getSelectedNodeRefs_iterFn(selectedItem)
                             {
-                                url = urlUtils.addQueryParameter(url, 'pageSize', payload.pageSize, true);
-                            }
+                                if (typeof selectedItem === 'string' && /^[^:]+:\/\/[^\/]+\/.+$/.test(selectedItem))
+                                {
+                                    nodes.push(selectedItem);
+                                }
+                                else if (selectedItem.nodeRef && typeof selectedItem.nodeRef === 'string')
+                                {
+                                    nodes.push(selectedItem.nodeRef);
+                                }
+                            };
 
-                            if (payload.page)
+                            if (payload.selectedItems && lang.isArray(payload.selectedItems))
                             {
-                                url = urlUtils.addQueryParameter(url, 'page', payload.page, true);
+                                nodes = [];
+                                array.forEach(payload.selectedItems, iterFn, this);
                             }
-
-                            if (payload.page && payload.pageSize)
+                            else if (payload.nodes && lang.isArray(payload.nodes))
                             {
-                                var startIndex = (payload.page - 1) * payload.pageSize;
-                                url = urlUtils.addQueryParameter(url, 'startIndex', startIndex, true);
+                                nodes = [];
+                                array.forEach(payload.nodes, iterFn, this);
                             }
 
+                            return nodes;
+                        },
+
+                        onInvalidateCache : function betterTrashManagement_service_TrashManagementService__onInvalidateCache()
+                        {
+                            this._pageCache = {};
+                            this._pageCacheKeys = [];
+                            this._cancelPrefetch();
+                        },
+
+                        _onDeleteArchivedItemsSuccess : function betterTrashManagement_service_TrashManagementService__onDeleteArchivedItemsSuccess(
+                                requestPayload, uuid, successPayload)
+                        {
+                            // any cached page may contain the deleted items
+                            this.onInvalidateCache();
+                            this._successTranslator(requestPayload, uuid, this.deleteArchivedItemsTopic, successPayload);
+                        },
+
+                        _buildBrowseUrl : function betterTrashManagement_service_TrashManagementService__buildBrowseUrl(payload, nodeRef,
+                                page)
+                        {
+                            var url;
+
+                            url = Constants.PROXY_URI + 'api/better-trash-management/archivedItems/';
+                            url += encodeURI(nodeRef.replace(/:?\/+/g, '/'));
+                            url += '/children';
+
+                            url = this._addPagingParameters(url, payload.pageSize, page);
+                            // children of archived items are never archived roots themselves
+                            url = this._addSortParameters(url, payload, false);
+                            url = this._addFormatParameters(url);
+
+                            return url;
+                        },
+
+                        _buildQueryUrl : function betterTrashManagement_service_TrashManagementService__buildQueryUrl(payload, page,
+                                subPath)
+                        {
+                            var url, processedFilters;
+
+                            url = Constants.PROXY_URI + 'api/better-trash-management/archivedItems' + (subPath || '');
+
+                            url = this._addPagingParameters(url, payload.pageSize, page);
+                            url = this._addSortParameters(url, payload, this._isTopLevelQuery(payload));
+                            url = this._addFormatParameters(url);
+
                             if (payload.defaultOperator)
                             {
                                 url = urlUtils.addQueryParameter(url, 'defaultOperator', payload.defaultOperator, true);
@@ -166,6 +398,9 @@ define(
                                         case 'archivedByUser':
                                         case 'baseStore':
                                         case 'filterQuery':
+                                        case 'keywords':
+                                        case 'searchMode':
+                                        case 'originalLocation':
                                         case 'topLevel':
                                             url = urlUtils.addQueryParameter(url, filter.name, filter.value, true);
                                             processedFilters[filter.name] = true;
@@ -191,72 +426,809 @@ define(
                                 url = urlUtils.addQueryParameter(url, 'baseStore', 'workspace://SpacesStore', true);
                             }
 
-                            config = {
-                                preventCache : true,
-                                url : url,
-                                method : 'GET'
-                            };
+                            return url;
+                        },
+
+                        _addPagingParameters : function betterTrashManagement_service_TrashManagementService__addPagingParameters(url,
+                                pageSize, page)
+                        {
+                            var startIndex, effectiveUrl;
+
+                            effectiveUrl = url;
+                            if (pageSize)
+                            {
+                                effectiveUrl = urlUtils.addQueryParameter(effectiveUrl, 'pageSize', pageSize, true);
+                            }
 
-                            uuid = this.generateUuid();
-                            this.alfSubscribe(uuid + '_SUCCESS', lang.hitch(this, this._successTranslator, payload, uuid,
-                                    this.queryArchivedItemsTopic));
-                            this.alfSubscribe(uuid + '_FAILURE', lang.hitch(this, this._successTranslator, payload, uuid,
-                                    this.queryArchivedItemsTopic));
-                            config.alfTopic = uuid;
+                            if (page)
+                            {
+                                effectiveUrl = urlUtils.addQueryParameter(effectiveUrl, 'page', page, true);
+                            }
 
-                            this.serviceXhr(config);
+                            if (page && pageSize)
+                            {
+                                startIndex = (page - 1) * pageSize;
+                                effectiveUrl = urlUtils.addQueryParameter(effectiveUrl, 'startIndex', startIndex, true);
+                            }
+
+                            return effectiveUrl;
                         },
 
-                        onDeleteArchivedItems : function betterTrashManagement_service_TrashManagementService__onDeleteArchivedItems(
-                                payload)
+                        _isTopLevelQuery : function betterTrashManagement_service_TrashManagementService__isTopLevelQuery(payload)
                         {
-                            var iterFn, nodes, url, config, uuid;
+                            var topLevel;
 
-                            iterFn = function betterTrashManagement_service_TrashManagementService__onDeleteArchivedItems_iterFn(
-                                    selectedItem)
+                            // mirrors the default of the archived items query web script
+                            topLevel = true;
+                            if (payload.dataFilters && lang.isArray(payload.dataFilters))
                             {
-                                if (typeof selectedItem === 'string' && /^[^:]+:\/\/[^\/]+\/.+$/.test(selectedItem))
+                                array.forEach(payload.dataFilters, function(filter)
                                 {
-                                    nodes.push(selectedItem);
+                                    if (filter.name === 'topLevel')
+                                    {
+                                        topLevel = filter.value === true || filter.value === 'true';
+                                    }
+                                });
+                            }
+
+                            return topLevel;
+                        },
+
+                        _addSortParameters : function betterTrashManagement_service_TrashManagementService__addSortParameters(url, payload,
+                                topLevel)
+                        {
+                            var effectiveUrl, sortField;
+
+                            effectiveUrl = url;
+                            if (payload.sortField)
+                            {
+                                sortField = payload.sortField;
+                                if (sortField === 'archiver' && topLevel !== true)
+                                {
+                                    // only archived roots carry the archiver, so the web scripts reject this sort field for any other
+                                    // listing - the archive date at least keeps the items of the same archive operation together
+                                    sortField = 'archivedDate';
                                 }
-                                else if (selectedItem.nodeRef && typeof selectedItem.nodeRef === 'string')
+                                effectiveUrl = urlUtils.addQueryParameter(effectiveUrl, 'sortBy', sortField, true);
+                                effectiveUrl = urlUtils.addQueryParameter(effectiveUrl, 'sortAsc', payload.sortAscending === true, true);
+                            }
+
+                            return effectiveUrl;
+                        },
+
+                        _addFormatParameters : function betterTrashManagement_service_TrashManagementService__addFormatParameters(url)
+                        {
+                            var effectiveUrl;
+
+                            effectiveUrl = url;
+                            if (this.useCompactFormat === true)
+                            {
+                                effectiveUrl = urlUtils.addQueryParameter(effectiveUrl, 'compact', true, true);
+                            }
+
+                            return effectiveUrl;
+                        },
+
+                        /**
+                         * Transfers a page preloaded during the assembly of the page into the page cache if it matches the URL of a page to
+                         * load. Since the page is only preloaded once, it is discarded afterwards.
+                         * 
+                         * @instance
+                         * @param {string} url The URL of the page to load
+                         */
+                        _consumePreloadedPage : function betterTrashManagement_service_TrashManagementService__consumePreloadedPage(url)
+                        {
+                            var key;
+
+                            key = this._normaliseUrl(url);
+                            if (this._preloadedPages.hasOwnProperty(key))
+                            {
+                                if (!this._pageCache.hasOwnProperty(url))
                                 {
-                                    nodes.push(selectedItem.nodeRef);
+                                    this._putCachedPage(url, this._decodeCompactResponse(this._preloadedPages[key]));
                                 }
-                            };
+                                delete this._preloadedPages[key];
+                            }
+                        },
 
-                            if (payload.selectedItems && lang.isArray(payload.selectedItems))
+                        _normaliseUrl : function betterTrashManagement_service_TrashManagementService__normaliseUrl(url)
+                        {
+                            var queryIdx, parameters, normalisedUrl;
+
+                            queryIdx = url.indexOf('?');
+                            normalisedUrl = queryIdx !== -1 ? url.substring(0, queryIdx) : url;
+                            if (queryIdx !== -1)
                             {
-                                nodes = [];
-                                array.forEach(payload.selectedItems, iterFn, this);
+                                // parameter order and empty parameters (e.g. blank filters) do not affect the response
+                                parameters = array.filter(array.map(url.substring(queryIdx + 1).split('&'), function(parameter)
+                                {
+                                    var separatorIdx, name, value;
+
+                                    separatorIdx = parameter.indexOf('=');
+                                    name = decodeURIComponent(separatorIdx !== -1 ? parameter.substring(0, separatorIdx) : parameter);
+                                    value = separatorIdx !== -1 ? parameter.substring(separatorIdx + 1).replace(/\+/g, ' ') : '';
+                                    value = decodeURIComponent(value);
+                                    return value !== '' ? name + '=' + value : null;
+                                }), function(parameter)
+                                {
+                                    return parameter !== null;
+                                });
+                                parameters.sort();
+                                normalisedUrl += '?' + parameters.join('&');
                             }
-                            else if (payload.nodes && lang.isArray(payload.nodes))
+
+                            return normalisedUrl;
+                        },
+
+                        /**
+                         * Starts polling the changes to the results of a query since it has been loaded, unless the changes of the same
+                         * query are already being polled for the requesting list. Any polling for a previous query of the list is stopped.
+                         * 
+                         * @instance
+                         * @param {string} requesterKey The key of the requesting list
+                         * @param {object} requestPayload The payload of the request for the first page of the query
+                         */
+                        _startChangesFeed : function betterTrashManagement_service_TrashManagementService__startChangesFeed(requesterKey,
+                                requestPayload)
+                        {
+                            var changesUrl, feed;
+
+                            if (this.changesPollInterval > 0)
                             {
-                                nodes = [];
-                                array.forEach(payload.nodes, iterFn, this);
+                                changesUrl = this._buildQueryUrl(requestPayload, null, '/changes');
+                                feed = this._changesFeeds[requesterKey];
+                                if (!feed || feed.changesUrl !== changesUrl)
+                                {
+                                    this._stopChangesFeed(requesterKey);
+
+                                    feed = {
+                                        requestPayload : requestPayload,
+                                        changesUrl : changesUrl,
+                                        watermark : null,
+                                        timeout : null,
+                                        request : null
+                                    };
+                                    this._changesFeeds[requesterKey] = feed;
+                                    // initial request only determines the watermark
+                                    this._pollChanges(requesterKey, feed);
+                                }
                             }
+                        },
 
-                            if (nodes)
+                        _stopChangesFeed : function betterTrashManagement_service_TrashManagementService__stopChangesFeed(requesterKey)
+                        {
+                            var feed;
+
+                            if (this._changesFeeds.hasOwnProperty(requesterKey))
                             {
-                                url = Constants.PROXY_URI + 'api/better-trash-management/archivedItems/bulkDelete';
+                                feed = this._changesFeeds[requesterKey];
+                                delete this._changesFeeds[requesterKey];
 
-                                config = {
+                                if (feed.timeout !== null)
+                                {
+                                    window.clearTimeout(feed.timeout);
+                                }
+                                if (feed.request !== null)
+                                {
+                                    feed.request.cancel();
+                                }
+                            }
+                        },
+
+                        _scheduleChangesPoll : function betterTrashManagement_service_TrashManagementService__scheduleChangesPoll(
+                                requesterKey, feed)
+                        {
+                            feed.request = null;
+                            feed.timeout = window.setTimeout(lang.hitch(this, this._pollChanges, requesterKey, feed),
+                                    this.changesPollInterval);
+                        },
+
+                        _pollChanges : function betterTrashManagement_service_TrashManagementService__pollChanges(requesterKey, feed)
+                        {
+                            var url;
+
+                            feed.timeout = null;
+                            // no need to keep a list up-to-date while no-one is looking
+                            if (feed.watermark !== null && document.hidden === true)
+                            {
+                                this._scheduleChangesPoll(requesterKey, feed);
+                            }
+                            else
+                            {
+                                url = feed.watermark !== null ? urlUtils.addQueryParameter(feed.changesUrl, 'since', feed.watermark, true)
+                                        : feed.changesUrl;
+
+                                // use plain XHR as polling failures should not be reported to the user via CoreXhr#serviceXhr
+                                feed.request = xhr(url, {
+                                    method : 'GET',
+                                    handleAs : 'json',
+                                    preventCache : true,
+                                    headers : {
+                                        'Content-Type' : 'application/json'
+                                    }
+                                });
+                                feed.request.then(lang.hitch(this, this._onChangesLoadSuccess, requesterKey, feed), lang.hitch(this,
+                                        this._onChangesLoadFailure, requesterKey, feed));
+                            }
+                        },
+
+                        _onChangesLoadSuccess : function betterTrashManagement_service_TrashManagementService__onChangesLoadSuccess(
+                                requesterKey, feed, response)
+                        {
+                            var decodedResponse, reload;
+
+                            if (this._changesFeeds[requesterKey] === feed && response)
+                            {
+                                decodedResponse = this._decodeCompactResponse(response);
+
+                                if (feed.watermark !== null)
+                                {
+                                    if (decodedResponse.resync === true)
+                                    {
+                                        // too many changes to patch
+                                        this._evictQueryPages(feed.requestPayload);
+                                        reload = true;
+                                    }
+                                    else
+                                    {
+                                        reload = this._patchQueryPages(feed.requestPayload, decodedResponse.items || [],
+                                                decodedResponse.removed || []);
+                                    }
+
+                                    if (reload)
+                                    {
+                                        this.alfPublish((feed.requestPayload.alfResponseScope || '') + this.listReloadTopic, {}, true);
+                                    }
+                                }
+
+                                feed.watermark = decodedResponse.watermark;
+                                this._scheduleChangesPoll(requesterKey, feed);
+                            }
+                        },
+
+                        _onChangesLoadFailure : function betterTrashManagement_service_TrashManagementService__onChangesLoadFailure(
+                                requesterKey, feed, error)
+                        {
+                            if (this._changesFeeds[requesterKey] === feed)
+                            {
+                                // e.g. query with a custom filter query for which changes cannot be determined
+                                this.alfLog('info', 'Stopped polling changes for list', requesterKey, error);
+                                feed.request = null;
+                                this._stopChangesFeed(requesterKey);
+                            }
+                        },
+
+                        /**
+                         * Patches the cached pages of a query with polled changes. Changed items replace their previous version in any
+                         * cached page, removed items are dropped from them, and any newly added items are inserted at the top of the first
+                         * page in the order provided by the repository. Since this is only exact for the default sort by descending archive
+                         * date, the cached pages of a query with any other sort order are evicted and reloaded when items have been added.
+                         * 
+                         * @instance
+                         * @param {object} requestPayload The payload of the request for the first page of the query
+                         * @param {object[]} items The (decoded) items added to or changed in the results of the query
+                         * @param {string[]} removed The node references of the items removed from the results of the query
+                         * @return {boolean} true if the list displaying the query needs to be reloaded
+                         */
+                        _patchQueryPages : function betterTrashManagement_service_TrashManagementService__patchQueryPages(requestPayload,
+                                items, removed)
+                        {
+                            var itemsByNodeRef, addedNodeRefs, removedNodeRefs, addedItems, page, url, firstResponse, response, patched;
+
+                            itemsByNodeRef = {};
+                            array.forEach(items, function(item)
+                            {
+                                itemsByNodeRef[item.nodeRef] = item;
+                            });
+                            removedNodeRefs = {};
+                            array.forEach(removed, function(nodeRef)
+                            {
+                                removedNodeRefs[nodeRef] = true;
+                            });
+                            // any item not found in a cached page is new
+                            addedNodeRefs = lang.mixin({}, itemsByNodeRef);
+
+                            patched = false;
+                            firstResponse = null;
+                            page = requestPayload.page;
+                            url = this._buildQueryUrl(requestPayload, page);
+                            while (this._pageCache.hasOwnProperty(url))
+                            {
+                                response = this._pageCache[url].response;
+                                if (firstResponse === null)
+                                {
+                                    firstResponse = response;
+                                }
+
+                                response.items = array.filter(array.map(response.items, function(item)
+                                {
+                                    var effectiveItem = item;
+                                    if (itemsByNodeRef.hasOwnProperty(item.nodeRef))
+                                    {
+                                        effectiveItem = itemsByNodeRef[item.nodeRef];
+                                        delete addedNodeRefs[item.nodeRef];
+                                        patched = true;
+                                    }
+                                    else if (removedNodeRefs.hasOwnProperty(item.nodeRef))
+                                    {
+                                        effectiveItem = null;
+                                        response.numberFound = Math.max(response.numberFound - 1, 0);
+                                        patched = true;
+                                    }
+                                    return effectiveItem;
+                                }), function(item)
+                                {
+                                    return item !== null;
+                                });
+                                response.totalRecords = response.items.length;
+
+                                // only the first page may lack paging parameters
+                                if (!requestPayload.pageSize)
+                                {
+                                    break;
+                                }
+                                page = (page || 1) + 1;
+                                url = this._buildQueryUrl(requestPayload, page);
+                            }
+
+                            addedItems = array.filter(items, function(item)
+                            {
+                                return addedNodeRefs.hasOwnProperty(item.nodeRef);
+                            });
+
+                            if (addedItems.length > 0 && requestPayload.sortField
+                                    && (requestPayload.sortField !== 'archivedDate' || requestPayload.sortAscending === true))
+                            {
+                                // position of added items cannot be determined client-side
+                                this._evictQueryPages(requestPayload);
+                                patched = true;
+                            }
+                            else if (addedItems.length > 0)
+                            {
+                                if (firstResponse !== null)
+                                {
+                                    firstResponse.items = addedItems.concat(firstResponse.items);
+                                    firstResponse.totalRecords = firstResponse.items.length;
+                                    firstResponse.numberFound += addedItems.length;
+                                }
+                                // list needs to be reloaded from the repository if the first page is no longer cached
+                                patched = true;
+                            }
+
+                            return patched;
+                        },
+
+                        _evictQueryPages : function betterTrashManagement_service_TrashManagementService__evictQueryPages(requestPayload)
+                        {
+                            var page, url, keyIdx;
+
+                            page = requestPayload.page;
+                            url = this._buildQueryUrl(requestPayload, page);
+                            while (this._pageCache.hasOwnProperty(url))
+                            {
+                                delete this._pageCache[url];
+                                keyIdx = array.indexOf(this._pageCacheKeys, url);
+                                if (keyIdx !== -1)
+                                {
+                                    this._pageCacheKeys.splice(keyIdx, 1);
+                                }
+
+                                if (!requestPayload.pageSize)
+                                {
+                                    break;
+                                }
+                                page = (page || 1) + 1;
+                                url = this._buildQueryUrl(requestPayload, page);
+                            }
+                        },
+
+                        /**
+                         * Decodes a response in the compact format into the regular format expected by the list widgets, resolving all
+                         * references to the side tables.
+                         * 
+                         * @instance
+                         * @param {object} response The response to decode
+                         * @return {object} the decoded response (or the response itself if it is not in the compact format)
+                         */
+                        _decodeCompactResponse : function betterTrashManagement_service_TrashManagementService__decodeCompactResponse(
+                                response)
+                        {
+                            var tables, decodedResponse;
+
+                            decodedResponse = response;
+                            if (response && response.compact && lang.isArray(response.items))
+                            {
+                                tables = response.compact;
+                                decodedResponse = lang.mixin({}, response);
+                                delete decodedResponse.compact;
+
+                                decodedResponse.items = array.map(response.items, function(item)
+                                {
+                                    return this._decodeCompactItem(item, tables);
+                                }, this);
+                            }
+
+                            return decodedResponse;
+                        },
+
+                        /**
+                         * Decodes a single item of a response in the compact format, including any nested children.
+                         * 
+                         * @instance
+                         * @param {object} item The item to decode
+                         * @param {object} tables The side tables of the response
+                         * @return {object} the decoded item
+                         */
+                        _decodeCompactItem : function betterTrashManagement_service_TrashManagementService__decodeCompactItem(item, tables)
+                        {
+                            var decodedItem, modifier, archiver, nodeTypeShort, prefix, key;
+
+                            modifier = tables.users[item.modifier] || {};
+                            archiver = tables.users[item.archiver] || {};
+                            nodeTypeShort = tables.qnames[item.nodeType];
+                            prefix = nodeTypeShort.substring(0, nodeTypeShort.indexOf(':'));
+
+                            decodedItem = lang.mixin({}, item, {
+                                nodeType : tables.namespaces.hasOwnProperty(prefix) ? '{' + tables.namespaces[prefix] + '}'
+                                        + nodeTypeShort.substring(prefix.length + 1) : nodeTypeShort,
+                                nodeTypeShort : nodeTypeShort,
+                                modifier : modifier.userName,
+                                modifierDisplayName : modifier.displayName,
+                                archiver : archiver.userName,
+                                archiverDisplayName : archiver.displayName,
+                                displayPath : tables.paths[item.path] + item.relativePath,
+                                properties : {}
+                            });
+                            delete decodedItem.path;
+                            delete decodedItem.relativePath;
+
+                            if (item.type === 'document')
+                            {
+                                decodedItem.contentUrl = 'api/node/content/' + item.nodeRef.replace('://', '/') + '/'
+                                        + encodeURIComponent(item.name);
+                            }
+
+                            for (key in item.properties)
+                            {
+                                if (item.properties.hasOwnProperty(key))
+                                {
+                                    decodedItem.properties[tables.qnames[key]] = item.properties[key];
+                                }
+                            }
+
+                            if (lang.isArray(item.children))
+                            {
+                                decodedItem.children = array.map(item.children, function(child)
+                                {
+                                    return this._decodeCompactItem(child, tables);
+                                }, this);
+                            }
+
+                            return decodedItem;
+                        },
+
+                        /**
+                         * Loads a page of archived items, either from the page cache, by joining an identical request already in
+                         * flight, or by issuing a new request. Any request still in flight for a previous page load of the same requester
+                         * (e.g. a list before its filters were changed) is abandoned and - if no other requester is waiting for it -
+                         * aborted, including the processing of the request in the repository.
+                         * 
+                         * @instance
+                         * @param {string} url The URL of the page to load (also used as the cache key)
+                         * @param {string} nextPageUrl The URL of the next page to consider for prefetching (optional)
+                         * @param {object} requestPayload The payload of the request to respond to - null for prefetch requests
+                         * @param {string} defaultTopic The default topic to derive response topics from
+                         * @param {function} successCallback The callback to invoke once the page has been loaded successfully (optional)
+                         */
+                        _loadPage : function betterTrashManagement_service_TrashManagementService__loadPage(url, nextPageUrl,
+                                requestPayload, defaultTopic, successCallback)
+                        {
+                            var cachedResponse, inFlightRequest, requesterKey, waiters, requestId;
+
+                            requesterKey = null;
+                            if (requestPayload !== null)
+                            {
+                                this._cancelPrefetch();
+                                requesterKey = this._getRequesterKey(requestPayload, defaultTopic);
+                                this._abandonSupersededPageRequests(requesterKey, url);
+                            }
+
+                            cachedResponse = this._getCachedPage(url);
+                            inFlightRequest = this._inFlightPageRequests[url];
+
+                            if (cachedResponse !== null)
+                            {
+                                if (requestPayload !== null)
+                                {
+                                    this._successTranslator(requestPayload, null, defaultTopic, {
+                                        response : cachedResponse,
+                                        requestConfig : {
+                                            url : url,
+                                            method : 'GET'
+                                        }
+                                    });
+                                    this._schedulePrefetch(nextPageUrl, cachedResponse);
+                                    if (typeof successCallback === 'function')
+                                    {
+                                        successCallback();
+                                    }
+                                }
+                            }
+                            else if (inFlightRequest)
+                            {
+                                // identical request already in flight - simply wait for its response
+                                if (requestPayload !== null)
+                                {
+                                    inFlightRequest.waiters.push({
+                                        requesterKey : requesterKey,
+                                        requestPayload : requestPayload,
+                                        defaultTopic : defaultTopic,
+                                        nextPageUrl : nextPageUrl,
+                                        successCallback : successCallback
+                                    });
+                                }
+                            }
+                            else
+                            {
+                                waiters = requestPayload !== null ? [ {
+                                    requesterKey : requesterKey,
+                                    requestPayload : requestPayload,
+                                    defaultTopic : defaultTopic,
+                                    nextPageUrl : nextPageUrl,
+                                    successCallback : successCallback
+                                } ] : [];
+
+                                // request ID allows the request to be cancelled in the repository (not part of the cache key)
+                                requestId = this.generateUuid();
+                                inFlightRequest = {
+                                    waiters : waiters,
+                                    requestId : requestId
+                                };
+                                this._inFlightPageRequests[url] = inFlightRequest;
+
+                                // use plain XHR as CoreXhr#serviceXhr provides no means to abort a request
+                                inFlightRequest.request = xhr(urlUtils.addQueryParameter(url, 'requestId', requestId, true), {
+                                    method : 'GET',
+                                    handleAs : 'json',
                                     preventCache : true,
+                                    headers : {
+                                        'Content-Type' : 'application/json'
+                                    }
+                                });
+                                inFlightRequest.request.then(lang.hitch(this, this._onPageLoadSuccess, url, inFlightRequest),
+                                        lang.hitch(this, this._onPageLoadFailure, url, inFlightRequest));
+                            }
+                        },
+
+                        _getRequesterKey : function betterTrashManagement_service_TrashManagementService__getRequesterKey(requestPayload,
+                                defaultTopic)
+                        {
+                            // each list uses its own pubSub scope
+                            var requesterKey = (requestPayload.alfResponseScope || '') + defaultTopic;
+                            return requesterKey;
+                        },
+
+                        _abandonSupersededPageRequests : function betterTrashManagement_service_TrashManagementService__abandonSupersededPageRequests(
+                                requesterKey, url)
+                        {
+                            var inFlightUrl, inFlightRequest, remainingWaiters;
+
+                            for (inFlightUrl in this._inFlightPageRequests)
+                            {
+                                if (this._inFlightPageRequests.hasOwnProperty(inFlightUrl) && inFlightUrl !== url)
+                                {
+                                    inFlightRequest = this._inFlightPageRequests[inFlightUrl];
+                                    remainingWaiters = array.filter(inFlightRequest.waiters, function(waiter)
+                                    {
+                                        return waiter.requesterKey !== requesterKey;
+                                    });
+
+                                    if (remainingWaiters.length !== inFlightRequest.waiters.length)
+                                    {
+                                        inFlightRequest.waiters = remainingWaiters;
+                                        if (remainingWaiters.length === 0)
+                                        {
+                                            this._abortPageRequest(inFlightUrl, inFlightRequest);
+                                        }
+                                    }
+                                }
+                            }
+                        },
+
+                        _abortPageRequest : function betterTrashManagement_service_TrashManagementService__abortPageRequest(url,
+                                inFlightRequest)
+                        {
+                            var noop;
+
+                            delete this._inFlightPageRequests[url];
+                            inFlightRequest.aborted = true;
+                            inFlightRequest.request.cancel();
+
+                            // repository does not notice the client going away, so explicitly stop it from processing the request
+                            noop = function betterTrashManagement_service_TrashManagementService__abortPageRequest_noop()
+                            {
+                                // nothing to do - request may already have completed
+                            };
+                            this.serviceXhr({
+                                url : Constants.PROXY_URI + 'api/better-trash-management/archivedItems/requests/'
+                                        + encodeURIComponent(inFlightRequest.requestId) + '/cancel',
+                                method : 'POST',
+                                data : {},
+                                successCallback : noop,
+                                failureCallback : noop,
+                                callbackScope : this
+                            });
+                        },
+
+                        _onPageLoadSuccess : function betterTrashManagement_service_TrashManagementService__onPageLoadSuccess(url,
+                                inFlightRequest, response)
+                        {
+                            var waitingRequests, successPayload, decodedResponse;
+
+                            if (this._inFlightPageRequests[url] === inFlightRequest)
+                            {
+                                delete this._inFlightPageRequests[url];
+                            }
+                            waitingRequests = inFlightRequest.waiters;
+
+                            // decode once so that cached pages are already decoded
+                            decodedResponse = this._decodeCompactResponse(response);
+
+                            successPayload = {
+                                response : decodedResponse,
+                                requestConfig : {
                                     url : url,
-                                    data : {
-                                        nodes : nodes
-                                    },
-                                    method : 'POST'
+                                    method : 'GET'
+                                }
+                            };
+
+                            if (decodedResponse)
+                            {
+                                this._putCachedPage(url, decodedResponse);
+                            }
+
+                            array.forEach(waitingRequests,
+                                    function betterTrashManagement_service_TrashManagementService__onPageLoadSuccess_forEach(
+                                            waitingRequest, idx)
+                                    {
+                                        // all but the first requester get their own copy so that no-one is affected by modifications of
+                                        // others
+                                        this._successTranslator(waitingRequest.requestPayload, null, waitingRequest.defaultTopic,
+                                                idx === 0 ? successPayload : lang.clone(successPayload));
+                                        if (idx === waitingRequests.length - 1)
+                                        {
+                                            this._schedulePrefetch(waitingRequest.nextPageUrl, decodedResponse);
+                                        }
+                                        if (decodedResponse && typeof waitingRequest.successCallback === 'function')
+                                        {
+                                            waitingRequest.successCallback();
+                                        }
+                                    }, this);
+                        },
+
+                        _onPageLoadFailure : function betterTrashManagement_service_TrashManagementService__onPageLoadFailure(url,
+                                inFlightRequest, error)
+                        {
+                            var waitingRequests, failurePayload;
+
+                            if (this._inFlightPageRequests[url] === inFlightRequest)
+                            {
+                                delete this._inFlightPageRequests[url];
+                            }
+
+                            // aborted requests no longer have anyone waiting for them
+                            if (!inFlightRequest.aborted)
+                            {
+                                waitingRequests = inFlightRequest.waiters;
+                                failurePayload = {
+                                    response : error && error.response ? error.response.data : null,
+                                    requestConfig : {
+                                        url : url,
+                                        method : 'GET'
+                                    }
                                 };
 
-                                uuid = this.generateUuid();
-                                this.alfSubscribe(uuid + '_SUCCESS', lang.hitch(this, this._successTranslator, payload, uuid,
-                                        this.deleteArchivedItemsTopic));
-                                this.alfSubscribe(uuid + '_FAILURE', lang.hitch(this, this._successTranslator, payload, uuid,
-                                        this.deleteArchivedItemsTopic));
-                                config.alfTopic = uuid;
+                                array.forEach(waitingRequests,
+                                        function betterTrashManagement_service_TrashManagementService__onPageLoadFailure_forEach(
+                                                waitingRequest)
+                                        {
+                                            // historically page load failures have been reported via the success topic
+                                            this._successTranslator(waitingRequest.requestPayload, null, waitingRequest.defaultTopic,
+                                                    failurePayload);
+                                        }, this);
+                            }
+                        },
 
-                                this.serviceXhr(config);
+                        _getCachedPage : function betterTrashManagement_service_TrashManagementService__getCachedPage(url)
+                        {
+                            var cacheEntry, keyIdx, response;
+
+                            response = null;
+                            if (this._pageCache.hasOwnProperty(url))
+                            {
+                                cacheEntry = this._pageCache[url];
+                                keyIdx = array.indexOf(this._pageCacheKeys, url);
+                                if (keyIdx !== -1)
+                                {
+                                    this._pageCacheKeys.splice(keyIdx, 1);
+                                }
+
+                                if (new Date().getTime() - cacheEntry.cachedAt <= this.pageCacheTimeToLive)
+                                {
+                                    // mark as most recently used
+                                    this._pageCacheKeys.push(url);
+                                    // widgets may modify the response data so always provide a copy
+                                    response = lang.clone(cacheEntry.response);
+                                }
+                                else
+                                {
+                                    delete this._pageCache[url];
+                                }
+                            }
+
+                            return response;
+                        },
+
+                        _putCachedPage : function betterTrashManagement_service_TrashManagementService__putCachedPage(url, response)
+                        {
+                            var keyIdx;
+
+                            if (this.pageCacheSize > 0)
+                            {
+                                keyIdx = array.indexOf(this._pageCacheKeys, url);
+                                if (keyIdx !== -1)
+                                {
+                                    this._pageCacheKeys.splice(keyIdx, 1);
+                                }
+
+                                this._pageCache[url] = {
+                                    response : lang.clone(response),
+                                    cachedAt : new Date().getTime()
+                                };
+                                this._pageCacheKeys.push(url);
+
+                                while (this._pageCacheKeys.length > this.pageCacheSize)
+                                {
+                                    delete this._pageCache[this._pageCacheKeys.shift()];
+                                }
+                            }
+                        },
+
+                        _schedulePrefetch : function betterTrashManagement_service_TrashManagementService__schedulePrefetch(nextPageUrl,
+                                response)
+                        {
+                            var loadedCount, hasMore;
+
+                            if (nextPageUrl && response && this.prefetchDelay > 0)
+                            {
+                                loadedCount = (response.startIndex || 0) + (lang.isArray(response.items) ? response.items.length : 0);
+                                hasMore = typeof response.numberFound === 'number' && response.numberFound > loadedCount;
+
+                                if (hasMore && !this._pageCache.hasOwnProperty(nextPageUrl))
+                                {
+                                    this._cancelPrefetch();
+                                    this._prefetchTimeout = window.setTimeout(lang.hitch(this, function()
+                                    {
+                                        this._prefetchTimeout = null;
+                                        if (typeof window.requestIdleCallback === 'function')
+                                        {
+                                            window.requestIdleCallback(lang.hitch(this, this._loadPage, nextPageUrl, null, null, null));
+                                        }
+                                        else
+                                        {
+                                            this._loadPage(nextPageUrl, null, null, null);
+                                        }
+                                    }), this.prefetchDelay);
+                                }
+                            }
+                        },
+
+                        _cancelPrefetch : function betterTrashManagement_service_TrashManagementService__cancelPrefetch()
+                        {
+                            if (this._prefetchTimeout !== null)
+                            {
+                                window.clearTimeout(this._prefetchTimeout);
+                                this._prefetchTimeout = null;
                             }
                         },
 
@@ -265,7 +1237,10 @@ define(
                         {
                             var responseTopic, responseScope;
 
-                            this._unsubscribeXhrHandles(uuid);
+                            if (uuid)
+                            {
+                                this._unsubscribeXhrHandles(uuid);
+                            }
 
                             // explicit failure topic specified by the original publisher
                             if (requestPayload.failureTopic)
@@ -294,7 +1269,10 @@ define(
                         {
                             var responseTopic, responseScope;
 
-                            this._unsubscribeXhrHandles(uuid);
+                            if (uuid)
+                            {
+                                this._unsubscribeXhrHandles(uuid);
+                            }
 
                             // explicit success topic specified by the original publisher
                             if (requestPayload.successTopic)